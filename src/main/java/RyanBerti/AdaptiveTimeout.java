@@ -0,0 +1,171 @@
+package RyanBerti;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tunes the adapter timeout (AT ST, in units of 4 ms) and the stream read timeout from the response
+ * times observed while polling (see JavaObdReader.setAdaptiveTimeout). The response time of every
+ * answered PID (from writing the request to the first byte of the answer, so the adapter's wait for
+ * further ECUs doesn't count) is kept in a LatencyHistogram per PID. Once enough answers came in, the
+ * adapter timeout is set to the highest per PID 99th percentile times MARGIN, so NO DATA answers
+ * (unsupported PIDs, ECUs that don't answer) and the adapter's wait for further ECUs cost that instead
+ * of the maximum; the stream timeout, which catches responses the adapter drops altogether, follows at
+ * twice the adapter timeout plus STREAM_SLACK_MILLIS.
+ *
+ * Every WINDOW outcomes of PIDs that answered before, the share of them that failed is checked: above
+ * MAX_FAILURE_RATE (the timeout cut off slow answers, or the vehicle got slower) the timeout is doubled
+ * and kept for BACKOFF_WINDOWS windows before it's tuned down again; a read timeout doubles it at once.
+ * Outcomes are recorded on the polling thread, and the reader picks changes up between poll cycles
+ */
+public class AdaptiveTimeout {
+
+    public static final double MARGIN = 1.5;
+    public static final int WINDOW = 32;
+    public static final int MIN_SAMPLES = 8;
+    public static final double MAX_FAILURE_RATE = 0.05;
+    public static final int BACKOFF_WINDOWS = 4;
+    public static final int STREAM_SLACK_MILLIS = 20;
+
+    /**
+     * Milliseconds per unit of the AT ST value
+     */
+    public static final int MILLIS_PER_UNIT = 4;
+
+    private final LatencyHistogram[] pidTimes = new LatencyHistogram[0x100];
+    private final int minTimeout;
+    private final int maxTimeout;
+
+    private volatile int timeout;
+    private volatile boolean changed = false;
+    private int windowAnswered = 0;
+    private int windowFailed = 0;
+    private boolean tuned = false;
+    private int backoffWindows = 0;
+    private volatile long backoffCount = 0;
+
+    /**
+     * Create a tuner allowing adapter timeouts between 16 and 1020 ms
+     * @param initialTimeout the AT ST value the adapter starts with (1 - 255)
+     */
+    public AdaptiveTimeout(int initialTimeout) {
+        this(initialTimeout, 4, 255);
+    }
+
+    /**
+     * @param initialTimeout the AT ST value the adapter starts with (1 - 255)
+     * @param minTimeout the lowest AT ST value to tune down to
+     * @param maxTimeout the highest AT ST value to back off to
+     */
+    public AdaptiveTimeout(int initialTimeout, int minTimeout, int maxTimeout) {
+        if (minTimeout < 1 || maxTimeout > 255 || minTimeout > maxTimeout)
+            throw new IllegalArgumentException("Timeouts must satisfy 1 <= min <= max <= 255");
+        this.minTimeout = minTimeout;
+        this.maxTimeout = maxTimeout;
+        this.timeout = clamp(initialTimeout);
+    }
+
+    /**
+     * Take the outcome of a PID into account
+     * @param pid the mode 01 PID
+     * @param nanos the response time of the request carrying it
+     * @param outcome how it ended
+     */
+    public void record(int pid, long nanos, ObdMetrics.Outcome outcome) {
+
+        int p = pid & 0xFF;
+        LatencyHistogram histogram = pidTimes[p];
+        if (outcome == ObdMetrics.Outcome.ANSWERED) {
+            if (histogram == null)
+                histogram = pidTimes[p] = new LatencyHistogram();
+            histogram.record(nanos);
+            windowAnswered++;
+        } else if (histogram != null && histogram.getCount() > 0) {
+            windowFailed++;
+        }
+
+        if (outcome == ObdMetrics.Outcome.TIMEOUT) {
+            backOff();
+            return;
+        }
+        if (windowAnswered + windowFailed >= (tuned ? WINDOW : MIN_SAMPLES))
+            evaluateWindow();
+    }
+
+    private void evaluateWindow() {
+        double failureRate = (double) windowFailed / (windowAnswered + windowFailed);
+        windowAnswered = 0;
+        windowFailed = 0;
+        if (failureRate > MAX_FAILURE_RATE) {
+            backOff();
+            return;
+        }
+        if (backoffWindows > 0) {
+            backoffWindows--;
+            return;
+        }
+
+        long slowest = 0;
+        for (LatencyHistogram h : pidTimes) {
+            if (h != null)
+                slowest = Math.max(slowest, h.getValueAtPercentile(99));
+        }
+        double millis = slowest * MARGIN / TimeUnit.MILLISECONDS.toNanos(1);
+        setTimeout((int) Math.ceil(millis / MILLIS_PER_UNIT));
+        tuned = true;
+    }
+
+    private void backOff() {
+        windowAnswered = 0;
+        windowFailed = 0;
+        backoffWindows = BACKOFF_WINDOWS;
+        backoffCount++;
+        setTimeout(timeout * 2);
+    }
+
+    private void setTimeout(int value) {
+        value = clamp(value);
+        if (value != timeout) {
+            timeout = value;
+            changed = true;
+        }
+    }
+
+    private int clamp(int value) {
+        return Math.max(minTimeout, Math.min(maxTimeout, value));
+    }
+
+    /**
+     * @return the AT ST value to use, if it changed since the last call; otherwise -1
+     */
+    int takeChange() {
+        if (!changed)
+            return -1;
+        changed = false;
+        return timeout;
+    }
+
+    /**
+     * @return the AT ST value the adapter should use (1 - 255, in units of 4 ms)
+     */
+    public int getAdapterTimeout() {
+        return timeout;
+    }
+
+    public int getAdapterTimeoutMillis() {
+        return timeout * MILLIS_PER_UNIT;
+    }
+
+    /**
+     * @return the read timeout the adapter's stream should use
+     */
+    public int getStreamTimeoutMillis() {
+        return 2 * getAdapterTimeoutMillis() + STREAM_SLACK_MILLIS;
+    }
+
+    /**
+     * @return the number of times the timeout was backed off
+     */
+    public long getBackoffCount() {
+        return backoffCount;
+    }
+}
@@ -0,0 +1,281 @@
+package RyanBerti;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Decouples the polling loop from disk writes: poll cycles are copied into a bounded, preallocated
+ * ring buffer and a writer thread drains them into another SampleSink (ie a SampleLogWriter),
+ * flushing the sink once per group of cycles rather than once per cycle. A disk stall then only
+ * fills the ring buffer instead of delaying the next poll; what happens when the buffer is full is
+ * set by the OverflowPolicy. The ring buffer has a single producer, so addSamples must always be
+ * called from the same (polling) thread
+ */
+public class AsyncSampleWriter implements SampleSink {
+
+    /**
+     * What addSamples does when the ring buffer is full
+     */
+    public enum OverflowPolicy {
+        /** discard the cycle (counted by getDroppedCount) so polling never waits for the disk */
+        DROP,
+        /** wait for the writer thread to make room (counted by getBackpressureEvents) */
+        BLOCK
+    }
+
+    private static final long WAIT_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    private final SampleSink sink;
+    private final OverflowPolicy policy;
+    private final int capacity;
+    private final int columns;
+    private final long flushIntervalNanos;
+
+    private final long[] timestamps;
+    private final long[] publishNanos;
+    private final double[][] slots;
+
+    // head is the next sequence the producer publishes, tail the next one the writer takes
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long flushedSequence = 0;
+    private volatile long flushRequest = 0;
+
+    private final Thread thread;
+    private volatile boolean running = true;
+    private volatile boolean writerIdle = false;
+    private volatile IOException failure;
+
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong backpressureEvents = new AtomicLong();
+    private volatile int maxQueueDepth = 0;
+    private volatile long flushCount = 0;
+    private volatile long latencyTotalNanos = 0;
+    private volatile long latencyCount = 0;
+    private volatile long maxLatencyNanos = 0;
+
+    /**
+     * Create the writer and start its thread
+     * @param sink the sink the writer thread drains into; it is closed along with this writer
+     * @param columns the number of values per cycle
+     * @param capacity the number of cycles the ring buffer holds
+     * @param policy what to do when the ring buffer is full
+     * @param flushIntervalMillis how long written cycles may wait for the sink to be flushed
+     */
+    public AsyncSampleWriter(SampleSink sink, int columns, int capacity, OverflowPolicy policy, long flushIntervalMillis) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("Capacity must be positive");
+        this.sink = sink;
+        this.columns = columns;
+        this.capacity = capacity;
+        this.policy = policy;
+        this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+        this.timestamps = new long[capacity];
+        this.publishNanos = new long[capacity];
+        this.slots = new double[capacity][columns];
+
+        thread = new Thread(this::run, "sample-writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Copy one poll cycle's values into the ring buffer
+     * @param timestampMillis the time the values were read
+     * @param values one value per column
+     * @throws IOException if the writer thread failed to write to the sink
+     */
+    @Override
+    public void addSamples(long timestampMillis, double[] values) throws IOException {
+
+        checkFailure();
+        if (!running)
+            throw new IOException("Sample writer is closed");
+
+        long sequence = head.get();
+        if (sequence - tail.get() >= capacity) {
+            if (policy == OverflowPolicy.DROP) {
+                dropped.incrementAndGet();
+                return;
+            }
+            backpressureEvents.incrementAndGet();
+            while (sequence - tail.get() >= capacity) {
+                checkFailure();
+                LockSupport.unpark(thread);
+                LockSupport.parkNanos(WAIT_NANOS);
+            }
+        }
+
+        int slot = (int) (sequence % capacity);
+        timestamps[slot] = timestampMillis;
+        System.arraycopy(values, 0, slots[slot], 0, columns);
+        publishNanos[slot] = System.nanoTime();
+        head.lazySet(sequence + 1);
+
+        int depth = (int) (sequence + 1 - tail.get());
+        if (depth > maxQueueDepth)
+            maxQueueDepth = depth;
+        if (writerIdle)
+            LockSupport.unpark(thread);
+    }
+
+    /**
+     * Wait until every cycle added so far has been written to and flushed by the sink
+     * @throws IOException if the writer thread failed to write to the sink
+     */
+    @Override
+    public void flush() throws IOException {
+        long target = head.get();
+        flushRequest = target;
+        LockSupport.unpark(thread);
+        while (flushedSequence < target) {
+            checkFailure();
+            if (!thread.isAlive())
+                throw new IOException("Sample writer is closed");
+            LockSupport.parkNanos(WAIT_NANOS);
+        }
+        checkFailure();
+    }
+
+    private void checkFailure() throws IOException {
+        IOException e = failure;
+        if (e != null)
+            throw new IOException("Sample writer failed", e);
+    }
+
+    private void run() {
+
+        long lastFlush = System.nanoTime();
+        long pendingCount = 0;
+        long pendingPublishTotal = 0;
+        long pendingOldest = 0;
+
+        try {
+            while (true) {
+                boolean stopping = !running;
+                long t = tail.get();
+                long h = head.get();
+                for (long sequence = t; sequence < h; sequence++) {
+                    int slot = (int) (sequence % capacity);
+                    sink.addSamples(timestamps[slot], slots[slot]);
+                    if (pendingCount++ == 0)
+                        pendingOldest = publishNanos[slot];
+                    pendingPublishTotal += publishNanos[slot] - pendingOldest;
+                    tail.lazySet(sequence + 1);
+                }
+
+                long now = System.nanoTime();
+                boolean requested = flushRequest > flushedSequence && h >= flushRequest;
+                if (pendingCount > 0 && (requested || now - lastFlush >= flushIntervalNanos || stopping)) {
+                    sink.flush();
+                    now = System.nanoTime();
+                    long oldest = now - pendingOldest;
+                    latencyTotalNanos += pendingCount * oldest - pendingPublishTotal;
+                    latencyCount += pendingCount;
+                    if (oldest > maxLatencyNanos)
+                        maxLatencyNanos = oldest;
+                    flushCount++;
+                    pendingCount = 0;
+                    pendingPublishTotal = 0;
+                    lastFlush = now;
+                }
+                if (pendingCount == 0)
+                    flushedSequence = h;
+
+                if (h == t) {
+                    if (stopping)
+                        break;
+                    writerIdle = true;
+                    if (head.get() == h && flushRequest <= flushedSequence)
+                        LockSupport.parkNanos(pendingCount > 0 ? flushIntervalNanos - (now - lastFlush) : flushIntervalNanos);
+                    writerIdle = false;
+                }
+            }
+        } catch (IOException e) {
+            failure = e;
+        }
+    }
+
+    /**
+     * @return the number of cycles waiting in the ring buffer
+     */
+    public int getQueueDepth() {
+        return (int) (head.get() - tail.get());
+    }
+
+    /**
+     * @return the largest number of cycles that waited in the ring buffer at once
+     */
+    public int getMaxQueueDepth() {
+        return maxQueueDepth;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the number of cycles discarded because the ring buffer was full (DROP policy)
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * @return the number of times addSamples had to wait for room in the ring buffer (BLOCK policy)
+     */
+    public long getBackpressureEvents() {
+        return backpressureEvents.get();
+    }
+
+    /**
+     * @return the number of cycles handed to the sink
+     */
+    public long getWrittenCount() {
+        return tail.get();
+    }
+
+    /**
+     * @return the number of times the sink was flushed
+     */
+    public long getFlushCount() {
+        return flushCount;
+    }
+
+    /**
+     * @return the average time from addSamples until the cycle was flushed by the sink, in nanoseconds
+     */
+    public long getAverageLatencyNanos() {
+        long count = latencyCount;
+        return count == 0 ? 0 : latencyTotalNanos / count;
+    }
+
+    /**
+     * @return the longest time from addSamples until a cycle was flushed by the sink, in nanoseconds
+     */
+    public long getMaxLatencyNanos() {
+        return maxLatencyNanos;
+    }
+
+    /**
+     * Write and flush the remaining cycles, stop the writer thread and close the sink
+     * @throws IOException if the writer thread failed to write to the sink
+     */
+    @Override
+    public void close() throws IOException {
+        running = false;
+        LockSupport.unpark(thread);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            checkFailure();
+        } finally {
+            sink.close();
+        }
+    }
+}
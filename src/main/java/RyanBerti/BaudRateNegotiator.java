@@ -0,0 +1,180 @@
+package RyanBerti;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Finds the baud rate a serial adapter talks at, and switches ELM327 adapters to a faster one with
+ * AT BRD. The switch is a handshake: the adapter answers OK at the old rate, changes to the new rate
+ * and sends its identification; if the host received that intact, it answers with a carriage return
+ * at the new rate, and the adapter confirms with a prompt. Without the carriage return the adapter
+ * goes back to the old rate once its AT BRT timeout passes (any clone that garbles the higher rate
+ * ends up there), so a failed switch leaves the connection at the old rate
+ */
+final class BaudRateNegotiator {
+
+    /**
+     * The rates tried by detect, the common ELM327 and clone defaults first
+     */
+    static final int[] DETECT_RATES = {38400, 9600, 115200, 57600, 230400, 500000};
+
+    /**
+     * The ELM327's baud rate generator runs at 4 MHz divided by the AT BRD value (8 - 255)
+     */
+    static final int BRD_CLOCK = 4000000;
+
+    static final int DETECT_TIMEOUT_MILLIS = 200;
+    static final int SWITCH_TIMEOUT_MILLIS = 200;
+
+    private BaudRateNegotiator() {}
+
+    /**
+     * Try each rate until the adapter answers intact: a carriage return gets a prompt back (clearing
+     * whatever garbage earlier attempts left in the adapter's buffer), and AT I its identification
+     * @param link the link to the adapter
+     * @param is the adapter's input stream
+     * @param os the adapter's output stream
+     * @param rates the rates to try, in order
+     * @return the adapter's rate, or -1 if it didn't answer at any of them (the link is left at the last)
+     * @throws IOException if the link settings can't be changed
+     */
+    static int detect(SerialLink link, InputStream is, OutputStream os, int[] rates) throws IOException {
+
+        int timeout = link.getReadTimeout();
+        try {
+            for (int rate : rates) {
+                link.setBaudRate(rate);
+                link.setReadTimeout(DETECT_TIMEOUT_MILLIS);
+                link.purgeInput();
+                try {
+                    os.write('\r');
+                    os.flush();
+                    if (!readPrompt(is))
+                        continue;
+                    String id = ElmIO.send(is, os, "AT I");
+                    if (id.toUpperCase().contains("ELM")) {
+                        System.out.println("Adapter answers at " + rate + " baud: " + id.replaceAll("\\s+", " ").trim());
+                        return rate;
+                    }
+                } catch (IOException e) {
+                    // no intact answer at this rate
+                }
+            }
+            return -1;
+        } finally {
+            link.setReadTimeout(timeout);
+        }
+    }
+
+    /**
+     * Switch the adapter and link to the AT BRD rate closest to the given one
+     * @param link the link to the adapter, set to the adapter's current rate
+     * @param is the adapter's input stream
+     * @param os the adapter's output stream
+     * @param baudRate the rate to switch to (15687 - 500000)
+     * @return the rate the link is at afterwards: the new rate, or the old one if the adapter doesn't
+     * know AT BRD or the handshake failed
+     * @throws IOException if the adapter doesn't answer at either rate
+     */
+    static int switchTo(SerialLink link, InputStream is, OutputStream os, int baudRate) throws IOException {
+
+        int divisor = Math.round((float) BRD_CLOCK / baudRate);
+        if (divisor < 8 || divisor > 0xFF)
+            throw new IllegalArgumentException("AT BRD can't reach " + baudRate + " baud");
+        int newRate = BRD_CLOCK / divisor;
+        int oldRate = link.getBaudRate();
+        if (newRate == oldRate)
+            return oldRate;
+
+        int timeout = link.getReadTimeout();
+        link.setReadTimeout(SWITCH_TIMEOUT_MILLIS);
+        try {
+            // give the host 200 ms (AT BRT is in 5 ms units) to answer at the new rate
+            ElmIO.send(is, os, "AT BRT " + ObdPid.toHex(SWITCH_TIMEOUT_MILLIS / 5));
+
+            ElmIO.write(os, "AT BRD " + ObdPid.toHex(divisor));
+            String answer = readUntil(is, "OK\r", '>');
+            if (!answer.endsWith("OK\r")) {
+                System.out.println("Adapter didn't accept AT BRD, staying at " + oldRate + " baud");
+                return oldRate;
+            }
+
+            link.setBaudRate(newRate);
+            try {
+                String id = readUntil(is, "\r", '>');
+                // with linefeeds on, the OK line ends in one more byte sent at the old rate
+                if (id.length() == 1 && id.charAt(0) > 0x7F)
+                    id = readUntil(is, "\r", '>');
+                if (id.toUpperCase().contains("ELM")) {
+                    os.write('\r');
+                    os.flush();
+                    if (readPrompt(is)) {
+                        System.out.println("Switched from " + oldRate + " to " + newRate + " baud");
+                        return newRate;
+                    }
+                }
+            } catch (IOException e) {
+                // the handshake didn't come through at the new rate
+            }
+
+            // the adapter goes back to the old rate once AT BRT passes (or it got a garbled character),
+            // and sends a prompt; if that got lost too, ask for its identification
+            link.setBaudRate(oldRate);
+            link.setReadTimeout(2 * SWITCH_TIMEOUT_MILLIS);
+            if (!readPromptQuietly(is) && !ElmIO.send(is, os, "AT I").toUpperCase().contains("ELM"))
+                throw new IOException("Adapter didn't come back at " + oldRate + " baud after a failed switch");
+            System.out.println("Switching to " + newRate + " baud failed, staying at " + oldRate + " baud");
+            return oldRate;
+        } finally {
+            link.setReadTimeout(timeout);
+        }
+    }
+
+    /**
+     * Read until the '>' prompt
+     * @return false if the stream ended first
+     */
+    private static boolean readPrompt(InputStream is) throws IOException {
+        int b;
+        while ((b = is.read()) > -1) {
+            if (b == '>')
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Read until the '>' prompt
+     * @return false if the stream ended or the read timed out first
+     */
+    private static boolean readPromptQuietly(InputStream is) {
+        try {
+            return readPrompt(is);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Read until the received text ends with the given suffix (after something other than whitespace),
+     * the given stop character arrives, or a byte outside ASCII does (the rates don't match, and
+     * waiting for the suffix would only let the adapter's next answer get lost the same way)
+     * @return the text received, the suffix and a non-ASCII byte included and the stop character left out
+     */
+    private static String readUntil(InputStream is, String suffix, char stop) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int b;
+        while ((b = is.read()) > -1) {
+            if (b == stop)
+                break;
+            sb.append((char) b);
+            if (b > 0x7F)
+                break;
+            if (sb.length() >= suffix.length() && sb.lastIndexOf(suffix) == sb.length() - suffix.length()
+                    && !sb.toString().trim().isEmpty())
+                break;
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,141 @@
+package RyanBerti;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Local store of VehicleProfiles, one properties file per VIN, plus an index of the vehicle each
+ * adapter was last connected to (so the last vehicle's protocol can be selected before the VIN is
+ * read). Files are written to a temporary file and renamed into place, so a crash mid-write leaves
+ * the previous profile intact
+ */
+public class CapabilityCache {
+
+    private static final String ADAPTER_INDEX = "adapters.properties";
+
+    private final File directory;
+
+    /**
+     * @param directory the directory profiles are stored in; created if it doesn't exist
+     */
+    public CapabilityCache(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Load the profile stored for the given VIN
+     * @param vin the vehicle identification number
+     * @return the profile, or null if there isn't one (or it can't be read)
+     */
+    public VehicleProfile load(String vin) {
+
+        File file = new File(directory, sanitize(vin) + ".properties");
+        if (!file.isFile())
+            return null;
+
+        Properties props = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            props.load(in);
+        } catch (IOException e) {
+            return null;
+        }
+
+        try {
+            List<Integer> commandKeys = new ArrayList<>();
+            for (String key : props.getProperty("commands", "").split(",")) {
+                if (!key.isEmpty())
+                    commandKeys.add(Integer.parseInt(key, 16));
+            }
+
+            String protocol = props.getProperty("protocol", "");
+            if (protocol.length() != 1 || !vin.equals(props.getProperty("vin")))
+                return null;
+
+            return new VehicleProfile(vin,
+                    props.getProperty("adapter", ""),
+                    protocol.charAt(0),
+                    Integer.parseInt(props.getProperty("timeout", "255")),
+                    props.getProperty("pidmask", ""),
+                    commandKeys);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Load the profile of the vehicle the given adapter was last connected to
+     * @param adapterId the adapter's identification string
+     * @return the profile, or null if the adapter hasn't been seen before
+     */
+    public VehicleProfile loadLastForAdapter(String adapterId) {
+        Properties index = loadIndex();
+        String vin = index.getProperty(sanitize(adapterId));
+        return vin == null ? null : load(vin);
+    }
+
+    /**
+     * Store the given profile, replacing any existing profile for the same VIN, and record it as the
+     * last vehicle seen by its adapter
+     * @param profile the profile to store
+     * @throws IOException
+     */
+    public void save(VehicleProfile profile) throws IOException {
+
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Unable to create cache directory " + directory);
+
+        StringBuilder commands = new StringBuilder();
+        for (Integer key : profile.getCommandKeys()) {
+            if (commands.length() > 0)
+                commands.append(',');
+            commands.append(String.format("%04X", key));
+        }
+
+        Properties props = new Properties();
+        props.setProperty("vin", profile.getVin());
+        props.setProperty("adapter", profile.getAdapterId());
+        props.setProperty("protocol", String.valueOf(profile.getProtocol()));
+        props.setProperty("timeout", String.valueOf(profile.getAdapterTimeout()));
+        props.setProperty("pidmask", profile.getSupportedPidMask());
+        props.setProperty("commands", commands.toString());
+        write(props, new File(directory, sanitize(profile.getVin()) + ".properties"));
+
+        Properties index = loadIndex();
+        index.setProperty(sanitize(profile.getAdapterId()), profile.getVin());
+        write(index, new File(directory, ADAPTER_INDEX));
+    }
+
+    private Properties loadIndex() {
+        Properties index = new Properties();
+        File file = new File(directory, ADAPTER_INDEX);
+        if (file.isFile()) {
+            try (InputStream in = new FileInputStream(file)) {
+                index.load(in);
+            } catch (IOException e) {
+                index.clear();
+            }
+        }
+        return index;
+    }
+
+    private static void write(Properties props, File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (OutputStream out = new FileOutputStream(tmp)) {
+            props.store(out, null);
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static String sanitize(String name) {
+        return name.replaceAll("[^A-Za-z0-9._-]", "_");
+    }
+}
@@ -0,0 +1,23 @@
+package RyanBerti;
+
+import java.io.IOException;
+
+/**
+ * Receives the outages a ConnectionSupervisor recovers from; called on the polling thread, so
+ * implementations should hand the news off rather than block
+ */
+public interface ConnectionListener {
+
+    /**
+     * Called once the connection is found lost, before reconnecting
+     * @param cause the failure that gave the loss away (ie a SocketTimeoutException for a stall)
+     */
+    void connectionLost(IOException cause);
+
+    /**
+     * Called once the connection is back and the adapter set up again
+     * @param outageMillis the time from the start of the failed poll cycle until the adapter was set up again
+     * @param samplesLost the values the outage cost, estimated from the rate values arrived at before it
+     */
+    void connectionRestored(long outageMillis, long samplesLost);
+}
@@ -0,0 +1,220 @@
+package RyanBerti;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps polling going through connection losses, so a wifi adapter dropping off the network costs
+ * the length of the outage rather than a new reader and a new discovery. The supervisor polls through
+ * its reader; a stall (no '>' prompt within the stall timeout, see JavaObdReader.setStallTimeout), a
+ * closed stream or any other read or write failure counts as a lost connection. The reader is then
+ * reconnected right away and, while that fails, again after a backoff that doubles from the minimum
+ * to the maximum; JavaObdReader.reconnect replays the adapter setup and keeps the supported commands,
+ * so polling picks up where it left off. The failed cycle is run again once the connection is back,
+ * so the poll methods only return with values (or throw InterruptedException).
+ *
+ * Each outage is reported to the listener and counted: its duration, and the samples it cost,
+ * estimated from the rate values arrived at while connected (the wall time between cycles included)
+ */
+public class ConnectionSupervisor {
+
+    public static final int DEFAULT_STALL_TIMEOUT_MILLIS = 3000;
+    public static final long DEFAULT_MIN_BACKOFF_MILLIS = 50;
+    public static final long DEFAULT_MAX_BACKOFF_MILLIS = 5000;
+
+    /**
+     * A poll cycle of the reader
+     */
+    private interface Poll {
+        int run() throws IOException;
+    }
+
+    private final JavaObdReader reader;
+    private final ConnectionListener listener;
+    private long minBackoffNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_MIN_BACKOFF_MILLIS);
+    private long maxBackoffNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_MAX_BACKOFF_MILLIS);
+    private boolean protocolRemembered = false;
+
+    private long lastCycleNanos = 0;
+    private long connectedNanos = 0;
+    private long connectedSamples = 0;
+
+    private volatile boolean connected = true;
+    private volatile long outages = 0;
+    private volatile long reconnectAttempts = 0;
+    private volatile long outageNanos = 0;
+    private volatile long lastOutageNanos = 0;
+    private volatile long samplesLost = 0;
+
+    /**
+     * Supervise the given reader, setting its stall timeout to DEFAULT_STALL_TIMEOUT_MILLIS
+     * @param reader the reader, with its control commands sent and its supported commands found
+     * @param listener the listener receiving outages, or null to only count them
+     */
+    public ConnectionSupervisor(JavaObdReader reader, ConnectionListener listener) {
+        this.reader = reader;
+        this.listener = listener;
+        reader.setStallTimeout(DEFAULT_STALL_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * @param millis the time the adapter may take to finish an answer before the connection counts as
+     *               stalled; it should cover the slowest legitimate answer
+     */
+    public void setStallTimeout(int millis) {
+        reader.setStallTimeout(millis);
+    }
+
+    /**
+     * @param minMillis the wait after the first failed reconnect attempt
+     * @param maxMillis the longest wait between attempts
+     */
+    public void setBackoff(long minMillis, long maxMillis) {
+        if (minMillis <= 0 || maxMillis < minMillis)
+            throw new IllegalArgumentException("Backoff must be positive, and the maximum at least the minimum");
+        this.minBackoffNanos = TimeUnit.MILLISECONDS.toNanos(minMillis);
+        this.maxBackoffNanos = TimeUnit.MILLISECONDS.toNanos(maxMillis);
+    }
+
+    /**
+     * Run JavaObdReader.runCommandsReturnValues, recovering from connection losses
+     * @param values receives one value per command
+     * @return the number of commands that got a response
+     * @throws InterruptedException if interrupted while reconnecting
+     */
+    public int runCommandsReturnValues(double[] values) throws InterruptedException {
+        return supervise(() -> reader.runCommandsReturnValues(values));
+    }
+
+    /**
+     * Run JavaObdReader.runCommandsReturnValues with timestamps, recovering from connection losses
+     * @param values receives one value per command
+     * @param requestNanos receives the time each command's request was written; may be null
+     * @param responseNanos receives the time each command's response was read; may be null
+     * @return the number of commands that got a response
+     * @throws InterruptedException if interrupted while reconnecting
+     */
+    public int runCommandsReturnValues(double[] values, long[] requestNanos, long[] responseNanos)
+            throws InterruptedException {
+        return supervise(() -> reader.runCommandsReturnValues(values, requestNanos, responseNanos));
+    }
+
+    /**
+     * Run JavaObdReader.runScheduledCommandsReturnValues, recovering from connection losses; commands
+     * that fell due during an outage are polled once it's over
+     * @param scheduler the scheduler created by the reader's createPollScheduler
+     * @param values holds one value per command
+     * @return the number of commands that got a response
+     * @throws InterruptedException if interrupted while reconnecting
+     */
+    public int runScheduledCommandsReturnValues(PollScheduler scheduler, double[] values) throws InterruptedException {
+        return supervise(() -> reader.runScheduledCommandsReturnValues(scheduler, values));
+    }
+
+    private int supervise(Poll poll) throws InterruptedException {
+        while (true) {
+            long start = System.nanoTime();
+            try {
+                if (!protocolRemembered) {
+                    reader.rememberProtocol();
+                    protocolRemembered = true;
+                }
+                int decoded = poll.run();
+                long end = System.nanoTime();
+                if (lastCycleNanos != 0) {
+                    connectedNanos += end - lastCycleNanos;
+                    connectedSamples += decoded;
+                }
+                lastCycleNanos = end;
+                return decoded;
+            } catch (IOException e) {
+                recover(start, e);
+            }
+        }
+    }
+
+    /**
+     * Reconnect until the adapter is back, backing off between failed attempts
+     */
+    private void recover(long outageStart, IOException cause) throws InterruptedException {
+
+        connected = false;
+        outages++;
+        System.out.println("Connection lost (" + cause + "), reconnecting");
+        if (listener != null)
+            listener.connectionLost(cause);
+
+        long backoff = minBackoffNanos;
+        for (int attempt = 1; ; attempt++) {
+            reconnectAttempts++;
+            try {
+                reader.reconnect();
+                break;
+            } catch (IOException e) {
+                System.out.println(String.format("Reconnect attempt %d failed (%s), retrying in %d ms", attempt, e,
+                        TimeUnit.NANOSECONDS.toMillis(backoff)));
+                TimeUnit.NANOSECONDS.sleep(backoff);
+                backoff = Math.min(maxBackoffNanos, 2 * backoff);
+            }
+        }
+
+        long outage = System.nanoTime() - outageStart;
+        long lost = connectedNanos == 0 ? 0 : Math.round((double) connectedSamples * outage / connectedNanos);
+        outageNanos += outage;
+        lastOutageNanos = outage;
+        samplesLost += lost;
+        lastCycleNanos = 0;
+        connected = true;
+
+        long outageMillis = TimeUnit.NANOSECONDS.toMillis(outage);
+        System.out.println("Connection restored after " + outageMillis + " ms, about " + lost + " samples lost");
+        if (listener != null)
+            listener.connectionRestored(outageMillis, lost);
+    }
+
+    public JavaObdReader getReader() {
+        return reader;
+    }
+
+    /**
+     * @return false while reconnecting
+     */
+    public boolean isConnected() {
+        return connected;
+    }
+
+    /**
+     * @return the number of connection losses
+     */
+    public long getOutageCount() {
+        return outages;
+    }
+
+    /**
+     * @return the number of reconnect attempts, successful ones included
+     */
+    public long getReconnectAttempts() {
+        return reconnectAttempts;
+    }
+
+    /**
+     * @return the total time spent without a connection
+     */
+    public long getTotalOutageMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(outageNanos);
+    }
+
+    /**
+     * @return the duration of the last outage, or 0 if there was none
+     */
+    public long getLastOutageMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(lastOutageNanos);
+    }
+
+    /**
+     * @return the estimated number of values all outages cost
+     */
+    public long getSamplesLost() {
+        return samplesLost;
+    }
+}
@@ -0,0 +1,114 @@
+package RyanBerti;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Reads back the cycles written by DeltaSampleEncoder
+ */
+public class DeltaSampleDecoder {
+
+    private final InputStream in;
+    private final int[] pids;
+    private final double[] resolution;
+    private final long[] previous;
+    private long timestampMillis = 0;
+
+    /**
+     * Read the stream header
+     * @param in the encoded stream
+     * @throws IOException if the stream isn't a delta encoded sample stream
+     */
+    public DeltaSampleDecoder(InputStream in) throws IOException {
+        this.in = new BufferedInputStream(in);
+        byte[] magic = new byte[DeltaSampleEncoder.MAGIC.length];
+        for (int i = 0; i < magic.length; i++)
+            magic[i] = (byte) readByte();
+        if (!Arrays.equals(magic, DeltaSampleEncoder.MAGIC))
+            throw new IOException("Not a delta encoded sample stream");
+        int version = readByte();
+        if (version != DeltaSampleEncoder.VERSION)
+            throw new IOException("Unsupported delta encoding version " + version);
+
+        int columns = (int) readVarint();
+        pids = new int[columns];
+        resolution = new double[columns];
+        previous = new long[columns];
+        for (int i = 0; i < columns; i++) {
+            pids[i] = (int) readVarint();
+            resolution[i] = ObdPid.resolution(pids[i]);
+        }
+    }
+
+    /**
+     * Decode the next cycle
+     * @param values receives one value per PID; columns without a value in the cycle are set to NaN
+     * @return false at the end of the stream
+     * @throws IOException if the stream ends in the middle of a cycle
+     */
+    public boolean next(double[] values) throws IOException {
+
+        int first = in.read();
+        if (first < 0)
+            return false;
+        timestampMillis += unzigzag(readVarint(first));
+
+        Arrays.fill(values, 0, pids.length, Double.NaN);
+        for (int word = 0; word < pids.length; word += 64) {
+            long mask = readVarint();
+            for (int i = word; i < Math.min(pids.length, word + 64); i++) {
+                if ((mask & (1L << (i - word))) == 0)
+                    continue;
+                previous[i] += unzigzag(readVarint());
+                values[i] = previous[i] * resolution[i];
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the timestamp of the cycle last returned by next
+     */
+    public long getTimestampMillis() {
+        return timestampMillis;
+    }
+
+    /**
+     * @return the mode 01 PID of each column
+     */
+    public int[] getPids() {
+        return pids.clone();
+    }
+
+    private static long unzigzag(long v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    private int readByte() throws IOException {
+        int b = in.read();
+        if (b < 0)
+            throw new EOFException("Delta encoded sample stream ended early");
+        return b;
+    }
+
+    private long readVarint() throws IOException {
+        return readVarint(readByte());
+    }
+
+    private long readVarint(int first) throws IOException {
+        long v = first & 0x7F;
+        int shift = 7;
+        int b = first;
+        while ((b & 0x80) != 0) {
+            if (shift > 63)
+                throw new IOException("Malformed varint in delta encoded sample stream");
+            b = readByte();
+            v |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        }
+        return v;
+    }
+}
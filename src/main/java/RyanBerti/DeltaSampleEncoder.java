@@ -0,0 +1,161 @@
+package RyanBerti;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Streams poll cycles in a compact delta encoding, for uploads. Each cycle is written as the zigzag
+ * varint delta of its timestamp to the previous cycle's, a varint bitmask of the columns it has values
+ * for (one 64 column word at a time), and for each of those the zigzag varint delta of the value to
+ * the column's previous value. Values are stored as integer multiples of their PID's resolution
+ * (ie 0.25 rpm), which is exact for values decoded with the SAE J1979 scaling; in front of a
+ * SampleReducer, most cycles shrink to a few bytes. Use DeltaSampleDecoder to read the stream back
+ */
+public class DeltaSampleEncoder implements SampleSink {
+
+    static final byte[] MAGIC = {'O', 'B', 'D', 'D'};
+    static final int VERSION = 1;
+
+    private final OutputStream out;
+    private final int[] pids;
+    private final double[] resolution;
+    private final long[] previous;
+    private long previousTimestamp = 0;
+
+    private byte[] buffer = new byte[8192];
+    private int position = 0;
+
+    private long bytesWritten = 0;
+    private long samplesWritten = 0;
+    private long cyclesWritten = 0;
+    private long encodeNanos = 0;
+
+    /**
+     * Write the stream header
+     * @param out the stream the encoding is written to; closed along with the encoder
+     * @param pids the mode 01 PID of each value in a cycle
+     * @throws IOException
+     */
+    public DeltaSampleEncoder(OutputStream out, int[] pids) throws IOException {
+        this.out = out;
+        this.pids = pids.clone();
+        this.resolution = new double[pids.length];
+        this.previous = new long[pids.length];
+        for (int i = 0; i < pids.length; i++)
+            resolution[i] = ObdPid.resolution(pids[i]);
+
+        for (byte b : MAGIC)
+            put(b);
+        put(VERSION);
+        putVarint(pids.length);
+        for (int pid : pids)
+            putVarint(pid);
+    }
+
+    /**
+     * Encode one poll cycle; NaN values (no sample) only cost their bit in the column bitmask
+     * @param timestampMillis the time the values were read
+     * @param values one value per PID
+     * @throws IOException
+     */
+    @Override
+    public void addSamples(long timestampMillis, double[] values) throws IOException {
+
+        long start = System.nanoTime();
+        if (buffer.length - position < 20 + pids.length * 20)
+            drain(20 + pids.length * 20);
+
+        putVarint(zigzag(timestampMillis - previousTimestamp));
+        previousTimestamp = timestampMillis;
+
+        for (int word = 0; word < pids.length; word += 64) {
+            long mask = 0;
+            for (int i = word; i < Math.min(pids.length, word + 64); i++) {
+                if (!Double.isNaN(values[i]))
+                    mask |= 1L << (i - word);
+            }
+            putVarint(mask);
+        }
+
+        for (int i = 0; i < pids.length; i++) {
+            if (Double.isNaN(values[i]))
+                continue;
+            long q = Math.round(values[i] / resolution[i]);
+            putVarint(zigzag(q - previous[i]));
+            previous[i] = q;
+            samplesWritten++;
+        }
+        cyclesWritten++;
+        encodeNanos += System.nanoTime() - start;
+    }
+
+    static long zigzag(long v) {
+        return (v << 1) ^ (v >> 63);
+    }
+
+    private void put(int b) {
+        buffer[position++] = (byte) b;
+    }
+
+    private void putVarint(long v) {
+        while ((v & ~0x7FL) != 0) {
+            buffer[position++] = (byte) ((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        buffer[position++] = (byte) v;
+    }
+
+    private void drain(int needed) throws IOException {
+        out.write(buffer, 0, position);
+        bytesWritten += position;
+        position = 0;
+        if (buffer.length < needed)
+            buffer = Arrays.copyOf(buffer, needed);
+    }
+
+    /**
+     * Write the buffered cycles to the stream and flush it
+     * @throws IOException
+     */
+    @Override
+    public void flush() throws IOException {
+        drain(0);
+        out.flush();
+    }
+
+    /**
+     * @return the number of bytes of the encoding, header and cycles not flushed to the stream yet
+     * included
+     */
+    public long getBytesWritten() {
+        return bytesWritten + position;
+    }
+
+    /**
+     * @return the number of values encoded
+     */
+    public long getSamplesWritten() {
+        return samplesWritten;
+    }
+
+    public long getCyclesWritten() {
+        return cyclesWritten;
+    }
+
+    /**
+     * @return the average time spent encoding one value, in nanoseconds
+     */
+    public double getNanosPerSample() {
+        return samplesWritten == 0 ? 0 : (double) encodeNanos / samplesWritten;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            out.close();
+        }
+    }
+}
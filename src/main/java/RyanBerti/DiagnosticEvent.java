@@ -0,0 +1,81 @@
+package RyanBerti;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * A change in the vehicle's diagnostic state found by a DiagnosticMonitor
+ */
+public final class DiagnosticEvent {
+
+    public enum Type {
+        /** a trouble code appeared */
+        CODE_SET,
+        /** a trouble code is no longer reported */
+        CODE_CLEARED,
+        /** the malfunction indicator lamp came on */
+        MIL_ON,
+        /** the malfunction indicator lamp went off */
+        MIL_OFF,
+        /** a new freeze frame was read */
+        FREEZE_FRAME
+    }
+
+    private final Type type;
+    private final long timestampMillis;
+    private final String code;
+    private final boolean pending;
+    private final Map<Integer, Double> freezeFrame;
+
+    DiagnosticEvent(Type type, long timestampMillis, String code, boolean pending, Map<Integer, Double> freezeFrame) {
+        this.type = type;
+        this.timestampMillis = timestampMillis;
+        this.code = code;
+        this.pending = pending;
+        this.freezeFrame = freezeFrame == null ? Collections.<Integer, Double>emptyMap()
+                : Collections.unmodifiableMap(freezeFrame);
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * @return the time the change was seen
+     */
+    public long getTimestampMillis() {
+        return timestampMillis;
+    }
+
+    /**
+     * @return the trouble code (ie "P0301") of CODE_SET, CODE_CLEARED and FREEZE_FRAME events, null otherwise
+     */
+    public String getCode() {
+        return code;
+    }
+
+    /**
+     * @return true if the code is a pending (mode 07) rather than a stored (mode 03) one
+     */
+    public boolean isPending() {
+        return pending;
+    }
+
+    /**
+     * @return the values of a FREEZE_FRAME event keyed by mode 01 PID, in the units of the SAE J1979
+     * scaling; empty for other events
+     */
+    public Map<Integer, Double> getFreezeFrame() {
+        return freezeFrame;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(type.toString());
+        if (code != null)
+            sb.append(' ').append(code).append(pending ? " (pending)" : "");
+        for (Map.Entry<Integer, Double> e : freezeFrame.entrySet())
+            sb.append(", ").append(ObdPid.toHex(e.getKey())).append('=').append(String.format("%.2f", e.getValue()));
+        return sb.toString();
+    }
+}
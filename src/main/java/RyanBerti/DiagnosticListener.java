@@ -0,0 +1,14 @@
+package RyanBerti;
+
+/**
+ * Receives the changes a DiagnosticMonitor finds; called on the polling thread, so implementations
+ * should hand the event off rather than block
+ */
+public interface DiagnosticListener {
+
+    /**
+     * Called once per change
+     * @param event the change
+     */
+    void diagnosticChanged(DiagnosticEvent event);
+}
@@ -0,0 +1,342 @@
+package RyanBerti;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads the vehicle's diagnostic state in the idle time of the polling loop, so trouble codes don't
+ * need a second tool competing for the adapter (see JavaObdReader.setDiagnosticMonitor). A round of
+ * diagnostics is the MIL status (mode 01 PID 01), the stored and pending trouble codes (modes 03 and
+ * 07) and the freeze frame's trouble code (mode 02 PID 02), followed by the freeze frame values of
+ * getFreezeFramePids when that code changed; a round starts every interval, and runs one request per
+ * idle slot the reader offers.
+ *
+ * A request only goes out if it fits: its expected time (the recent diagnostic response times) must
+ * be shorter than the time until the next live command is due, and the adapter time spent on
+ * diagnostics must stay within the budget, a share of the elapsed time kept as a token bucket holding
+ * up to two requests. Live polling therefore slows down by at most the budget, and scheduled polling
+ * not at all. Changes (codes appearing or clearing, the MIL switching, a new freeze frame) are
+ * reported to the listener; codes and MIL found by the first round count as changes
+ */
+public class DiagnosticMonitor {
+
+    public static final double DEFAULT_BUDGET = 0.05;
+    public static final long DEFAULT_INTERVAL_MILLIS = 10000;
+    public static final int[] DEFAULT_FREEZE_FRAME_PIDS = {0x04, 0x05, 0x0C, 0x0D};
+
+    private static final long INITIAL_ESTIMATE_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final String[] ROUND = {"01 01", "03", "07", "02 02 00"};
+
+    private final DiagnosticListener listener;
+    private double budget = DEFAULT_BUDGET;
+    private long intervalNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_INTERVAL_MILLIS);
+    private int[] freezeFramePids = DEFAULT_FREEZE_FRAME_PIDS.clone();
+
+    private boolean roundActive = false;
+    private boolean roundStarted = false;
+    private long roundStartNanos;
+    private int step;
+    private int freezeFrameStep = -1;
+    private long estimateNanos = INITIAL_ESTIMATE_NANOS;
+    private double creditNanos = Double.NaN;
+    private long refillNanos;
+
+    private volatile Boolean mil;
+    private final TreeSet<String> stored = new TreeSet<>();
+    private final TreeSet<String> pending = new TreeSet<>();
+    private String freezeFrameCode;
+    private TreeMap<Integer, Double> freezeFrameValues;
+    private volatile List<String> storedView = Collections.emptyList();
+    private volatile List<String> pendingView = Collections.emptyList();
+    private volatile Map<Integer, Double> freezeFrameView = Collections.emptyMap();
+
+    private volatile long rounds = 0;
+    private volatile long requests = 0;
+    private volatile long deferred = 0;
+    private volatile long spentNanos = 0;
+
+    /**
+     * @param listener the listener receiving changes, or null to only keep the state
+     */
+    public DiagnosticMonitor(DiagnosticListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * @param budget the share of the adapter's time diagnostics may take (0 - 1)
+     */
+    public void setBudget(double budget) {
+        if (budget <= 0 || budget > 1)
+            throw new IllegalArgumentException("Budget must be between 0 and 1");
+        this.budget = budget;
+    }
+
+    /**
+     * @param intervalMillis the time from the start of one round to the start of the next
+     */
+    public void setInterval(long intervalMillis) {
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+    }
+
+    /**
+     * @param pids the mode 01 PIDs read from a new freeze frame
+     */
+    public void setFreezeFramePids(int... pids) {
+        this.freezeFramePids = pids.clone();
+    }
+
+    public int[] getFreezeFramePids() {
+        return freezeFramePids.clone();
+    }
+
+    /**
+     * Send the next diagnostic request if one is due and fits into the idle time
+     * @param is the adapter's input stream
+     * @param os the adapter's output stream
+     * @param nowNanos the current System.nanoTime()
+     * @param idleNanos the time until live polling needs the adapter again; Long.MAX_VALUE if the
+     *                  budget alone decides
+     * @return true if a request was sent
+     * @throws IOException
+     */
+    boolean runStep(InputStream is, OutputStream os, long nowNanos, long idleNanos) throws IOException {
+
+        if (!roundActive) {
+            if (roundStarted && nowNanos - (roundStartNanos + intervalNanos) < 0)
+                return false;
+            roundActive = true;
+            roundStarted = true;
+            roundStartNanos = nowNanos;
+            step = 0;
+        }
+
+        if (Double.isNaN(creditNanos))
+            creditNanos = 2 * estimateNanos;
+        else
+            creditNanos = Math.min(2 * estimateNanos, creditNanos + budget * (nowNanos - refillNanos));
+        refillNanos = nowNanos;
+        if (creditNanos < estimateNanos || idleNanos < estimateNanos) {
+            deferred++;
+            return false;
+        }
+
+        String request = freezeFrameStep >= 0 ? "02 " + ObdPid.toHex(freezeFramePids[freezeFrameStep]) + " 00" : ROUND[step];
+        long start = System.nanoTime();
+        String response = ElmIO.send(is, os, request);
+        long elapsed = System.nanoTime() - start;
+        creditNanos -= elapsed;
+        estimateNanos = Math.max(elapsed, estimateNanos - (estimateNanos - elapsed) / 4);
+        spentNanos += elapsed;
+        requests++;
+
+        if (freezeFrameStep >= 0) {
+            freezeFrameValue(freezeFramePids[freezeFrameStep], response);
+            if (++freezeFrameStep == freezeFramePids.length)
+                freezeFrameCompleted();
+        } else {
+            switch (step) {
+                case 0: milStatus(response); break;
+                case 1: codes(response, 0x43, stored, false); break;
+                case 2: codes(response, 0x47, pending, true); break;
+                default: freezeFrameCode(response); break;
+            }
+            step++;
+        }
+
+        if (step == ROUND.length && freezeFrameStep < 0) {
+            roundActive = false;
+            rounds++;
+        }
+        return true;
+    }
+
+    /**
+     * Take the time of a live request into account; until diagnostic requests were timed, requests are
+     * expected to take twice as long (trouble code answers tend to be slower than current data)
+     * @param nanos the time of a live request
+     */
+    void liveRequestTime(long nanos) {
+        if (requests == 0 && nanos > 0)
+            estimateNanos = 2 * nanos;
+    }
+
+    private void milStatus(String response) {
+        for (int[] message : ElmIO.parseMessages(response)) {
+            if (message.length < 3 || message[0] != 0x41 || message[1] != 0x01)
+                continue;
+            boolean on = (message[2] & 0x80) != 0;
+            if ((mil == null && on) || (mil != null && mil != on))
+                emit(on ? DiagnosticEvent.Type.MIL_ON : DiagnosticEvent.Type.MIL_OFF, null, false, null);
+            mil = on;
+            return;
+        }
+    }
+
+    private void codes(String response, int service, TreeSet<String> current, boolean isPending) {
+
+        TreeSet<String> found = new TreeSet<>();
+        if (ElmIO.isError(response)) {
+            // some vehicles answer NO DATA rather than an empty list; other errors tell nothing
+            if (!response.replaceAll("\\s", "").toUpperCase().contains("NODATA"))
+                return;
+        } else {
+            boolean answered = false;
+            for (int[] message : ElmIO.parseMessages(response)) {
+                if (message.length == 0 || message[0] != service)
+                    continue;
+                answered = true;
+                // on CAN the codes follow a count byte, on older protocols they come three per message
+                for (int i = (message.length - 1) % 2 == 1 ? 2 : 1; i + 1 < message.length; i += 2) {
+                    if (message[i] != 0 || message[i + 1] != 0)
+                        found.add(decodeCode(message[i], message[i + 1]));
+                }
+            }
+            if (!answered)
+                return;
+        }
+
+        for (String code : found) {
+            if (!current.contains(code))
+                emit(DiagnosticEvent.Type.CODE_SET, code, isPending, null);
+        }
+        for (String code : current) {
+            if (!found.contains(code))
+                emit(DiagnosticEvent.Type.CODE_CLEARED, code, isPending, null);
+        }
+        current.clear();
+        current.addAll(found);
+        if (isPending)
+            pendingView = Collections.unmodifiableList(new ArrayList<>(found));
+        else
+            storedView = Collections.unmodifiableList(new ArrayList<>(found));
+    }
+
+    private void freezeFrameCode(String response) {
+        String code = null;
+        for (int[] message : ElmIO.parseMessages(response)) {
+            if (message.length >= 5 && message[0] == 0x42 && message[1] == 0x02 && (message[3] != 0 || message[4] != 0))
+                code = decodeCode(message[3], message[4]);
+        }
+        if (code == null) {
+            freezeFrameCode = null;
+            freezeFrameView = Collections.emptyMap();
+            return;
+        }
+        if (code.equals(freezeFrameCode))
+            return;
+        freezeFrameCode = code;
+        freezeFrameValues = new TreeMap<>();
+        if (freezeFramePids.length == 0)
+            freezeFrameCompleted();
+        else
+            freezeFrameStep = 0;
+    }
+
+    private void freezeFrameValue(int pid, String response) {
+        int length = ObdPid.dataLength(pid);
+        for (int[] message : ElmIO.parseMessages(response)) {
+            if (length > 0 && message.length >= 3 + length && message[0] == 0x42 && message[1] == pid)
+                freezeFrameValues.put(pid, ObdPid.decode(pid, message, 3));
+        }
+    }
+
+    private void freezeFrameCompleted() {
+        freezeFrameStep = -1;
+        freezeFrameView = Collections.unmodifiableMap(freezeFrameValues);
+        emit(DiagnosticEvent.Type.FREEZE_FRAME, freezeFrameCode, false, freezeFrameValues);
+    }
+
+    private void emit(DiagnosticEvent.Type type, String code, boolean isPending, Map<Integer, Double> freezeFrame) {
+        DiagnosticEvent event = new DiagnosticEvent(type, System.currentTimeMillis(), code, isPending, freezeFrame);
+        System.out.println("Diagnostics: " + event);
+        if (listener != null)
+            listener.diagnosticChanged(event);
+    }
+
+    /**
+     * Decode the two bytes of a trouble code
+     * @param a the first byte
+     * @param b the second byte
+     * @return the code, ie "P0301"
+     */
+    static String decodeCode(int a, int b) {
+        return "" + "PCBU".charAt((a >> 6) & 0x3) + ((a >> 4) & 0x3) + Integer.toHexString(a & 0xF).toUpperCase()
+                + ObdPid.toHex(b & 0xFF);
+    }
+
+    /**
+     * Encode a trouble code into its two bytes
+     * @param code the code, ie "P0301"
+     * @return the bytes as a 16 bit value
+     */
+    static int encodeCode(String code) {
+        if (code.length() != 5 || "PCBU".indexOf(code.charAt(0)) < 0 || "0123".indexOf(code.charAt(1)) < 0)
+            throw new IllegalArgumentException("Invalid trouble code " + code);
+        return ("PCBU".indexOf(code.charAt(0)) << 14) | ((code.charAt(1) - '0') << 12)
+                | Integer.parseInt(code.substring(2), 16);
+    }
+
+    /**
+     * @return the stored trouble codes of the last round, in ascending order
+     */
+    public List<String> getStoredCodes() {
+        return storedView;
+    }
+
+    /**
+     * @return the pending trouble codes of the last round, in ascending order
+     */
+    public List<String> getPendingCodes() {
+        return pendingView;
+    }
+
+    /**
+     * @return true if the MIL was on in the last round
+     */
+    public boolean isMilOn() {
+        return Boolean.TRUE.equals(mil);
+    }
+
+    /**
+     * @return the values of the last freeze frame read, keyed by mode 01 PID; empty if there's none
+     */
+    public Map<Integer, Double> getFreezeFrame() {
+        return freezeFrameView;
+    }
+
+    /**
+     * @return the number of completed rounds
+     */
+    public long getRoundCount() {
+        return rounds;
+    }
+
+    /**
+     * @return the number of diagnostic requests sent
+     */
+    public long getRequestCount() {
+        return requests;
+    }
+
+    /**
+     * @return the number of idle slots in which a due request didn't fit the idle time or the budget
+     */
+    public long getDeferredCount() {
+        return deferred;
+    }
+
+    /**
+     * @return the adapter time spent on diagnostic requests
+     */
+    public long getSpentNanos() {
+        return spentNanos;
+    }
+}
@@ -0,0 +1,136 @@
+package RyanBerti;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What JavaObdReader.initSupportedOdbCommands found and how long it took: the time of every discovery
+ * step (each adapter request, and selecting or probing the commands), and when ECU discovery is on
+ * (see JavaObdReader.setEcuDiscovery) the mode 01 PIDs supported by each ECU, keyed by the CAN
+ * identifier the ECU answers with (ie 0x7E8 for the engine, 0x7E9 for the transmission)
+ */
+public class DiscoveryReport {
+
+    /**
+     * A discovery step and its duration
+     */
+    public static final class Step {
+
+        private final String name;
+        private final long nanos;
+
+        Step(String name, long nanos) {
+            this.name = name;
+            this.nanos = nanos;
+        }
+
+        /**
+         * @return the request sent (ie "01 00"), or a description of the step (ie "select commands")
+         */
+        public String getName() {
+            return name;
+        }
+
+        public long getNanos() {
+            return nanos;
+        }
+
+        @Override
+        public String toString() {
+            return name + " " + String.format("%.1f", nanos / 1e6) + " ms";
+        }
+    }
+
+    private final List<Step> steps = new ArrayList<>();
+    private final Map<Integer, int[]> ecuPids = new TreeMap<>();
+
+    void addStep(String name, long nanos) {
+        steps.add(new Step(name, nanos));
+    }
+
+    void setEcuPids(Map<Integer, SupportedPids> ecus) {
+        ecuPids.clear();
+        for (Map.Entry<Integer, SupportedPids> e : ecus.entrySet())
+            ecuPids.put(e.getKey(), e.getValue().toArray());
+    }
+
+    /**
+     * @return the steps, in the order they ran
+     */
+    public List<Step> getSteps() {
+        return Collections.unmodifiableList(steps);
+    }
+
+    /**
+     * @return the time all steps took together
+     */
+    public long getTotalNanos() {
+        long total = 0;
+        for (Step step : steps)
+            total += step.nanos;
+        return total;
+    }
+
+    /**
+     * @return the total discovery time in milliseconds
+     */
+    public double getTotalMillis() {
+        return getTotalNanos() / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * @return the CAN identifiers of the ECUs that answered, in ascending order; empty if ECU discovery
+     * was off or the vehicle isn't on CAN
+     */
+    public int[] getEcus() {
+        int[] ecus = new int[ecuPids.size()];
+        int i = 0;
+        for (Integer ecu : ecuPids.keySet())
+            ecus[i++] = ecu;
+        return ecus;
+    }
+
+    /**
+     * @param ecu the CAN identifier of the ECU
+     * @return the mode 01 PIDs the ECU supports, in ascending order; empty if the ECU didn't answer
+     */
+    public int[] getSupportedPids(int ecu) {
+        int[] pids = ecuPids.get(ecu);
+        return pids == null ? new int[0] : pids.clone();
+    }
+
+    /**
+     * @param pid the mode 01 PID
+     * @return the CAN identifiers of the ECUs supporting the PID
+     */
+    public int[] getEcusSupporting(int pid) {
+        List<Integer> ecus = new ArrayList<>();
+        for (Map.Entry<Integer, int[]> e : ecuPids.entrySet()) {
+            for (int p : e.getValue()) {
+                if (p == pid)
+                    ecus.add(e.getKey());
+            }
+        }
+        int[] result = new int[ecus.size()];
+        for (int i = 0; i < result.length; i++)
+            result[i] = ecus.get(i);
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("Discovery took ").append(String.format("%.1f", getTotalMillis()))
+                .append(" ms ").append(steps);
+        for (Map.Entry<Integer, int[]> e : ecuPids.entrySet()) {
+            sb.append(", ECU ").append(Integer.toHexString(e.getKey()).toUpperCase()).append(" [");
+            for (int i = 0; i < e.getValue().length; i++)
+                sb.append(i > 0 ? ", " : "").append(ObdPid.toHex(e.getValue()[i]));
+            sb.append(']');
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,298 @@
+package RyanBerti;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A non-blocking connection to one wifi OBD2 adapter, driven by an ElmEventLoop. The ELM327 handles
+ * one request at a time, so requests are queued and written one after another, each as soon as the
+ * previous response's '>' prompt arrives. Failed connections (refused, timed out, dropped, or a
+ * request that never got its prompt) are retried with exponential backoff; queued requests survive
+ * the reconnect, while the request in flight at the time of the failure fails with the cause
+ */
+public class ElmChannel {
+
+    private enum State { CONNECTING, CONNECTED, WAITING_RECONNECT, CLOSED }
+
+    private static final class Request {
+        final byte[] bytes;
+        final CompletableFuture<String> future;
+
+        Request(String request, CompletableFuture<String> future) {
+            this.bytes = (request + "\r").getBytes();
+            this.future = future;
+        }
+    }
+
+    private final ElmEventLoop loop;
+    private final InetSocketAddress address;
+    private final long connectTimeoutNanos;
+    private final long readTimeoutNanos;
+
+    private long initialBackoffNanos = TimeUnit.MILLISECONDS.toNanos(100);
+    private long maxBackoffNanos = TimeUnit.SECONDS.toNanos(10);
+    private List<String> initRequests = new ArrayList<>();
+
+    // owned by the loop thread
+    private State state = State.CONNECTING;
+    private SocketChannel socket;
+    private SelectionKey key;
+    private long deadline;
+    private long backoffNanos;
+    private final ArrayDeque<Request> queue = new ArrayDeque<>();
+    private Request inFlight;
+    private ByteBuffer writeBuffer;
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(1024);
+    private final ByteArrayOutputStream response = new ByteArrayOutputStream(256);
+
+    private volatile int connectCount = 0;
+    private volatile int failureCount = 0;
+
+    ElmChannel(ElmEventLoop loop, InetSocketAddress address, int connectTimeoutMillis, int readTimeoutMillis) {
+        this.loop = loop;
+        this.address = address;
+        this.connectTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(connectTimeoutMillis);
+        this.readTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(readTimeoutMillis);
+        this.backoffNanos = initialBackoffNanos;
+    }
+
+    /**
+     * Queue a request; it is written once the requests ahead of it have been answered
+     * @param request the request, without the trailing carriage return (ie "01 0C")
+     * @return a future completed with the response up to (excluding) the '>' prompt, or completed
+     * exceptionally if the connection failed or the prompt didn't arrive within the read timeout
+     */
+    public CompletableFuture<String> send(String request) {
+        CompletableFuture<String> future = new CompletableFuture<>();
+        Request r = new Request(request, future);
+        loop.execute(() -> {
+            if (state == State.CLOSED) {
+                future.completeExceptionally(new ClosedChannelException());
+                return;
+            }
+            queue.add(r);
+            sendNext();
+        }, future);
+        return future;
+    }
+
+    /**
+     * Set the requests (ie "AT E0", "AT L0") that are sent ahead of any queued request every time the
+     * connection is (re)established; their responses are discarded
+     * @param requests the adapter setup requests
+     */
+    public void setInitRequests(List<String> requests) {
+        List<String> copy = new ArrayList<>(requests);
+        loop.execute(() -> initRequests = copy);
+    }
+
+    /**
+     * Set the delay before the first reconnect attempt after a failure, and the cap the delay doubles
+     * up to on consecutive failures
+     */
+    public void setReconnectBackoff(long initialMillis, long maxMillis) {
+        loop.execute(() -> {
+            initialBackoffNanos = TimeUnit.MILLISECONDS.toNanos(initialMillis);
+            maxBackoffNanos = TimeUnit.MILLISECONDS.toNanos(maxMillis);
+            backoffNanos = initialBackoffNanos;
+        });
+    }
+
+    /**
+     * @return the number of times a connection was established
+     */
+    public int getConnectCount() {
+        return connectCount;
+    }
+
+    /**
+     * @return the number of connection failures (refused, timed out or dropped connections and
+     * requests that timed out)
+     */
+    public int getFailureCount() {
+        return failureCount;
+    }
+
+    /**
+     * Close the connection; queued requests fail with a ClosedChannelException
+     */
+    public void close() {
+        loop.execute(this::closeNow);
+    }
+
+    void closeNow() {
+        if (state == State.CLOSED)
+            return;
+        state = State.CLOSED;
+        closeSocket();
+        ClosedChannelException closed = new ClosedChannelException();
+        if (inFlight != null)
+            inFlight.future.completeExceptionally(closed);
+        inFlight = null;
+        for (Request r : queue)
+            r.future.completeExceptionally(closed);
+        queue.clear();
+        loop.remove(this);
+    }
+
+    void connect() {
+        try {
+            state = State.CONNECTING;
+            deadline = System.nanoTime() + connectTimeoutNanos;
+            socket = SocketChannel.open();
+            socket.configureBlocking(false);
+            if (socket.connect(address)) {
+                key = socket.register(loop.selector(), SelectionKey.OP_READ, this);
+                connected();
+            } else {
+                key = socket.register(loop.selector(), SelectionKey.OP_CONNECT, this);
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    void finishConnect() {
+        try {
+            if (socket.finishConnect()) {
+                key.interestOps(SelectionKey.OP_READ);
+                connected();
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private void connected() {
+        state = State.CONNECTED;
+        connectCount++;
+        backoffNanos = initialBackoffNanos;
+        for (int i = initRequests.size() - 1; i >= 0; i--)
+            queue.addFirst(new Request(initRequests.get(i), new CompletableFuture<>()));
+        sendNext();
+    }
+
+    private void sendNext() {
+        if (state != State.CONNECTED || inFlight != null || queue.isEmpty())
+            return;
+        inFlight = queue.poll();
+        response.reset();
+        writeBuffer = ByteBuffer.wrap(inFlight.bytes);
+        deadline = System.nanoTime() + readTimeoutNanos;
+        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        write();
+    }
+
+    void write() {
+        if (writeBuffer == null)
+            return;
+        try {
+            socket.write(writeBuffer);
+            if (!writeBuffer.hasRemaining()) {
+                writeBuffer = null;
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    void read() {
+        try {
+            readBuffer.clear();
+            int n = socket.read(readBuffer);
+            if (n < 0) {
+                fail(new EOFException("Adapter closed the connection"));
+                return;
+            }
+            byte[] bytes = readBuffer.array();
+            for (int i = 0; i < n; i++) {
+                if (bytes[i] == '>') {
+                    if (inFlight != null) {
+                        Request done = inFlight;
+                        inFlight = null;
+                        done.future.complete(response.toString());
+                    }
+                    response.reset();
+                } else if (inFlight != null) {
+                    response.write(bytes[i]);
+                }
+            }
+            sendNext();
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Fail whatever is due (connect or read timeout) and start due reconnects
+     * @return the next time (System.nanoTime) this channel needs checking, or Long.MAX_VALUE
+     */
+    long checkDeadlines(long now) {
+        switch (state) {
+            case CONNECTING:
+                if (now - deadline >= 0)
+                    fail(new SocketTimeoutException("Connect to " + address + " timed out"));
+                return deadline;
+            case CONNECTED:
+                if (inFlight == null)
+                    return Long.MAX_VALUE;
+                if (now - deadline >= 0)
+                    fail(new SocketTimeoutException("No prompt from " + address + " after " +
+                            TimeUnit.NANOSECONDS.toMillis(readTimeoutNanos) + " ms"));
+                return deadline;
+            case WAITING_RECONNECT:
+                if (now - deadline >= 0)
+                    connect();
+                return inFlight == null && state == State.CONNECTED ? Long.MAX_VALUE : deadline;
+            default:
+                return Long.MAX_VALUE;
+        }
+    }
+
+    private void fail(IOException cause) {
+        if (state == State.CLOSED)
+            return;
+        failureCount++;
+        closeSocket();
+        if (inFlight != null) {
+            inFlight.future.completeExceptionally(cause);
+            inFlight = null;
+        }
+        writeBuffer = null;
+        state = State.WAITING_RECONNECT;
+        deadline = System.nanoTime() + backoffNanos;
+        backoffNanos = Math.min(backoffNanos * 2, maxBackoffNanos);
+    }
+
+    private void closeSocket() {
+        if (key != null)
+            key.cancel();
+        key = null;
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // nothing left to do with the socket
+            }
+        }
+        socket = null;
+    }
+
+    @Override
+    public String toString() {
+        return "ElmChannel[" + address + ", " + state + "]";
+    }
+}
@@ -0,0 +1,180 @@
+package RyanBerti;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A single thread driving any number of ElmChannels (non-blocking SocketChannel connections to wifi
+ * OBD2 adapters) through one Selector; this replaces the thread per adapter that the blocking
+ * Socket/InputStream transport needs. All channel state is owned by the loop thread; other threads
+ * interact with channels by queueing tasks on the loop
+ */
+public class ElmEventLoop implements Closeable {
+
+    /**
+     * A task queued for the loop thread, with the future it completes if it has one
+     */
+    private static final class Task {
+        final Runnable action;
+        final CompletableFuture<?> future;
+
+        Task(Runnable action, CompletableFuture<?> future) {
+            this.action = action;
+            this.future = future;
+        }
+    }
+
+    private final Selector selector;
+    private final Thread thread;
+    private final Queue<Task> tasks = new ConcurrentLinkedQueue<>();
+    private final List<ElmChannel> channels = new ArrayList<>();
+    private volatile boolean running = true;
+    private volatile boolean stopped = false;
+
+    /**
+     * Open the selector and start the loop thread
+     * @throws IOException
+     */
+    public ElmEventLoop() throws IOException {
+        selector = Selector.open();
+        thread = new Thread(this::run, "elm-event-loop");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Open a channel to the adapter at the given address; the connection is made (and remade after
+     * failures) on the loop thread, requests sent before it completes are queued
+     * @param address the adapter's address (for wifi adapters usually 192.168.0.10:35000)
+     * @param connectTimeoutMillis how long a connection attempt may take
+     * @param readTimeoutMillis how long the adapter may take to send the '>' prompt after a request
+     *                          before the request fails and the connection is reset
+     * @return the channel
+     */
+    public ElmChannel open(InetSocketAddress address, int connectTimeoutMillis, int readTimeoutMillis) {
+        ElmChannel channel = new ElmChannel(this, address, connectTimeoutMillis, readTimeoutMillis);
+        execute(() -> {
+            channels.add(channel);
+            channel.connect();
+        });
+        return channel;
+    }
+
+    /**
+     * Run the given task on the loop thread
+     */
+    void execute(Runnable task) {
+        execute(task, null);
+    }
+
+    /**
+     * Run the given task on the loop thread; if the loop is closed before the task runs, the future
+     * is completed exceptionally with a ClosedChannelException instead
+     */
+    void execute(Runnable task, CompletableFuture<?> future) {
+        tasks.add(new Task(task, future));
+        if (stopped)
+            failPendingTasks();
+        else
+            selector.wakeup();
+    }
+
+    /**
+     * Drop the tasks the stopped loop won't run, failing their futures; may be called on any thread
+     */
+    private void failPendingTasks() {
+        ClosedChannelException closed = new ClosedChannelException();
+        Task task;
+        while ((task = tasks.poll()) != null) {
+            if (task.future != null)
+                task.future.completeExceptionally(closed);
+        }
+    }
+
+    Selector selector() {
+        return selector;
+    }
+
+    void remove(ElmChannel channel) {
+        channels.remove(channel);
+    }
+
+    private void run() {
+
+        while (running) {
+            try {
+                long now = System.nanoTime();
+                long nextDeadline = Long.MAX_VALUE;
+                for (int i = 0; i < channels.size(); i++)
+                    nextDeadline = Math.min(nextDeadline, channels.get(i).checkDeadlines(now));
+
+                long waitMillis = 0;
+                if (nextDeadline != Long.MAX_VALUE)
+                    waitMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(nextDeadline - now));
+
+                selector.select(waitMillis);
+
+                Task task;
+                while ((task = tasks.poll()) != null)
+                    task.action.run();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    ElmChannel channel = (ElmChannel) key.attachment();
+                    try {
+                        if (key.isValid() && key.isConnectable())
+                            channel.finishConnect();
+                        if (key.isValid() && key.isWritable())
+                            channel.write();
+                        if (key.isValid() && key.isReadable())
+                            channel.read();
+                    } catch (CancelledKeyException e) {
+                        // the channel was closed by an earlier event in this round
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        for (ElmChannel channel : new ArrayList<>(channels))
+            channel.closeNow();
+        try {
+            selector.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        // tasks queued while the loop was stopping, and from now on, never run
+        stopped = true;
+        failPendingTasks();
+    }
+
+    /**
+     * Close every channel and stop the loop thread; requests that were sent but not answered, even if
+     * the loop hadn't picked them up yet, fail with a ClosedChannelException
+     */
+    @Override
+    public void close() {
+        running = false;
+        selector.wakeup();
+        try {
+            thread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
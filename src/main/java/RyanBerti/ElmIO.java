@@ -0,0 +1,250 @@
+package RyanBerti;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Low level helpers for talking to an ELM327 style adapter without going through the obd-java-api
+ * command classes; used for requests those classes can't express (ie multi-PID requests)
+ */
+final class ElmIO {
+
+    /**
+     * OutputStream that discards everything written to it; used when replaying an already received
+     * response through an ObdCommand instance
+     */
+    static final OutputStream NULL_OUTPUT = new OutputStream() {
+        @Override
+        public void write(int b) {}
+
+        @Override
+        public void write(byte[] b, int off, int len) {}
+    };
+
+    private ElmIO() {}
+
+    /**
+     * Write the given request followed by a carriage return and flush the stream
+     * @param os the adapter's output stream
+     * @param request the request, ie "01 0C 0D"
+     * @throws IOException
+     */
+    static void write(OutputStream os, String request) throws IOException {
+        os.write((request + "\r").getBytes());
+        os.flush();
+    }
+
+    /**
+     * Read from the adapter until the '>' prompt arrives (or the stream ends)
+     * @param is the adapter's input stream
+     * @return everything received before the prompt
+     * @throws IOException
+     */
+    static String readUntilPrompt(InputStream is) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int b;
+        while ((b = is.read()) > -1) {
+            if ((char) b == '>')
+                break;
+            sb.append((char) b);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Write the given request and read the response up to the '>' prompt
+     * @param is the adapter's input stream
+     * @param os the adapter's output stream
+     * @param request the request, ie "01 00"
+     * @return the response, without the prompt
+     * @throws IOException
+     */
+    static String send(InputStream is, OutputStream os, String request) throws IOException {
+        write(os, request);
+        return readUntilPrompt(is);
+    }
+
+    /**
+     * Determine whether the given response is one of the adapter's error messages
+     * @param response the response as returned by readUntilPrompt
+     * @return true if the response doesn't carry any data
+     */
+    static boolean isError(String response) {
+        String r = response.replaceAll("\\s", "").toUpperCase();
+        return r.isEmpty() || r.contains("NODATA") || r.contains("?") || r.contains("UNABLETOCONNECT")
+                || r.contains("ERROR") || r.contains("STOPPED") || r.contains("BUSBUSY");
+    }
+
+    /**
+     * @param response the response as returned by readUntilPrompt
+     * @return true if the adapter didn't understand the request ('?'), as opposed to the vehicle not
+     * answering it (NO DATA)
+     */
+    static boolean isRejected(String response) {
+        return response.indexOf('?') >= 0;
+    }
+
+    /**
+     * Split a response into the messages it contains, decoded into bytes. Each line of a single frame
+     * response is a message; ISO 15765 multi-frame responses (a byte count line followed by "0:", "1:"
+     * ... frames) are reassembled into one message
+     * @param response the response as returned by readUntilPrompt
+     * @return the decoded messages, empty if the response didn't contain any hex data
+     */
+    static List<int[]> parseMessages(String response) {
+
+        List<int[]> messages = new ArrayList<>();
+        int[] multiFrame = null;
+        int multiFrameFill = 0;
+
+        for (String line : response.split("[\r\n]+")) {
+
+            line = line.replace("SEARCHING...", "").trim();
+            if (line.isEmpty())
+                continue;
+
+            if (line.matches("[0-9A-Fa-f]{3}")) {
+                multiFrame = new int[Integer.parseInt(line, 16)];
+                multiFrameFill = 0;
+                continue;
+            }
+
+            int colon = line.indexOf(':');
+            if (colon >= 0) {
+                if (multiFrame == null)
+                    continue;
+                int[] frame = decodeHex(line.substring(colon + 1));
+                if (frame == null)
+                    continue;
+                for (int i = 0; i < frame.length && multiFrameFill < multiFrame.length; i++)
+                    multiFrame[multiFrameFill++] = frame[i];
+                if (multiFrameFill == multiFrame.length) {
+                    messages.add(multiFrame);
+                    multiFrame = null;
+                }
+                continue;
+            }
+
+            int[] message = decodeHex(line);
+            if (message != null)
+                messages.add(message);
+        }
+
+        return messages;
+    }
+
+    /**
+     * Split a response received with headers on (AT H1) into the messages each ECU sent, keyed by the
+     * ECU's CAN identifier. Lines start with an 11 bit (3 hex digit, ie "7E8") or 29 bit (8 hex digit,
+     * ie "18DAF110") identifier followed by the ISO 15765 PCI byte(s); single frames are taken as they
+     * are, first and consecutive frames are reassembled per ECU, so interleaved multi-frame answers from
+     * several ECUs come apart correctly
+     * @param response the response as returned by readUntilPrompt
+     * @return the decoded messages of each ECU, in the order the ECUs first answered; empty if the
+     * response didn't contain any CAN frames
+     */
+    static Map<Integer, List<int[]>> parseEcuMessages(String response) {
+
+        Map<Integer, List<int[]>> messages = new LinkedHashMap<>();
+        Map<Integer, int[]> multiFrames = new HashMap<>();
+        Map<Integer, Integer> multiFrameFill = new HashMap<>();
+
+        for (String line : response.split("[\r\n]+")) {
+
+            String hex = line.replace("SEARCHING...", "").replaceAll("\\s", "");
+            if (hex.isEmpty() || !hex.matches("[0-9A-Fa-f]+"))
+                continue;
+
+            int headerDigits = hex.length() % 2 == 1 ? 3 : 8;
+            if (hex.length() < headerDigits + 2)
+                continue;
+            int header = (int) Long.parseLong(hex.substring(0, headerDigits), 16);
+            int[] frame = decodeHex(hex.substring(headerDigits));
+            if (frame == null)
+                continue;
+
+            int type = frame[0] >> 4;
+            if (type == 0) {
+                int length = frame[0] & 0x0F;
+                if (length == 0 || length >= frame.length)
+                    continue;
+                messages.computeIfAbsent(header, k -> new ArrayList<>()).add(Arrays.copyOfRange(frame, 1, 1 + length));
+                continue;
+            }
+
+            int[] multiFrame;
+            int offset;
+            if (type == 1 && frame.length > 2) {
+                multiFrame = new int[((frame[0] & 0x0F) << 8) | frame[1]];
+                multiFrames.put(header, multiFrame);
+                multiFrameFill.put(header, 0);
+                offset = 2;
+            } else if (type == 2 && multiFrames.containsKey(header)) {
+                multiFrame = multiFrames.get(header);
+                offset = 1;
+            } else {
+                continue;
+            }
+
+            int fill = multiFrameFill.get(header);
+            for (int i = offset; i < frame.length && fill < multiFrame.length; i++)
+                multiFrame[fill++] = frame[i];
+            multiFrameFill.put(header, fill);
+            if (fill == multiFrame.length) {
+                messages.computeIfAbsent(header, k -> new ArrayList<>()).add(multiFrame);
+                multiFrames.remove(header);
+            }
+        }
+
+        return messages;
+    }
+
+    /**
+     * Decode a line of hex digits (spaces optional) into bytes
+     * @param line the line, ie "41 0C 1A F8"
+     * @return the decoded bytes, or null if the line isn't made up of hex byte pairs
+     */
+    static int[] decodeHex(String line) {
+        String hex = line.replaceAll("\\s", "");
+        if (hex.isEmpty() || hex.length() % 2 != 0 || !hex.matches("[0-9A-Fa-f]+"))
+            return null;
+        int[] bytes = new int[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++)
+            bytes[i] = Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        return bytes;
+    }
+
+    /**
+     * Extract the VIN from the response to a mode 09 PID 02 request; handles both the single ISO 15765
+     * multi-frame message (49 02 01 followed by 17 characters) and the legacy format of five messages
+     * (49 02 sequence number followed by 4 bytes each)
+     * @param response the response as returned by readUntilPrompt
+     * @return the VIN, or null if the response doesn't contain one
+     */
+    static String parseVin(String response) {
+
+        if (isError(response))
+            return null;
+
+        StringBuilder vin = new StringBuilder();
+        for (int[] message : parseMessages(response)) {
+            if (message.length < 4 || message[0] != 0x49 || message[1] != 0x02)
+                continue;
+            for (int i = 3; i < message.length; i++) {
+                if (message[i] > 0x20 && message[i] < 0x7F)
+                    vin.append((char) message[i]);
+            }
+        }
+
+        if (vin.length() < 17)
+            return null;
+        return vin.substring(vin.length() - 17);
+    }
+}
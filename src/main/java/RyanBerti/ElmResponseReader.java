@@ -0,0 +1,277 @@
+package RyanBerti;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads ELM327 responses into a reusable byte buffer and decodes their hex payload into a reusable int
+ * array, without creating any intermediate Strings; one instance is meant to be reused for every
+ * response read from an adapter. Single frame lines each become a message, ISO 15765 multi-frame
+ * responses (a byte count line followed by "0:", "1:" ... frames) become one message, and text lines
+ * (SEARCHING..., NO DATA, ?) are skipped
+ */
+class ElmResponseReader {
+
+    private static final int MAX_MESSAGES = 32;
+    private static final byte[] NO_DATA = "NO DATA".getBytes();
+
+    private final byte[] buffer;
+    private int length;
+    private int pendingStart;
+    private int pending;
+
+    private final int[] payload;
+    private int payloadLength;
+
+    private final int[] messageOffsets = new int[MAX_MESSAGES + 1];
+    private int messageCount;
+    private int frameBytesRemaining;
+
+    ElmResponseReader() {
+        this(4096);
+    }
+
+    /**
+     * @param capacity the largest response (in bytes, excluding the prompt) that can be read
+     */
+    ElmResponseReader(int capacity) {
+        buffer = new byte[capacity];
+        payload = new int[capacity / 2];
+    }
+
+    /**
+     * Read the next response, up to the '>' prompt, and decode its payload. Reads block for the first
+     * byte only and then take whatever the stream has available, so streams that don't override
+     * read(byte[], int, int) aren't asked for more bytes than the adapter sent
+     * @param is the adapter's input stream
+     * @return the number of bytes in the response (excluding the prompt), or -1 if the stream ended
+     * before any byte of the response arrived
+     * @throws IOException if the stream fails or the response doesn't fit the buffer
+     */
+    int readResponse(InputStream is) throws IOException {
+
+        int filled = pending;
+        if (pending > 0)
+            System.arraycopy(buffer, pendingStart, buffer, 0, pending);
+        pending = 0;
+
+        int scanned = 0;
+        while (true) {
+            for (; scanned < filled; scanned++) {
+                if (buffer[scanned] == '>') {
+                    pendingStart = scanned + 1;
+                    pending = filled - pendingStart;
+                    return parse(scanned);
+                }
+            }
+
+            if (filled == buffer.length)
+                throw new IOException("Response exceeds " + buffer.length + " bytes without a prompt");
+
+            int b = is.read();
+            if (b < 0)
+                return filled == 0 ? -1 : parse(filled);
+            buffer[filled++] = (byte) b;
+
+            int available = Math.min(is.available(), buffer.length - filled);
+            if (available > 0) {
+                int n = is.read(buffer, filled, available);
+                if (n > 0)
+                    filled += n;
+            }
+        }
+    }
+
+    /**
+     * Decode a response that has already been copied into the buffer (ie by a transport that doesn't
+     * use InputStreams)
+     * @param response the response bytes, excluding the prompt
+     * @param offset offset of the response within the array
+     * @param count number of response bytes
+     * @return the number of bytes in the response
+     */
+    int parse(byte[] response, int offset, int count) {
+        if (count > buffer.length)
+            throw new IllegalArgumentException("Response exceeds " + buffer.length + " bytes");
+        System.arraycopy(response, offset, buffer, 0, count);
+        pending = 0;
+        return parse(count);
+    }
+
+    private int parse(int responseLength) {
+
+        length = responseLength;
+        payloadLength = 0;
+        messageCount = 0;
+        frameBytesRemaining = 0;
+
+        int pos = 0;
+        while (pos < length) {
+            int lineEnd = pos;
+            while (lineEnd < length && buffer[lineEnd] != '\r' && buffer[lineEnd] != '\n')
+                lineEnd++;
+            parseLine(pos, lineEnd);
+            pos = lineEnd + 1;
+        }
+
+        messageOffsets[messageCount] = payloadLength;
+        return length;
+    }
+
+    private void parseLine(int start, int end) {
+
+        while (start < end && buffer[start] == ' ')
+            start++;
+        while (end > start && buffer[end - 1] == ' ')
+            end--;
+        if (start == end)
+            return;
+
+        int colon = -1;
+        int digits = 0;
+        for (int i = start; i < end; i++) {
+            byte c = buffer[i];
+            if (c == ':' && colon < 0 && i > start)
+                colon = i;
+            else if (hexValue(c) >= 0)
+                digits++;
+            else if (c != ' ')
+                return; // text line, ie SEARCHING... or NO DATA
+        }
+
+        if (colon >= 0) {
+            // continuation frame of a multi-frame message
+            if (frameBytesRemaining > 0)
+                frameBytesRemaining -= decodeHex(colon + 1, end, frameBytesRemaining);
+            return;
+        }
+
+        if (digits == 3 && end - start == 3) {
+            // byte count line that starts a multi-frame message
+            if (startMessage())
+                frameBytesRemaining = (hexValue(buffer[start]) << 8) | (hexValue(buffer[start + 1]) << 4) | hexValue(buffer[start + 2]);
+            return;
+        }
+
+        if (digits % 2 == 0 && startMessage()) {
+            frameBytesRemaining = 0;
+            decodeHex(start, end, Integer.MAX_VALUE);
+        }
+    }
+
+    private boolean startMessage() {
+        if (messageCount == MAX_MESSAGES)
+            return false;
+        messageOffsets[messageCount++] = payloadLength;
+        return true;
+    }
+
+    private int decodeHex(int start, int end, int maxBytes) {
+        int decoded = 0;
+        int high = -1;
+        for (int i = start; i < end && decoded < maxBytes && payloadLength < payload.length; i++) {
+            int v = hexValue(buffer[i]);
+            if (v < 0)
+                continue;
+            if (high < 0) {
+                high = v;
+            } else {
+                payload[payloadLength++] = (high << 4) | v;
+                high = -1;
+                decoded++;
+            }
+        }
+        return decoded;
+    }
+
+    private static int hexValue(byte c) {
+        if (c >= '0' && c <= '9')
+            return c - '0';
+        if (c >= 'A' && c <= 'F')
+            return c - 'A' + 10;
+        if (c >= 'a' && c <= 'f')
+            return c - 'a' + 10;
+        return -1;
+    }
+
+    /**
+     * @return true if the last response didn't contain any hex data (ie NO DATA, ?, STOPPED)
+     */
+    boolean isError() {
+        return messageCount == 0;
+    }
+
+    /**
+     * @return true if the adapter didn't understand the last request ('?'), as opposed to the vehicle
+     * not answering it (NO DATA)
+     */
+    boolean isRejected() {
+        if (messageCount > 0)
+            return false;
+        for (int i = 0; i < length; i++) {
+            if (buffer[i] == '?')
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the last response was the adapter's NO DATA message
+     */
+    boolean isNoData() {
+        outer:
+        for (int i = 0; i + NO_DATA.length <= length; i++) {
+            for (int j = 0; j < NO_DATA.length; j++) {
+                if (buffer[i + j] != NO_DATA[j])
+                    continue outer;
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return number of messages in the last response
+     */
+    int getMessageCount() {
+        return messageCount;
+    }
+
+    /**
+     * @param message the message index
+     * @return offset of the message's first byte in the payload
+     */
+    int getMessageOffset(int message) {
+        return messageOffsets[message];
+    }
+
+    /**
+     * @param message the message index
+     * @return number of bytes in the message
+     */
+    int getMessageLength(int message) {
+        return messageOffsets[message + 1] - messageOffsets[message];
+    }
+
+    /**
+     * @return the decoded payload of the last response; valid up to getPayloadLength()
+     */
+    int[] getPayload() {
+        return payload;
+    }
+
+    int getPayloadLength() {
+        return payloadLength;
+    }
+
+    /**
+     * @return the raw bytes of the last response; valid up to getLength()
+     */
+    byte[] getBuffer() {
+        return buffer;
+    }
+
+    int getLength() {
+        return length;
+    }
+}
@@ -0,0 +1,1285 @@
+package RyanBerti;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * In-process ELM327 adapter on a CAN bus, exposed through the same InputStream/OutputStream
+ * contract as a serial port or socket (see JavaObdReader.getJavaObdReaderForSimulator), so connection
+ * setup, polling and scheduling can be run and benchmarked without hardware. Requests are answered in
+ * the order they're written, one at a time like a real adapter: each response becomes readable once
+ * the adapter's latency (plus random jitter) has passed after the previous response, so pipelined
+ * requests queue up behind each other. All randomness comes from a seeded Random, making runs
+ * reproducible.
+ *
+ * The simulator understands the AT commands the reader sends (echo, linefeeds, spaces, headers,
+ * protocol selection, timeouts, identification), mode 01 requests of up to 6 PIDs (unsupported PIDs
+ * are left out of the response, "PIDs supported" masks are derived from the configured PIDs), the
+ * mode 09 VIN request, and the diagnostic requests of setTroubleCodes (mode 01 PID 01 MIL status, mode
+ * 02 freeze frames, mode 03 and 07 trouble codes, mode 04 to clear them). Responses longer than a CAN frame are sent in the ISO 15765 multi-frame format.
+ * The engine ECU (7E8) answers by default; further ECUs can be added with addEcu, and each ECU that
+ * supports a requested PID answers with its own message (told apart by their headers with AT H1).
+ * Faults (NO DATA, "?" and no response at all) can be injected for the next request or at random, and
+ * recorded traces can be replayed with loadTrace.
+ *
+ * With setBaudRate the simulator also models a serial line: every byte takes 10 bit times in each
+ * direction, and bytes sent at a rate other than the one the receiving end is set to (see
+ * getSerialLink) arrive garbled, as do all bytes above setMaxReliableBaudRate. The adapter switches
+ * rates with the AT BRD handshake and returns to its default rate on AT Z.
+ *
+ * The connection itself can fail too: dropConnection makes the current streams fail like a reset
+ * socket, stallConnection makes them go silent like a hung adapter, and either restarts the adapter
+ * and keeps reconnect failing for the outage given
+ */
+public class ElmSimulator implements Closeable {
+
+    /**
+     * Failures the simulator can inject in place of an OBD response
+     */
+    public enum Fault {
+        /** the vehicle didn't answer: "NO DATA" */
+        NO_DATA,
+        /** the adapter didn't understand the request: "?" */
+        UNKNOWN,
+        /** the adapter doesn't answer at all, not even with the prompt */
+        TIMEOUT
+    }
+
+    public static final String DEFAULT_ADAPTER_ID = "ELM327 v1.5";
+    public static final int[] DEFAULT_PIDS = {0x04, 0x05, 0x0B, 0x0C, 0x0D, 0x0F, 0x10, 0x11, 0x1F, 0x2F, 0x33, 0x46};
+
+    private static final int ECU_HEADER = 0x7E8;
+    private static final int MAX_PIDS = 6;
+    private static final long DEFAULT_ADAPTER_TIMEOUT_NANOS = TimeUnit.MILLISECONDS.toNanos(4 * 0x32);
+
+    private final Object lock = new Object();
+    private final Random random;
+    private final ArrayDeque<Response> responses = new ArrayDeque<>();
+    private final StringBuilder request = new StringBuilder();
+    private SimulatorInputStream inputStream;
+    private SimulatorOutputStream outputStream;
+    private boolean closed = false;
+    private long unreachableUntilNanos;
+    private long busyUntilNanos = 0;
+    private int readTimeoutMillis = 0;
+
+    private final boolean[] supported = new boolean[0x100];
+    private final TreeMap<Integer, boolean[]> ecus = new TreeMap<>();
+    private final Map<Integer, int[]> pidData = new HashMap<>();
+    private final int[] pidRequests = new int[0x100];
+    private String vin = "1D4GP25R53C599999";
+    private String adapterId = DEFAULT_ADAPTER_ID;
+    private boolean multiPidSupported = true;
+    private int[] storedCodes = new int[0];
+    private int[] pendingCodes = new int[0];
+    private int freezeFrameCode = 0;
+    private final Map<Integer, int[]> freezeFrameData = new HashMap<>();
+
+    private long latencyNanos = 0;
+    private long jitterNanos = 0;
+    private final TreeMap<String, long[]> commandLatency = new TreeMap<>();
+    private long searchNanos = 0;
+    private long responseWaitNanos = 0;
+    private long adapterTimeoutNanos = DEFAULT_ADAPTER_TIMEOUT_NANOS;
+    private long nextLatencyNanos;
+    private long nextWaitNanos;
+    private long lastLatencyNanos;
+
+    private final EnumMap<Fault, Double> faultProbability = new EnumMap<>(Fault.class);
+    private final ArrayDeque<Fault> injected = new ArrayDeque<>();
+
+    private final Map<String, List<TraceEntry>> trace = new HashMap<>();
+    private final Map<String, Integer> tracePosition = new HashMap<>();
+
+    private boolean echo = true;
+    private boolean linefeeds = false;
+    private boolean spaces = true;
+    private boolean headers = false;
+    private char protocol = '0';
+    private boolean searching = true;
+    private String lastRequest;
+
+    private long requestCount = 0;
+    private long responseWaitCount = 0;
+    private long faultCount = 0;
+
+    private static final long DEFAULT_BRD_TIMEOUT_NANOS = TimeUnit.MILLISECONDS.toNanos(75);
+    private int baudRate = 0;
+    private int defaultBaudRate = 0;
+    private int maxBaudRate = 500000;
+    private int maxReliableBaudRate = Integer.MAX_VALUE;
+    private int hostBaudRate = 0;
+    private long brdTimeoutNanos = DEFAULT_BRD_TIMEOUT_NANOS;
+    private int requestedBaudRate = 0;
+    private int switchingTo = 0;
+    private int switchingFrom;
+    private long switchDeadlineNanos;
+    private final SerialLink serialLink = new SimulatorSerialLink();
+
+    private static final class Response {
+        final byte[] data;
+        final long readyNanos;
+        final int baudRate;
+        int offset;
+
+        Response(byte[] data, long readyNanos, int baudRate) {
+            this.data = data;
+            this.readyNanos = readyNanos;
+            this.baudRate = baudRate;
+        }
+    }
+
+    /**
+     * The state of one connection to the adapter, shared by its two streams
+     */
+    private static final class Connection {
+        boolean dropped = false;
+        boolean stalled = false;
+    }
+
+    private static final class TraceEntry {
+        final String response;
+        final long latencyNanos;
+
+        TraceEntry(String response, long latencyNanos) {
+            this.response = response;
+            this.latencyNanos = latencyNanos;
+        }
+    }
+
+    /**
+     * Create a simulator supporting DEFAULT_PIDS, with no latency and a seed of 0
+     */
+    public ElmSimulator() {
+        this(0);
+    }
+
+    /**
+     * Create a simulator supporting DEFAULT_PIDS, with no latency
+     * @param seed the seed of the jitter and random fault generator
+     */
+    public ElmSimulator(long seed) {
+        this.random = new Random(seed);
+        openConnection();
+        ecus.put(ECU_HEADER, supported);
+        setSupportedPids(DEFAULT_PIDS);
+    }
+
+    /**
+     * Set the mode 01 PIDs the simulated vehicle supports, replacing the current set
+     * @param pids the PID numbers (0x01 - 0xFF; the "PIDs supported" PIDs are always answered)
+     */
+    public void setSupportedPids(int... pids) {
+        synchronized (lock) {
+            Arrays.fill(supported, false);
+            for (int pid : pids) {
+                if (pid < 0 || pid > 0xFF)
+                    throw new IllegalArgumentException("Invalid PID " + pid);
+                supported[pid] = true;
+            }
+        }
+    }
+
+    /**
+     * Add an ECU answering mode 01 requests for the given PIDs besides the engine ECU (ie the
+     * transmission, 7E9), or replace the PIDs of an ECU already on the bus
+     * @param header the CAN identifier the ECU answers with (0x7E8 - 0x7EF)
+     * @param pids the PID numbers the ECU supports
+     */
+    public void addEcu(int header, int... pids) {
+        synchronized (lock) {
+            boolean[] ecuSupported = header == ECU_HEADER ? supported : new boolean[0x100];
+            Arrays.fill(ecuSupported, false);
+            for (int pid : pids) {
+                if (pid < 0 || pid > 0xFF)
+                    throw new IllegalArgumentException("Invalid PID " + pid);
+                ecuSupported[pid] = true;
+            }
+            ecus.put(header, ecuSupported);
+        }
+    }
+
+    /**
+     * Fix the data bytes returned for a mode 01 PID; PIDs without fixed data return bytes that change
+     * slowly from one request to the next
+     * @param pid the PID number
+     * @param data the data bytes (A, B, ...), one per element
+     */
+    public void setPidData(int pid, int... data) {
+        synchronized (lock) {
+            pidData.put(pid, data.clone());
+        }
+    }
+
+    /**
+     * Set the trouble codes the engine ECU has stored (mode 03), replacing the current ones; the MIL is
+     * on while any are stored. When codes get stored while none were, a freeze frame (mode 02, frame 0)
+     * of every supported PID is captured for the first of them; it's cleared with the codes
+     * @param codes the codes, ie "P0301"
+     */
+    public void setTroubleCodes(String... codes) {
+        synchronized (lock) {
+            int[] encoded = encodeCodes(codes);
+            if (storedCodes.length == 0 && encoded.length > 0) {
+                freezeFrameCode = encoded[0];
+                freezeFrameData.clear();
+                for (int pid = 1; pid <= 0xFF; pid++) {
+                    int[] data = pid % 0x20 == 0 ? null : mode01Data(supported, pid);
+                    if (data != null)
+                        freezeFrameData.put(pid, data);
+                }
+            } else if (encoded.length == 0) {
+                freezeFrameCode = 0;
+                freezeFrameData.clear();
+            }
+            storedCodes = encoded;
+        }
+    }
+
+    /**
+     * Set the trouble codes the engine ECU has pending (mode 07), replacing the current ones
+     * @param codes the codes, ie "P0171"
+     */
+    public void setPendingCodes(String... codes) {
+        synchronized (lock) {
+            pendingCodes = encodeCodes(codes);
+        }
+    }
+
+    private static int[] encodeCodes(String... codes) {
+        int[] encoded = new int[codes.length];
+        for (int i = 0; i < codes.length; i++)
+            encoded[i] = DiagnosticMonitor.encodeCode(codes[i]);
+        return encoded;
+    }
+
+    /**
+     * @param vin the VIN returned for mode 09 PID 02, or null to answer NO DATA
+     */
+    public void setVin(String vin) {
+        synchronized (lock) {
+            this.vin = vin;
+        }
+    }
+
+    /**
+     * @param adapterId the identification string returned for AT I and AT Z
+     */
+    public void setAdapterId(String adapterId) {
+        synchronized (lock) {
+            this.adapterId = adapterId;
+        }
+    }
+
+    /**
+     * Make the simulated adapter answer "?" to requests for more than one PID, as some clones do
+     */
+    public void setMultiPidSupported(boolean multiPidSupported) {
+        synchronized (lock) {
+            this.multiPidSupported = multiPidSupported;
+        }
+    }
+
+    /**
+     * Set the time the adapter takes to answer a request, applied to every request without a more
+     * specific latency
+     * @param latencyMicros the mean response time, in microseconds
+     * @param jitterMicros the maximum random deviation from the mean, in microseconds
+     */
+    public void setLatency(long latencyMicros, long jitterMicros) {
+        synchronized (lock) {
+            this.latencyNanos = TimeUnit.MICROSECONDS.toNanos(latencyMicros);
+            this.jitterNanos = TimeUnit.MICROSECONDS.toNanos(jitterMicros);
+        }
+    }
+
+    /**
+     * Set the time the adapter takes to answer requests starting with the given prefix (ie "AT", "01",
+     * "01 0C"); the longest matching prefix wins
+     * @param prefix the request prefix; spaces and case are ignored
+     * @param latencyMicros the mean response time, in microseconds
+     * @param jitterMicros the maximum random deviation from the mean, in microseconds
+     */
+    public void setLatency(String prefix, long latencyMicros, long jitterMicros) {
+        synchronized (lock) {
+            commandLatency.put(normalize(prefix), new long[] {TimeUnit.MICROSECONDS.toNanos(latencyMicros),
+                    TimeUnit.MICROSECONDS.toNanos(jitterMicros)});
+        }
+    }
+
+    /**
+     * Set the extra time the first OBD request takes after a protocol search was started (AT SP 0,
+     * AT Z), while the adapter prints "SEARCHING..."
+     * @param searchMicros the search time, in microseconds
+     */
+    public void setSearchLatency(long searchMicros) {
+        synchronized (lock) {
+            this.searchNanos = TimeUnit.MICROSECONDS.toNanos(searchMicros);
+        }
+    }
+
+    /**
+     * Set the time the adapter keeps listening for further ECU answers after the last one arrived, before
+     * it sends the prompt: it applies to every OBD request that doesn't end with an expected response
+     * count that has been reached (ie "01 0C 1"), and to requests nobody answers. The wait never exceeds
+     * the AT ST timeout, and answers slower than the AT ST timeout (200 ms until set) come back as NO DATA
+     * @param waitMicros the wait, in microseconds
+     */
+    public void setResponseWait(long waitMicros) {
+        synchronized (lock) {
+            this.responseWaitNanos = TimeUnit.MICROSECONDS.toNanos(waitMicros);
+        }
+    }
+
+    /**
+     * Simulate a serial line at the given rate: the adapter starts at (and AT Z returns to) this rate,
+     * and each byte takes 10 bit times to transfer
+     * @param baudRate the rate in bits per second, or 0 (the default) for an instant link
+     */
+    public void setBaudRate(int baudRate) {
+        synchronized (lock) {
+            this.baudRate = baudRate;
+            this.defaultBaudRate = baudRate;
+        }
+    }
+
+    /**
+     * @return the rate the adapter currently talks at; 0 if the serial line isn't simulated
+     */
+    public int getBaudRate() {
+        synchronized (lock) {
+            return baudRate;
+        }
+    }
+
+    /**
+     * @param maxBaudRate the highest rate AT BRD accepts (500000 until set); 0 answers AT BRD with "?"
+     */
+    public void setMaxBaudRate(int maxBaudRate) {
+        synchronized (lock) {
+            this.maxBaudRate = maxBaudRate;
+        }
+    }
+
+    /**
+     * Garble every byte sent above the given rate, like a clone whose clock or line driver can't keep
+     * up; AT BRD still accepts such rates, but the handshake fails
+     * @param maxReliableBaudRate the highest rate bytes arrive intact at
+     */
+    public void setMaxReliableBaudRate(int maxReliableBaudRate) {
+        synchronized (lock) {
+            this.maxReliableBaudRate = maxReliableBaudRate;
+        }
+    }
+
+    /**
+     * @return the host end of the simulated serial line, which sets the rate the host's streams run at;
+     * until its rate is set, it follows the adapter's
+     */
+    SerialLink getSerialLink() {
+        return serialLink;
+    }
+
+    /**
+     * Make reads fail with a SocketTimeoutException when no response byte arrives in time, like a
+     * serial port or socket with a read timeout; 0 (the default) waits forever
+     */
+    public void setReadTimeout(int readTimeoutMillis) {
+        synchronized (lock) {
+            this.readTimeoutMillis = readTimeoutMillis;
+        }
+    }
+
+    /**
+     * Inject the given fault into a random share of the OBD requests (AT commands are always answered)
+     * @param fault the fault
+     * @param probability the chance of each request getting the fault, between 0 and 1
+     */
+    public void setFaultProbability(Fault fault, double probability) {
+        synchronized (lock) {
+            faultProbability.put(fault, probability);
+        }
+    }
+
+    /**
+     * Answer the next OBD request that doesn't already have an injected fault with the given fault
+     */
+    public void injectFault(Fault fault) {
+        synchronized (lock) {
+            injected.add(fault);
+        }
+    }
+
+    /**
+     * Load a recorded adapter session; requests found in the trace are answered with the recorded
+     * responses, in the recorded order (starting over once they're used up), instead of the simulated
+     * ones. The trace is the text of a terminal session: a line starting with '>' holds a request
+     * (optionally followed by "@" and the recorded response time in microseconds, ie "&gt;01 0C @48000"),
+     * and the lines up to the next request are its response. Blank lines and lines starting with '#'
+     * are ignored; response count suffixes of mode 01 requests don't have to match
+     * @param reader the trace
+     * @return the number of responses loaded
+     * @throws IOException if the trace can't be read or has a response before the first request
+     */
+    public int loadTrace(Reader reader) throws IOException {
+
+        BufferedReader in = new BufferedReader(reader);
+        List<String[]> requests = new ArrayList<>();
+        List<StringBuilder> bodies = new ArrayList<>();
+        String line;
+        int lineNumber = 0;
+        while ((line = in.readLine()) != null) {
+            lineNumber++;
+            String trimmed = line.trim();
+            if (trimmed.isEmpty() || trimmed.startsWith("#"))
+                continue;
+            if (trimmed.startsWith(">")) {
+                String r = trimmed.substring(1);
+                String latency = null;
+                int at = r.indexOf('@');
+                if (at >= 0) {
+                    latency = r.substring(at + 1).trim();
+                    r = r.substring(0, at);
+                }
+                requests.add(new String[] {r.trim(), latency});
+                bodies.add(new StringBuilder());
+                continue;
+            }
+            if (requests.isEmpty())
+                throw new IOException("Trace line " + lineNumber + " isn't preceded by a request");
+            StringBuilder body = bodies.get(bodies.size() - 1);
+            if (body.length() > 0)
+                body.append('\r');
+            body.append(trimmed);
+        }
+
+        synchronized (lock) {
+            for (int i = 0; i < requests.size(); i++) {
+                String[] r = requests.get(i);
+                long latency;
+                try {
+                    latency = r[1] == null ? -1 : TimeUnit.MICROSECONDS.toNanos(Long.parseLong(r[1]));
+                } catch (NumberFormatException e) {
+                    throw new IOException("Invalid response time in trace: " + r[1]);
+                }
+                trace.computeIfAbsent(traceKey(normalize(r[0])), k -> new ArrayList<>())
+                        .add(new TraceEntry(bodies.get(i).toString(), latency));
+            }
+        }
+        return requests.size();
+    }
+
+    /**
+     * Lose the connection, as a wifi adapter dropping off the network does: reads and writes of the
+     * current streams fail with an IOException, and the adapter restarts (its settings and baud rate
+     * are back at their defaults, as after AT Z)
+     * @param outageMillis the time reconnect keeps failing for
+     */
+    public void dropConnection(long outageMillis) {
+        synchronized (lock) {
+            inputStream.connection.dropped = true;
+            restart(outageMillis);
+        }
+    }
+
+    /**
+     * Stop answering without closing the connection, as an adapter whose firmware hung does: requests
+     * written to the current streams are ignored and reads wait until the read timeout (or forever),
+     * and the adapter restarts as with dropConnection
+     * @param outageMillis the time reconnect keeps failing for
+     */
+    public void stallConnection(long outageMillis) {
+        synchronized (lock) {
+            inputStream.connection.stalled = true;
+            restart(outageMillis);
+        }
+    }
+
+    /**
+     * Open a new connection to the adapter, replacing the streams returned by getInputStream and
+     * getOutputStream; the old streams fail from now on, and answers still queued on them are lost
+     * @throws IOException if the simulator is closed, or (as a ConnectException) the adapter is still
+     * unreachable after dropConnection or stallConnection
+     */
+    public void reconnect() throws IOException {
+        synchronized (lock) {
+            if (closed)
+                throw new IOException("Simulated adapter closed");
+            if (System.nanoTime() - unreachableUntilNanos < 0)
+                throw new ConnectException("Simulated adapter unreachable");
+            inputStream.connection.dropped = true;
+            responses.clear();
+            request.setLength(0);
+            openConnection();
+            lock.notifyAll();
+        }
+    }
+
+    private void openConnection() {
+        Connection connection = new Connection();
+        inputStream = new SimulatorInputStream(connection);
+        outputStream = new SimulatorOutputStream(connection);
+    }
+
+    // callers hold the lock
+    private void restart(long outageMillis) {
+        long now = System.nanoTime();
+        responses.clear();
+        request.setLength(0);
+        switchingTo = 0;
+        requestedBaudRate = 0;
+        busyUntilNanos = now;
+        lastRequest = null;
+        resetSettings();
+        baudRate = defaultBaudRate;
+        unreachableUntilNanos = now + TimeUnit.MILLISECONDS.toNanos(outageMillis);
+        lock.notifyAll();
+    }
+
+    /**
+     * @return the stream the reader reads responses from, of the current connection
+     */
+    public InputStream getInputStream() {
+        synchronized (lock) {
+            return inputStream;
+        }
+    }
+
+    /**
+     * @return the stream the reader writes requests to, of the current connection
+     */
+    public OutputStream getOutputStream() {
+        synchronized (lock) {
+            return outputStream;
+        }
+    }
+
+    /**
+     * @return the number of requests received, AT commands included
+     */
+    public long getRequestCount() {
+        synchronized (lock) {
+            return requestCount;
+        }
+    }
+
+    /**
+     * @return the adapter timeout last set with AT ST, in milliseconds (200 until set)
+     */
+    public long getAdapterTimeoutMillis() {
+        synchronized (lock) {
+            return TimeUnit.NANOSECONDS.toMillis(adapterTimeoutNanos);
+        }
+    }
+
+    /**
+     * @return the number of answers the adapter kept listening for further ECU answers after (see
+     *         setResponseWait)
+     */
+    public long getResponseWaitCount() {
+        synchronized (lock) {
+            return responseWaitCount;
+        }
+    }
+
+    /**
+     * @return the simulated time between the last answered request and its answer, time spent queued
+     *         behind earlier answers included
+     */
+    public long getLastLatencyNanos() {
+        synchronized (lock) {
+            return lastLatencyNanos;
+        }
+    }
+
+    /**
+     * @return the number of faults injected
+     */
+    public long getFaultCount() {
+        synchronized (lock) {
+            return faultCount;
+        }
+    }
+
+    /**
+     * End a connection when one of its streams is closed (ie by JavaObdReader.close): both of its
+     * streams fail from now on, while the simulator stays open for other readers and reconnects
+     */
+    private void closeConnection(Connection connection) {
+        synchronized (lock) {
+            if (connection.dropped)
+                return;
+            connection.dropped = true;
+            if (inputStream.connection == connection) {
+                responses.clear();
+                request.setLength(0);
+            }
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * End both streams; blocked reads return -1 and writes fail
+     */
+    @Override
+    public void close() {
+        synchronized (lock) {
+            closed = true;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Answer a request immediately, without queueing it or applying latency; used to serve the
+     * simulated adapter over other transports
+     * @param raw the request, without the carriage return
+     * @return the response lines (the echo included), without the prompt, or null if the adapter
+     * doesn't answer
+     */
+    String respond(String raw) {
+        synchronized (lock) {
+            String body = process(raw);
+            requestedBaudRate = 0;
+            return body;
+        }
+    }
+
+    // callers hold the lock
+    private void received(String raw) {
+        long byteNanos = byteNanos(baudRate);
+        long start = System.nanoTime() + (raw.length() + 1) * byteNanos;
+        String body = process(raw);
+        if (body == null)
+            return;
+        long ready = Math.max(start, busyUntilNanos) + nextLatencyNanos;
+        lastLatencyNanos = ready - start;
+        String eol = linefeeds ? "\r\n" : "\r";
+        byte[] data = (body + eol).getBytes();
+        long dataReady = ready + data.length * byteNanos;
+        responses.add(new Response(data, dataReady, baudRate));
+
+        if (requestedBaudRate != 0) {
+            // AT BRD: OK at the old rate, then the identification at the new one, and no prompt until the
+            // host confirms the new rate
+            byte[] id = (adapterId + "\r").getBytes();
+            busyUntilNanos = dataReady + id.length * byteNanos(requestedBaudRate);
+            responses.add(new Response(id, busyUntilNanos, requestedBaudRate));
+            switchingFrom = baudRate;
+            switchingTo = requestedBaudRate;
+            switchDeadlineNanos = busyUntilNanos + brdTimeoutNanos;
+            requestedBaudRate = 0;
+        } else {
+            byte[] prompt = (eol + ">").getBytes();
+            if (nextWaitNanos > 0)
+                responseWaitCount++;
+            busyUntilNanos = Math.max(dataReady, ready + nextWaitNanos) + prompt.length * byteNanos;
+            responses.add(new Response(prompt, busyUntilNanos, baudRate));
+        }
+        lock.notifyAll();
+    }
+
+    private static long byteNanos(int baudRate) {
+        return baudRate == 0 ? 0 : TimeUnit.SECONDS.toNanos(10) / baudRate;
+    }
+
+    /**
+     * @return true if bytes sent at the given rate arrive garbled at the receiving end's rate
+     */
+    private boolean garbled(int sentAt, int receivedAt) {
+        return sentAt != 0 && receivedAt != 0 && (sentAt != receivedAt || sentAt > maxReliableBaudRate);
+    }
+
+    /**
+     * End a pending AT BRD handshake: keep the new rate if the host confirmed it, go back to the old
+     * one otherwise; either way the adapter sends a prompt at the rate it ends up at
+     */
+    // callers hold the lock
+    private void endSwitch(boolean confirmed, long nowNanos) {
+        baudRate = confirmed ? switchingTo : switchingFrom;
+        switchingTo = 0;
+        busyUntilNanos = Math.max(nowNanos, busyUntilNanos) + byteNanos(baudRate);
+        responses.add(new Response(">".getBytes(), busyUntilNanos, baudRate));
+        lock.notifyAll();
+    }
+
+    // callers hold the lock
+    private void expireSwitch(long nowNanos) {
+        if (switchingTo != 0 && nowNanos - switchDeadlineNanos > 0)
+            endSwitch(false, switchDeadlineNanos);
+    }
+
+    // callers hold the lock; sets nextLatencyNanos and nextWaitNanos
+    private String process(String raw) {
+
+        requestCount++;
+        String key = normalize(raw);
+        if (key.isEmpty() && lastRequest != null)
+            key = lastRequest;
+        else
+            lastRequest = key;
+
+        String eol = linefeeds ? "\r\n" : "\r";
+        String prefix = echo ? raw + eol : "";
+        nextLatencyNanos = latencyFor(key);
+        nextWaitNanos = 0;
+
+        List<TraceEntry> recorded = trace.get(traceKey(key));
+        if (recorded != null) {
+            String k = traceKey(key);
+            int position = tracePosition.getOrDefault(k, 0);
+            TraceEntry entry = recorded.get(position % recorded.size());
+            tracePosition.put(k, position + 1);
+            if (entry.latencyNanos >= 0)
+                nextLatencyNanos = entry.latencyNanos;
+            if (key.startsWith("AT"))
+                atCommand(key.substring(2)); // keep the settings in step with the trace
+            else
+                searching = false;
+            return prefix + entry.response.replace("\r", eol);
+        }
+
+        List<String> lines = new ArrayList<>();
+        if (key.startsWith("AT")) {
+            lines.add(atCommand(key.substring(2)));
+        } else {
+            Fault fault = nextFault();
+            if (fault != null) {
+                faultCount++;
+                if (fault == Fault.TIMEOUT)
+                    return null;
+                lines.add(fault == Fault.NO_DATA ? "NO DATA" : "?");
+            } else {
+                boolean search = searching && protocol == '0';
+                searching = false;
+                if (search)
+                    lines.add("SEARCHING...");
+                obdRequest(key, lines);
+                if (search)
+                    nextLatencyNanos += searchNanos;
+            }
+        }
+
+        StringBuilder sb = new StringBuilder(prefix);
+        for (int i = 0; i < lines.size(); i++) {
+            if (i > 0)
+                sb.append(eol);
+            sb.append(lines.get(i));
+        }
+        return sb.toString();
+    }
+
+    private static String normalize(String request) {
+        return request.replaceAll("\\s", "").toUpperCase();
+    }
+
+    /**
+     * Strip the response count digit of mode 01 requests, so pipelined requests match the trace
+     */
+    private static String traceKey(String key) {
+        if (!key.startsWith("AT") && key.length() % 2 == 1)
+            return key.substring(0, key.length() - 1);
+        return key;
+    }
+
+    private long latencyFor(String key) {
+        long latency = latencyNanos;
+        long jitter = jitterNanos;
+        for (Map.Entry<String, long[]> e = commandLatency.floorEntry(key); e != null;
+             e = commandLatency.lowerEntry(e.getKey())) {
+            if (key.startsWith(e.getKey())) {
+                latency = e.getValue()[0];
+                jitter = e.getValue()[1];
+                break;
+            }
+        }
+        if (jitter > 0)
+            latency += (long) ((random.nextDouble() * 2 - 1) * jitter);
+        return Math.max(0, latency);
+    }
+
+    private Fault nextFault() {
+        if (!injected.isEmpty())
+            return injected.poll();
+        for (Map.Entry<Fault, Double> e : faultProbability.entrySet()) {
+            if (random.nextDouble() < e.getValue())
+                return e.getKey();
+        }
+        return null;
+    }
+
+    private String atCommand(String command) {
+        switch (command) {
+            case "Z":
+                resetSettings();
+                baudRate = defaultBaudRate;
+                return adapterId;
+            case "D":
+                resetSettings();
+                return "OK";
+            case "I":
+                return adapterId;
+            case "@1":
+                return "OBDII to RS232 Interpreter";
+            case "RV":
+                return "12.6V";
+            case "DP":
+                return (protocol == '0' ? "AUTO, " : "") + "ISO 15765-4 (CAN 11/500)";
+            case "DPN":
+                return protocol == '0' ? "A6" : String.valueOf(protocol);
+            case "E0": echo = false; return "OK";
+            case "E1": echo = true; return "OK";
+            case "L0": linefeeds = false; return "OK";
+            case "L1": linefeeds = true; return "OK";
+            case "S0": spaces = false; return "OK";
+            case "S1": spaces = true; return "OK";
+            case "H0": headers = false; return "OK";
+            case "H1": headers = true; return "OK";
+            default:
+                break;
+        }
+        if (command.startsWith("SP") || command.startsWith("TP")) {
+            String p = command.substring(2);
+            if (p.startsWith("A"))
+                p = p.substring(1);
+            if (p.length() != 1 || "0123456789ABC".indexOf(p.charAt(0)) < 0)
+                return "?";
+            protocol = p.charAt(0);
+            searching = true;
+            return "OK";
+        }
+        if (command.matches("ST[0-9A-F]{1,2}")) {
+            int value = Integer.parseInt(command.substring(2), 16);
+            adapterTimeoutNanos = value == 0 ? DEFAULT_ADAPTER_TIMEOUT_NANOS : TimeUnit.MILLISECONDS.toNanos(4 * value);
+            return "OK";
+        }
+        if (command.matches("BRD[0-9A-F]{2}")) {
+            int divisor = Integer.parseInt(command.substring(3), 16);
+            if (baudRate == 0 || maxBaudRate == 0 || divisor < 8 || BaudRateNegotiator.BRD_CLOCK / divisor > maxBaudRate)
+                return "?";
+            requestedBaudRate = BaudRateNegotiator.BRD_CLOCK / divisor;
+            return "OK";
+        }
+        if (command.matches("BRT[0-9A-F]{2}")) {
+            int value = Integer.parseInt(command.substring(3), 16);
+            brdTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(5 * (value == 0 ? 256 : value));
+            return "OK";
+        }
+        if (command.matches("AT[0-2]|M[0-1]|CAF[0-1]|SH[0-9A-F]{3}|PC"))
+            return "OK";
+        return "?";
+    }
+
+    private void resetSettings() {
+        echo = true;
+        linefeeds = false;
+        spaces = true;
+        headers = false;
+        protocol = '0';
+        searching = true;
+        adapterTimeoutNanos = DEFAULT_ADAPTER_TIMEOUT_NANOS;
+        brdTimeoutNanos = DEFAULT_BRD_TIMEOUT_NANOS;
+    }
+
+    // sets nextLatencyNanos and nextWaitNanos
+    private void obdRequest(String key, List<String> lines) {
+
+        int first = lines.size();
+
+        boolean counted = key.length() % 2 == 1;
+        int expected = counted ? Character.digit(key.charAt(key.length() - 1), 16) : 0;
+        int[] request = ElmIO.decodeHex(counted ? key.substring(0, key.length() - 1) : key);
+        if (request != null && request.length == 1 && (request[0] == 0x03 || request[0] == 0x04 || request[0] == 0x07)) {
+            diagnosticRequest(request[0], lines);
+            return;
+        }
+        if (request == null || request.length < 2) {
+            lines.add("?");
+            return;
+        }
+
+        int answers = 0;
+        if (request[0] == 0x01) {
+            if (request.length - 1 > MAX_PIDS || (request.length > 2 && !multiPidSupported)) {
+                lines.add("?");
+                return;
+            }
+            for (Map.Entry<Integer, boolean[]> ecu : ecus.entrySet()) {
+                int[] buffer = new int[1 + (request.length - 1) * 5];
+                int length = 0;
+                buffer[length++] = 0x41;
+                for (int i = 1; i < request.length; i++) {
+                    int[] data = mode01Data(ecu.getValue(), request[i]);
+                    if (data == null)
+                        continue;
+                    buffer[length++] = request[i];
+                    for (int b : data)
+                        buffer[length++] = b;
+                }
+                if (length > 1) {
+                    frame(ecu.getKey(), Arrays.copyOf(buffer, length), lines);
+                    answers++;
+                }
+            }
+        } else if (request[0] == 0x02 && request.length == 3 && request[2] == 0 && freezeFrameCode != 0) {
+            int[] data = request[1] == 0x02 ? new int[] {freezeFrameCode >> 8, freezeFrameCode & 0xFF}
+                    : freezeFrameData.get(request[1]);
+            if (data != null) {
+                int[] message = new int[3 + data.length];
+                message[0] = 0x42;
+                message[1] = request[1];
+                System.arraycopy(data, 0, message, 3, data.length);
+                frame(ECU_HEADER, message, lines);
+                answers++;
+            }
+        } else if (request[0] == 0x09 && request.length == 2 && request[1] == 0x02 && vin != null) {
+            int[] message = new int[3 + vin.length()];
+            message[0] = 0x49;
+            message[1] = 0x02;
+            message[2] = 0x01;
+            for (int i = 0; i < vin.length(); i++)
+                message[3 + i] = vin.charAt(i);
+            frame(ECU_HEADER, message, lines);
+            answers++;
+        }
+
+        if (answers > 0 && nextLatencyNanos > adapterTimeoutNanos) {
+            // the ECUs answer after the adapter stopped listening (AT ST)
+            lines.subList(first, lines.size()).clear();
+            answers = 0;
+            nextLatencyNanos = adapterTimeoutNanos;
+        }
+        if (answers == 0)
+            lines.add("NO DATA");
+        if (expected <= 0 || answers < expected)
+            nextWaitNanos = Math.min(responseWaitNanos, adapterTimeoutNanos);
+    }
+
+    /**
+     * Answer a mode 03 or 07 request with the stored or pending codes (count byte first, as on CAN), or
+     * a mode 04 request by clearing them
+     */
+    private void diagnosticRequest(int mode, List<String> lines) {
+        nextWaitNanos = Math.min(responseWaitNanos, adapterTimeoutNanos);
+        if (mode == 0x04) {
+            setTroubleCodes();
+            pendingCodes = new int[0];
+            lines.add(hex(new int[] {0x44}, 0, 1));
+            return;
+        }
+        int[] codes = mode == 0x03 ? storedCodes : pendingCodes;
+        int[] message = new int[2 + 2 * codes.length];
+        message[0] = 0x40 + mode;
+        message[1] = codes.length;
+        for (int i = 0; i < codes.length; i++) {
+            message[2 + 2 * i] = codes[i] >> 8;
+            message[3 + 2 * i] = codes[i] & 0xFF;
+        }
+        frame(ECU_HEADER, message, lines);
+    }
+
+    /**
+     * @return the data bytes of the given mode 01 PID, or null if it isn't supported
+     */
+    private int[] mode01Data(boolean[] supported, int pid) {
+
+        if (pid == 0x01 && supported == this.supported) {
+            // monitor status: MIL and number of stored codes, then the readiness bytes
+            return new int[] {(storedCodes.length > 0 ? 0x80 : 0) | Math.min(0x7F, storedCodes.length), 0x07, 0xE5, 0x00};
+        }
+
+        if (pid % 0x20 == 0) {
+            // "PIDs supported" mask: bit 31 is PID pid + 1, bit 0 whether the next mask is supported
+            long mask = 0;
+            for (int p = pid + 1; p <= Math.min(0xFF, pid + 0x20); p++) {
+                if (supported[p] || (p == pid + 0x20 && hasSupportedAbove(supported, p)))
+                    mask |= 1L << (31 - (p - pid - 1));
+            }
+            if (pid > 0 && mask == 0)
+                return null;
+            return new int[] {(int) (mask >>> 24) & 0xFF, (int) (mask >>> 16) & 0xFF, (int) (mask >>> 8) & 0xFF, (int) mask & 0xFF};
+        }
+        if (!supported[pid])
+            return null;
+
+        int[] fixed = pidData.get(pid);
+        if (fixed != null)
+            return fixed;
+        int length = ObdPid.dataLength(pid);
+        int[] data = new int[length == 0 ? 1 : length];
+        int n = pidRequests[pid]++;
+        for (int i = 0; i < data.length; i++)
+            data[i] = (pid * 29 + i * 67 + n / 4) & 0xFF;
+        return data;
+    }
+
+    private static boolean hasSupportedAbove(boolean[] supported, int pid) {
+        for (int p = pid; p <= 0xFF; p++) {
+            if (supported[p])
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Format a message the way the adapter prints it: one line for a single frame, a byte count line
+     * followed by numbered frames (or first and consecutive frames with their headers) otherwise
+     */
+    private void frame(int ecu, int[] message, List<String> lines) {
+
+        String header = String.format("%03X", ecu);
+        if (message.length <= 7) {
+            lines.add(headers ? header + separator() + hex(new int[] {message.length}, 0, 1) + separator() + hex(message, 0, message.length)
+                    : hex(message, 0, message.length));
+            return;
+        }
+
+        if (!headers)
+            lines.add(String.format("%03X", message.length));
+        int offset = 0;
+        for (int frame = 0; offset < message.length; frame++) {
+            int size = Math.min(frame == 0 ? 6 : 7, message.length - offset);
+            String data = hex(message, offset, size);
+            if (headers) {
+                String pci = frame == 0 ? hex(new int[] {0x10 | (message.length >> 8), message.length & 0xFF}, 0, 2)
+                        : hex(new int[] {0x20 | (frame & 0x0F)}, 0, 1);
+                lines.add(header + separator() + pci + separator() + data);
+            } else {
+                lines.add(Integer.toHexString(frame & 0x0F).toUpperCase() + ":" + separator() + data);
+            }
+            offset += size;
+        }
+    }
+
+    private String separator() {
+        return spaces ? " " : "";
+    }
+
+    private String hex(int[] bytes, int offset, int length) {
+        StringBuilder sb = new StringBuilder(length * 3);
+        for (int i = offset; i < offset + length; i++) {
+            if (i > offset && spaces)
+                sb.append(' ');
+            sb.append(String.format("%02X", bytes[i] & 0xFF));
+        }
+        return sb.toString();
+    }
+
+    private final class SimulatorSerialLink implements SerialLink {
+
+        @Override
+        public void setBaudRate(int baudRate) {
+            synchronized (lock) {
+                hostBaudRate = baudRate;
+            }
+        }
+
+        @Override
+        public int getBaudRate() {
+            synchronized (lock) {
+                return hostBaudRate == 0 ? baudRate : hostBaudRate;
+            }
+        }
+
+        @Override
+        public void setReadTimeout(int millis) {
+            ElmSimulator.this.setReadTimeout(millis);
+        }
+
+        @Override
+        public int getReadTimeout() {
+            synchronized (lock) {
+                return readTimeoutMillis;
+            }
+        }
+
+        @Override
+        public void purgeInput() {
+            synchronized (lock) {
+                long now = System.nanoTime();
+                while (!responses.isEmpty() && responses.peek().readyNanos - now <= 0)
+                    responses.poll();
+            }
+        }
+    }
+
+    private final class SimulatorOutputStream extends OutputStream {
+
+        final Connection connection;
+
+        SimulatorOutputStream(Connection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            synchronized (lock) {
+                if (closed)
+                    throw new IOException("Simulated adapter closed");
+                if (connection.dropped)
+                    throw new IOException("Simulated connection lost");
+                if (connection.stalled)
+                    return;
+                long now = System.nanoTime();
+                expireSwitch(now);
+                boolean noise = garbled(hostBaudRate, switchingTo != 0 ? switchingTo : baudRate);
+                if (switchingTo != 0) {
+                    // during AT BRD the adapter only waits for the carriage return at the new rate
+                    endSwitch(!noise && b == '\r', now);
+                    return;
+                }
+                if (noise) {
+                    request.append((char) 0xFF);
+                    return;
+                }
+                if (b == '\r') {
+                    String r = request.toString();
+                    request.setLength(0);
+                    received(r);
+                } else if (b != '\n') {
+                    request.append((char) (b & 0xFF));
+                }
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            synchronized (lock) {
+                for (int i = off; i < off + len; i++)
+                    write(b[i]);
+            }
+        }
+
+        @Override
+        public void close() {
+            closeConnection(connection);
+        }
+    }
+
+    private final class SimulatorInputStream extends InputStream {
+
+        final Connection connection;
+
+        SimulatorInputStream(Connection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public int read() throws IOException {
+            synchronized (lock) {
+                if (!awaitResponse())
+                    return -1;
+                Response r = responses.peek();
+                int b = r.data[r.offset++] & 0xFF;
+                if (r.offset == r.data.length)
+                    responses.poll();
+                return garbled(r.baudRate, hostBaudRate) ? b | 0x80 : b;
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            synchronized (lock) {
+                if (!awaitResponse())
+                    return -1;
+                int n = 0;
+                long now = System.nanoTime();
+                while (n < len) {
+                    Response r = responses.peek();
+                    if (r == null || r.readyNanos - now > 0)
+                        break;
+                    int count = Math.min(len - n, r.data.length - r.offset);
+                    System.arraycopy(r.data, r.offset, b, off + n, count);
+                    if (garbled(r.baudRate, hostBaudRate)) {
+                        for (int i = off + n; i < off + n + count; i++)
+                            b[i] |= (byte) 0x80;
+                    }
+                    r.offset += count;
+                    n += count;
+                    if (r.offset == r.data.length)
+                        responses.poll();
+                }
+                return n;
+            }
+        }
+
+        @Override
+        public int available() {
+            synchronized (lock) {
+                int n = 0;
+                long now = System.nanoTime();
+                if (connection.dropped || connection.stalled)
+                    return 0;
+                for (Response r : responses) {
+                    if (r.readyNanos - now > 0)
+                        break;
+                    n += r.data.length - r.offset;
+                }
+                return n;
+            }
+        }
+
+        /**
+         * Wait until the first queued response is due; waits shorter than a millisecond are parked with
+         * the lock held, as Object.wait can't time them
+         * @return false if the simulator was closed
+         * @throws IOException if the connection was dropped, or the read timed out
+         */
+        private boolean awaitResponse() throws IOException {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(readTimeoutMillis);
+            while (true) {
+                if (closed)
+                    return false;
+                if (connection.dropped)
+                    throw new IOException("Simulated connection lost");
+                long now = System.nanoTime();
+                expireSwitch(now);
+                Response r = connection.stalled ? null : responses.peek();
+                long wait = r == null ? Long.MAX_VALUE : r.readyNanos - now;
+                if (switchingTo != 0)
+                    wait = Math.min(wait, switchDeadlineNanos - now + 1);
+                if (wait <= 0)
+                    return true;
+                if (readTimeoutMillis > 0) {
+                    if (deadline - now <= 0)
+                        throw new SocketTimeoutException("Simulated adapter didn't respond within " + readTimeoutMillis + " ms");
+                    wait = Math.min(wait, deadline - now);
+                }
+                try {
+                    if (wait == Long.MAX_VALUE)
+                        lock.wait();
+                    else if (wait >= TimeUnit.MILLISECONDS.toNanos(1))
+                        TimeUnit.NANOSECONDS.timedWait(lock, wait);
+                    else
+                        LockSupport.parkNanos(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted waiting for the simulated adapter", e);
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            closeConnection(connection);
+        }
+    }
+}
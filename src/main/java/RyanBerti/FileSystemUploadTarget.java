@@ -0,0 +1,110 @@
+package RyanBerti;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.UUID;
+
+/**
+ * UploadTarget that stores objects as files under a root directory, standing in for an S3 bucket
+ * (ie when testing, or when a mounted or synced directory is the upload destination). Parts are kept
+ * under .uploads/uploadId until the upload is completed, then concatenated and renamed into place
+ */
+public class FileSystemUploadTarget implements UploadTarget {
+
+    private final File root;
+    private final File uploads;
+
+    /**
+     * @param root the directory objects are stored in; created if it doesn't exist
+     */
+    public FileSystemUploadTarget(File root) {
+        this.root = root;
+        this.uploads = new File(root, ".uploads");
+    }
+
+    @Override
+    public String startUpload(String key) throws IOException {
+        String uploadId = UUID.randomUUID().toString();
+        File dir = new File(uploads, uploadId);
+        if (!dir.mkdirs())
+            throw new IOException("Couldn't create " + dir);
+        return uploadId;
+    }
+
+    @Override
+    public void uploadPart(String key, String uploadId, int partNumber, byte[] data, int length) throws IOException {
+        File dir = uploadDirectory(uploadId);
+        File part = partFile(dir, partNumber);
+        File tmp = new File(dir, part.getName() + ".tmp");
+        try (OutputStream out = new FileOutputStream(tmp)) {
+            out.write(data, 0, length);
+        }
+        Files.move(tmp.toPath(), part.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @Override
+    public void completeUpload(String key, String uploadId, int partCount) throws IOException {
+        File dir = uploadDirectory(uploadId);
+        File object = getObjectFile(key);
+        File parent = object.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs())
+            throw new IOException("Couldn't create " + parent);
+
+        File tmp = new File(parent, object.getName() + "." + uploadId + ".tmp");
+        byte[] buffer = new byte[8192];
+        try (OutputStream out = new FileOutputStream(tmp)) {
+            for (int p = 1; p <= partCount; p++) {
+                File part = partFile(dir, p);
+                if (!part.isFile())
+                    throw new IOException("Part " + p + " of " + key + " is missing");
+                try (InputStream in = new FileInputStream(part)) {
+                    int n;
+                    while ((n = in.read(buffer)) > 0)
+                        out.write(buffer, 0, n);
+                }
+            }
+        }
+        Files.move(tmp.toPath(), object.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        File[] parts = dir.listFiles();
+        if (parts != null)
+            for (File f : parts)
+                f.delete();
+        dir.delete();
+    }
+
+    @Override
+    public long getObjectLength(String key) {
+        File object = getObjectFile(key);
+        return object.isFile() ? object.length() : -1;
+    }
+
+    /**
+     * @param key the object's key
+     * @return the file a completed upload of the key is stored in
+     */
+    public File getObjectFile(String key) {
+        for (String part : key.split("[/\\\\]")) {
+            if (part.equals(".."))
+                throw new IllegalArgumentException("Key " + key + " points outside the target directory");
+        }
+        return new File(root, key);
+    }
+
+    private File uploadDirectory(String uploadId) throws IOException {
+        File dir = new File(uploads, uploadId);
+        if (!dir.isDirectory())
+            throw new NoSuchUploadException(uploadId);
+        return dir;
+    }
+
+    private static File partFile(File dir, int partNumber) {
+        return new File(dir, String.format("part-%05d", partNumber));
+    }
+}
@@ -2,32 +2,45 @@ package RyanBerti;
 
 import com.github.pires.obd.commands.ObdMultiCommand;
 import com.github.pires.obd.commands.ObdCommand;
-import com.github.pires.obd.commands.PercentageObdCommand;
-import com.github.pires.obd.commands.pressure.PressureCommand;
 import com.github.pires.obd.commands.protocol.*;
-import com.github.pires.obd.commands.temperature.TemperatureCommand;
 import com.github.pires.obd.enums.ObdProtocols;
 import com.github.pires.obd.exceptions.MisunderstoodCommandException;
 import com.github.pires.obd.exceptions.NoDataException;
 import com.github.pires.obd.exceptions.UnsupportedCommandException;
 import jssc.*;
-import org.reflections.Reflections;
 
+import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntConsumer;
 
 /**
  * Created by Ryan Berti on 2/18/16.
  */
 public class JavaObdReader{
 
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    /**
+     * Number of data bytes (mode byte included) that fit in a single CAN frame
+     */
+    private static final int SINGLE_FRAME_BYTES = 7;
+
     //public for now so SimpleBenchmarkTests can validate throughput
     InputStream is;
     OutputStream os;
@@ -35,6 +48,56 @@ public class JavaObdReader{
     private int numCommands = 0;
     private ObdMultiCommand multiCommand;
     private List<String> commandList;
+    private List<ObdCommand> commands;
+
+    private boolean batchedPolling = false;
+    private boolean multiPidRejected = false;
+    private List<ObdBatchCommand> batches;
+    private List<ObdCommand> unbatchedCommands;
+
+    private final ElmResponseReader responseReader = new ElmResponseReader();
+    private byte[][] valueRequests;
+    private int[] valueRequestPidCounts;
+    private int[][] valueRequestPids;
+    private boolean valueRequestsBatched;
+    private boolean valueRequestsPipelined;
+    private boolean pipelinedPolling = false;
+    private int[] pidIndex;
+    private int[] scheduledSelection;
+    private double[] sinkValues;
+    private long[] sinkRequestNanos;
+    private long[] sinkResponseNanos;
+    private final byte[] scheduledRequest = new byte[6 + 3 * ObdBatchCommand.MAX_PIDS];
+    private final int[] scheduledPids = new int[ObdBatchCommand.MAX_PIDS];
+
+    private SupportedPids supportedPids;
+    private List<ObdCommandRegistry.Entry> commandEntries;
+    private boolean ecuDiscovery = false;
+    private DiscoveryReport discoveryReport;
+
+    private ObdMetrics metrics = ObdMetrics.NONE;
+    private WireCounter wire;
+    private AdaptiveTimeout adaptiveTimeout;
+    private DiagnosticMonitor diagnosticMonitor;
+    private SerialLink serialLink;
+    private int serialBaudRate = 0;
+    private IntConsumer streamTimeout;
+    private Connector connector;
+    private Closeable transport;
+    private StallGuard stallGuard;
+    private ObdProtocols protocol = ObdProtocols.AUTO;
+
+    private int adapterTimeout = 255;
+    private String adapterId;
+    private String vin;
+
+    /**
+     * Opens the adapter's transport, setting is, os, streamTimeout, serialLink and transport; kept by
+     * the factories so reconnect can open it again
+     */
+    private interface Connector {
+        void connect(JavaObdReader reader) throws IOException;
+    }
 
     private JavaObdReader() {}
 
@@ -50,48 +113,144 @@ public class JavaObdReader{
     public static JavaObdReader getJavaObdReaderForSocket(String host, Integer port) throws IOException {
 
         JavaObdReader reader = new JavaObdReader();
+        reader.connector = r -> r.openSocket(host, port);
+        reader.connector.connect(reader);
+        return reader;
+    }
 
+    private void openSocket(String host, int port) throws IOException {
         Socket OBDsocket = new Socket();
         OBDsocket.connect(new InetSocketAddress(host,port),10);
-        reader.is = OBDsocket.getInputStream();
-        reader.os = OBDsocket.getOutputStream();
-        return reader;
+        is = OBDsocket.getInputStream();
+        os = OBDsocket.getOutputStream();
+        streamTimeout = millis -> {
+            try {
+                OBDsocket.setSoTimeout(millis);
+            } catch (SocketException e) {
+                System.out.println("Couldn't set the socket timeout: " + e.getMessage());
+            }
+        };
+        transport = OBDsocket;
     }
 
     /**
      * Static factory method for creating JavaObdReader instances that read commands from serial ports
-     * directly (this can also be used for interfacing with obdsim)
+     * directly (this can also be used for interfacing with obdsim); the adapter's baud rate is detected
+     * by trying the usual ELM327 rates (38400, 9600, 115200, 57600, 230400, 500000), falling back to
+     * 9600 if it doesn't answer at any of them. See setSerialBaudRate for switching to a faster rate
      * @param portName The serial port name (usually in the form /dev/ttys[0-9]{4})
      * @return A JavaOBDReader instance
-     * @throws SerialPortException
+     * @throws IOException if the port can't be opened or set up (jssc's SerialPortException is the cause)
      */
-    public static JavaObdReader getJavaObdReaderForSerialPort(String portName) throws SerialPortException {
+    public static JavaObdReader getJavaObdReaderForSerialPort(String portName) throws IOException {
+        return getJavaObdReaderForSerialPort(portName, 0);
+    }
+
+    /**
+     * Static factory method for creating JavaObdReader instances that read commands from serial ports
+     * directly, at the given baud rate
+     * @param portName The serial port name (usually in the form /dev/ttys[0-9]{4})
+     * @param baudRate the rate the adapter talks at, or 0 to detect it
+     * @return A JavaOBDReader instance
+     * @throws IOException if the port can't be opened or set up (jssc's SerialPortException is the cause)
+     */
+    public static JavaObdReader getJavaObdReaderForSerialPort(String portName, int baudRate) throws IOException {
 
         JavaObdReader reader  = new JavaObdReader();
+        reader.connector = r -> r.openSerialPort(portName);
+        reader.connector.connect(reader);
+
+        if (baudRate > 0) {
+            reader.serialLink.setBaudRate(baudRate);
+        } else if (BaudRateNegotiator.detect(reader.serialLink, reader.is, reader.os, BaudRateNegotiator.DETECT_RATES) < 0) {
+            System.out.println("Adapter didn't answer at any of the usual baud rates, using 9600");
+            reader.serialLink.setBaudRate(SerialPort.BAUDRATE_9600);
+        }
+        return reader;
+    }
 
+    private void openSerialPort(String portName) throws IOException {
         SerialPort sp = new SerialPort(portName);
-        sp.openPort();
-        sp.setParams(SerialPort.BAUDRATE_9600,
-                SerialPort.DATABITS_8,
-                SerialPort.STOPBITS_1,
-                SerialPort.PARITY_NONE);
-
-        sp.setFlowControlMode(SerialPort.FLOWCONTROL_RTSCTS_IN |
-                SerialPort.FLOWCONTROL_RTSCTS_OUT);
+        try {
+            sp.openPort();
+        } catch (SerialPortException e) {
+            throw new IOException(e);
+        }
 
         SerialInputStream sis = new SerialInputStream(sp);
-        sis.setTimeout(255);
-        reader.is = sis;
-        reader.os = new SerialOutputStream(sp);
+        JsscSerialLink link = new JsscSerialLink(sp, sis);
+        link.setReadTimeout(255);
+        is = sis;
+        os = new SerialOutputStream(sp);
+        streamTimeout = link::setReadTimeout;
+        serialLink = link;
+        transport = () -> {
+            try {
+                sp.closePort();
+            } catch (SerialPortException e) {
+                throw new IOException(e);
+            }
+        };
+    }
+
+    /**
+     * Static factory method for creating JavaObdReader instances that talk to an in-process simulated
+     * adapter, for running and benchmarking without hardware
+     * @param simulator the simulated adapter
+     * @return A JavaOBDReader instance
+     */
+    public static JavaObdReader getJavaObdReaderForSimulator(ElmSimulator simulator) {
+
+        JavaObdReader reader = new JavaObdReader();
+        reader.connector = r -> {
+            simulator.reconnect();
+            r.openSimulator(simulator);
+        };
+        reader.openSimulator(simulator);
         return reader;
     }
 
+    private void openSimulator(ElmSimulator simulator) {
+        is = simulator.getInputStream();
+        os = simulator.getOutputStream();
+        streamTimeout = simulator::setReadTimeout;
+        serialLink = simulator.getSerialLink();
+    }
+
     /**
-     * Submit the OBD control commands which may or may not be necessary for the given OBD2 device
+     * Factory method for creating JavaObdReader instances on top of already open streams (ie for
+     * testing against canned adapter responses)
+     * @param is the stream adapter responses are read from
+     * @param os the stream requests are written to
+     * @return A JavaOBDReader instance
+     */
+    static JavaObdReader getJavaObdReaderForStreams(InputStream is, OutputStream os) {
+        JavaObdReader reader = new JavaObdReader();
+        reader.is = is;
+        reader.os = os;
+        return reader;
+    }
+
+    /**
+     * Submit the OBD control commands which may or may not be necessary for the given OBD2 device,
+     * letting the device search for the vehicle's protocol
      * @throws IOException
      * @throws InterruptedException
      */
     public void initOBDControlCommands() throws IOException, InterruptedException {
+        initOBDControlCommands(ObdProtocols.AUTO);
+    }
+
+    /**
+     * Submit the OBD control commands which may or may not be necessary for the given OBD2 device,
+     * selecting the given protocol rather than having the device search for it
+     * @param protocol the protocol to select
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public void initOBDControlCommands(ObdProtocols protocol) throws IOException, InterruptedException {
+
+        this.protocol = protocol;
 
         /**
          * Unclear if these are required when testing against obdsim, or even if they're
@@ -108,18 +267,19 @@ public class JavaObdReader{
         } catch (UnsupportedCommandException | MisunderstoodCommandException | NoDataException e) {}
 
         try {
-            new TimeoutCommand(255).run(is, os); //these don't work with obdsim
+            new TimeoutCommand(adapterTimeout).run(is, os); //these don't work with obdsim
         } catch (UnsupportedCommandException | MisunderstoodCommandException | NoDataException e) {}
 
         try {
-            new SelectProtocolCommand(ObdProtocols.AUTO).run(is, os);
+            new SelectProtocolCommand(protocol).run(is, os);
         } catch (UnsupportedCommandException | MisunderstoodCommandException | NoDataException e) {}
     }
 
     /**
-     * Determine all of the commands that are supported by the given OBD2 device by submitting each
-     * OBDCommand instance and adding that command to the internal ObdMultiCommand instance if the
-     * response is valid; set the ObdMultiCommand instance to read raw data only
+     * Determine all of the commands that are supported by the given OBD2 device by querying the
+     * device's "PIDs supported" bitmasks (01 00, 01 20, ...) and adding each OBDCommand whose PID is
+     * set to the internal ObdMultiCommand instance; devices that don't answer the bitmask queries are
+     * probed by submitting each OBDCommand instead. Set the ObdMultiCommand instance to read raw data only
      * @throws IOException
      * @throws InterruptedException
      */
@@ -128,30 +288,91 @@ public class JavaObdReader{
     }
 
     /**
-     * Get the first N commands that are supported by the given OBD2 device by submitting each
-     * OBDCommand instance and adding that command to the internal ObdMultiCommand instance if the
-     * response is valid; set the ObdMultiCommand instance to read raw data only
+     * Get the first N commands that are supported by the given OBD2 device by querying the device's
+     * "PIDs supported" bitmasks (or by submitting each OBDCommand instance if the device doesn't answer
+     * them) and adding each supported command to the internal ObdMultiCommand instance; set the
+     * ObdMultiCommand instance to read raw data only
      * @throws IOException
      * @throws InterruptedException
      */
     public void initSupportedOdbCommands(int maxCommands) throws IOException, InterruptedException {
 
         numCommands = maxCommands;
-        commandList = new ArrayList<>();
-        multiCommand = new ObdMultiCommand();
-
-        if (maxCommands > 0)
-            maxCommands -= addSupportedEngineCommands(multiCommand, maxCommands);
-        if (maxCommands > 0)
-            maxCommands -= addSupportedFuelCommands(multiCommand, maxCommands);
-        if (maxCommands > 0)
-            maxCommands -= addSupportedPressureCommands(multiCommand,maxCommands);
+        resetCommands();
+        discoveryReport = new DiscoveryReport();
+
+        if (ecuDiscovery) {
+            Map<Integer, SupportedPids> ecus = SupportedPids.queryEcus(is, os, discoveryReport);
+            if (ecus != null) {
+                discoveryReport.setEcuPids(ecus);
+                supportedPids = SupportedPids.union(ecus.values());
+                System.out.println(ecus.size() + " ECUs answered");
+            }
+        }
+        if (supportedPids == null)
+            supportedPids = SupportedPids.query(is, os, discoveryReport);
+        if (supportedPids != null)
+            System.out.println("Supported PIDs " + supportedPids + " found with " +
+                    supportedPids.getRequestCount() + " requests");
+        else
+            System.out.println("PIDs supported query failed, probing each command");
+
+        long start = System.nanoTime();
         if (maxCommands > 0)
-            maxCommands -= addSupportedTemperatureCommands(multiCommand,maxCommands);
+            maxCommands -= addSupportedCommands(multiCommand, maxCommands);
+        discoveryReport.addStep(supportedPids == null ? "probe commands" : "select commands", System.nanoTime() - start);
 
         numCommands -= maxCommands;
 
         multiCommand.setConvertRawData(false);
+        System.out.println(discoveryReport);
+    }
+
+    /**
+     * Run initSupportedOdbCommands on several readers at once, each on its own thread, ie for adapters
+     * attached to different vehicles of a fleet or to different buses of the same vehicle; the time
+     * the slowest reader takes is the time all of them take
+     * @param readers the readers, with their control commands already sent
+     * @return the discovery report of each reader, in the order of the readers
+     * @throws IOException the first failure of any reader, once all readers are done
+     * @throws InterruptedException
+     */
+    public static List<DiscoveryReport> initSupportedOdbCommands(List<JavaObdReader> readers)
+            throws IOException, InterruptedException {
+
+        if (readers.isEmpty())
+            return new ArrayList<>();
+
+        ExecutorService pool = Executors.newFixedThreadPool(readers.size(), r -> {
+            Thread t = new Thread(r, "obd-discovery");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            List<Future<DiscoveryReport>> futures = new ArrayList<>();
+            for (JavaObdReader reader : readers) {
+                futures.add(pool.submit(() -> {
+                    reader.initSupportedOdbCommands();
+                    return reader.getDiscoveryReport();
+                }));
+            }
+
+            List<DiscoveryReport> reports = new ArrayList<>();
+            IOException failure = null;
+            for (Future<DiscoveryReport> future : futures) {
+                try {
+                    reports.add(future.get());
+                } catch (ExecutionException e) {
+                    if (failure == null)
+                        failure = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+                }
+            }
+            if (failure != null)
+                throw failure;
+            return reports;
+        } finally {
+            pool.shutdownNow();
+        }
     }
 
     /**
@@ -161,8 +382,23 @@ public class JavaObdReader{
      * @throws InterruptedException
      */
     public String runCommandsReturnRawData() throws IOException, InterruptedException {
-        multiCommand.sendCommands(is, os);
-        return multiCommand.getRawResult();
+        applyAdaptiveTimeout();
+        long cycleStart = System.nanoTime();
+        String raw;
+        if (batchedPolling && !multiPidRejected) {
+            raw = runBatchedCommandsReturnRawData();
+        } else if (!isMeasuring()) {
+            multiCommand.sendCommands(is, os);
+            raw = multiCommand.getRawResult();
+        } else {
+            for (ObdCommand cmd : commands)
+                runMeasured(cmd);
+            raw = multiCommand.getRawResult();
+        }
+        long cycleNanos = System.nanoTime() - cycleStart;
+        metrics.cycleCompleted(cycleNanos, commands.size(), commands.size());
+        runDiagnosticStep(Long.MAX_VALUE, cycleNanos, commands.size());
+        return raw;
     }
 
     /**
@@ -172,160 +408,891 @@ public class JavaObdReader{
      * @throws InterruptedException
      */
     public String runCommandsReturnFormattedResult() throws IOException, InterruptedException {
-        multiCommand.sendCommands(is, os);
-        return multiCommand.convertRawResultToFormattedResult(multiCommand.getRawResult());
+        return multiCommand.convertRawResultToFormattedResult(runCommandsReturnRawData());
     }
 
     /**
-     * Loop through all of the engine commands defined by the java-obd-api library; submit each command
-     * to determine if it is supported by the given OBD2 device and if so add it to the ObdMultiCommand
-     * instance. Only add maxCommands to the ObdMultiCommand instance
-     * @param multicmd the ObdMultiCommand instance
-     * @param maxCommands the maximum number of engine commands to add to the ObdMultiCommand instance
-     * @return the total number of engine commands added to the ObdMultiCommand instance
+     * Run the OBDCommands that are associated with the internal ObdMultiCommand instance and decode
+     * their responses straight into the given array, without creating Strings or going through the
+     * ObdCommand classes; requests are pre-encoded and responses are read into a reusable buffer, so a
+     * poll cycle doesn't allocate. Multi-PID requests are used when batched polling is enabled
+     * @param values receives one value per command, in the order of getCommandListAsString, in the
+     *               units of the SAE J1979 scaling (ie rpm, km/h, C, kPa, %); commands that didn't get
+     *               a response are set to NaN
+     * @return the number of commands that got a response
      * @throws IOException
-     * @throws InterruptedException
      */
-    private int addSupportedEngineCommands(ObdMultiCommand multicmd, int maxCommands) throws IOException, InterruptedException {
+    public int runCommandsReturnValues(double[] values) throws IOException {
+        return runCommandsReturnValues(values, null, null);
+    }
 
-        if (multicmd == null)
-            throw new IOException("Input arg must be non-null");
+    /**
+     * Run the OBDCommands the same way runCommandsReturnValues(double[]) does, also recording when each
+     * command was requested and when its response was read, as System.nanoTime values; commands sent
+     * in the same multi-PID request share their timestamps. With many commands a poll cycle takes long
+     * enough that its first and last values can't be treated as simultaneous, so these are the times
+     * to correlate values by (see SampleAligner). The arrays are filled in place, so recording doesn't
+     * allocate
+     * @param values receives one value per command, as in runCommandsReturnValues(double[])
+     * @param requestNanos receives the time each command's request was written (or, when pipelined, the
+     *                     time the adapter got to it); may be null
+     * @param responseNanos receives the time each command's response was read; may be null
+     * @return the number of commands that got a response
+     * @throws IOException
+     */
+    public int runCommandsReturnValues(double[] values, long[] requestNanos, long[] responseNanos) throws IOException {
+
+        if (values.length < commands.size())
+            throw new IllegalArgumentException("Values array must hold " + commands.size() + " values");
+        if ((requestNanos != null && requestNanos.length < commands.size()) ||
+                (responseNanos != null && responseNanos.length < commands.size()))
+            throw new IllegalArgumentException("Timestamp arrays must hold " + commands.size() + " timestamps");
+
+        applyAdaptiveTimeout();
+        if (valueRequests == null || valueRequestsBatched != isBatchedPollingActive() ||
+                valueRequestsPipelined != pipelinedPolling)
+            prepareValueRequests();
+
+        Arrays.fill(values, 0, commands.size(), Double.NaN);
+        int decoded = 0;
+        boolean pipelined = valueRequestsPipelined;
+        long cycleStart = System.nanoTime();
+        long requestStart = cycleStart;
+
+        if (pipelined && valueRequests.length > 0) {
+            os.write(valueRequests[0]);
+            os.flush();
+        }
 
-        if (maxCommands == 0)
-            return 0;
+        for (int r = 0; r < valueRequests.length; r++) {
+            boolean nextWritten = false;
+            if (!pipelined) {
+                requestStart = System.nanoTime();
+                os.write(valueRequests[r]);
+                os.flush();
+            }
+            int responseLength;
+            try {
+                responseLength = responseReader.readResponse(is);
+            } catch (IOException e) {
+                recordFailure(valueRequestPids[r], valueRequestPids[r].length, System.nanoTime() - requestStart,
+                        valueRequests[r].length, e);
+                throw e;
+            }
+            long responseTime = System.nanoTime();
+            if (pipelined && r + 1 < valueRequests.length) {
+                // the prompt means the adapter is idle, so get the next request going before decoding
+                os.write(valueRequests[r + 1]);
+                os.flush();
+                nextWritten = true;
+            }
+            int found = decodeValues(values);
+            for (int i = 0; i < valueRequestPidCounts[r]; i++) {
+                int index = pidIndex[valueRequestPids[r][i] & 0xFF];
+                if (index < 0)
+                    continue;
+                if (requestNanos != null)
+                    requestNanos[index] = requestStart;
+                if (responseNanos != null)
+                    responseNanos[index] = responseTime;
+            }
+            if (isMeasuring())
+                recordResponse(valueRequestPids[r], valueRequestPids[r].length, values, requestStart, responseTime,
+                        valueRequests[r].length, responseLength + 1, found);
+            requestStart = responseTime;
+            if (found == 0 && valueRequestPidCounts[r] > 1 && !multiPidRejected && responseReader.isRejected()) {
+                if (nextWritten)
+                    responseReader.readResponse(is);
+                multiPidRejected = true;
+                System.out.println("Multi-PID request was rejected, falling back to single PID requests");
+                return runCommandsReturnValues(values, requestNanos, responseNanos);
+            }
+            decoded += found;
+        }
 
-        int commandsAdded = 0;
+        long cycleNanos = System.nanoTime() - cycleStart;
+        metrics.cycleCompleted(cycleNanos, commands.size(), decoded);
+        runDiagnosticStep(Long.MAX_VALUE, cycleNanos, valueRequests.length);
+        return decoded;
+    }
 
-        try {
+    /**
+     * Run the OBDCommands that are associated with the internal ObdMultiCommand instance the same way
+     * runCommandsReturnValues does, and hand the values to the given sink (ie a SamplePublisher,
+     * SampleLogWriter or AsyncSampleWriter) stamped with the time the cycle completed
+     * @param sink the sink receiving the cycle's values
+     * @return the number of commands that got a response
+     * @throws IOException
+     */
+    public int runCommandsToSink(SampleSink sink) throws IOException {
+        if (sinkValues == null || sinkValues.length != commands.size())
+            sinkValues = new double[commands.size()];
+        int decoded = runCommandsReturnValues(sinkValues);
+        sink.addSamples(System.currentTimeMillis(), sinkValues);
+        return decoded;
+    }
 
-            Reflections reflections = new Reflections("com.github.pires.obd.commands.engine");
-            Set<Class<? extends ObdCommand>> s1 = reflections.getSubTypesOf(ObdCommand.class);
-            for (Class<? extends ObdCommand> c : s1) {
-                ObdCommand obdcmd = c.newInstance();
-                try {
-                    obdcmd.run(is,os);
-                    multicmd.add(obdcmd);
-                    commandList.add(c.toString());
-                    System.out.println(c.toString() + " is added to engine multicmd");
-                    if (++commandsAdded == maxCommands)
-                        return commandsAdded;
-                } catch (UnsupportedCommandException | MisunderstoodCommandException | NoDataException e) {}
-            }
+    /**
+     * Run the OBDCommands that are associated with the internal ObdMultiCommand instance the same way
+     * runCommandsReturnValues does, and hand each value to the given aligner stamped with the time it
+     * was read, rather than stamping the whole cycle with the time it completed
+     * @param aligner the aligner created by createSampleAligner
+     * @return the number of commands that got a response
+     * @throws IOException
+     */
+    public int runCommandsToAligner(SampleAligner aligner) throws IOException {
+        if (sinkValues == null || sinkValues.length != commands.size()) {
+            sinkValues = new double[commands.size()];
+            sinkRequestNanos = new long[commands.size()];
+            sinkResponseNanos = new long[commands.size()];
+        }
+        int decoded = runCommandsReturnValues(sinkValues, sinkRequestNanos, sinkResponseNanos);
+        aligner.add(sinkValues, sinkRequestNanos, sinkResponseNanos);
+        return decoded;
+    }
 
-            Set<Class<? extends TemperatureCommand>> s2 = reflections.getSubTypesOf(TemperatureCommand.class);
-            for (Class<? extends TemperatureCommand> c : s2) {
-                TemperatureCommand tempcmd = c.newInstance();
-                try {
-                    tempcmd.run(is,os);
-                    multicmd.add(tempcmd);
-                    commandList.add(c.toString());
-                    System.out.println(c.toString() + " is added to engine multicmd");
-                    if (++commandsAdded == maxCommands)
-                        return commandsAdded;
-                } catch (UnsupportedCommandException | MisunderstoodCommandException | NoDataException e) {}
+    /**
+     * Create a SampleAligner for the commands associated with the internal ObdMultiCommand instance,
+     * to be fed by runCommandsToAligner
+     * @param periodMillis the spacing of the common time grid
+     * @param sink the sink receiving one row of values per grid time
+     * @return the aligner
+     */
+    public SampleAligner createSampleAligner(long periodMillis, SampleSink sink) {
+        return new SampleAligner(commands.size(), TimeUnit.MILLISECONDS.toNanos(periodMillis), sink);
+    }
+
+    /**
+     * Create a SamplePublisher for the commands associated with the internal ObdMultiCommand instance,
+     * to be fed by runCommandsToSink
+     * @param bufferSize the number of samples buffered per subscriber
+     * @return the publisher
+     */
+    public SamplePublisher createSamplePublisher(int bufferSize) {
+        return new SamplePublisher(getCommandPids(), bufferSize);
+    }
+
+    /**
+     * Create a PollScheduler for the commands associated with the internal ObdMultiCommand instance,
+     * for use with runScheduledCommandsReturnValues
+     * @param defaultRateHz the target rate of commands whose rate isn't set on the scheduler
+     * @return the scheduler, with one entry per command in the order of getCommandListAsString
+     */
+    public PollScheduler createPollScheduler(double defaultRateHz) {
+        return new PollScheduler(getCommandPids(), defaultRateHz);
+    }
+
+    /**
+     * @return the mode 01 PID of each command, in the order of getCommandListAsString
+     */
+    private int[] getCommandPids() {
+        int[] pids = new int[commands.size()];
+        for (int i = 0; i < pids.length; i++)
+            pids[i] = ObdPid.pidOf(commands.get(i));
+        return pids;
+    }
+
+    /**
+     * Run the commands the given scheduler selects for this cycle and decode their responses into the
+     * given array, the same way runCommandsReturnValues does; values of commands that weren't selected
+     * are left untouched. Selected commands are sent as multi-PID requests when batched polling is
+     * enabled
+     * @param scheduler the scheduler created by createPollScheduler
+     * @param values holds one value per command; selected commands that didn't get a response are set to NaN
+     * @return the number of commands that got a response; 0 if no command was due
+     * @throws IOException
+     */
+    public int runScheduledCommandsReturnValues(PollScheduler scheduler, double[] values) throws IOException {
+        return runScheduledCommandsReturnValues(scheduler, values, null, null);
+    }
+
+    /**
+     * Run the commands the given scheduler selects the same way runScheduledCommandsReturnValues(
+     * PollScheduler, double[]) does, also recording the request and response time of each selected
+     * command as runCommandsReturnValues(double[], long[], long[]) does; timestamps of commands that
+     * weren't selected are left untouched
+     * @param scheduler the scheduler created by createPollScheduler
+     * @param values holds one value per command
+     * @param requestNanos receives the time each selected command's request was written; may be null
+     * @param responseNanos receives the time each selected command's response was read; may be null
+     * @return the number of commands that got a response; 0 if no command was due
+     * @throws IOException
+     */
+    public int runScheduledCommandsReturnValues(PollScheduler scheduler, double[] values, long[] requestNanos,
+                                                long[] responseNanos) throws IOException {
+
+        if (values.length < commands.size() || scheduler.size() != commands.size())
+            throw new IllegalArgumentException("Scheduler and values array must match the " + commands.size() + " commands");
+        if ((requestNanos != null && requestNanos.length < commands.size()) ||
+                (responseNanos != null && responseNanos.length < commands.size()))
+            throw new IllegalArgumentException("Timestamp arrays must hold " + commands.size() + " timestamps");
+
+        applyAdaptiveTimeout();
+        if (valueRequests == null || valueRequestsBatched != isBatchedPollingActive() ||
+                valueRequestsPipelined != pipelinedPolling)
+            prepareValueRequests();
+        if (scheduledSelection == null || scheduledSelection.length < scheduler.getMaxPidsPerCycle())
+            scheduledSelection = new int[scheduler.getMaxPidsPerCycle()];
+
+        int selected = scheduler.selectDue(System.nanoTime(), scheduledSelection);
+        for (int i = 0; i < selected; i++)
+            values[scheduledSelection[i]] = Double.NaN;
+
+        int decoded = 0;
+        int requests = 0;
+        long cycleStart = System.nanoTime();
+
+        for (int start = 0; start < selected; ) {
+            // batching can be given up mid-cycle, so the chunk size is decided per request
+            int end = Math.min(selected, start + (isBatchedPollingActive() ? ObdBatchCommand.MAX_PIDS : 1));
+
+            int len = 0;
+            int responseBytes = 1;
+            scheduledRequest[len++] = '0';
+            scheduledRequest[len++] = '1';
+            for (int i = start; i < end; i++) {
+                int pid = scheduler.getPid(scheduledSelection[i]);
+                scheduledRequest[len++] = ' ';
+                scheduledRequest[len++] = (byte) HEX_DIGITS[(pid >> 4) & 0xF];
+                scheduledRequest[len++] = (byte) HEX_DIGITS[pid & 0xF];
+                responseBytes += 1 + ObdPid.dataLength(pid);
+            }
+            if (pipelinedPolling && responseBytes <= SINGLE_FRAME_BYTES) {
+                scheduledRequest[len++] = ' ';
+                scheduledRequest[len++] = '1';
+            }
+            scheduledRequest[len++] = '\r';
+
+            for (int i = start; i < end; i++)
+                scheduledPids[i - start] = scheduler.getPid(scheduledSelection[i]);
+            long requestStart = System.nanoTime();
+            os.write(scheduledRequest, 0, len);
+            os.flush();
+            int responseLength;
+            try {
+                responseLength = responseReader.readResponse(is);
+            } catch (IOException e) {
+                recordFailure(scheduledPids, end - start, System.nanoTime() - requestStart, len, e);
+                throw e;
             }
+            long responseTime = System.nanoTime();
+            requests++;
+            int found = decodeValues(values);
+            for (int i = start; i < end; i++) {
+                if (requestNanos != null)
+                    requestNanos[scheduledSelection[i]] = requestStart;
+                if (responseNanos != null)
+                    responseNanos[scheduledSelection[i]] = responseTime;
+            }
+            if (isMeasuring())
+                recordResponse(scheduledPids, end - start, values, requestStart, responseTime, len, responseLength + 1, found);
+            if (found == 0 && end - start > 1 && !multiPidRejected && responseReader.isRejected()) {
+                multiPidRejected = true;
+                System.out.println("Multi-PID request was rejected, falling back to single PID requests");
+                // send the rejected PIDs again one at a time before any of them counts as a miss
+                continue;
+            }
+            decoded += found;
+            start = end;
+        }
 
-            Set<Class<? extends PercentageObdCommand>> s3 = reflections.getSubTypesOf(PercentageObdCommand.class);
-            for (Class<? extends PercentageObdCommand> c : s3) {
-                ObdCommand percentcmd = c.newInstance();
-                try {
-                    percentcmd.run(is,os);
-                    multicmd.add(percentcmd);
-                    commandList.add(c.toString());
-                    System.out.println(c.toString() + " is added to engine multicmd");
-                    if (++commandsAdded == maxCommands)
-                        return commandsAdded;
-                } catch (UnsupportedCommandException | MisunderstoodCommandException | NoDataException e) {}
+        long now = System.nanoTime();
+        for (int i = 0; i < selected; i++) {
+            if (Double.isNaN(values[scheduledSelection[i]]))
+                scheduler.recordMiss(scheduledSelection[i], now);
+            else
+                scheduler.recordSample(scheduledSelection[i], now);
+        }
+
+        if (selected > 0)
+            metrics.cycleCompleted(now - cycleStart, selected, decoded);
+        long nextDue = scheduler.getNextDueNanos();
+        runDiagnosticStep(nextDue == Long.MAX_VALUE ? Long.MAX_VALUE : nextDue - System.nanoTime(), now - cycleStart,
+                requests);
+        return decoded;
+    }
+
+    /**
+     * Open a binary sample log with one column per command associated with the internal
+     * ObdMultiCommand instance (in the order of getCommandListAsString), recording the VIN if it was read
+     * @param file the log file; an existing log for the same vehicle and commands is appended to
+     * @return the writer, to be fed with the values of runCommandsReturnValues
+     * @throws IOException
+     */
+    public SampleLogWriter createSampleLogWriter(File file) throws IOException {
+        return new SampleLogWriter(file, vin, getCommandPids(), commandList.toArray(new String[commandList.size()]));
+    }
+
+    /**
+     * Open a rolling, segmented binary sample log with one column per command associated with the
+     * internal ObdMultiCommand instance, recording the VIN if it was read
+     * @param directory the segment directory
+     * @param maxSegmentBytes the size at which a segment is closed
+     * @param maxSegmentMillis the time span after which a segment is closed
+     * @param uploader the uploader closed segments are handed to, or null
+     * @return the log, to be fed with the values of runCommandsReturnValues
+     * @throws IOException
+     */
+    public RollingSampleLog createRollingSampleLog(File directory, long maxSegmentBytes, long maxSegmentMillis,
+                                                   SegmentUploader uploader) throws IOException {
+        return new RollingSampleLog(directory, vin, getCommandPids(), commandList.toArray(new String[commandList.size()]),
+                maxSegmentBytes, maxSegmentMillis, uploader);
+    }
+
+    /**
+     * Encode the requests used by runCommandsReturnValues and build the PID to value index lookup
+     */
+    private void prepareValueRequests() {
+
+        pidIndex = new int[256];
+        Arrays.fill(pidIndex, -1);
+        for (int i = 0; i < commands.size(); i++) {
+            int pid = ObdPid.pidOf(commands.get(i));
+            if (pid >= 0)
+                pidIndex[pid] = i;
+        }
+
+        List<String> requests = new ArrayList<>();
+        List<Integer> pidCounts = new ArrayList<>();
+        List<int[]> pids = new ArrayList<>();
+        List<ObdCommand> singles = commands;
+        valueRequestsBatched = isBatchedPollingActive();
+        valueRequestsPipelined = pipelinedPolling;
+        if (valueRequestsBatched) {
+            singles = new ArrayList<>();
+            for (ObdBatchCommand batch : ObdBatchCommand.createBatches(commands, singles)) {
+                requests.add(batch.getRequest());
+                pidCounts.add(batch.getCommands().size());
+                pids.add(batch.getPids());
             }
+        }
+        for (ObdCommand cmd : singles) {
+            requests.add("01 " + cmd.getCommandPID().trim());
+            pidCounts.add(1);
+            pids.add(new int[] {ObdPid.pidOf(cmd)});
+        }
 
-        } catch (InstantiationException | IllegalAccessException e) {
-            e.printStackTrace();
+        valueRequests = new byte[requests.size()][];
+        valueRequestPidCounts = new int[requests.size()];
+        valueRequestPids = pids.toArray(new int[pids.size()][]);
+        for (int i = 0; i < valueRequests.length; i++) {
+            String request = requests.get(i);
+            if (valueRequestsPipelined)
+                request = withResponseCount(request);
+            valueRequests[i] = (request + "\r").getBytes();
+            valueRequestPidCounts[i] = pidCounts.get(i);
         }
+    }
 
-        return commandsAdded;
+    /**
+     * Append the ELM327 expected response count (" 1") to the given mode 01 request if its response
+     * fits in a single CAN frame, so the adapter sends the prompt as soon as the first answer arrives
+     * instead of waiting out its timeout for answers from other ECUs; longer (multi-frame) responses
+     * are left alone, since how their frames are counted differs between adapters
+     * @param request the request (ie "01 0C")
+     * @return the request with the response count appended (ie "01 0C 1"), or the request itself
+     */
+    static String withResponseCount(String request) {
+        String[] parts = request.trim().split("\\s+");
+        int responseBytes = 1;
+        for (int i = 1; i < parts.length; i++) {
+            int length = ObdPid.dataLength(Integer.parseInt(parts[i], 16));
+            if (length == 0)
+                return request;
+            responseBytes += 1 + length;
+        }
+        return responseBytes <= SINGLE_FRAME_BYTES ? request + " 1" : request;
     }
 
     /**
-     * Loop through all of the fuel commands defined by the java-obd-api library; submit each command
-     * to determine if it is supported by the given OBD2 device and if so add it to the ObdMultiCommand
-     * instance. Only add maxCommands to the ObdMultiCommand instance
-     * @param multicmd the ObdMultiCommand instance
-     * @param maxCommands the maximum number of fuel commands to add to the ObdMultiCommand instance
-     * @return the total number of fuel commands added to the ObdMultiCommand instance
+     * Walk the mode 01 messages of the last response and decode each PID's data into its slot of the
+     * values array; when several ECUs answer, the first answer for a PID wins
+     * @return the number of values decoded
+     */
+    private int decodeValues(double[] values) {
+
+        int[] payload = responseReader.getPayload();
+        int found = 0;
+
+        for (int m = 0; m < responseReader.getMessageCount(); m++) {
+            int pos = responseReader.getMessageOffset(m);
+            int end = pos + responseReader.getMessageLength(m);
+            if (pos == end || payload[pos] != 0x41)
+                continue;
+            pos++;
+            while (pos < end) {
+                int pid = payload[pos];
+                int length = ObdPid.dataLength(pid);
+                if (length == 0 || pos + 1 + length > end)
+                    break;
+                int index = pidIndex[pid];
+                if (index >= 0 && Double.isNaN(values[index])) {
+                    values[index] = ObdPid.decode(pid, payload, pos + 1);
+                    found++;
+                }
+                pos += 1 + length;
+            }
+        }
+
+        return found;
+    }
+
+    /**
+     * Enable or disable batched polling; when enabled, the supported mode 01 commands are sent up to
+     * six PIDs per request (ie "01 0C 0D 05 0F 11 10") rather than one request per command. If the
+     * adapter rejects multi-PID requests ('?'), polling falls back to one request per command; a NO DATA
+     * answer (ie while ECUs are waking up) only leaves that cycle's values missing
+     * @param enabled true to batch commands
+     */
+    public void setBatchedPolling(boolean enabled) {
+        batchedPolling = enabled;
+    }
+
+    /**
+     * Enable or disable pipelined polling for runCommandsReturnValues and
+     * runScheduledCommandsReturnValues. When enabled, the next request of a poll cycle is written the
+     * moment the previous response's prompt arrives (before that response is decoded), requests whose
+     * response fits in one CAN frame carry the expected response count so the adapter doesn't wait out
+     * its timeout for more ECUs to answer, and the adapter is switched to aggressive adaptive timing
+     * (AT AT2). Only use this with vehicles where a single ECU answers mode 01 requests, as answers
+     * from other ECUs are no longer waited for; adapters that don't know the response count or AT AT2
+     * (ie older clones) should be left unpipelined
+     * @param enabled true to pipeline requests
      * @throws IOException
-     * @throws InterruptedException
      */
-    private int addSupportedFuelCommands(ObdMultiCommand multicmd, int maxCommands) throws IOException, InterruptedException {
+    public void setPipelinedPolling(boolean enabled) throws IOException {
+        String response = ElmIO.send(is, os, enabled ? "AT AT2" : "AT AT1");
+        if (ElmIO.isError(response))
+            System.out.println("Adapter didn't accept adaptive timing change: " + response.trim());
+        pipelinedPolling = enabled;
+    }
 
-        if (multicmd == null)
-            throw new IOException("Input arg must be non-null");
+    /**
+     * Determine whether requests are pipelined
+     * @return true if pipelined polling is enabled
+     */
+    public boolean isPipelinedPollingActive() {
+        return pipelinedPolling;
+    }
 
-        if (maxCommands == 0)
-            return 0;
+    /**
+     * Determine whether commands are currently being sent as multi-PID requests
+     * @return true if batched polling is enabled and hasn't been rejected by the adapter ('?')
+     */
+    public boolean isBatchedPollingActive() {
+        return batchedPolling && !multiPidRejected;
+    }
 
-        int commandsAdded = 0;
+    /**
+     * Report the round trip time, outcome and bytes of every request made while polling, and the time
+     * of every poll cycle, to the given metrics (ie a PollMetrics instance); connection setup isn't
+     * measured. The adapter's streams are wrapped to count bytes once metrics are set
+     * @param metrics the metrics, or null to stop reporting
+     */
+    public void setMetrics(ObdMetrics metrics) {
+        this.metrics = metrics == null ? ObdMetrics.NONE : metrics;
+        if (isMeasuring())
+            wrapStreams();
+    }
 
-        try {
+    /**
+     * @return the metrics polling is reported to; ObdMetrics.NONE if none were set
+     */
+    public ObdMetrics getMetrics() {
+        return metrics;
+    }
 
-            Reflections reflections = new Reflections("com.github.pires.obd.commands.fuel");
-            Set<Class<? extends ObdCommand>> s1 = reflections.getSubTypesOf(ObdCommand.class);
-            for (Class<? extends ObdCommand> c : s1) {
-                ObdCommand obdcmd = c.newInstance();
-                try {
-                    obdcmd.run(is,os);
-                    multicmd.add(obdcmd);
-                    commandList.add(c.toString());
-                    System.out.println(c.toString() + " is added to fuel multicmd");
-                    if (++commandsAdded == maxCommands)
-                        return commandsAdded;
-                } catch (UnsupportedCommandException | MisunderstoodCommandException | NoDataException e) {}
+    /**
+     * Switch a serial adapter to a faster baud rate with AT BRD, so polling isn't bound by the byte rate
+     * of the 9600 or 38400 baud most adapters start at. The adapter only keeps the new rate if the host
+     * answers it intact within a handshake timeout, so clones that don't know AT BRD, or garble the
+     * new rate, stay at their current rate. The rate lasts until the adapter is reset (AT Z) or
+     * powered off; call this after initOBDControlCommands
+     * @param baudRate the rate to switch to; the adapter can only approximate rates (4 MHz divided by
+     *                 8 - 255, ie 38400, 57143, 115942, 250000, 500000)
+     * @return the rate the connection runs at afterwards
+     * @throws IOException if the adapter got lost in the handshake
+     */
+    public int setSerialBaudRate(int baudRate) throws IOException {
+        if (serialLink == null)
+            throw new IllegalStateException("Not connected over a serial port");
+        serialBaudRate = baudRate;
+        return BaudRateNegotiator.switchTo(serialLink, is, os, baudRate);
+    }
+
+    /**
+     * @return the baud rate of the serial connection, or 0 if the adapter isn't connected over a serial port
+     */
+    public int getSerialBaudRate() {
+        return serialLink == null ? 0 : serialLink.getBaudRate();
+    }
+
+    /**
+     * Interleave the diagnostic requests of the given monitor (trouble codes, freeze frames, MIL status)
+     * with polling: after each poll cycle of runCommandsReturnValues, runScheduledCommandsReturnValues
+     * and runCommandsReturnRawData, the monitor gets to send one request if its budget allows and,
+     * with scheduled polling, if the request fits before the next command is due; see DiagnosticMonitor
+     * @param monitor the monitor, or null to stop reading diagnostics
+     */
+    public void setDiagnosticMonitor(DiagnosticMonitor monitor) {
+        diagnosticMonitor = monitor;
+    }
+
+    public DiagnosticMonitor getDiagnosticMonitor() {
+        return diagnosticMonitor;
+    }
+
+    /**
+     * Give the diagnostic monitor, if any, the idle slot after a poll cycle
+     * @param idleNanos the time until the next command is due
+     * @param cycleNanos the time the cycle took
+     * @param requestCount the number of requests in the cycle
+     */
+    private void runDiagnosticStep(long idleNanos, long cycleNanos, int requestCount) throws IOException {
+        if (diagnosticMonitor == null)
+            return;
+        if (requestCount > 0)
+            diagnosticMonitor.liveRequestTime(cycleNanos / requestCount);
+        diagnosticMonitor.runStep(is, os, System.nanoTime(), idleNanos);
+    }
+
+    /**
+     * Tune the adapter timeout (AT ST) and the stream read timeout to the response times observed
+     * while polling and while probing for supported commands, instead of waiting up to the configured
+     * maximum for every answer that never comes; see AdaptiveTimeout. Tuned values are sent to the
+     * adapter at the start of the next poll cycle, and end up in the capability cache with saveToCache
+     * @param enabled true to tune, false to keep the timeouts as they are
+     */
+    public void setAdaptiveTimeout(boolean enabled) {
+        adaptiveTimeout = enabled ? new AdaptiveTimeout(adapterTimeout) : null;
+        if (enabled)
+            wrapStreams();
+    }
+
+    /**
+     * @return the tuner of the adapter and stream timeouts, or null if adaptive timeouts are off
+     */
+    public AdaptiveTimeout getAdaptiveTimeout() {
+        return adaptiveTimeout;
+    }
+
+    /**
+     * Send the adapter timeout the tuner settled on, and set the stream timeout to match
+     */
+    private void applyAdaptiveTimeout() throws IOException {
+        int value = adaptiveTimeout == null ? -1 : adaptiveTimeout.takeChange();
+        if (value < 0)
+            return;
+        adapterTimeout = value;
+        ElmIO.send(is, os, "AT ST " + ObdPid.toHex(value));
+        applyStreamTimeout();
+        System.out.println("Adapter timeout set to " + adaptiveTimeout.getAdapterTimeoutMillis() + " ms");
+    }
+
+    /**
+     * Set the stream read timeout to the tighter of the adaptive timeout and the stall timeout, if
+     * either is in use
+     */
+    private void applyStreamTimeout() {
+        if (streamTimeout == null || (adaptiveTimeout == null && stallGuard == null))
+            return;
+        int millis = adaptiveTimeout == null ? Integer.MAX_VALUE : adaptiveTimeout.getStreamTimeoutMillis();
+        if (stallGuard != null)
+            millis = Math.min(millis, stallGuard.getTimeoutMillis());
+        streamTimeout.accept(millis);
+    }
+
+    /**
+     * Fail reads once the adapter hasn't finished answering a request with its '>' prompt within the
+     * given time, or once the connection ends, rather than waiting forever or reading an ended stream
+     * as empty answers; the stream read timeout is set to match (unless adaptive timeouts set a
+     * tighter one). This is how a stalled or lost connection is detected; see ConnectionSupervisor
+     * @param millis the stall timeout; it should cover the slowest legitimate answer, ie a protocol search
+     */
+    public void setStallTimeout(int millis) {
+        if (millis <= 0)
+            throw new IllegalArgumentException("Stall timeout must be positive");
+        if (stallGuard == null) {
+            stallGuard = new StallGuard(millis);
+            is = stallGuard.wrap(is);
+            os = stallGuard.wrap(os);
+        } else {
+            stallGuard.setTimeout(millis);
+        }
+        applyStreamTimeout();
+    }
+
+    /**
+     * Reopen the connection to the adapter after it was lost (ie a wifi adapter dropped off the
+     * network, or stopped answering), the same way the factory opened it, and replay the setup the
+     * adapter needs: its baud rate (serial adapters), the control commands with the protocol that was
+     * in use rather than a new search (see rememberProtocol), the adapter timeout and, when pipelining,
+     * adaptive timing. The supported commands and their prepared requests are kept, so nothing is
+     * probed again, and the metrics, timeout tuner and stall timeout carry over to the new streams
+     * @throws IOException if the adapter can't be reached or doesn't answer
+     * @throws InterruptedException
+     * @throws IllegalStateException if the reader was created on top of existing streams
+     */
+    public void reconnect() throws IOException, InterruptedException {
+        if (connector == null)
+            throw new IllegalStateException("Reader wasn't opened by a factory that can reconnect");
+
+        int lastBaudRate = serialLink == null ? 0 : serialLink.getBaudRate();
+        if (transport != null) {
+            try {
+                transport.close();
+            } catch (IOException e) {
+                // the connection is gone either way
             }
+        }
+        connector.connect(this);
+        if (lastBaudRate > 0)
+            restoreSerialBaudRate(lastBaudRate);
+        if (stallGuard != null) {
+            stallGuard.reset();
+            is = stallGuard.wrap(is);
+            os = stallGuard.wrap(os);
+        }
+        if (wire != null) {
+            is = wire.wrap(is);
+            os = wire.wrap(os);
+        }
+        applyStreamTimeout();
 
-            Set<Class<? extends TemperatureCommand>> s2 = reflections.getSubTypesOf(TemperatureCommand.class);
-            for (Class<? extends TemperatureCommand> c : s2) {
-                TemperatureCommand tempcmd = c.newInstance();
-                try {
-                    tempcmd.run(is,os);
-                    multicmd.add(tempcmd);
-                    commandList.add(c.toString());
-                    System.out.println(c.toString() + " is added to fuel multicmd");
-                    if (++commandsAdded == maxCommands)
-                        return commandsAdded;
-                } catch (UnsupportedCommandException | MisunderstoodCommandException | NoDataException e) {}
+        initOBDControlCommands(protocol);
+        if (pipelinedPolling)
+            setPipelinedPolling(true);
+    }
+
+    /**
+     * Find the serial adapter's rate after reconnecting, trying the rate last used first (adapters that
+     * stayed powered keep an AT BRD rate); one that restarted at its default rate is switched to the
+     * rate of the last setSerialBaudRate again
+     */
+    private void restoreSerialBaudRate(int lastBaudRate) throws IOException {
+        int[] rates = new int[BaudRateNegotiator.DETECT_RATES.length + 1];
+        rates[0] = lastBaudRate;
+        System.arraycopy(BaudRateNegotiator.DETECT_RATES, 0, rates, 1, BaudRateNegotiator.DETECT_RATES.length);
+        int rate = BaudRateNegotiator.detect(serialLink, is, os, rates);
+        if (rate < 0)
+            throw new IOException("Adapter didn't answer at any baud rate");
+        if (rate != lastBaudRate && serialBaudRate > 0)
+            BaudRateNegotiator.switchTo(serialLink, is, os, serialBaudRate);
+    }
+
+    /**
+     * Read the protocol the adapter settled on (AT DPN) when it was told to search for one, so
+     * reconnect selects it directly instead of searching again
+     * @throws IOException
+     */
+    void rememberProtocol() throws IOException {
+        if (protocol != ObdProtocols.AUTO)
+            return;
+        ObdProtocols found = protocolForValue(readProtocolNumber());
+        if (found != null)
+            protocol = found;
+    }
+
+    /**
+     * @return the ELM327 number of the protocol in use (AT DPN, without the "A" of an automatically
+     * found one), or 0 if the adapter didn't tell
+     */
+    private char readProtocolNumber() throws IOException {
+        String number = ElmIO.send(is, os, "AT DPN").replaceAll("[\\s>]", "").toUpperCase();
+        return number.isEmpty() ? 0 : number.charAt(number.length() - 1);
+    }
+
+    /**
+     * @return true if request outcomes are needed, by the metrics or the timeout tuner
+     */
+    private boolean isMeasuring() {
+        return metrics != ObdMetrics.NONE || adaptiveTimeout != null;
+    }
+
+    private void wrapStreams() {
+        if (wire != null)
+            return;
+        wire = new WireCounter();
+        is = wire.wrap(is);
+        os = wire.wrap(os);
+    }
+
+    /**
+     * @return the time from the start of a request to the first byte of its answer, or to the prompt
+     * if the first byte wasn't seen
+     */
+    private long responseNanos(long requestStart, long promptTime) {
+        long firstByte = wire == null ? promptTime : wire.firstByteNanos;
+        return firstByte - requestStart > 0 && firstByte - promptTime <= 0 ? firstByte - requestStart : promptTime - requestStart;
+    }
+
+    /**
+     * Run a command through its ObdCommand class, reporting it to the metrics
+     */
+    private void runMeasured(ObdCommand cmd) throws IOException, InterruptedException {
+        if (!isMeasuring()) {
+            cmd.run(is, os);
+            return;
+        }
+        long sent = wire.sent;
+        long received = wire.received;
+        long start = System.nanoTime();
+        ObdMetrics.Outcome outcome = ObdMetrics.Outcome.ERROR;
+        try {
+            cmd.run(is, os);
+            outcome = ObdMetrics.Outcome.ANSWERED;
+        } catch (NoDataException e) {
+            outcome = ObdMetrics.Outcome.NO_DATA;
+            throw e;
+        } catch (IOException e) {
+            outcome = failureOutcome(e);
+            throw e;
+        } finally {
+            long end = System.nanoTime();
+            long nanos = end - start;
+            metrics.requestCompleted(1, nanos, wire.sent - sent, wire.received - received, outcome);
+            int pid = ObdPid.pidOf(cmd);
+            if (pid >= 0) {
+                metrics.pidCompleted(pid, nanos, outcome);
+                if (adaptiveTimeout != null)
+                    adaptiveTimeout.record(pid, responseNanos(start, end), outcome);
             }
+        }
+    }
 
-            Set<Class<? extends PercentageObdCommand>> s3 = reflections.getSubTypesOf(PercentageObdCommand.class);
-            for (Class<? extends PercentageObdCommand> c : s3) {
-                ObdCommand percentcmd = c.newInstance();
-                try {
-                    percentcmd.run(is,os);
-                    multicmd.add(percentcmd);
-                    commandList.add(c.toString());
-                    System.out.println(c.toString() + " is added to fuel multicmd");
-                    if (++commandsAdded == maxCommands)
-                        return commandsAdded;
-                } catch (UnsupportedCommandException | MisunderstoodCommandException | NoDataException e) {}
+    /**
+     * Run a multi-PID request, reporting it to the metrics
+     * @return the commands that didn't get a response
+     */
+    private List<ObdCommand> runMeasured(ObdBatchCommand batch) throws IOException, InterruptedException {
+        if (!isMeasuring())
+            return batch.run(is, os);
+
+        long sent = wire.sent;
+        long received = wire.received;
+        long start = System.nanoTime();
+        List<ObdCommand> missing;
+        try {
+            missing = batch.run(is, os);
+        } catch (IOException e) {
+            long nanos = System.nanoTime() - start;
+            ObdMetrics.Outcome outcome = failureOutcome(e);
+            metrics.requestCompleted(batch.getCommands().size(), nanos, wire.sent - sent, wire.received - received, outcome);
+            for (ObdCommand cmd : batch.getCommands()) {
+                metrics.pidCompleted(ObdPid.pidOf(cmd), nanos, outcome);
+                if (adaptiveTimeout != null)
+                    adaptiveTimeout.record(ObdPid.pidOf(cmd), nanos, outcome);
             }
+            throw e;
+        }
 
-        } catch (InstantiationException | IllegalAccessException e) {
-            e.printStackTrace();
+        long end = System.nanoTime();
+        long nanos = end - start;
+        boolean answered = missing.size() < batch.getCommands().size();
+        metrics.requestCompleted(batch.getCommands().size(), nanos, wire.sent - sent, wire.received - received,
+                answered ? ObdMetrics.Outcome.ANSWERED : ObdMetrics.Outcome.NO_DATA);
+        for (ObdCommand cmd : batch.getCommands()) {
+            ObdMetrics.Outcome outcome = missing.contains(cmd) ? ObdMetrics.Outcome.NO_DATA : ObdMetrics.Outcome.ANSWERED;
+            metrics.pidCompleted(ObdPid.pidOf(cmd), nanos, outcome);
+            if (adaptiveTimeout != null)
+                adaptiveTimeout.record(ObdPid.pidOf(cmd), responseNanos(start, end), outcome);
         }
+        return missing;
+    }
 
-        return commandsAdded;
+    /**
+     * Report a response read by the value polling paths to the metrics and the timeout tuner; PIDs of
+     * the request that didn't get a value are reported as NO DATA, or with the request's error
+     */
+    private void recordResponse(int[] pids, int pidCount, double[] values, long requestStart, long responseTime,
+                                int sent, int received, int found) {
+
+        long nanos = responseTime - requestStart;
+        ObdMetrics.Outcome outcome = found > 0 ? ObdMetrics.Outcome.ANSWERED
+                : responseReader.isNoData() || !responseReader.isError() ? ObdMetrics.Outcome.NO_DATA
+                : ObdMetrics.Outcome.ERROR;
+        metrics.requestCompleted(pidCount, nanos, sent, received, outcome);
+        for (int i = 0; i < pidCount; i++) {
+            int index = pidIndex[pids[i] & 0xFF];
+            boolean hasValue = index >= 0 && !Double.isNaN(values[index]);
+            ObdMetrics.Outcome pidOutcome = hasValue ? ObdMetrics.Outcome.ANSWERED
+                    : outcome == ObdMetrics.Outcome.ANSWERED ? ObdMetrics.Outcome.NO_DATA : outcome;
+            metrics.pidCompleted(pids[i], nanos, pidOutcome);
+            if (adaptiveTimeout != null)
+                adaptiveTimeout.record(pids[i], responseNanos(requestStart, responseTime), pidOutcome);
+        }
+    }
 
+    /**
+     * Report a request whose response couldn't be read to the metrics and the timeout tuner
+     */
+    private void recordFailure(int[] pids, int pidCount, long nanos, int sent, IOException e) {
+        ObdMetrics.Outcome outcome = failureOutcome(e);
+        metrics.requestCompleted(pidCount, nanos, sent, 0, outcome);
+        for (int i = 0; i < pidCount; i++) {
+            metrics.pidCompleted(pids[i], nanos, outcome);
+            if (adaptiveTimeout != null)
+                adaptiveTimeout.record(pids[i], nanos, outcome);
+        }
     }
 
     /**
-     * Loop through all of the pressure commands defined by the java-obd-api library; submit each command
-     * to determine if it is supported by the given OBD2 device and if so add it to the ObdMultiCommand
-     * instance. Only add maxCommands to the ObdMultiCommand instance
+     * Tell read timeouts (socket timeouts, or a serial port's SerialPortTimeoutException) from other failures
+     */
+    private static ObdMetrics.Outcome failureOutcome(IOException e) {
+        if (e instanceof InterruptedIOException || e.getCause() instanceof SerialPortTimeoutException)
+            return ObdMetrics.Outcome.TIMEOUT;
+        return ObdMetrics.Outcome.ERROR;
+    }
+
+    /**
+     * Run the OBDCommands that are associated with the internal ObdMultiCommand instance as multi-PID
+     * requests; PIDs that are missing from a multi-PID response are requested individually
+     * @return A comma separated string of raw data, in the same order as runCommandsReturnRawData
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private String runBatchedCommandsReturnRawData() throws IOException, InterruptedException {
+
+        if (batches == null) {
+            unbatchedCommands = new ArrayList<>();
+            batches = ObdBatchCommand.createBatches(commands, unbatchedCommands);
+        }
+
+        for (ObdBatchCommand batch : batches) {
+            List<ObdCommand> missing = multiPidRejected ? batch.getCommands() : runMeasured(batch);
+            if (batch.wasRejected() && missing.size() > 1 && !multiPidRejected) {
+                multiPidRejected = true;
+                System.out.println("Multi-PID request " + batch.getRequest() + " was rejected, falling back to single PID requests");
+            }
+            for (ObdCommand cmd : missing)
+                runMeasured(cmd);
+        }
+
+        for (ObdCommand cmd : unbatchedCommands)
+            runMeasured(cmd);
+
+        StringBuilder sb = new StringBuilder();
+        for (ObdCommand cmd : commands) {
+            if (sb.length() > 0)
+                sb.append(',');
+            sb.append(cmd.getResult());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Loop through all of the commands in the ObdCommandRegistry; add each command that is supported
+     * by the given OBD2 device to the ObdMultiCommand instance. Support is read from the "PIDs supported"
+     * bitmasks when the device answered them, otherwise each command is submitted and its response
+     * checked. Only add maxCommands to the ObdMultiCommand instance
      * @param multicmd the ObdMultiCommand instance
-     * @param maxCommands the maximum number of fuel commands to add to the ObdMultiCommand instance
-     * @return the total number of engine commands added to the ObdMultiCommand instance
+     * @param maxCommands the maximum number of commands to add to the ObdMultiCommand instance
+     * @return the total number of commands added to the ObdMultiCommand instance
      * @throws IOException
      * @throws InterruptedException
      */
-    private int addSupportedPressureCommands(ObdMultiCommand multicmd, int maxCommands) throws IOException, InterruptedException {
+    private int addSupportedCommands(ObdMultiCommand multicmd, int maxCommands) throws IOException, InterruptedException {
 
         if (multicmd == null)
             throw new IOException("Input arg must be non-null");
@@ -335,71 +1302,210 @@ public class JavaObdReader{
 
         int commandsAdded = 0;
 
-        try {
+        for (ObdCommandRegistry.Entry entry : ObdCommandRegistry.getEntries()) {
+
+            if (supportedPids != null && !supportedPids.isSupported(entry.getPid()))
+                continue;
 
-            Reflections reflections = new Reflections("com.github.pires.obd.commands.pressure");
-            Set<Class<? extends PressureCommand>> s1 = reflections.getSubTypesOf(PressureCommand.class);
-            for (Class<? extends PressureCommand> c : s1) {
-                PressureCommand pressurecmd = c.newInstance();
+            ObdCommand obdcmd = entry.newCommand();
+            if (supportedPids == null) {
+                long start = System.nanoTime();
+                ObdMetrics.Outcome outcome = ObdMetrics.Outcome.ANSWERED;
                 try {
-                    pressurecmd.run(is,os);
-                    multicmd.add(pressurecmd);
-                    commandList.add(c.toString());
-                    System.out.println(c.toString() + " is added to pressure multicmd");
-                    if (++commandsAdded == maxCommands)
-                        return commandsAdded;
-                } catch (UnsupportedCommandException | MisunderstoodCommandException | NoDataException e) {}
+                    obdcmd.run(is, os);
+                } catch (UnsupportedCommandException | MisunderstoodCommandException | NoDataException e) {
+                    outcome = ObdMetrics.Outcome.NO_DATA;
+                }
+                if (adaptiveTimeout != null) {
+                    adaptiveTimeout.record(entry.getPid(), responseNanos(start, System.nanoTime()), outcome);
+                    applyAdaptiveTimeout();
+                }
+                if (outcome != ObdMetrics.Outcome.ANSWERED)
+                    continue;
             }
 
-        } catch (InstantiationException | IllegalAccessException e) {
-            e.printStackTrace();
+            addCommand(multicmd, entry, obdcmd);
+            System.out.println(entry + " is added to " + entry.getGroup().name().toLowerCase() + " multicmd");
+            if (++commandsAdded == maxCommands)
+                return commandsAdded;
         }
 
         return commandsAdded;
     }
 
     /**
-     * Loop through all of the temperature commands defined by the java-obd-api library; submit each command
-     * to determine if it is supported by the given OBD2 device and if so add it to the ObdMultiCommand
-     * instance. Only add maxCommands to the ObdMultiCommand instance
-     * @param multicmd the ObdMultiCommand instance
-     * @param maxCommands the maximum number of temperature commands to add to the ObdMultiCommand instance
-     * @return the total number of temperature commands added to the ObdMultiCommand instance
+     * Add the given command to the ObdMultiCommand instance and to the lists backing batched polling,
+     * getCommandListAsString and the capability cache
+     */
+    private void addCommand(ObdMultiCommand multicmd, ObdCommandRegistry.Entry entry, ObdCommand obdcmd) {
+        multicmd.add(obdcmd);
+        commands.add(obdcmd);
+        commandEntries.add(entry);
+        commandList.add(entry.toString());
+    }
+
+    /**
+     * Clear the supported commands ahead of discovering them or restoring them from the cache
+     */
+    private void resetCommands() {
+        commandList = new ArrayList<>();
+        commands = new ArrayList<>();
+        commandEntries = new ArrayList<>();
+        multiCommand = new ObdMultiCommand();
+        batches = null;
+        valueRequests = null;
+        multiPidRejected = false;
+        supportedPids = null;
+    }
+
+    /**
+     * Have initSupportedOdbCommands find out which ECU supports which PIDs, by querying the "PIDs
+     * supported" masks with headers on (AT H1) and telling the answers apart by CAN identifier; the
+     * polled commands are those supported by any ECU, and the per-ECU sets end up in the discovery
+     * report. Falls back to the plain query when the adapter or protocol doesn't give CAN headers
+     * @param enabled true to discover per ECU
+     */
+    public void setEcuDiscovery(boolean enabled) {
+        ecuDiscovery = enabled;
+    }
+
+    /**
+     * @return what the last initSupportedOdbCommands call found and the time each of its steps took,
+     * or null if it hasn't run
+     */
+    public DiscoveryReport getDiscoveryReport() {
+        return discoveryReport;
+    }
+
+    /**
+     * Read the vehicle identification number (mode 09 PID 02)
+     * @return the VIN, or null if the vehicle didn't report one
+     * @throws IOException
+     */
+    public String readVin() throws IOException {
+        vin = ElmIO.parseVin(ElmIO.send(is, os, "09 02"));
+        return vin;
+    }
+
+    /**
+     * Read the OBD2 device's identification string (AT I, ie "ELM327 v1.5")
+     * @return the identification string, or an empty string if the device didn't report one
+     * @throws IOException
+     */
+    public String readAdapterId() throws IOException {
+        adapterId = "";
+        for (String line : ElmIO.send(is, os, "AT I").split("[\r\n]+")) {
+            line = line.trim();
+            if (!line.isEmpty() && !line.equalsIgnoreCase("AT I") && !line.equalsIgnoreCase("ATI"))
+                adapterId = line;
+        }
+        return adapterId;
+    }
+
+    /**
+     * Initialize the connection from the profile stored for the connected vehicle, rather than by
+     * running initOBDControlCommands and initSupportedOdbCommands. The protocol the adapter last used is
+     * selected, then the VIN is read and the vehicle's first "PIDs supported" mask is compared against
+     * the stored one; if the vehicle or adapter doesn't match the profile, false is returned and the
+     * caller should fall back to the full initialization (and then call saveToCache)
+     * @param cache the capability cache to read the profile from
+     * @return true if the supported commands were restored from the cache
      * @throws IOException
      * @throws InterruptedException
      */
-    private int addSupportedTemperatureCommands(ObdMultiCommand multicmd, int maxCommands) throws IOException, InterruptedException {
+    public boolean initFromCache(CapabilityCache cache) throws IOException, InterruptedException {
 
-        if (multicmd == null)
-            throw new IOException("Input arg must be non-null");
+        initOBDControlCommands(ObdProtocols.AUTO);
 
-        if (maxCommands == 0)
-            return 0;
+        String adapter = readAdapterId();
+        VehicleProfile last = cache.loadLastForAdapter(adapter);
+        if (last != null)
+            selectProtocol(last.getProtocol());
 
-        int commandsAdded = 0;
+        String connectedVin = readVin();
+        if (connectedVin == null)
+            return false;
 
-        try {
+        VehicleProfile profile = connectedVin.equals(last == null ? null : last.getVin()) ? last : cache.load(connectedVin);
+        if (profile == null || !profile.getAdapterId().equals(adapter))
+            return false;
 
-            Reflections reflections = new Reflections("com.github.pires.obd.commands.temperature");
-            Set<Class<? extends TemperatureCommand>> s1 = reflections.getSubTypesOf(TemperatureCommand.class);
-            for (Class<? extends TemperatureCommand> c : s1) {
-                TemperatureCommand temperaturecmd = c.newInstance();
-                try {
-                    temperaturecmd.run(is,os);
-                    multicmd.add(temperaturecmd);
-                    commandList.add(c.toString());
-                    System.out.println(c.toString() + " is added to pressure multicmd");
-                    if (++commandsAdded == maxCommands)
-                        return commandsAdded;
-                } catch (UnsupportedCommandException | MisunderstoodCommandException | NoDataException e) {}
-            }
+        if (last == null || profile.getProtocol() != last.getProtocol())
+            selectProtocol(profile.getProtocol());
 
-        } catch (InstantiationException | IllegalAccessException e) {
-            e.printStackTrace();
+        if (!profile.getSupportedPidMask().isEmpty()) {
+            SupportedPids first = new SupportedPids();
+            if (!first.addResponse(0x00, ElmIO.send(is, os, "01 00")) ||
+                    !profile.getSupportedPidMask().equals(String.format("%08X", first.getMask(0x00))))
+                return false;
         }
 
-        return commandsAdded;
+        if (profile.getAdapterTimeout() != adapterTimeout) {
+            adapterTimeout = profile.getAdapterTimeout();
+            try {
+                new TimeoutCommand(adapterTimeout).run(is, os);
+            } catch (UnsupportedCommandException | MisunderstoodCommandException | NoDataException e) {}
+        }
+
+        resetCommands();
+        for (Integer key : profile.getCommandKeys()) {
+            ObdCommandRegistry.Entry entry = ObdCommandRegistry.get(key >> 8, key & 0xFF);
+            if (entry != null)
+                addCommand(multiCommand, entry, entry.newCommand());
+        }
+        numCommands = commands.size();
+        multiCommand.setConvertRawData(false);
+
+        System.out.println("Restored " + numCommands + " commands for " + connectedVin + " from the capability cache");
+        return true;
+    }
+
+    /**
+     * Store the connected vehicle's VIN, protocol, adapter settings and supported commands in the given
+     * cache, so later connections can use initFromCache; call after initSupportedOdbCommands
+     * @param cache the capability cache to write the profile to
+     * @return false if the vehicle didn't report a VIN or the protocol couldn't be read, so nothing was stored
+     * @throws IOException
+     */
+    public boolean saveToCache(CapabilityCache cache) throws IOException {
+
+        if (vin == null && readVin() == null)
+            return false;
+        if (adapterId == null)
+            readAdapterId();
 
+        char protocolNumber = readProtocolNumber();
+        if (protocolForValue(protocolNumber) == null)
+            return false;
+
+        List<Integer> keys = new ArrayList<>();
+        for (ObdCommandRegistry.Entry entry : commandEntries)
+            keys.add(entry.getKey());
+
+        String mask = supportedPids == null ? "" : String.format("%08X", supportedPids.getMask(0x00));
+        cache.save(new VehicleProfile(vin, adapterId, protocolNumber, adapterTimeout, mask, keys));
+        return true;
+    }
+
+    /**
+     * Select the protocol with the given ELM327 protocol number, ignoring unknown numbers
+     */
+    private void selectProtocol(char value) throws IOException, InterruptedException {
+        ObdProtocols protocol = protocolForValue(value);
+        if (protocol == null)
+            return;
+        this.protocol = protocol;
+        try {
+            new SelectProtocolCommand(protocol).run(is, os);
+        } catch (UnsupportedCommandException | MisunderstoodCommandException | NoDataException e) {}
+    }
+
+    private static ObdProtocols protocolForValue(char value) {
+        for (ObdProtocols protocol : ObdProtocols.values()) {
+            if (protocol.getValue() == value)
+                return protocol;
+        }
+        return null;
     }
 
     /**
@@ -0,0 +1,63 @@
+package RyanBerti;
+
+import jssc.SerialInputStream;
+import jssc.SerialPort;
+import jssc.SerialPortException;
+
+import java.io.IOException;
+
+/**
+ * SerialLink over a jssc serial port: 8 data bits, 1 stop bit, no parity, RTS/CTS flow control
+ */
+final class JsscSerialLink implements SerialLink {
+
+    private final SerialPort port;
+    private final SerialInputStream input;
+    private int baudRate;
+    private int readTimeout;
+
+    JsscSerialLink(SerialPort port, SerialInputStream input) {
+        this.port = port;
+        this.input = input;
+    }
+
+    @Override
+    public void setBaudRate(int baudRate) throws IOException {
+        try {
+            port.setParams(baudRate,
+                    SerialPort.DATABITS_8,
+                    SerialPort.STOPBITS_1,
+                    SerialPort.PARITY_NONE);
+            port.setFlowControlMode(SerialPort.FLOWCONTROL_RTSCTS_IN |
+                    SerialPort.FLOWCONTROL_RTSCTS_OUT);
+        } catch (SerialPortException e) {
+            throw new IOException(e);
+        }
+        this.baudRate = baudRate;
+    }
+
+    @Override
+    public int getBaudRate() {
+        return baudRate;
+    }
+
+    @Override
+    public void setReadTimeout(int millis) {
+        input.setTimeout(millis);
+        readTimeout = millis;
+    }
+
+    @Override
+    public int getReadTimeout() {
+        return readTimeout;
+    }
+
+    @Override
+    public void purgeInput() throws IOException {
+        try {
+            port.purgePort(SerialPort.PURGE_RXCLEAR);
+        } catch (SerialPortException e) {
+            throw new IOException(e);
+        }
+    }
+}
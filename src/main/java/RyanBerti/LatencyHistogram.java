@@ -0,0 +1,125 @@
+package RyanBerti;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed size log-linear histogram of nanosecond latencies, in the style of HdrHistogram: values are
+ * counted in buckets that double in width with each power of two, and each power of two is split into
+ * HALF_SUB_BUCKETS linear sub-buckets, so every recorded value is kept to within 1/HALF_SUB_BUCKETS
+ * (1/32, about 3%) of its true value over the whole range (up to MAX_VALUE, about 68 seconds; larger
+ * values are counted as MAX_VALUE). Recording is a handful of arithmetic operations and an atomic
+ * increment, and never allocates; one thread records while others read percentiles
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    static final int HALF_SUB_BUCKETS = SUB_BUCKETS >> 1;
+    public static final long MAX_VALUE = (1L << 36) - 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(index(MAX_VALUE) + 1);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * The bucket of a value: values below SUB_BUCKETS have a bucket each; above that, a value with its
+     * highest bit at position SUB_BUCKET_BITS - 1 + m is shifted right by m, leaving a sub-bucket
+     * between HALF_SUB_BUCKETS and SUB_BUCKETS, and m selects the row of buckets
+     */
+    static int index(long value) {
+        int m = Math.max(0, 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS);
+        return (m * HALF_SUB_BUCKETS) + (int) (value >>> m);
+    }
+
+    /**
+     * @return the largest value counted in the given bucket
+     */
+    static long highestValue(int index) {
+        if (index < SUB_BUCKETS)
+            return index;
+        int m = (index - HALF_SUB_BUCKETS) / HALF_SUB_BUCKETS;
+        long sub = index - (long) m * HALF_SUB_BUCKETS;
+        return ((sub + 1) << m) - 1;
+    }
+
+    /**
+     * Count one value
+     * @param nanos the latency; negative values are counted as 0
+     */
+    public void record(long nanos) {
+        long value = Math.min(MAX_VALUE, Math.max(0, nanos));
+        counts.incrementAndGet(index(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        if (value < min.get())
+            min.set(value);
+        if (value > max.get())
+            max.set(value);
+    }
+
+    /**
+     * @return the number of values recorded
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @return the smallest value recorded, or 0 if none was
+     */
+    public long getMin() {
+        return count.get() == 0 ? 0 : min.get();
+    }
+
+    /**
+     * @return the largest value recorded
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @return the mean of the values recorded, or 0 if none was
+     */
+    public double getMean() {
+        long n = count.get();
+        return n == 0 ? 0 : (double) sum.get() / n;
+    }
+
+    /**
+     * Get the value at the given percentile, as the upper bound of its bucket (capped by the largest
+     * value recorded)
+     * @param percentile between 0 and 100
+     * @return the value, or 0 if nothing was recorded
+     */
+    public long getValueAtPercentile(double percentile) {
+        long total = 0;
+        for (int i = 0; i < counts.length(); i++)
+            total += counts.get(i);
+        if (total == 0)
+            return 0;
+        long target = Math.max(1, (long) Math.ceil(total * Math.min(100, Math.max(0, percentile)) / 100));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= target)
+                return Math.min(highestValue(i), max.get());
+        }
+        return max.get();
+    }
+
+    /**
+     * Forget all recorded values; values recorded while the reset runs may be partly kept
+     */
+    public void reset() {
+        for (int i = 0; i < counts.length(); i++)
+            counts.set(i, 0);
+        count.set(0);
+        sum.set(0);
+        min.set(Long.MAX_VALUE);
+        max.set(0);
+    }
+}
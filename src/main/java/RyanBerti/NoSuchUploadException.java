@@ -0,0 +1,14 @@
+package RyanBerti;
+
+import java.io.IOException;
+
+/**
+ * Thrown by an UploadTarget for an upload id it doesn't know (anymore): the upload was completed, or
+ * the target expired it (S3's NoSuchUpload)
+ */
+public class NoSuchUploadException extends IOException {
+
+    public NoSuchUploadException(String uploadId) {
+        super("No such upload " + uploadId);
+    }
+}
@@ -0,0 +1,181 @@
+package RyanBerti;
+
+import com.github.pires.obd.commands.ObdCommand;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Groups up to six mode 01 ObdCommands into a single multi-PID request (ie "01 0C 0D 05"), which
+ * costs one adapter round trip instead of one per command. The multi-PID response is split back
+ * into the individual PID responses, which are then run through the original ObdCommand instances
+ * so their results can be read as if each command had been sent on its own
+ */
+class ObdBatchCommand {
+
+    /**
+     * The maximum number of PIDs the J1979 spec allows in a single mode 01 request
+     */
+    static final int MAX_PIDS = 6;
+
+    private final List<ObdCommand> commands;
+    private final int[] pids;
+    private final String request;
+    private boolean rejected = false;
+
+    /**
+     * @param commands the mode 01 commands to batch; at most MAX_PIDS, each with a known data length
+     */
+    ObdBatchCommand(List<ObdCommand> commands) {
+
+        if (commands.isEmpty() || commands.size() > MAX_PIDS)
+            throw new IllegalArgumentException("A batch must contain between 1 and " + MAX_PIDS + " commands");
+
+        this.commands = new ArrayList<>(commands);
+        this.pids = new int[commands.size()];
+
+        StringBuilder sb = new StringBuilder("01");
+        for (int i = 0; i < pids.length; i++) {
+            pids[i] = ObdPid.pidOf(commands.get(i));
+            if (ObdPid.dataLength(pids[i]) == 0)
+                throw new IllegalArgumentException(commands.get(i).getCommandPID() + " can't be batched");
+            sb.append(' ').append(ObdPid.toHex(pids[i]));
+        }
+        this.request = sb.toString();
+    }
+
+    /**
+     * Split the given commands into batches of up to MAX_PIDS commands; commands whose PID data length
+     * is unknown can't be demultiplexed and are left out
+     * @param commands the commands to batch
+     * @param unbatchable receives the commands that couldn't be batched
+     * @return the batches, in command order
+     */
+    static List<ObdBatchCommand> createBatches(List<ObdCommand> commands, List<ObdCommand> unbatchable) {
+
+        List<ObdBatchCommand> batches = new ArrayList<>();
+        List<ObdCommand> current = new ArrayList<>();
+
+        for (ObdCommand command : commands) {
+            if (ObdPid.dataLength(ObdPid.pidOf(command)) == 0) {
+                unbatchable.add(command);
+                continue;
+            }
+            current.add(command);
+            if (current.size() == MAX_PIDS) {
+                batches.add(new ObdBatchCommand(current));
+                current.clear();
+            }
+        }
+
+        if (!current.isEmpty())
+            batches.add(new ObdBatchCommand(current));
+
+        return batches;
+    }
+
+    /**
+     * Send the multi-PID request and hand each PID's part of the response to its ObdCommand
+     * @param is the adapter's input stream
+     * @param os the adapter's output stream
+     * @return the commands that didn't get a response; all of them if the request was rejected or the
+     * vehicle didn't answer
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    List<ObdCommand> run(InputStream is, OutputStream os) throws IOException, InterruptedException {
+
+        String response = ElmIO.send(is, os, request);
+        rejected = ElmIO.isRejected(response);
+        if (ElmIO.isError(response))
+            return Collections.unmodifiableList(commands);
+
+        Map<Integer, int[]> responses = demultiplex(response);
+        List<ObdCommand> missing = new ArrayList<>();
+
+        for (int i = 0; i < pids.length; i++) {
+            int[] data = responses.get(pids[i]);
+            if (data == null) {
+                missing.add(commands.get(i));
+                continue;
+            }
+
+            StringBuilder single = new StringBuilder("41 ").append(ObdPid.toHex(pids[i]));
+            for (int b : data)
+                single.append(' ').append(ObdPid.toHex(b));
+            single.append("\r\r>");
+
+            commands.get(i).run(new ByteArrayInputStream(single.toString().getBytes()), ElmIO.NULL_OUTPUT);
+        }
+
+        return missing;
+    }
+
+    /**
+     * @return true if the adapter didn't understand the last multi-PID request ('?'); a NO DATA
+     * answer (ie while ECUs are waking up) doesn't count
+     */
+    boolean wasRejected() {
+        return rejected;
+    }
+
+    /**
+     * Split a multi-PID response into the data bytes of each PID; when several ECUs answer, the first
+     * answer for a PID wins
+     * @param response the response as returned by the adapter
+     * @return map of PID number to that PID's data bytes
+     */
+    static Map<Integer, int[]> demultiplex(String response) {
+
+        Map<Integer, int[]> responses = new HashMap<>();
+
+        for (int[] message : ElmIO.parseMessages(response)) {
+            if (message.length < 2 || message[0] != 0x41)
+                continue;
+
+            int pos = 1;
+            while (pos < message.length) {
+                int pid = message[pos];
+                int length = ObdPid.dataLength(pid);
+                if (length == 0 || pos + 1 + length > message.length)
+                    break;
+                if (!responses.containsKey(pid)) {
+                    int[] data = new int[length];
+                    System.arraycopy(message, pos + 1, data, 0, length);
+                    responses.put(pid, data);
+                }
+                pos += 1 + length;
+            }
+        }
+
+        return responses;
+    }
+
+    /**
+     * @return the commands in this batch
+     */
+    List<ObdCommand> getCommands() {
+        return Collections.unmodifiableList(commands);
+    }
+
+    /**
+     * @return the PID of each command in this batch
+     */
+    int[] getPids() {
+        return pids.clone();
+    }
+
+    /**
+     * @return the multi-PID request this batch sends, without the trailing carriage return
+     */
+    String getRequest() {
+        return request;
+    }
+}
@@ -0,0 +1,175 @@
+package RyanBerti;
+
+import com.github.pires.obd.commands.ObdCommand;
+import com.github.pires.obd.commands.engine.AbsoluteLoadCommand;
+import com.github.pires.obd.commands.engine.LoadCommand;
+import com.github.pires.obd.commands.engine.MassAirFlowCommand;
+import com.github.pires.obd.commands.engine.OilTempCommand;
+import com.github.pires.obd.commands.engine.RPMCommand;
+import com.github.pires.obd.commands.engine.RuntimeCommand;
+import com.github.pires.obd.commands.engine.ThrottlePositionCommand;
+import com.github.pires.obd.commands.fuel.AirFuelRatioCommand;
+import com.github.pires.obd.commands.fuel.ConsumptionRateCommand;
+import com.github.pires.obd.commands.fuel.FindFuelTypeCommand;
+import com.github.pires.obd.commands.fuel.FuelLevelCommand;
+import com.github.pires.obd.commands.fuel.FuelTrimCommand;
+import com.github.pires.obd.commands.fuel.WidebandAirFuelRatioCommand;
+import com.github.pires.obd.commands.pressure.BarometricPressureCommand;
+import com.github.pires.obd.commands.pressure.FuelPressureCommand;
+import com.github.pires.obd.commands.pressure.FuelRailPressureCommand;
+import com.github.pires.obd.commands.pressure.IntakeManifoldPressureCommand;
+import com.github.pires.obd.commands.temperature.AirIntakeTemperatureCommand;
+import com.github.pires.obd.commands.temperature.AmbientAirTemperatureCommand;
+import com.github.pires.obd.commands.temperature.EngineCoolantTemperatureCommand;
+import com.github.pires.obd.enums.FuelTrim;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Static table of the live data commands defined by the obd-java-api library, keyed by mode and PID.
+ * The table is compiled in with the rest of the project, so finding and creating commands is a
+ * lookup and a constructor call rather than a classpath scan and reflective instantiation; when the
+ * obd-java-api version in the pom.xml is bumped, new commands need to be declared here
+ */
+final class ObdCommandRegistry {
+
+    /**
+     * The obd-java-api package a command comes from; entries are listed (and discovered) in this order
+     */
+    enum Group { ENGINE, FUEL, PRESSURE, TEMPERATURE }
+
+    /**
+     * A single command type the registry knows how to create
+     */
+    static final class Entry {
+
+        private final Group group;
+        private final int mode;
+        private final int pid;
+        private final String name;
+        private final Supplier<? extends ObdCommand> factory;
+
+        private Entry(Group group, int mode, int pid, Class<? extends ObdCommand> type, String variant,
+                      Supplier<? extends ObdCommand> factory) {
+            this.group = group;
+            this.mode = mode;
+            this.pid = pid;
+            this.name = variant == null ? type.toString() : type.toString() + "(" + variant + ")";
+            this.factory = factory;
+        }
+
+        /**
+         * @return a new instance of the command
+         */
+        ObdCommand newCommand() {
+            return factory.get();
+        }
+
+        Group getGroup() {
+            return group;
+        }
+
+        int getMode() {
+            return mode;
+        }
+
+        int getPid() {
+            return pid;
+        }
+
+        /**
+         * @return unique key of the entry, see ObdCommandRegistry.key
+         */
+        int getKey() {
+            return key(mode, pid);
+        }
+
+        /**
+         * @return the command's class name (ie "class com.github.pires.obd.commands.engine.RPMCommand"),
+         * followed by the constructor argument for commands that take one
+         */
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    private static final List<Entry> ENTRIES;
+    private static final Map<Integer, Entry> BY_KEY;
+
+    static {
+        List<Entry> entries = new ArrayList<>();
+
+        add(entries, Group.ENGINE, 0x04, LoadCommand.class, LoadCommand::new);
+        add(entries, Group.ENGINE, 0x0C, RPMCommand.class, RPMCommand::new);
+        add(entries, Group.ENGINE, 0x10, MassAirFlowCommand.class, MassAirFlowCommand::new);
+        add(entries, Group.ENGINE, 0x11, ThrottlePositionCommand.class, ThrottlePositionCommand::new);
+        add(entries, Group.ENGINE, 0x1F, RuntimeCommand.class, RuntimeCommand::new);
+        add(entries, Group.ENGINE, 0x43, AbsoluteLoadCommand.class, AbsoluteLoadCommand::new);
+        add(entries, Group.ENGINE, 0x5C, OilTempCommand.class, OilTempCommand::new);
+
+        for (FuelTrim bank : FuelTrim.values())
+            entries.add(new Entry(Group.FUEL, 0x01, bank.getValue(), FuelTrimCommand.class, bank.name(),
+                    () -> new FuelTrimCommand(bank)));
+        add(entries, Group.FUEL, 0x2F, FuelLevelCommand.class, FuelLevelCommand::new);
+        add(entries, Group.FUEL, 0x34, WidebandAirFuelRatioCommand.class, WidebandAirFuelRatioCommand::new);
+        add(entries, Group.FUEL, 0x44, AirFuelRatioCommand.class, AirFuelRatioCommand::new);
+        add(entries, Group.FUEL, 0x51, FindFuelTypeCommand.class, FindFuelTypeCommand::new);
+        add(entries, Group.FUEL, 0x5E, ConsumptionRateCommand.class, ConsumptionRateCommand::new);
+
+        add(entries, Group.PRESSURE, 0x0A, FuelPressureCommand.class, FuelPressureCommand::new);
+        add(entries, Group.PRESSURE, 0x0B, IntakeManifoldPressureCommand.class, IntakeManifoldPressureCommand::new);
+        add(entries, Group.PRESSURE, 0x23, FuelRailPressureCommand.class, FuelRailPressureCommand::new);
+        add(entries, Group.PRESSURE, 0x33, BarometricPressureCommand.class, BarometricPressureCommand::new);
+
+        add(entries, Group.TEMPERATURE, 0x05, EngineCoolantTemperatureCommand.class, EngineCoolantTemperatureCommand::new);
+        add(entries, Group.TEMPERATURE, 0x0F, AirIntakeTemperatureCommand.class, AirIntakeTemperatureCommand::new);
+        add(entries, Group.TEMPERATURE, 0x46, AmbientAirTemperatureCommand.class, AmbientAirTemperatureCommand::new);
+
+        Map<Integer, Entry> byKey = new HashMap<>();
+        for (Entry entry : entries) {
+            if (byKey.put(entry.getKey(), entry) != null)
+                throw new IllegalStateException("Duplicate registry entry for " + entry);
+        }
+
+        ENTRIES = Collections.unmodifiableList(entries);
+        BY_KEY = Collections.unmodifiableMap(byKey);
+    }
+
+    private ObdCommandRegistry() {}
+
+    private static void add(List<Entry> entries, Group group, int pid, Class<? extends ObdCommand> type,
+                            Supplier<? extends ObdCommand> factory) {
+        entries.add(new Entry(group, 0x01, pid, type, null, factory));
+    }
+
+    /**
+     * @param mode the OBD mode
+     * @param pid the PID number
+     * @return the key entries are stored under
+     */
+    static int key(int mode, int pid) {
+        return (mode << 8) | pid;
+    }
+
+    /**
+     * @return every registered command, ordered by group and then PID
+     */
+    static List<Entry> getEntries() {
+        return ENTRIES;
+    }
+
+    /**
+     * @param mode the OBD mode
+     * @param pid the PID number
+     * @return the entry for the given mode and PID, or null if there isn't one
+     */
+    static Entry get(int mode, int pid) {
+        return BY_KEY.get(key(mode, pid));
+    }
+}
@@ -0,0 +1,286 @@
+package RyanBerti;
+
+import java.io.Closeable;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Polls many wifi OBD2 adapters concurrently from a single ElmEventLoop thread. Each adapter cycles
+ * through its own list of poll requests (ie multi-PID requests), with at most maxInFlight requests
+ * handed to its channel at a time (the ELM327 answers one command at a time, so 1 keeps the adapter
+ * idle only for the loop's turnaround and 2 queues the next request ahead of the prompt). Responses
+ * are delivered through a bounded queue; when the consumer falls behind and the queue fills up, the
+ * adapters that can't deliver stop polling until it drains, so memory stays bounded and nothing is
+ * dropped
+ */
+public class ObdFleet implements Closeable {
+
+    /**
+     * A response received from one of the fleet's adapters
+     */
+    public static final class FleetResponse {
+
+        private final int adapter;
+        private final String request;
+        private final String response;
+        private final long receivedNanos;
+
+        FleetResponse(int adapter, String request, String response, long receivedNanos) {
+            this.adapter = adapter;
+            this.request = request;
+            this.response = response;
+            this.receivedNanos = receivedNanos;
+        }
+
+        /**
+         * @return the index of the adapter, as returned by addAdapter
+         */
+        public int getAdapter() {
+            return adapter;
+        }
+
+        public String getRequest() {
+            return request;
+        }
+
+        /**
+         * @return the response up to (excluding) the '>' prompt
+         */
+        public String getResponse() {
+            return response;
+        }
+
+        /**
+         * @return System.nanoTime() when the response's prompt arrived
+         */
+        public long getReceivedNanos() {
+            return receivedNanos;
+        }
+    }
+
+    private final class Adapter {
+
+        final int index;
+        final ElmChannel channel;
+        final String[] requests;
+        int next = 0;
+        int outstanding = 0;
+        FleetResponse blocked;
+        final AtomicLong samples = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+
+        Adapter(int index, ElmChannel channel, List<String> requests) {
+            this.index = index;
+            this.channel = channel;
+            this.requests = requests.toArray(new String[requests.size()]);
+        }
+
+        // loop thread only
+        void issue() {
+            while (running && blocked == null && outstanding < maxInFlight) {
+                int r = next;
+                next = (next + 1) % requests.length;
+                outstanding++;
+                channel.send(requests[r]).whenComplete((response, error) -> complete(r, response, error));
+            }
+        }
+
+        // loop thread only
+        private void complete(int r, String response, Throwable error) {
+            outstanding--;
+            if (error != null || ElmIO.isError(response)) {
+                errors.incrementAndGet();
+            } else {
+                int values = countValues(response);
+                samples.addAndGet(values);
+                totalSamples.addAndGet(values);
+                FleetResponse fr = new FleetResponse(index, requests[r], response, System.nanoTime());
+                if (!responses.offer(fr)) {
+                    blocked = fr;
+                    blockedAdapters.incrementAndGet();
+                    backpressureEvents.incrementAndGet();
+                    return;
+                }
+            }
+            issue();
+        }
+
+        // loop thread only
+        void unblock() {
+            if (blocked != null && responses.offer(blocked)) {
+                blocked = null;
+                blockedAdapters.decrementAndGet();
+                issue();
+            }
+        }
+    }
+
+    public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 1000;
+    public static final int DEFAULT_READ_TIMEOUT_MILLIS = 1000;
+
+    private final ElmEventLoop loop;
+    private final int maxInFlight;
+    private int connectTimeoutMillis = DEFAULT_CONNECT_TIMEOUT_MILLIS;
+    private int readTimeoutMillis = DEFAULT_READ_TIMEOUT_MILLIS;
+    private final BlockingQueue<FleetResponse> responses;
+    private final List<Adapter> adapters = new ArrayList<>();
+
+    private volatile boolean running = false;
+    private final AtomicInteger blockedAdapters = new AtomicInteger();
+    private final AtomicLong backpressureEvents = new AtomicLong();
+    private final AtomicLong totalSamples = new AtomicLong();
+    private volatile long startNanos;
+
+    /**
+     * @param loop the event loop that drives the adapters' channels
+     * @param maxInFlight the maximum number of requests handed to an adapter's channel at a time
+     * @param responseCapacity the capacity of the response queue; when it is full, polling pauses
+     */
+    public ObdFleet(ElmEventLoop loop, int maxInFlight, int responseCapacity) {
+        if (maxInFlight < 1)
+            throw new IllegalArgumentException("maxInFlight must be at least 1");
+        this.loop = loop;
+        this.maxInFlight = maxInFlight;
+        this.responses = new ArrayBlockingQueue<>(responseCapacity);
+    }
+
+    /**
+     * Set the timeouts of the adapters added from now on (see ElmEventLoop.open)
+     * @param connectTimeoutMillis how long a connection attempt may take
+     * @param readTimeoutMillis how long an adapter may take to send the '>' prompt after a request
+     */
+    public synchronized void setTimeouts(int connectTimeoutMillis, int readTimeoutMillis) {
+        if (connectTimeoutMillis <= 0 || readTimeoutMillis <= 0)
+            throw new IllegalArgumentException("Timeouts must be positive");
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.readTimeoutMillis = readTimeoutMillis;
+    }
+
+    /**
+     * Add an adapter to the fleet; must be called before start
+     * @param address the adapter's address
+     * @param setupRequests requests replayed every time the adapter (re)connects (ie "AT E0", "AT L0")
+     * @param pollRequests the requests the adapter cycles through (ie "01 0C 0D 05 0F 11 10")
+     * @return the adapter's index, as reported by FleetResponse.getAdapter
+     */
+    public synchronized int addAdapter(InetSocketAddress address, List<String> setupRequests, List<String> pollRequests) {
+        if (running)
+            throw new IllegalStateException("Adapters must be added before the fleet is started");
+        if (pollRequests.isEmpty())
+            throw new IllegalArgumentException("An adapter needs at least one poll request");
+        ElmChannel channel = loop.open(address, connectTimeoutMillis, readTimeoutMillis);
+        channel.setInitRequests(setupRequests);
+        adapters.add(new Adapter(adapters.size(), channel, pollRequests));
+        return adapters.size() - 1;
+    }
+
+    /**
+     * Start polling every adapter
+     */
+    public synchronized void start() {
+        running = true;
+        startNanos = System.nanoTime();
+        totalSamples.set(0);
+        for (Adapter adapter : adapters)
+            loop.execute(adapter::issue);
+    }
+
+    /**
+     * Stop issuing new requests; requests already handed to the channels still complete
+     */
+    public void stop() {
+        running = false;
+    }
+
+    /**
+     * Take the next response, waiting up to the given time for one to arrive
+     * @return the response, or null if none arrived in time
+     * @throws InterruptedException
+     */
+    public FleetResponse poll(long timeout, TimeUnit unit) throws InterruptedException {
+        FleetResponse response = responses.poll(timeout, unit);
+        if (response != null && blockedAdapters.get() > 0)
+            loop.execute(this::unblockAdapters);
+        return response;
+    }
+
+    /**
+     * Count the PID values in a mode 01 response: the PIDs the ECUs answered, not the ones requested
+     * (multi-PID answers leave unsupported PIDs out)
+     * @param response the response up to the '>' prompt
+     * @return the number of PID values; PIDs of unknown length end the count of their message
+     */
+    static int countValues(String response) {
+        int count = 0;
+        for (int[] message : ElmIO.parseMessages(response)) {
+            if (message.length == 0 || message[0] != 0x41)
+                continue;
+            int i = 1;
+            while (i < message.length) {
+                int length = ObdPid.dataLength(message[i]);
+                if (length == 0 || i + 1 + length > message.length)
+                    break;
+                count++;
+                i += 1 + length;
+            }
+        }
+        return count;
+    }
+
+    private void unblockAdapters() {
+        for (Adapter adapter : adapters)
+            adapter.unblock();
+    }
+
+    /**
+     * @return number of responses waiting to be taken
+     */
+    public int getQueueDepth() {
+        return responses.size();
+    }
+
+    /**
+     * @return number of times an adapter paused polling because the response queue was full
+     */
+    public long getBackpressureEvents() {
+        return backpressureEvents.get();
+    }
+
+    /**
+     * @return samples (PID values) received across all adapters per second since start
+     */
+    public double getSamplesPerSecond() {
+        long elapsed = System.nanoTime() - startNanos;
+        return elapsed <= 0 ? 0 : totalSamples.get() * 1e9 / elapsed;
+    }
+
+    /**
+     * @return samples (PID values) received from the given adapter since it was added
+     */
+    public long getSampleCount(int adapter) {
+        return adapters.get(adapter).samples.get();
+    }
+
+    /**
+     * @return failed or NO DATA responses from the given adapter since it was added
+     */
+    public long getErrorCount(int adapter) {
+        return adapters.get(adapter).errors.get();
+    }
+
+    /**
+     * Stop polling and close every adapter's channel; the event loop is left running
+     */
+    @Override
+    public synchronized void close() {
+        stop();
+        for (Adapter adapter : adapters)
+            adapter.channel.close();
+    }
+}
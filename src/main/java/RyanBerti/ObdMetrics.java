@@ -0,0 +1,54 @@
+package RyanBerti;
+
+/**
+ * Receives measurements of every adapter round trip JavaObdReader makes while polling (see
+ * JavaObdReader.setMetrics); PollMetrics is the built-in implementation. Methods are called on the
+ * polling thread, so implementations must be quick and shouldn't allocate
+ */
+public interface ObdMetrics {
+
+    /**
+     * How a request or a PID within it ended
+     */
+    enum Outcome {
+        /** data was returned */
+        ANSWERED,
+        /** the vehicle didn't answer (NO DATA, or the PID was missing from a multi-PID response) */
+        NO_DATA,
+        /** the adapter returned an error ("?", CAN ERROR, ...) or the response couldn't be parsed */
+        ERROR,
+        /** no complete response arrived within the stream's read timeout */
+        TIMEOUT
+    }
+
+    /**
+     * Metrics that discard everything; the default
+     */
+    ObdMetrics NONE = new ObdMetrics() {};
+
+    /**
+     * Called for every PID of a request once its response has been read
+     * @param pid the mode 01 PID
+     * @param nanos the round trip time of the request carrying the PID
+     * @param outcome whether the PID got a value
+     */
+    default void pidCompleted(int pid, long nanos, Outcome outcome) {}
+
+    /**
+     * Called for every request once its response has been read
+     * @param pidCount the number of PIDs in the request
+     * @param nanos the time from writing the request to reading the prompt that ends its response
+     * @param bytesSent the bytes of the request, carriage return included
+     * @param bytesReceived the bytes of the response, prompt included
+     * @param outcome how the request ended
+     */
+    default void requestCompleted(int pidCount, long nanos, long bytesSent, long bytesReceived, Outcome outcome) {}
+
+    /**
+     * Called at the end of every poll cycle
+     * @param nanos the duration of the cycle
+     * @param commands the number of commands polled
+     * @param answered the number of commands that got a value
+     */
+    default void cycleCompleted(long nanos, int commands, int answered) {}
+}
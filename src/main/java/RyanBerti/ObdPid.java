@@ -0,0 +1,186 @@
+package RyanBerti;
+
+import com.github.pires.obd.commands.ObdCommand;
+
+/**
+ * Static knowledge about the SAE J1979 mode 01 (current data) PIDs that the obd-java-api commands
+ * request; mainly the number of data bytes each PID returns, which is what allows a multi-PID
+ * response to be split back into its individual PID responses
+ */
+final class ObdPid {
+
+    /**
+     * Number of data bytes returned for each mode 01 PID (0x00 - 0x5F); 0 means unknown
+     */
+    private static final int[] MODE_01_DATA_BYTES = {
+            /* 0x00 */ 4, 4, 2, 2, 1, 1, 1, 1, 1, 1, 1, 1, 2, 1, 1, 1,
+            /* 0x10 */ 2, 1, 1, 1, 2, 2, 2, 2, 2, 2, 2, 2, 1, 1, 1, 2,
+            /* 0x20 */ 4, 2, 2, 2, 4, 4, 4, 4, 4, 4, 4, 4, 1, 1, 1, 1,
+            /* 0x30 */ 1, 2, 2, 1, 4, 4, 4, 4, 4, 4, 4, 4, 2, 2, 2, 2,
+            /* 0x40 */ 4, 4, 2, 2, 2, 1, 1, 1, 1, 1, 1, 1, 1, 2, 2, 4,
+            /* 0x50 */ 4, 1, 1, 2, 2, 2, 2, 2, 2, 2, 1, 1, 1, 2, 2, 1
+    };
+
+    private ObdPid() {}
+
+    /**
+     * Get the number of data bytes the given mode 01 PID returns
+     * @param pid the PID number
+     * @return number of data bytes, or 0 if the length of the PID is unknown
+     */
+    static int dataLength(int pid) {
+        if (pid < 0 || pid >= MODE_01_DATA_BYTES.length)
+            return 0;
+        return MODE_01_DATA_BYTES[pid];
+    }
+
+    /**
+     * Decode the data bytes of a mode 01 PID into its value, using the SAE J1979 scaling; PIDs without
+     * a known scaling decode to their data bytes read as a big endian unsigned integer
+     * @param pid the PID number
+     * @param data array holding the PID's data bytes (one byte per element)
+     * @param offset offset of the first data byte (A)
+     * @return the value, in the unit returned by unit(pid)
+     */
+    static double decode(int pid, int[] data, int offset) {
+
+        int a = data[offset];
+        int ab = dataLength(pid) >= 2 ? (a << 8) | data[offset + 1] : a;
+
+        switch (pid) {
+            case 0x04: // engine load
+            case 0x11: // throttle position
+            case 0x2F: // fuel level
+                return a * 100.0 / 255.0;
+            case 0x05: // coolant temperature
+            case 0x0F: // intake air temperature
+            case 0x46: // ambient air temperature
+            case 0x5C: // oil temperature
+                return a - 40;
+            case 0x06: // fuel trims
+            case 0x07:
+            case 0x08:
+            case 0x09:
+                return (a - 128) * 100.0 / 128.0;
+            case 0x0A: // fuel pressure
+                return a * 3;
+            case 0x0B: // intake manifold pressure
+            case 0x0D: // speed
+            case 0x33: // barometric pressure
+            case 0x51: // fuel type
+                return a;
+            case 0x0C: // rpm
+                return ab / 4.0;
+            case 0x0E: // timing advance
+                return a / 2.0 - 64;
+            case 0x10: // mass air flow
+                return ab / 100.0;
+            case 0x22: // fuel rail pressure (relative to manifold vacuum)
+                return ab * 0.079;
+            case 0x23: // fuel rail gauge pressure
+                return ab * 10;
+            case 0x34: // wideband equivalence ratio
+            case 0x44: // commanded equivalence ratio
+                return ab * 2.0 / 65536.0;
+            case 0x43: // absolute load
+                return ab * 100.0 / 255.0;
+            case 0x5E: // fuel rate
+                return ab / 20.0;
+            default:
+                long value = 0;
+                for (int i = 0; i < dataLength(pid); i++)
+                    value = (value << 8) | data[offset + i];
+                return value;
+        }
+    }
+
+    /**
+     * Get the smallest step between the values decode returns for the given PID (the value of one
+     * unit of the least significant data byte), so values can be stored as exact integer multiples of it
+     * @param pid the PID number
+     * @return the resolution, in the unit returned by unit(pid)
+     */
+    static double resolution(int pid) {
+        switch (pid) {
+            case 0x04: case 0x11: case 0x2F: case 0x43:
+                return 100.0 / 255.0;
+            case 0x06: case 0x07: case 0x08: case 0x09:
+                return 100.0 / 128.0;
+            case 0x0A:
+                return 3;
+            case 0x0C:
+                return 0.25;
+            case 0x0E:
+                return 0.5;
+            case 0x10:
+                return 0.01;
+            case 0x22:
+                return 0.079;
+            case 0x23:
+                return 10;
+            case 0x34: case 0x44:
+                return 2.0 / 65536.0;
+            case 0x5E:
+                return 0.05;
+            default:
+                return 1;
+        }
+    }
+
+    /**
+     * Get the unit of the values returned by decode for the given PID
+     * @param pid the PID number
+     * @return the unit, or an empty string for unitless values
+     */
+    static String unit(int pid) {
+        switch (pid) {
+            case 0x04: case 0x06: case 0x07: case 0x08: case 0x09: case 0x11: case 0x2F: case 0x43:
+                return "%";
+            case 0x05: case 0x0F: case 0x46: case 0x5C:
+                return "C";
+            case 0x0A: case 0x0B: case 0x22: case 0x23: case 0x33:
+                return "kPa";
+            case 0x0C:
+                return "rpm";
+            case 0x0D:
+                return "km/h";
+            case 0x0E:
+                return "deg";
+            case 0x10:
+                return "g/s";
+            case 0x1F:
+                return "s";
+            case 0x21: case 0x31:
+                return "km";
+            case 0x5E:
+                return "L/h";
+            default:
+                return "";
+        }
+    }
+
+    /**
+     * Get the PID number requested by the given command (ie 0x0C for "01 0C")
+     * @param command the ObdCommand instance
+     * @return the PID number, or -1 if the command's PID isn't a single hex byte
+     */
+    static int pidOf(ObdCommand command) {
+        String pid = command.getCommandPID().trim();
+        if (pid.length() != 2)
+            return -1;
+        try {
+            return Integer.parseInt(pid, 16);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Format the given PID number the way the ELM327 expects it (two upper case hex digits)
+     * @param pid the PID number
+     * @return the formatted PID
+     */
+    static String toHex(int pid) {
+        return String.format("%02X", pid & 0xFF);
+    }
+}
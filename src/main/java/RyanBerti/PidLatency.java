@@ -0,0 +1,81 @@
+package RyanBerti;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * Snapshot of the round trip statistics of one PID, as shown by the PollMetrics JMX view; times are in
+ * milliseconds, rates are shares of the PID's requests
+ */
+public class PidLatency {
+
+    private final String pid;
+    private final long count;
+    private final double meanMillis;
+    private final double p50Millis;
+    private final double p99Millis;
+    private final double maxMillis;
+    private final double noDataRate;
+    private final double errorRate;
+    private final double timeoutRate;
+
+    @ConstructorProperties({"pid", "count", "meanMillis", "p50Millis", "p99Millis", "maxMillis", "noDataRate",
+            "errorRate", "timeoutRate"})
+    public PidLatency(String pid, long count, double meanMillis, double p50Millis, double p99Millis, double maxMillis,
+                      double noDataRate, double errorRate, double timeoutRate) {
+        this.pid = pid;
+        this.count = count;
+        this.meanMillis = meanMillis;
+        this.p50Millis = p50Millis;
+        this.p99Millis = p99Millis;
+        this.maxMillis = maxMillis;
+        this.noDataRate = noDataRate;
+        this.errorRate = errorRate;
+        this.timeoutRate = timeoutRate;
+    }
+
+    /**
+     * @return the PID as two hex digits, ie "0C"
+     */
+    public String getPid() {
+        return pid;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getMeanMillis() {
+        return meanMillis;
+    }
+
+    public double getP50Millis() {
+        return p50Millis;
+    }
+
+    public double getP99Millis() {
+        return p99Millis;
+    }
+
+    public double getMaxMillis() {
+        return maxMillis;
+    }
+
+    public double getNoDataRate() {
+        return noDataRate;
+    }
+
+    public double getErrorRate() {
+        return errorRate;
+    }
+
+    public double getTimeoutRate() {
+        return timeoutRate;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: %d requests, mean %.2f ms, p50 %.2f ms, p99 %.2f ms, max %.2f ms, " +
+                "no data %.1f%%, errors %.1f%%, timeouts %.1f%%", pid, count, meanMillis, p50Millis, p99Millis,
+                maxMillis, noDataRate * 100, errorRate * 100, timeoutRate * 100);
+    }
+}
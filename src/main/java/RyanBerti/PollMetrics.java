@@ -0,0 +1,237 @@
+package RyanBerti;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * ObdMetrics implementation keeping a LatencyHistogram per PID (created the first time the PID is
+ * polled), per PID NO DATA, error and timeout counts, and link level figures: request and cycle time
+ * histograms, bytes sent and received, and the link utilization (the share of wall time the adapter
+ * spent on requests). Everything is readable while polling runs, directly or over JMX once the
+ * instance is registered, to find the PIDs (and so ECUs) that slow a poll cycle down
+ */
+public class PollMetrics implements ObdMetrics, PollMetricsMXBean {
+
+    private static final double NANOS_PER_MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final AtomicReferenceArray<LatencyHistogram> pidTimes = new AtomicReferenceArray<>(0x100);
+    private final AtomicLongArray pidNoData = new AtomicLongArray(0x100);
+    private final AtomicLongArray pidErrors = new AtomicLongArray(0x100);
+    private final AtomicLongArray pidTimeouts = new AtomicLongArray(0x100);
+
+    private final LatencyHistogram requestTimes = new LatencyHistogram();
+    private final LatencyHistogram cycleTimes = new LatencyHistogram();
+    private final AtomicLong noData = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicLong busyNanos = new AtomicLong();
+    private volatile long startNanos = System.nanoTime();
+
+    private ObjectName objectName;
+
+    @Override
+    public void pidCompleted(int pid, long nanos, Outcome outcome) {
+        int p = pid & 0xFF;
+        LatencyHistogram histogram = pidTimes.get(p);
+        if (histogram == null) {
+            pidTimes.compareAndSet(p, null, new LatencyHistogram());
+            histogram = pidTimes.get(p);
+        }
+        histogram.record(nanos);
+        if (outcome == Outcome.NO_DATA)
+            pidNoData.incrementAndGet(p);
+        else if (outcome == Outcome.ERROR)
+            pidErrors.incrementAndGet(p);
+        else if (outcome == Outcome.TIMEOUT)
+            pidTimeouts.incrementAndGet(p);
+    }
+
+    @Override
+    public void requestCompleted(int pidCount, long nanos, long sent, long received, Outcome outcome) {
+        requestTimes.record(nanos);
+        busyNanos.addAndGet(nanos);
+        bytesSent.addAndGet(sent);
+        bytesReceived.addAndGet(received);
+        if (outcome == Outcome.NO_DATA)
+            noData.incrementAndGet();
+        else if (outcome == Outcome.ERROR)
+            errors.incrementAndGet();
+        else if (outcome == Outcome.TIMEOUT)
+            timeouts.incrementAndGet();
+    }
+
+    @Override
+    public void cycleCompleted(long nanos, int commands, int answered) {
+        cycleTimes.record(nanos);
+    }
+
+    /**
+     * @return the round trip times of the given PID, or null if it hasn't been polled
+     */
+    public LatencyHistogram getPidHistogram(int pid) {
+        return pidTimes.get(pid & 0xFF);
+    }
+
+    public LatencyHistogram getRequestHistogram() {
+        return requestTimes;
+    }
+
+    public LatencyHistogram getCycleHistogram() {
+        return cycleTimes;
+    }
+
+    @Override
+    public long getCycleCount() {
+        return cycleTimes.getCount();
+    }
+
+    @Override
+    public double getCycleTimeMeanMillis() {
+        return cycleTimes.getMean() / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double getCycleTimeP99Millis() {
+        return cycleTimes.getValueAtPercentile(99) / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double getCycleTimeMaxMillis() {
+        return cycleTimes.getMax() / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public long getRequestCount() {
+        return requestTimes.getCount();
+    }
+
+    @Override
+    public double getRequestTimeP50Millis() {
+        return requestTimes.getValueAtPercentile(50) / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double getRequestTimeP99Millis() {
+        return requestTimes.getValueAtPercentile(99) / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public long getNoDataCount() {
+        return noData.get();
+    }
+
+    @Override
+    public long getErrorCount() {
+        return errors.get();
+    }
+
+    @Override
+    public long getTimeoutCount() {
+        return timeouts.get();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    /**
+     * @return the bytes sent and received per second since the metrics were created or reset
+     */
+    @Override
+    public double getBytesPerSecond() {
+        long elapsed = System.nanoTime() - startNanos;
+        return elapsed <= 0 ? 0 : (bytesSent.get() + bytesReceived.get()) * 1e9 / elapsed;
+    }
+
+    /**
+     * @return the share (0 - 1) of the time since the metrics were created or reset that a request was
+     * outstanding; pipelined requests overlap, so the share can exceed 1 with pipelining
+     */
+    @Override
+    public double getLinkUtilization() {
+        long elapsed = System.nanoTime() - startNanos;
+        return elapsed <= 0 ? 0 : (double) busyNanos.get() / elapsed;
+    }
+
+    @Override
+    public PidLatency[] getPidLatencies() {
+        List<PidLatency> latencies = new ArrayList<>();
+        for (int pid = 0; pid < pidTimes.length(); pid++) {
+            LatencyHistogram h = pidTimes.get(pid);
+            if (h == null || h.getCount() == 0)
+                continue;
+            double n = h.getCount();
+            latencies.add(new PidLatency(ObdPid.toHex(pid), h.getCount(), h.getMean() / NANOS_PER_MILLI,
+                    h.getValueAtPercentile(50) / NANOS_PER_MILLI, h.getValueAtPercentile(99) / NANOS_PER_MILLI,
+                    h.getMax() / NANOS_PER_MILLI, pidNoData.get(pid) / n, pidErrors.get(pid) / n,
+                    pidTimeouts.get(pid) / n));
+        }
+        latencies.sort(Comparator.comparingDouble(PidLatency::getP99Millis).reversed());
+        return latencies.toArray(new PidLatency[latencies.size()]);
+    }
+
+    @Override
+    public void reset() {
+        for (int pid = 0; pid < pidTimes.length(); pid++) {
+            LatencyHistogram h = pidTimes.get(pid);
+            if (h != null)
+                h.reset();
+            pidNoData.set(pid, 0);
+            pidErrors.set(pid, 0);
+            pidTimeouts.set(pid, 0);
+        }
+        requestTimes.reset();
+        cycleTimes.reset();
+        noData.set(0);
+        errors.set(0);
+        timeouts.set(0);
+        bytesSent.set(0);
+        bytesReceived.set(0);
+        busyNanos.set(0);
+        startNanos = System.nanoTime();
+    }
+
+    /**
+     * Register the metrics with the platform MBean server, as RyanBerti:type=PollMetrics,name=&lt;name&gt;
+     * @param name identifies the reader, ie the adapter address or the VIN
+     * @return the name the metrics were registered under
+     * @throws JMException if the name is taken or invalid
+     */
+    public synchronized ObjectName register(String name) throws JMException {
+        unregister();
+        ObjectName on = new ObjectName("RyanBerti:type=PollMetrics,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, on);
+        objectName = on;
+        return on;
+    }
+
+    /**
+     * Remove the metrics from the platform MBean server, if registered
+     * @throws JMException
+     */
+    public synchronized void unregister() throws JMException {
+        if (objectName == null)
+            return;
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        if (server.isRegistered(objectName))
+            server.unregisterMBean(objectName);
+        objectName = null;
+    }
+}
@@ -0,0 +1,42 @@
+package RyanBerti;
+
+/**
+ * JMX view of a PollMetrics instance; times are in milliseconds
+ */
+public interface PollMetricsMXBean {
+
+    long getCycleCount();
+
+    double getCycleTimeMeanMillis();
+
+    double getCycleTimeP99Millis();
+
+    double getCycleTimeMaxMillis();
+
+    long getRequestCount();
+
+    double getRequestTimeP50Millis();
+
+    double getRequestTimeP99Millis();
+
+    long getNoDataCount();
+
+    long getErrorCount();
+
+    long getTimeoutCount();
+
+    long getBytesSent();
+
+    long getBytesReceived();
+
+    double getBytesPerSecond();
+
+    double getLinkUtilization();
+
+    /**
+     * @return the statistics of every PID polled, slowest (by 99th percentile) first
+     */
+    PidLatency[] getPidLatencies();
+
+    void reset();
+}
@@ -0,0 +1,214 @@
+package RyanBerti;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides which of a reader's commands to request each poll cycle, so that every PID is sampled at its
+ * own target rate rather than all PIDs at the rate of the slowest full cycle. Each command has a
+ * target rate (and optionally a priority); a command becomes due one period after its previous due
+ * time, and each cycle the due commands that are furthest behind (measured in periods, plus their
+ * priority) are selected, up to the per-cycle budget. When the link can't keep up with every target,
+ * the shortfall is spread across commands in proportion to their rates instead of starving the fast
+ * ones. Achieved rates are tracked so they can be compared against the targets
+ */
+public class PollScheduler {
+
+    private final int[] pids;
+    private final long[] periodNanos;
+    private final int[] priority;
+    private final long[] nextDueNanos;
+    private final long[] sampleCount;
+    private final long[] missCount;
+    private final double[] score;
+    private int maxPidsPerCycle = ObdBatchCommand.MAX_PIDS;
+    private boolean started = false;
+    private long startNanos;
+
+    /**
+     * @param pids the mode 01 PID of each command, in the reader's command order
+     * @param defaultRateHz the target rate of commands whose rate isn't set explicitly
+     */
+    public PollScheduler(int[] pids, double defaultRateHz) {
+        this.pids = pids.clone();
+        this.periodNanos = new long[pids.length];
+        this.priority = new int[pids.length];
+        this.nextDueNanos = new long[pids.length];
+        this.sampleCount = new long[pids.length];
+        this.missCount = new long[pids.length];
+        this.score = new double[pids.length];
+        Arrays.fill(periodNanos, toPeriod(defaultRateHz));
+    }
+
+    private static long toPeriod(double rateHz) {
+        if (rateHz <= 0)
+            throw new IllegalArgumentException("Rate must be positive");
+        return (long) (TimeUnit.SECONDS.toNanos(1) / rateHz);
+    }
+
+    /**
+     * Set the target sampling rate of the command(s) with the given PID
+     * @param pid the mode 01 PID (ie 0x0C for rpm)
+     * @param rateHz target samples per second
+     */
+    public void setTargetRate(int pid, double rateHz) {
+        long period = toPeriod(rateHz);
+        for (int i = 0; i < pids.length; i++) {
+            if (pids[i] == pid)
+                periodNanos[i] = period;
+        }
+    }
+
+    /**
+     * Set the priority of the command(s) with the given PID; when more commands are due than fit in a
+     * cycle, each priority point counts as being one more period behind
+     * @param pid the mode 01 PID
+     * @param priority the priority, 0 by default
+     */
+    public void setPriority(int pid, int priority) {
+        for (int i = 0; i < pids.length; i++) {
+            if (pids[i] == pid)
+                this.priority[i] = priority;
+        }
+    }
+
+    /**
+     * Set the maximum number of PIDs requested per cycle; defaults to one full multi-PID request
+     */
+    public void setMaxPidsPerCycle(int maxPidsPerCycle) {
+        if (maxPidsPerCycle < 1)
+            throw new IllegalArgumentException("At least one PID must be requested per cycle");
+        this.maxPidsPerCycle = maxPidsPerCycle;
+    }
+
+    /**
+     * Select the commands to request this cycle
+     * @param nowNanos the current System.nanoTime()
+     * @param selected receives the indices of the selected commands, most overdue first; must hold
+     *                 at least getMaxPidsPerCycle() elements
+     * @return the number of selected commands; 0 if nothing is due yet
+     */
+    public int selectDue(long nowNanos, int[] selected) {
+
+        if (!started) {
+            started = true;
+            startNanos = nowNanos;
+            Arrays.fill(nextDueNanos, nowNanos);
+        }
+
+        int count = 0;
+        for (int i = 0; i < pids.length; i++) {
+            long lateness = nowNanos - nextDueNanos[i];
+            if (lateness < 0)
+                continue;
+            double s = (double) lateness / periodNanos[i] + priority[i];
+
+            // insertion into the (small) selection, ordered by descending score
+            int pos = Math.min(count, maxPidsPerCycle);
+            while (pos > 0 && score[selected[pos - 1]] < s)
+                pos--;
+            if (pos >= maxPidsPerCycle)
+                continue;
+            int end = Math.min(count, maxPidsPerCycle - 1);
+            System.arraycopy(selected, pos, selected, pos + 1, end - pos);
+            selected[pos] = i;
+            score[i] = s;
+            count = Math.min(count + 1, maxPidsPerCycle);
+        }
+
+        return count;
+    }
+
+    /**
+     * Record that the given command was sampled, scheduling its next sample one period after its
+     * previous due time; a command that has fallen more than a period behind becomes due now rather
+     * than catching up with a burst of samples
+     * @param index the command index
+     * @param nowNanos the System.nanoTime() the sample was taken
+     */
+    public void recordSample(int index, long nowNanos) {
+        sampleCount[index]++;
+        long next = nextDueNanos[index] + periodNanos[index];
+        nextDueNanos[index] = next - nowNanos < 0 ? nowNanos : next;
+    }
+
+    /**
+     * Record that the given command was requested but didn't get a response; it is rescheduled like a
+     * sampled command, so a PID that stopped answering doesn't take up every cycle's budget
+     * @param index the command index
+     * @param nowNanos the System.nanoTime() the request completed
+     */
+    public void recordMiss(int index, long nowNanos) {
+        missCount[index]++;
+        long next = nextDueNanos[index] + periodNanos[index];
+        nextDueNanos[index] = next - nowNanos < 0 ? nowNanos : next;
+    }
+
+    /**
+     * @param index the command index
+     * @return the number of times the command was requested without getting a response
+     */
+    public long getMissCount(int index) {
+        return missCount[index];
+    }
+
+    /**
+     * @return the System.nanoTime() at which the next command becomes due
+     */
+    public long getNextDueNanos() {
+        long next = Long.MAX_VALUE;
+        for (long due : nextDueNanos)
+            next = Math.min(next, due);
+        return next;
+    }
+
+    public int getMaxPidsPerCycle() {
+        return maxPidsPerCycle;
+    }
+
+    /**
+     * @return the number of commands being scheduled
+     */
+    public int size() {
+        return pids.length;
+    }
+
+    /**
+     * @param index the command index
+     * @return the mode 01 PID of the command
+     */
+    public int getPid(int index) {
+        return pids[index];
+    }
+
+    /**
+     * @param index the command index
+     * @return the target samples per second of the command
+     */
+    public double getRequestedRate(int index) {
+        return (double) TimeUnit.SECONDS.toNanos(1) / periodNanos[index];
+    }
+
+    /**
+     * @param index the command index
+     * @param nowNanos the current System.nanoTime()
+     * @return the samples per second the command achieved since the first selectDue call
+     */
+    public double getAchievedRate(int index, long nowNanos) {
+        long elapsed = nowNanos - startNanos;
+        return !started || elapsed <= 0 ? 0 : sampleCount[index] * 1e9 / elapsed;
+    }
+
+    /**
+     * @param nowNanos the current System.nanoTime()
+     * @return one line per command with its requested and achieved rate
+     */
+    public String getRateReport(long nowNanos) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < pids.length; i++) {
+            sb.append(String.format("PID %s: requested %.2f Hz, achieved %.2f Hz%n",
+                    ObdPid.toHex(pids[i]), getRequestedRate(i), getAchievedRate(i, nowNanos)));
+        }
+        return sb.toString();
+    }
+}
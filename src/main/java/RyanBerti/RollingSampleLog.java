@@ -0,0 +1,137 @@
+package RyanBerti;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+/**
+ * SampleSink that writes samples into a directory of SampleLogWriter segments, closing the current
+ * segment and starting a new one once it reaches a size or covers a time span. The segment being
+ * written has an ".open" suffix; it is renamed to its final name when closed and handed to the
+ * SegmentUploader (if any). Segments left open by a crash are closed the same way when the log is
+ * created. Closing a segment syncs it to disk, so when polling mustn't wait for that, put an
+ * AsyncSampleWriter in front of the log
+ */
+public class RollingSampleLog implements SampleSink {
+
+    static final String OPEN_SUFFIX = ".open";
+
+    private final File directory;
+    private final String vin;
+    private final int[] pids;
+    private final String[] names;
+    private final long maxSegmentBytes;
+    private final long maxSegmentMillis;
+    private final SegmentUploader uploader;
+    private int blockSize = SampleLogWriter.DEFAULT_BLOCK_SIZE;
+
+    private SampleLogWriter current;
+    private File currentFile;
+    private long segmentStartMillis;
+    private long segmentCount = 0;
+
+    /**
+     * @param directory the segment directory; created if it doesn't exist
+     * @param vin the vehicle identification number, or null if unknown
+     * @param pids the mode 01 PID of each column
+     * @param names the name of each column
+     * @param maxSegmentBytes the size at which a segment is closed
+     * @param maxSegmentMillis the time span (of sample timestamps) after which a segment is closed
+     * @param uploader the uploader closed segments are handed to, or null
+     * @throws IOException if the directory can't be created or a segment left open can't be closed
+     */
+    public RollingSampleLog(File directory, String vin, int[] pids, String[] names, long maxSegmentBytes,
+                            long maxSegmentMillis, SegmentUploader uploader) throws IOException {
+
+        this.directory = directory;
+        this.vin = vin;
+        this.pids = pids.clone();
+        this.names = names.clone();
+        this.maxSegmentBytes = maxSegmentBytes;
+        this.maxSegmentMillis = maxSegmentMillis;
+        this.uploader = uploader;
+
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Couldn't create " + directory);
+
+        File[] leftovers = directory.listFiles((dir, name) -> name.endsWith(SegmentUploader.SEGMENT_SUFFIX + OPEN_SUFFIX));
+        if (leftovers != null) {
+            Arrays.sort(leftovers);
+            for (File open : leftovers) {
+                System.out.println("Closing segment " + open.getName() + " left open by a previous run");
+                finish(open);
+            }
+        }
+    }
+
+    /**
+     * Set the number of samples a column collects before a block is written, for segments started from
+     * now on; smaller blocks lose less on a crash and let the size limit be applied more precisely
+     */
+    public void setBlockSize(int blockSize) {
+        this.blockSize = blockSize;
+    }
+
+    @Override
+    public void addSamples(long timestampMillis, double[] values) throws IOException {
+        if (current != null && timestampMillis - segmentStartMillis >= maxSegmentMillis)
+            roll();
+        if (current == null) {
+            currentFile = new File(directory, String.format("obd-%013d%s%s", timestampMillis,
+                    SegmentUploader.SEGMENT_SUFFIX, OPEN_SUFFIX));
+            current = new SampleLogWriter(currentFile, vin, pids, names, blockSize);
+            segmentStartMillis = timestampMillis;
+        }
+        current.addSamples(timestampMillis, values);
+        if (current.getBytesWritten() >= maxSegmentBytes)
+            roll();
+    }
+
+    /**
+     * Close the current segment and hand it to the uploader; the next samples start a new segment
+     * @throws IOException
+     */
+    public void roll() throws IOException {
+        if (current == null)
+            return;
+        try {
+            current.close();
+        } finally {
+            current = null;
+        }
+        finish(currentFile);
+    }
+
+    private void finish(File open) throws IOException {
+        String name = open.getName();
+        File closed = new File(directory, name.substring(0, name.length() - OPEN_SUFFIX.length()));
+        Files.move(open.toPath(), closed.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        segmentCount++;
+        if (uploader != null)
+            uploader.enqueue(closed);
+    }
+
+    /**
+     * @return the number of segments closed since the log was created
+     */
+    public long getSegmentCount() {
+        return segmentCount;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (current != null)
+            current.flush();
+    }
+
+    /**
+     * Close the current segment; the uploader is left running
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        roll();
+    }
+}
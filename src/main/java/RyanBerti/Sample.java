@@ -0,0 +1,52 @@
+package RyanBerti;
+
+/**
+ * One decoded PID value, as pushed to SampleSubscribers
+ */
+public final class Sample {
+
+    private final int pid;
+    private final long timestampMillis;
+    private final double value;
+    private final String unit;
+
+    public Sample(int pid, long timestampMillis, double value, String unit) {
+        this.pid = pid;
+        this.timestampMillis = timestampMillis;
+        this.value = value;
+        this.unit = unit;
+    }
+
+    /**
+     * @return the mode 01 PID the value was read from (ie 0x0C for rpm)
+     */
+    public int getPid() {
+        return pid;
+    }
+
+    /**
+     * @return the time the value was read
+     */
+    public long getTimestampMillis() {
+        return timestampMillis;
+    }
+
+    /**
+     * @return the value, in the units of the SAE J1979 scaling
+     */
+    public double getValue() {
+        return value;
+    }
+
+    /**
+     * @return the unit of the value, or an empty string for unitless values
+     */
+    public String getUnit() {
+        return unit;
+    }
+
+    @Override
+    public String toString() {
+        return ObdPid.toHex(pid) + "@" + timestampMillis + "=" + value + unit;
+    }
+}
@@ -0,0 +1,180 @@
+package RyanBerti;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Resamples poll cycles onto a common time grid. The values of a cycle are read one request after
+ * the other, so with many commands the first and last value of a cycle are tens or hundreds of
+ * milliseconds apart, and stamping them all with the time the cycle completed skews them against
+ * each other. The aligner takes each value at the midpoint of its request and response (see
+ * JavaObdReader.runCommandsReturnValues(double[], long[], long[])), keeps the last HISTORY samples of
+ * every column, and for each grid time every column has moved past, linearly interpolates each column
+ * at that time and hands the row to its sink. The grid starts once every answering column has a
+ * sample; columns that missed the last STALE_CYCLES cycles don't hold rows back and are NaN in them.
+ *
+ * Sample times are System.nanoTime values, so they're monotonic; grid times are turned into wall
+ * clock milliseconds through a single reference taken when the aligner is created, so a wall clock
+ * adjustment while polling doesn't reorder or bunch up rows. All state is preallocated, so adding
+ * cycles doesn't allocate. Not thread safe; feed it from the polling thread
+ */
+public class SampleAligner {
+
+    /**
+     * The number of consecutive cycles a column may miss before it stops holding rows back
+     */
+    public static final int STALE_CYCLES = 2;
+
+    /**
+     * The number of samples kept per column; enough for columns polled several times per grid period
+     */
+    public static final int HISTORY = 8;
+
+    private final int columns;
+    private final long periodNanos;
+    private final SampleSink sink;
+    private final long originNanos;
+    private final long originMillis;
+
+    private final long[] times;
+    private final double[] history;
+    private final int[] latest;
+    private final int[] samples;
+    private final long[] lastCycle;
+    private final double[] row;
+
+    private long cycle = 0;
+    private boolean started = false;
+    private long nextGridNanos;
+    private long rows = 0;
+
+    /**
+     * @param columns the number of values per cycle
+     * @param periodNanos the spacing of the grid; at least a millisecond
+     * @param sink the sink receiving one row of values per grid time
+     */
+    public SampleAligner(int columns, long periodNanos, SampleSink sink) {
+        if (periodNanos < 1000000)
+            throw new IllegalArgumentException("Grid period must be at least 1 ms");
+        this.columns = columns;
+        this.periodNanos = periodNanos;
+        this.sink = sink;
+        this.originMillis = System.currentTimeMillis();
+        this.originNanos = System.nanoTime();
+        times = new long[columns * HISTORY];
+        history = new double[columns * HISTORY];
+        latest = new int[columns];
+        samples = new int[columns];
+        lastCycle = new long[columns];
+        row = new double[columns];
+    }
+
+    /**
+     * Add one poll cycle and emit the rows for the grid times it completes. Columns whose value is NaN,
+     * or whose timestamps didn't change since the last cycle (ie commands a PollScheduler didn't
+     * select), don't add a sample
+     * @param values one value per column
+     * @param requestNanos the System.nanoTime each column's request was written
+     * @param responseNanos the System.nanoTime each column's response was read
+     * @return the number of rows emitted
+     * @throws IOException
+     */
+    public int add(double[] values, long[] requestNanos, long[] responseNanos) throws IOException {
+
+        cycle++;
+        for (int i = 0; i < columns; i++) {
+            if (Double.isNaN(values[i]))
+                continue;
+            long time = requestNanos[i] + (responseNanos[i] - requestNanos[i]) / 2;
+            if (samples[i] > 0 && time - times[i * HISTORY + latest[i]] <= 0)
+                continue;
+            int slot = samples[i] == 0 ? 0 : (latest[i] + 1) % HISTORY;
+            times[i * HISTORY + slot] = time;
+            history[i * HISTORY + slot] = values[i];
+            latest[i] = slot;
+            if (samples[i] < HISTORY)
+                samples[i]++;
+            lastCycle[i] = cycle;
+        }
+
+        // rows can be emitted up to the oldest latest sample of the columns still being answered, and
+        // start at the newest first sample, so the first row already has every column
+        boolean any = false;
+        long horizon = 0;
+        long start = 0;
+        for (int i = 0; i < columns; i++) {
+            if (samples[i] == 0 || cycle - lastCycle[i] >= STALE_CYCLES)
+                continue;
+            long newest = times[i * HISTORY + latest[i]];
+            long oldest = times[i * HISTORY + (latest[i] - samples[i] + 1 + HISTORY) % HISTORY];
+            if (!any || newest - horizon < 0)
+                horizon = newest;
+            if (!any || oldest - start > 0)
+                start = oldest;
+            any = true;
+        }
+        if (!any)
+            return 0;
+
+        if (!started) {
+            // the first grid time at or after the start, on a grid through the origin
+            long offset = Math.floorMod(start - originNanos, periodNanos);
+            nextGridNanos = offset == 0 ? start : start + periodNanos - offset;
+            started = true;
+        }
+
+        int emitted = 0;
+        while (nextGridNanos - horizon <= 0) {
+            for (int i = 0; i < columns; i++)
+                row[i] = valueAt(i, nextGridNanos);
+            sink.addSamples(originMillis + Math.floorDiv(nextGridNanos - originNanos, 1000000L), row);
+            nextGridNanos += periodNanos;
+            emitted++;
+        }
+        rows += emitted;
+        return emitted;
+    }
+
+    /**
+     * @return the column's value interpolated at the given time, or NaN if its samples don't span it
+     */
+    private double valueAt(int column, long time) {
+        int base = column * HISTORY;
+        int later = -1;
+        for (int n = 0; n < samples[column]; n++) {
+            int slot = base + (latest[column] - n + HISTORY) % HISTORY;
+            if (time - times[slot] >= 0) {
+                if (time == times[slot])
+                    return history[slot];
+                if (later < 0)
+                    return Double.NaN;
+                double fraction = (double) (time - times[slot]) / (times[later] - times[slot]);
+                return history[slot] + fraction * (history[later] - history[slot]);
+            }
+            later = slot;
+        }
+        return Double.NaN;
+    }
+
+    /**
+     * @return the time of the next row, in System.nanoTime terms; only meaningful once a row was emitted
+     */
+    public long getNextGridNanos() {
+        return nextGridNanos;
+    }
+
+    /**
+     * @return the number of rows emitted
+     */
+    public long getRowCount() {
+        return rows;
+    }
+
+    /**
+     * Forget all samples and start a new grid with the next cycle, ie after a reconnect
+     */
+    public void reset() {
+        Arrays.fill(samples, 0);
+        started = false;
+    }
+}
@@ -0,0 +1,238 @@
+package RyanBerti;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads logs written by SampleLogWriter, one block at a time. Reading stops at the first block that
+ * is incomplete or fails its checksum (the block a crash tore), which is reported by isTruncated
+ */
+public class SampleLogReader implements Closeable {
+
+    // sanity limit for the lengths of a corrupt block, well above any real block size
+    private static final int MAX_BLOCK_BYTES = 1 << 26;
+
+    private final DataInputStream in;
+    private final String vin;
+    private final int[] pids;
+    private final String[] names;
+    private final String[] units;
+
+    private final int[] counts;
+    private long[][] timestamps;
+    private double[][] values;
+
+    private final Inflater inflater = new Inflater();
+    private final CRC32 crc = new CRC32();
+    private byte[] compressed = new byte[4096];
+    private byte[] raw = new byte[4096];
+
+    private long validLength;
+    private boolean truncated = false;
+    private boolean finished = false;
+
+    /**
+     * Open the log and read its header
+     * @param file the log file
+     * @throws IOException if the file can't be read or isn't a sample log
+     */
+    public SampleLogReader(File file) throws IOException {
+
+        in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            byte[] magic = new byte[SampleLogWriter.MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, SampleLogWriter.MAGIC))
+                throw new IOException(file + " isn't a sample log");
+            int version = in.readUnsignedByte();
+            if (version != SampleLogWriter.VERSION)
+                throw new IOException("Unsupported sample log version " + version);
+
+            byte[] header = new byte[in.readInt()];
+            in.readFully(header);
+            crc.update(header, 0, header.length);
+            if ((int) crc.getValue() != in.readInt())
+                throw new IOException("Corrupt sample log header in " + file);
+            validLength = magic.length + 1 + 4 + header.length + 4;
+
+            DataInputStream h = new DataInputStream(new ByteArrayInputStream(header));
+            String v = h.readUTF();
+            vin = v.isEmpty() ? null : v;
+            int columns = h.readInt();
+            pids = new int[columns];
+            names = new String[columns];
+            units = new String[columns];
+            for (int c = 0; c < columns; c++) {
+                pids[c] = h.readUnsignedShort();
+                names[c] = h.readUTF();
+                units[c] = h.readUTF();
+            }
+        } catch (IOException e) {
+            in.close();
+            throw e instanceof EOFException ? new IOException(file + " has an incomplete header") : e;
+        }
+
+        counts = new int[pids.length];
+        timestamps = new long[pids.length][0];
+        values = new double[pids.length][0];
+    }
+
+    /**
+     * Read the next block
+     * @return true if a block was read, false at the end of the log (or at a torn block)
+     * @throws IOException
+     */
+    public boolean nextBlock() throws IOException {
+
+        if (finished)
+            return false;
+
+        int first = in.read();
+        if (first < 0) {
+            finished = true;
+            return false;
+        }
+
+        try {
+            int marker = (first << 24) | (in.readUnsignedByte() << 16) | in.readUnsignedShort();
+            int rawLength = in.readInt();
+            int length = in.readInt();
+            int checksum = in.readInt();
+            if (marker != SampleLogWriter.BLOCK_MARKER || rawLength < 0 || rawLength > MAX_BLOCK_BYTES ||
+                    length < 0 || length > MAX_BLOCK_BYTES)
+                return stop();
+
+            if (compressed.length < length)
+                compressed = new byte[length];
+            in.readFully(compressed, 0, length);
+            crc.reset();
+            crc.update(compressed, 0, length);
+            if ((int) crc.getValue() != checksum)
+                return stop();
+
+            if (raw.length < rawLength)
+                raw = new byte[rawLength];
+            inflater.reset();
+            inflater.setInput(compressed, 0, length);
+            if (inflater.inflate(raw, 0, rawLength) != rawLength)
+                return stop();
+            decodeBlock(rawLength);
+
+            validLength += SampleLogWriter.BLOCK_HEADER_BYTES + length;
+            return true;
+        } catch (EOFException | DataFormatException e) {
+            return stop();
+        }
+    }
+
+    private boolean stop() {
+        truncated = true;
+        finished = true;
+        Arrays.fill(counts, 0);
+        return false;
+    }
+
+    private void decodeBlock(int rawLength) throws IOException {
+        DataInputStream block = new DataInputStream(new ByteArrayInputStream(raw, 0, rawLength));
+        for (int c = 0; c < pids.length; c++) {
+            int n = block.readInt();
+            if (timestamps[c].length < n) {
+                timestamps[c] = new long[n];
+                values[c] = new double[n];
+            }
+            long time = 0;
+            for (int i = 0; i < n; i++) {
+                time += block.readLong();
+                timestamps[c][i] = time;
+            }
+            long bits = 0;
+            for (int i = 0; i < n; i++) {
+                bits ^= block.readLong();
+                values[c][i] = Double.longBitsToDouble(bits);
+            }
+            counts[c] = n;
+        }
+    }
+
+    /**
+     * @return the VIN stored in the header, or null if it wasn't known
+     */
+    public String getVin() {
+        return vin;
+    }
+
+    public int getColumnCount() {
+        return pids.length;
+    }
+
+    /**
+     * @return the mode 01 PID of each column
+     */
+    public int[] getPids() {
+        return pids.clone();
+    }
+
+    public String getName(int column) {
+        return names[column];
+    }
+
+    public String getUnit(int column) {
+        return units[column];
+    }
+
+    /**
+     * @param column the column index
+     * @return the number of samples the column has in the current block
+     */
+    public int getSampleCount(int column) {
+        return counts[column];
+    }
+
+    /**
+     * @return the number of samples in the current block
+     */
+    public int getBlockSampleCount() {
+        int total = 0;
+        for (int count : counts)
+            total += count;
+        return total;
+    }
+
+    public long getTimestamp(int column, int index) {
+        return timestamps[column][index];
+    }
+
+    public double getValue(int column, int index) {
+        return values[column][index];
+    }
+
+    /**
+     * @return true if reading stopped at an incomplete or corrupt block rather than the end of the file
+     */
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    /**
+     * @return the length of the header and the blocks read so far
+     */
+    public long getValidLength() {
+        return validLength;
+    }
+
+    @Override
+    public void close() throws IOException {
+        inflater.end();
+        in.close();
+    }
+}
@@ -0,0 +1,265 @@
+package RyanBerti;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes PID samples to a compact binary log, as a replacement for the comma separated text output.
+ * The file starts with a self describing header (VIN, and the PID, command name and unit of every
+ * column) followed by blocks; each block holds the samples of every column collected since the
+ * previous block, stored column by column with delta encoded timestamps and XOR encoded values (so
+ * slowly changing signals turn into runs of zero bytes), deflated at BEST_SPEED and protected by a
+ * CRC32. Blocks are written whole, so a crash can only tear the last block; reopening the log
+ * truncates the torn block and appends after the last complete one. Use SampleLogReader to read it back
+ */
+public class SampleLogWriter implements SampleSink {
+
+    static final byte[] MAGIC = {'O', 'B', 'D', 'L', 'O', 'G'};
+    static final int VERSION = 1;
+    static final int BLOCK_MARKER = 0x424C4B31; // "BLK1"
+    static final int BLOCK_HEADER_BYTES = 16;
+
+    public static final int DEFAULT_BLOCK_SIZE = 1024;
+
+    private final File file;
+    private final FileOutputStream out;
+    private final int[] pids;
+    private final long[][] timestamps;
+    private final double[][] values;
+    private final int[] counts;
+
+    private final ByteArrayOutputStream raw = new ByteArrayOutputStream();
+    private final DataOutputStream rawData = new DataOutputStream(raw);
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private final CRC32 crc = new CRC32();
+    private byte[] compressed = new byte[4096];
+    private final byte[] blockHeader = new byte[BLOCK_HEADER_BYTES];
+
+    private long bytesWritten;
+    private long sampleCount = 0;
+    private long blockCount = 0;
+
+    /**
+     * Create the log, or reopen it for appending if it already exists with the same VIN and columns
+     * @param file the log file
+     * @param vin the vehicle identification number, or null if unknown
+     * @param pids the mode 01 PID of each column
+     * @param names the name of each column (ie the command's class name)
+     * @param blockSize the number of samples a column collects before a block is written
+     * @throws IOException if the file can't be written, or exists with a different VIN or columns
+     */
+    public SampleLogWriter(File file, String vin, int[] pids, String[] names, int blockSize) throws IOException {
+
+        if (pids.length != names.length)
+            throw new IllegalArgumentException("Every PID needs a name");
+        if (blockSize < 1)
+            throw new IllegalArgumentException("Block size must be positive");
+
+        this.file = file;
+        this.pids = pids.clone();
+        this.timestamps = new long[pids.length][blockSize];
+        this.values = new double[pids.length][blockSize];
+        this.counts = new int[pids.length];
+
+        if (file.isFile() && file.length() > 0) {
+            long validLength;
+            try (SampleLogReader existing = new SampleLogReader(file)) {
+                if (!Arrays.equals(existing.getPids(), this.pids))
+                    throw new IOException(file + " was written with different PIDs");
+                for (int c = 0; c < names.length; c++) {
+                    if (!existing.getName(c).equals(names[c]))
+                        throw new IOException(file + " was written with different column names");
+                }
+                String existingVin = existing.getVin() == null ? "" : existing.getVin();
+                if (!existingVin.equals(vin == null ? "" : vin))
+                    throw new IOException(file + " was written for VIN " + existing.getVin());
+                while (existing.nextBlock())
+                    sampleCount += existing.getBlockSampleCount();
+                validLength = existing.getValidLength();
+                if (existing.isTruncated())
+                    System.out.println("Dropping torn block at the end of " + file);
+            }
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(validLength);
+            }
+            out = new FileOutputStream(file, true);
+            bytesWritten = validLength;
+        } else {
+            out = new FileOutputStream(file);
+            byte[] header = encodeHeader(vin, this.pids, names);
+            DataOutputStream dos = new DataOutputStream(out);
+            dos.write(MAGIC);
+            dos.writeByte(VERSION);
+            dos.writeInt(header.length);
+            dos.write(header);
+            crc.reset();
+            crc.update(header, 0, header.length);
+            dos.writeInt((int) crc.getValue());
+            dos.flush();
+            bytesWritten = MAGIC.length + 1 + 4 + header.length + 4;
+        }
+    }
+
+    /**
+     * Create the log with the default block size
+     * @see #SampleLogWriter(File, String, int[], String[], int)
+     */
+    public SampleLogWriter(File file, String vin, int[] pids, String[] names) throws IOException {
+        this(file, vin, pids, names, DEFAULT_BLOCK_SIZE);
+    }
+
+    private static byte[] encodeHeader(String vin, int[] pids, String[] names) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bytes);
+        dos.writeUTF(vin == null ? "" : vin);
+        dos.writeInt(pids.length);
+        for (int i = 0; i < pids.length; i++) {
+            dos.writeShort(pids[i]);
+            dos.writeUTF(names[i]);
+            dos.writeUTF(ObdPid.unit(pids[i]));
+        }
+        dos.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Add one sample to a column; a block is written once the column has collected a block's worth
+     * @param column the column index
+     * @param timestampMillis the time the sample was taken
+     * @param value the sample's value
+     * @throws IOException
+     */
+    public void addSample(int column, long timestampMillis, double value) throws IOException {
+        timestamps[column][counts[column]] = timestampMillis;
+        values[column][counts[column]] = value;
+        sampleCount++;
+        if (++counts[column] == timestamps[column].length)
+            writeBlock();
+    }
+
+    /**
+     * Add one poll cycle's values (ie as filled in by JavaObdReader.runCommandsReturnValues); NaN
+     * values (commands that didn't get a response) are skipped
+     * @param timestampMillis the time the values were read
+     * @param cycleValues one value per column
+     * @throws IOException
+     */
+    @Override
+    public void addSamples(long timestampMillis, double[] cycleValues) throws IOException {
+        for (int c = 0; c < pids.length; c++) {
+            if (!Double.isNaN(cycleValues[c]))
+                addSample(c, timestampMillis, cycleValues[c]);
+        }
+    }
+
+    private void writeBlock() throws IOException {
+
+        raw.reset();
+        int blockSamples = 0;
+        for (int c = 0; c < pids.length; c++) {
+            int n = counts[c];
+            blockSamples += n;
+            rawData.writeInt(n);
+            long previousTime = 0;
+            long previousBits = 0;
+            for (int i = 0; i < n; i++) {
+                rawData.writeLong(timestamps[c][i] - previousTime);
+                previousTime = timestamps[c][i];
+            }
+            for (int i = 0; i < n; i++) {
+                long bits = Double.doubleToLongBits(values[c][i]);
+                rawData.writeLong(bits ^ previousBits);
+                previousBits = bits;
+            }
+            counts[c] = 0;
+        }
+        if (blockSamples == 0)
+            return;
+        rawData.flush();
+
+        deflater.reset();
+        deflater.setInput(raw.toByteArray(), 0, raw.size());
+        deflater.finish();
+        int length = 0;
+        while (!deflater.finished()) {
+            if (length == compressed.length)
+                compressed = Arrays.copyOf(compressed, compressed.length * 2);
+            length += deflater.deflate(compressed, length, compressed.length - length);
+        }
+
+        crc.reset();
+        crc.update(compressed, 0, length);
+        putInt(blockHeader, 0, BLOCK_MARKER);
+        putInt(blockHeader, 4, raw.size());
+        putInt(blockHeader, 8, length);
+        putInt(blockHeader, 12, (int) crc.getValue());
+
+        out.write(blockHeader);
+        out.write(compressed, 0, length);
+        bytesWritten += BLOCK_HEADER_BYTES + length;
+        blockCount++;
+    }
+
+    private static void putInt(byte[] b, int off, int v) {
+        b[off] = (byte) (v >>> 24);
+        b[off + 1] = (byte) (v >>> 16);
+        b[off + 2] = (byte) (v >>> 8);
+        b[off + 3] = (byte) v;
+    }
+
+    /**
+     * Write the samples collected so far as a block and force the file to the storage device
+     * @throws IOException
+     */
+    @Override
+    public void flush() throws IOException {
+        writeBlock();
+        out.getFD().sync();
+    }
+
+    /**
+     * @return the size of the log file, header included
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * @return the number of samples in the log, including the ones not written to a block yet
+     */
+    public long getSampleCount() {
+        return sampleCount;
+    }
+
+    /**
+     * @return the number of blocks written since the log was opened
+     */
+    public long getBlockCount() {
+        return blockCount;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Write the remaining samples and close the file
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            out.close();
+            deflater.end();
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package RyanBerti;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Pushes the values of poll cycles to any number of SampleSubscribers as typed Samples (PID,
+ * timestamp, value and unit), so consumers don't have to split and parse the comma separated String
+ * results. Delivery is demand driven: each subscriber gets samples only as far as it requested them,
+ * and samples it hasn't requested yet wait in a bounded per-subscriber buffer. A subscriber that falls
+ * further behind than its buffer loses its oldest samples (counted by getDroppedCount) rather than
+ * slowing down polling or the other subscribers
+ */
+public class SamplePublisher implements SampleSink {
+
+    private final class Subscription implements SampleSubscription {
+
+        private final SampleSubscriber subscriber;
+        private final ArrayDeque<Sample> buffer = new ArrayDeque<>();
+        private long demand = 0;
+        private long dropped = 0;
+        private boolean cancelled = false;
+        private boolean completing = false;
+        private boolean draining = false;
+        private Throwable error = null;
+
+        Subscription(SampleSubscriber subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        void offer(Sample sample) {
+            synchronized (this) {
+                if (cancelled)
+                    return;
+                if (buffer.size() == bufferSize) {
+                    buffer.poll();
+                    dropped++;
+                }
+                buffer.add(sample);
+            }
+            drain();
+        }
+
+        void complete() {
+            synchronized (this) {
+                completing = true;
+            }
+            drain();
+        }
+
+        @Override
+        public void request(long n) {
+            synchronized (this) {
+                if (n <= 0) {
+                    // signalled by the draining thread, so it can't overlap an onSample in progress
+                    if (error == null)
+                        error = new IllegalArgumentException("Requested " + n + " samples, must be positive");
+                    buffer.clear();
+                } else {
+                    demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+                }
+            }
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            synchronized (this) {
+                cancelled = true;
+                buffer.clear();
+            }
+            subscriptions.remove(this);
+        }
+
+        @Override
+        public synchronized long getDroppedCount() {
+            return dropped;
+        }
+
+        /**
+         * Deliver buffered samples while there is demand; only one thread delivers at a time, calls
+         * made meanwhile (ie a request from within onSample) leave the work to that thread
+         */
+        private void drain() {
+            synchronized (this) {
+                if (draining)
+                    return;
+                draining = true;
+            }
+            while (true) {
+                Sample next = null;
+                Throwable failure = null;
+                synchronized (this) {
+                    if (cancelled) {
+                        draining = false;
+                        return;
+                    }
+                    if (error != null) {
+                        failure = error;
+                        cancelled = true;
+                    } else if (demand > 0 && !buffer.isEmpty()) {
+                        next = buffer.poll();
+                        demand--;
+                    } else if (buffer.isEmpty() && completing) {
+                        cancelled = true;
+                    } else {
+                        draining = false;
+                        return;
+                    }
+                }
+                if (failure != null) {
+                    subscriptions.remove(this);
+                    subscriber.onError(failure);
+                    continue;
+                }
+                if (next == null) {
+                    subscriptions.remove(this);
+                    subscriber.onComplete();
+                    continue;
+                }
+                try {
+                    subscriber.onSample(next);
+                } catch (RuntimeException e) {
+                    cancel();
+                    subscriber.onError(e);
+                }
+            }
+        }
+    }
+
+    private final int[] pids;
+    private final String[] units;
+    private final int bufferSize;
+    private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+    private volatile boolean closed = false;
+
+    /**
+     * @param pids the mode 01 PID of each value in a cycle
+     * @param bufferSize the number of samples buffered per subscriber before the oldest are dropped
+     */
+    public SamplePublisher(int[] pids, int bufferSize) {
+        if (bufferSize < 1)
+            throw new IllegalArgumentException("Buffer size must be positive");
+        this.pids = pids.clone();
+        this.units = new String[pids.length];
+        for (int i = 0; i < pids.length; i++)
+            units[i] = ObdPid.unit(pids[i]);
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * Subscribe to the samples published from now on; the subscriber's onSubscribe is called before
+     * this returns
+     * @param subscriber the subscriber
+     */
+    public void subscribe(SampleSubscriber subscriber) {
+        Subscription subscription = new Subscription(subscriber);
+        subscriptions.add(subscription);
+        subscriber.onSubscribe(subscription);
+        if (closed)
+            subscription.complete();
+    }
+
+    /**
+     * Publish one poll cycle's values (ie as filled in by JavaObdReader.runCommandsReturnValues) to every
+     * subscriber; NaN values (commands that didn't get a response) aren't published
+     * @param timestampMillis the time the values were read
+     * @param values one value per PID
+     */
+    @Override
+    public void addSamples(long timestampMillis, double[] values) {
+        if (closed)
+            throw new IllegalStateException("Publisher is closed");
+        for (int i = 0; i < pids.length; i++) {
+            if (Double.isNaN(values[i]))
+                continue;
+            Sample sample = new Sample(pids[i], timestampMillis, values[i], units[i]);
+            for (Subscription subscription : subscriptions)
+                subscription.offer(sample);
+        }
+    }
+
+    /**
+     * Samples are handed to the subscribers' buffers as they are published, so there is nothing to flush
+     */
+    @Override
+    public void flush() {
+    }
+
+    /**
+     * @return the number of subscribers that haven't cancelled or completed
+     */
+    public int getSubscriberCount() {
+        return subscriptions.size();
+    }
+
+    /**
+     * @return the number of samples dropped across the current subscribers
+     */
+    public long getDroppedCount() {
+        long total = 0;
+        for (Subscription subscription : subscriptions)
+            total += subscription.getDroppedCount();
+        return total;
+    }
+
+    /**
+     * Stop publishing; every subscriber gets onComplete once it has been delivered its buffered samples
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (Subscription subscription : subscriptions)
+            subscription.complete();
+    }
+}
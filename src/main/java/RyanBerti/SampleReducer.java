@@ -0,0 +1,164 @@
+package RyanBerti;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Reduction stage between the poll loop and a downstream SampleSink (ie a DeltaSampleEncoder feeding
+ * an upload, or a SampleLogWriter): values that stayed within their PID's deadband of the last value
+ * passed on are replaced by NaN (no sample), as are values that arrive sooner than their PID's
+ * minimum interval after the last value passed on (downsampling slow signals). A maximum interval
+ * makes an unchanged value pass anyway once in a while, so consumers can tell a steady signal from a
+ * dead one. Cycles left without any value aren't passed on at all. The counters report the ratio of
+ * samples in to samples out and the time spent reducing
+ */
+public class SampleReducer implements SampleSink {
+
+    private final SampleSink downstream;
+    private final int[] pids;
+    private final double[] deadband;
+    private final long[] minIntervalMillis;
+    private final long[] maxIntervalMillis;
+
+    private final double[] lastValue;
+    private final long[] lastTimestamp;
+    private final double[] reduced;
+
+    private long samplesIn = 0;
+    private long samplesOut = 0;
+    private long cyclesOut = 0;
+    private long reduceNanos = 0;
+
+    /**
+     * @param downstream the sink receiving the reduced cycles
+     * @param pids the mode 01 PID of each value in a cycle
+     */
+    public SampleReducer(SampleSink downstream, int[] pids) {
+        this.downstream = downstream;
+        this.pids = pids.clone();
+        this.deadband = new double[pids.length];
+        this.minIntervalMillis = new long[pids.length];
+        this.maxIntervalMillis = new long[pids.length];
+        this.lastValue = new double[pids.length];
+        this.lastTimestamp = new long[pids.length];
+        this.reduced = new double[pids.length];
+        Arrays.fill(maxIntervalMillis, Long.MAX_VALUE);
+        Arrays.fill(lastValue, Double.NaN);
+    }
+
+    /**
+     * Set how far the PID's value must move away from the last value passed on before it is passed on
+     * again; 0 (the default) drops only unchanged values
+     * @param pid the mode 01 PID
+     * @param deadband the deadband, in the unit of the PID's values
+     */
+    public void setDeadband(int pid, double deadband) {
+        for (int i = 0; i < pids.length; i++) {
+            if (pids[i] == pid)
+                this.deadband[i] = deadband;
+        }
+    }
+
+    /**
+     * Set the minimum time between the PID's values that are passed on (downsampling); 0 by default
+     * @param pid the mode 01 PID
+     * @param millis the minimum interval
+     */
+    public void setMinInterval(int pid, long millis) {
+        for (int i = 0; i < pids.length; i++) {
+            if (pids[i] == pid)
+                minIntervalMillis[i] = millis;
+        }
+    }
+
+    /**
+     * Set the time after which the PID's value is passed on even if it didn't leave the deadband;
+     * unlimited by default
+     * @param pid the mode 01 PID
+     * @param millis the maximum interval
+     */
+    public void setMaxInterval(int pid, long millis) {
+        for (int i = 0; i < pids.length; i++) {
+            if (pids[i] == pid)
+                maxIntervalMillis[i] = millis;
+        }
+    }
+
+    @Override
+    public void addSamples(long timestampMillis, double[] values) throws IOException {
+
+        long start = System.nanoTime();
+        int passed = 0;
+        for (int i = 0; i < pids.length; i++) {
+            double v = values[i];
+            reduced[i] = Double.NaN;
+            if (Double.isNaN(v))
+                continue;
+            samplesIn++;
+            if (!Double.isNaN(lastValue[i])) {
+                long elapsed = timestampMillis - lastTimestamp[i];
+                if (elapsed < minIntervalMillis[i])
+                    continue;
+                if (Math.abs(v - lastValue[i]) <= deadband[i] && elapsed < maxIntervalMillis[i])
+                    continue;
+            }
+            reduced[i] = v;
+            lastValue[i] = v;
+            lastTimestamp[i] = timestampMillis;
+            passed++;
+        }
+        samplesOut += passed;
+        reduceNanos += System.nanoTime() - start;
+
+        if (passed > 0) {
+            cyclesOut++;
+            downstream.addSamples(timestampMillis, reduced);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        downstream.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        downstream.close();
+    }
+
+    /**
+     * @return the number of (non NaN) values received
+     */
+    public long getSamplesIn() {
+        return samplesIn;
+    }
+
+    /**
+     * @return the number of values passed on
+     */
+    public long getSamplesOut() {
+        return samplesOut;
+    }
+
+    /**
+     * @return the number of cycles passed on (cycles with at least one value left)
+     */
+    public long getCyclesOut() {
+        return cyclesOut;
+    }
+
+    /**
+     * @return values received per value passed on
+     */
+    public double getReductionRatio() {
+        return samplesOut == 0 ? 0 : (double) samplesIn / samplesOut;
+    }
+
+    /**
+     * @return the average time spent reducing one received value, in nanoseconds (excluding the
+     * downstream sink)
+     */
+    public double getNanosPerSample() {
+        return samplesIn == 0 ? 0 : (double) reduceNanos / samplesIn;
+    }
+}
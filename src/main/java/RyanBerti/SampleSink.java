@@ -0,0 +1,24 @@
+package RyanBerti;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Destination for the values of poll cycles (ie as filled in by JavaObdReader.runCommandsReturnValues)
+ */
+public interface SampleSink extends Closeable {
+
+    /**
+     * Add one poll cycle's values; NaN values (commands that didn't get a response) carry no sample
+     * @param timestampMillis the time the values were read
+     * @param values one value per column; the sink doesn't keep a reference to the array
+     * @throws IOException
+     */
+    void addSamples(long timestampMillis, double[] values) throws IOException;
+
+    /**
+     * Make the values added so far durable
+     * @throws IOException
+     */
+    void flush() throws IOException;
+}
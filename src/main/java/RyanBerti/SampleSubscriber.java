@@ -0,0 +1,31 @@
+package RyanBerti;
+
+/**
+ * Receives the samples of a SamplePublisher; follows the Reactive Streams Subscriber contract, so
+ * samples are only delivered once they've been requested through the subscription, and the callbacks
+ * of one subscriber are never called concurrently
+ */
+public interface SampleSubscriber {
+
+    /**
+     * Called once when subscribing, before any other callback
+     * @param subscription the subscription used to request samples or cancel
+     */
+    void onSubscribe(SampleSubscription subscription);
+
+    /**
+     * Called for each requested sample
+     */
+    void onSample(Sample sample);
+
+    /**
+     * Called when the subscription ended because of an error; no further callbacks follow
+     */
+    void onError(Throwable error);
+
+    /**
+     * Called when the publisher was closed and every buffered sample was delivered; no further
+     * callbacks follow
+     */
+    void onComplete();
+}
@@ -0,0 +1,23 @@
+package RyanBerti;
+
+/**
+ * A SampleSubscriber's link to a SamplePublisher
+ */
+public interface SampleSubscription {
+
+    /**
+     * Request up to n more samples; may be called from any thread, including from within onSample
+     * @param n the number of samples, must be positive
+     */
+    void request(long n);
+
+    /**
+     * Stop receiving samples; samples buffered for the subscriber are discarded
+     */
+    void cancel();
+
+    /**
+     * @return the number of samples discarded because the subscriber's buffer was full
+     */
+    long getDroppedCount();
+}
@@ -0,0 +1,384 @@
+package RyanBerti;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Uploads the closed log segments of a directory (as rolled by RollingSampleLog) to an UploadTarget
+ * as multipart uploads, with the parts of a segment uploaded in parallel. Progress (the upload id and
+ * the parts already uploaded of each segment, and which segments are done) is kept in a manifest file
+ * in the segment directory, written atomically after every part, so after a lost connection, a crash
+ * or a restart only the parts that didn't make it are uploaded again. Failed uploads are retried with
+ * exponential backoff. Uploading runs on minimum priority daemon threads and is throttled to a
+ * configured bandwidth, so it doesn't compete with the polling thread
+ */
+public class SegmentUploader implements Closeable {
+
+    public static final String SEGMENT_SUFFIX = ".obdlog";
+    static final String MANIFEST = "upload-manifest.properties";
+
+    private final File directory;
+    private final UploadTarget target;
+    private final String keyPrefix;
+    private final int partSize;
+    private final long maxBytesPerSecond;
+
+    private final LinkedBlockingDeque<File> pending = new LinkedBlockingDeque<>();
+    private final Set<String> queued = new HashSet<>();
+    private final Properties manifest = new Properties();
+    private final ExecutorService partPool;
+    private final Thread thread;
+
+    private boolean deleteAfterUpload = false;
+    private volatile long initialBackoffMillis = 1000;
+    private volatile long maxBackoffMillis = 60000;
+    private volatile boolean running = true;
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private long throttleNextNanos = 0;
+
+    private final AtomicLong uploadedBytes = new AtomicLong();
+    private final AtomicLong uploadedParts = new AtomicLong();
+    private volatile long uploadedSegments = 0;
+    private volatile long failures = 0;
+
+    /**
+     * Load the manifest and start uploading the segments in the directory that aren't done yet
+     * @param directory the segment directory
+     * @param target the upload destination
+     * @param keyPrefix prepended to the segment's file name to form its key (ie the VIN and a "/")
+     * @param partSize the size of each part (S3 requires at least 5 MB for all but the last part)
+     * @param parallelism the number of parts uploaded at the same time
+     * @param maxBytesPerSecond the upload bandwidth limit, or 0 for unlimited
+     * @throws IOException if the manifest can't be read
+     */
+    public SegmentUploader(File directory, UploadTarget target, String keyPrefix, int partSize, int parallelism,
+                           long maxBytesPerSecond) throws IOException {
+
+        if (partSize < 1 || parallelism < 1)
+            throw new IllegalArgumentException("Part size and parallelism must be positive");
+        this.directory = directory;
+        this.target = target;
+        this.keyPrefix = keyPrefix;
+        this.partSize = partSize;
+        this.maxBytesPerSecond = maxBytesPerSecond;
+
+        File file = new File(directory, MANIFEST);
+        if (file.isFile()) {
+            try (InputStream in = new FileInputStream(file)) {
+                manifest.load(in);
+            }
+        }
+
+        File[] segments = directory.listFiles((dir, name) -> name.endsWith(SEGMENT_SUFFIX));
+        if (segments != null) {
+            Arrays.sort(segments);
+            for (File segment : segments)
+                enqueue(segment);
+        }
+
+        partPool = Executors.newFixedThreadPool(parallelism, r -> {
+            Thread t = new Thread(r, "segment-upload-part");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        });
+        thread = new Thread(this::run, "segment-uploader");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * Queue a closed segment for upload; segments that are already done or queued are ignored
+     * @param segment the segment file
+     */
+    public void enqueue(File segment) {
+        synchronized (manifest) {
+            if (manifest.getProperty(segment.getName() + ".done") != null || !queued.add(segment.getName()))
+                return;
+        }
+        outstanding.incrementAndGet();
+        pending.add(segment);
+    }
+
+    /**
+     * Delete segments once they're uploaded; off by default
+     */
+    public void setDeleteAfterUpload(boolean deleteAfterUpload) {
+        this.deleteAfterUpload = deleteAfterUpload;
+    }
+
+    /**
+     * Set the delay before retrying a failed upload, and the cap it doubles up to on consecutive failures;
+     * takes effect from the next retry
+     */
+    public void setRetryBackoff(long initialMillis, long maxMillis) {
+        this.initialBackoffMillis = initialMillis;
+        this.maxBackoffMillis = maxMillis;
+    }
+
+    private void run() {
+        long backoff = 0;
+        while (running) {
+            File segment;
+            try {
+                segment = pending.poll(100, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                break;
+            }
+            if (segment == null)
+                continue;
+
+            try {
+                upload(segment);
+                backoff = 0;
+                synchronized (manifest) {
+                    queued.remove(segment.getName());
+                }
+                outstanding.decrementAndGet();
+            } catch (IOException e) {
+                failures++;
+                backoff = backoff == 0 ? initialBackoffMillis : Math.min(backoff * 2, maxBackoffMillis);
+                System.out.println("Upload of " + segment.getName() + " failed, retrying in " + backoff + " ms: " + e);
+                pending.addFirst(segment);
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException ie) {
+                    break;
+                }
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+    }
+
+    private void upload(File segment) throws IOException, InterruptedException {
+
+        String name = segment.getName();
+        String key = keyPrefix + name;
+        if (!segment.isFile()) {
+            System.out.println("Segment " + name + " disappeared before it was uploaded");
+            return;
+        }
+
+        String uploadId;
+        Set<Integer> done = new HashSet<>();
+        synchronized (manifest) {
+            if (manifest.getProperty(name + ".done") != null) {
+                // uploaded, but saving that failed
+                saveManifest();
+                return;
+            }
+            uploadId = manifest.getProperty(name + ".upload");
+            String parts = manifest.getProperty(name + ".parts", "");
+            for (String part : parts.split(",")) {
+                if (!part.isEmpty())
+                    done.add(Integer.parseInt(part));
+            }
+        }
+        if (uploadId == null) {
+            uploadId = target.startUpload(key);
+            synchronized (manifest) {
+                manifest.setProperty(name + ".upload", uploadId);
+                manifest.setProperty(name + ".parts", "");
+                saveManifest();
+            }
+        }
+
+        long length = segment.length();
+        int partCount = (int) Math.max(1, (length + partSize - 1) / partSize);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int p = 1; p <= partCount; p++) {
+            if (done.contains(p))
+                continue;
+            int partNumber = p;
+            String id = uploadId;
+            futures.add(partPool.submit(() -> {
+                uploadPart(segment, key, id, partNumber, length);
+                return null;
+            }));
+        }
+
+        IOException failure = null;
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                if (failure == null)
+                    failure = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+            }
+        }
+        if (failure == null) {
+            try {
+                target.completeUpload(key, uploadId, partCount);
+            } catch (NoSuchUploadException e) {
+                failure = e;
+            }
+        }
+
+        if (failure instanceof NoSuchUploadException) {
+            // either the upload was completed before the manifest recorded it (ie a crash in between),
+            // or the target dropped it; in the latter case the retry starts a new upload
+            if (target.getObjectLength(key) != length) {
+                synchronized (manifest) {
+                    manifest.remove(name + ".upload");
+                    manifest.remove(name + ".parts");
+                    saveManifest();
+                }
+                throw failure;
+            }
+            System.out.println("Upload of " + name + " was already completed");
+        } else if (failure != null) {
+            throw failure;
+        }
+
+        synchronized (manifest) {
+            manifest.remove(name + ".upload");
+            manifest.remove(name + ".parts");
+            manifest.setProperty(name + ".done", key);
+            saveManifest();
+        }
+        uploadedSegments++;
+        if (deleteAfterUpload && !segment.delete())
+            System.out.println("Couldn't delete uploaded segment " + name);
+    }
+
+    private void uploadPart(File segment, String key, String uploadId, int partNumber, long length)
+            throws IOException, InterruptedException {
+
+        long offset = (long) (partNumber - 1) * partSize;
+        byte[] data = new byte[(int) Math.min(partSize, length - offset)];
+        try (RandomAccessFile raf = new RandomAccessFile(segment, "r")) {
+            raf.seek(offset);
+            raf.readFully(data);
+        }
+
+        throttle(data.length);
+        target.uploadPart(key, uploadId, partNumber, data, data.length);
+        uploadedBytes.addAndGet(data.length);
+        uploadedParts.incrementAndGet();
+
+        String name = segment.getName();
+        synchronized (manifest) {
+            String parts = manifest.getProperty(name + ".parts", "");
+            manifest.setProperty(name + ".parts", parts.isEmpty() ? String.valueOf(partNumber) : parts + "," + partNumber);
+            saveManifest();
+        }
+    }
+
+    /**
+     * Wait until the bandwidth budget allows sending the given number of bytes
+     */
+    private void throttle(int bytes) throws InterruptedException {
+        if (maxBytesPerSecond <= 0)
+            return;
+        long wait;
+        synchronized (this) {
+            long now = System.nanoTime();
+            if (throttleNextNanos - now < 0)
+                throttleNextNanos = now;
+            wait = throttleNextNanos - now;
+            throttleNextNanos += bytes * TimeUnit.SECONDS.toNanos(1) / maxBytesPerSecond;
+        }
+        if (wait > 0)
+            TimeUnit.NANOSECONDS.sleep(wait);
+    }
+
+    // callers hold the manifest lock; a failed save fails the upload, so it's retried
+    private void saveManifest() throws IOException {
+        File file = new File(directory, MANIFEST);
+        File tmp = new File(directory, MANIFEST + ".tmp");
+        try (OutputStream out = new FileOutputStream(tmp)) {
+            manifest.store(out, "Segment upload progress");
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Wait until every queued segment is uploaded
+     * @return true if the queue drained within the timeout
+     * @throws InterruptedException
+     */
+    public boolean awaitIdle(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (outstanding.get() > 0) {
+            if (System.nanoTime() - deadline >= 0)
+                return false;
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of segments waiting to be uploaded, including the one being uploaded
+     */
+    public int getPendingSegments() {
+        return outstanding.get();
+    }
+
+    /**
+     * @return the number of segments uploaded since this uploader was created
+     */
+    public long getUploadedSegments() {
+        return uploadedSegments;
+    }
+
+    /**
+     * @return the number of parts uploaded since this uploader was created
+     */
+    public long getUploadedParts() {
+        return uploadedParts.get();
+    }
+
+    /**
+     * @return the number of bytes uploaded since this uploader was created
+     */
+    public long getUploadedBytes() {
+        return uploadedBytes.get();
+    }
+
+    /**
+     * @return the number of failed segment upload attempts
+     */
+    public long getFailures() {
+        return failures;
+    }
+
+    /**
+     * Stop uploading; progress is kept in the manifest, so a new uploader for the directory resumes
+     * where this one stopped
+     */
+    @Override
+    public void close() {
+        running = false;
+        thread.interrupt();
+        try {
+            thread.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        partPool.shutdownNow();
+    }
+}
@@ -0,0 +1,32 @@
+package RyanBerti;
+
+import java.io.IOException;
+
+/**
+ * The line settings of a serial connection to an adapter, as far as baud rate negotiation needs them
+ * (see BaudRateNegotiator); the data goes through the connection's streams
+ */
+interface SerialLink {
+
+    /**
+     * Change the rate the host sends and receives at
+     * @param baudRate the rate, in bits per second
+     * @throws IOException
+     */
+    void setBaudRate(int baudRate) throws IOException;
+
+    int getBaudRate();
+
+    /**
+     * @param millis the time reads wait for a byte before failing; 0 waits forever
+     */
+    void setReadTimeout(int millis);
+
+    int getReadTimeout();
+
+    /**
+     * Drop whatever was received but not read yet (ie bytes garbled by a wrong baud rate)
+     * @throws IOException
+     */
+    void purgeInput() throws IOException;
+}
@@ -0,0 +1,105 @@
+package RyanBerti;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Makes a lost adapter connection fail instead of looking like an adapter with nothing to say: reads
+ * through the wrapped streams fail with a SocketTimeoutException once the '>' prompt ending the answer
+ * to the last request hasn't arrived within the stall timeout (even if other bytes keep coming), and
+ * with an EOFException once the stream ends (ie a wifi adapter closed the socket). A read blocked on a
+ * silent adapter only returns through the stream's own read timeout, which JavaObdReader sets to the
+ * stall timeout. Only meant to be used from the polling thread
+ */
+final class StallGuard {
+
+    private int timeoutMillis;
+    private long timeoutNanos;
+    private long requestNanos;
+    private boolean awaitingPrompt = false;
+
+    StallGuard(int timeoutMillis) {
+        setTimeout(timeoutMillis);
+    }
+
+    void setTimeout(int timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    }
+
+    int getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    /**
+     * Forget the request still waiting for its prompt, ie when its connection was replaced
+     */
+    void reset() {
+        awaitingPrompt = false;
+    }
+
+    private void checkDeadline() throws SocketTimeoutException {
+        if (awaitingPrompt && System.nanoTime() - requestNanos > timeoutNanos)
+            throw new SocketTimeoutException("No prompt within " + timeoutMillis + " ms of the request");
+    }
+
+    InputStream wrap(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b < 0)
+                    throw new EOFException("Adapter closed the connection");
+                if (b == '>')
+                    awaitingPrompt = false;
+                else
+                    checkDeadline();
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = super.read(b, off, len);
+                if (n < 0)
+                    throw new EOFException("Adapter closed the connection");
+                for (int i = off; i < off + n; i++) {
+                    if (b[i] == '>') {
+                        awaitingPrompt = false;
+                        return n;
+                    }
+                }
+                checkDeadline();
+                return n;
+            }
+        };
+    }
+
+    OutputStream wrap(OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                requestWritten();
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                requestWritten();
+            }
+        };
+    }
+
+    private void requestWritten() {
+        if (!awaitingPrompt) {
+            awaitingPrompt = true;
+            requestNanos = System.nanoTime();
+        }
+    }
+}
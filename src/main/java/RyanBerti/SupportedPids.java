@@ -0,0 +1,225 @@
+package RyanBerti;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The set of mode 01 PIDs a vehicle supports, as reported by the standard "PIDs supported" queries
+ * (01 00, 01 20, 01 40, ...). Each query returns a 32 bit mask covering the next 32 PIDs, and the
+ * last bit of each mask says whether the following query is supported, so the whole set is known
+ * after a handful of requests
+ */
+class SupportedPids {
+
+    private final BitSet pids = new BitSet(256);
+    private int requestCount = 0;
+
+    /**
+     * Query the vehicle for its supported mode 01 PIDs; when several ECUs respond, their masks are
+     * combined
+     * @param is the adapter's input stream
+     * @param os the adapter's output stream
+     * @return the supported PIDs, or null if the vehicle didn't answer the 01 00 query
+     * @throws IOException
+     */
+    static SupportedPids query(InputStream is, OutputStream os) throws IOException {
+        return query(is, os, null);
+    }
+
+    /**
+     * Query the vehicle for its supported mode 01 PIDs, recording the time each request took
+     * @param is the adapter's input stream
+     * @param os the adapter's output stream
+     * @param report the report to add a step per request to, or null
+     * @return the supported PIDs, or null if the vehicle didn't answer the 01 00 query
+     * @throws IOException
+     */
+    static SupportedPids query(InputStream is, OutputStream os, DiscoveryReport report) throws IOException {
+
+        SupportedPids supported = new SupportedPids();
+
+        for (int base = 0x00; base <= 0xE0; base += 0x20) {
+            supported.requestCount++;
+            String request = "01 " + ObdPid.toHex(base);
+            long start = System.nanoTime();
+            String response = ElmIO.send(is, os, request);
+            if (report != null)
+                report.addStep(request, System.nanoTime() - start);
+            if (!supported.addResponse(base, response) && base == 0x00)
+                return null;
+            if (!supported.isSupported(base + 0x20))
+                break;
+        }
+
+        return supported;
+    }
+
+    /**
+     * Query each responding ECU for its supported mode 01 PIDs. Headers are turned on so every answer
+     * can be told apart by the CAN identifier of the ECU that sent it; the 01 00 query is sent to all
+     * ECUs at once, and each following mask query carries the number of ECUs that announced it as its
+     * expected response count, so the adapter returns as soon as they've all answered instead of
+     * waiting out its timeout for ECUs that never will. Headers are turned off again before returning
+     * @param is the adapter's input stream
+     * @param os the adapter's output stream
+     * @param report the report to add a step per request to, or null
+     * @return the supported PIDs of each ECU keyed by its CAN identifier, or null if the adapter
+     * doesn't do headers or no ECU answered the 01 00 query with a CAN frame
+     * @throws IOException
+     */
+    static Map<Integer, SupportedPids> queryEcus(InputStream is, OutputStream os, DiscoveryReport report) throws IOException {
+
+        if (ElmIO.isError(send(is, os, "AT H1", report)))
+            return null;
+
+        Map<Integer, SupportedPids> ecus = new TreeMap<>();
+        try {
+            for (int base = 0x00; base <= 0xE0; base += 0x20) {
+                int expected = 0;
+                for (SupportedPids pids : ecus.values()) {
+                    if (pids.isSupported(base))
+                        expected++;
+                }
+                if (base > 0x00 && expected == 0)
+                    break;
+
+                String request = "01 " + ObdPid.toHex(base);
+                if (expected > 0 && expected <= 0x0F)
+                    request += " " + Integer.toHexString(expected).toUpperCase();
+                String response = send(is, os, request, report);
+                if (ElmIO.isError(response))
+                    continue;
+
+                for (Map.Entry<Integer, List<int[]>> e : ElmIO.parseEcuMessages(response).entrySet()) {
+                    SupportedPids pids = ecus.get(e.getKey());
+                    if (pids == null && base == 0x00)
+                        ecus.put(e.getKey(), pids = new SupportedPids());
+                    if (pids == null)
+                        continue;
+                    pids.requestCount++;
+                    for (int[] message : e.getValue())
+                        pids.addMessage(base, message);
+                }
+            }
+        } finally {
+            send(is, os, "AT H0", report);
+        }
+
+        return ecus.isEmpty() ? null : ecus;
+    }
+
+    private static String send(InputStream is, OutputStream os, String request, DiscoveryReport report) throws IOException {
+        long start = System.nanoTime();
+        String response = ElmIO.send(is, os, request);
+        if (report != null)
+            report.addStep(request, System.nanoTime() - start);
+        return response;
+    }
+
+    /**
+     * Combine the PIDs supported by several ECUs queried together (see queryEcus)
+     * @param ecus the supported PIDs of each ECU
+     * @return the PIDs supported by at least one of the ECUs
+     */
+    static SupportedPids union(Collection<SupportedPids> ecus) {
+        SupportedPids union = new SupportedPids();
+        for (SupportedPids pids : ecus) {
+            union.pids.or(pids.pids);
+            union.requestCount = Math.max(union.requestCount, pids.requestCount);
+        }
+        return union;
+    }
+
+    /**
+     * Merge the response to a "PIDs supported [base+1 - base+32]" query into this set
+     * @param base the PID the query was sent for (0x00, 0x20, ...)
+     * @param response the response as returned by the adapter
+     * @return true if the response contained at least one valid mask
+     */
+    boolean addResponse(int base, String response) {
+
+        if (ElmIO.isError(response))
+            return false;
+
+        boolean valid = false;
+        for (int[] message : ElmIO.parseMessages(response))
+            valid |= addMessage(base, message);
+        return valid;
+    }
+
+    /**
+     * Merge a decoded "PIDs supported [base+1 - base+32]" message into this set
+     * @return false if the message isn't the mask of the given base
+     */
+    private boolean addMessage(int base, int[] message) {
+        if (message.length < 6 || message[0] != 0x41 || message[1] != base)
+            return false;
+        for (int i = 0; i < 32; i++) {
+            int maskByte = message[2 + i / 8];
+            if ((maskByte & (0x80 >> (i % 8))) != 0)
+                pids.set(base + 1 + i);
+        }
+        return true;
+    }
+
+    /**
+     * @param pid the mode 01 PID number
+     * @return true if the vehicle reported the PID as supported
+     */
+    boolean isSupported(int pid) {
+        return pid >= 0 && pids.get(pid);
+    }
+
+    /**
+     * Get the 32 bit "PIDs supported" mask for the PIDs following the given base, as the vehicle
+     * reported it
+     * @param base the PID the mask was queried with (0x00, 0x20, ...)
+     * @return the mask, with the bit for PID base+1 as the most significant bit
+     */
+    int getMask(int base) {
+        int mask = 0;
+        for (int i = 0; i < 32; i++) {
+            if (pids.get(base + 1 + i))
+                mask |= 0x80000000 >>> i;
+        }
+        return mask;
+    }
+
+    /**
+     * @return the supported PIDs, in ascending order
+     */
+    int[] toArray() {
+        return pids.stream().toArray();
+    }
+
+    /**
+     * @return the number of supported PIDs
+     */
+    int size() {
+        return pids.cardinality();
+    }
+
+    /**
+     * @return the number of requests it took to build this set
+     */
+    int getRequestCount() {
+        return requestCount;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("[");
+        for (int pid = pids.nextSetBit(0); pid >= 0; pid = pids.nextSetBit(pid + 1)) {
+            if (sb.length() > 1)
+                sb.append(", ");
+            sb.append(ObdPid.toHex(pid));
+        }
+        return sb.append(']').toString();
+    }
+}
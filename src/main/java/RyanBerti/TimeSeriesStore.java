@@ -0,0 +1,276 @@
+package RyanBerti;
+
+import java.util.Arrays;
+
+/**
+ * In-memory window of recent samples, one fixed size ring buffer of primitive timestamps (long) and
+ * values (float) per PID, so samples can be kept and queried at the full poll rate without boxing or
+ * garbage. Once a PID's buffer is full its oldest samples are overwritten. Queries cover a time window
+ * (ie the last N seconds); they locate the window's start with a binary search, which relies on each
+ * PID's samples being added in time order. Each PID's series is locked separately, so samples can be
+ * added from the polling thread while another thread queries
+ */
+public class TimeSeriesStore implements SampleSink {
+
+    private static final class Series {
+
+        final long[] timestamps;
+        final float[] values;
+        int start = 0;
+        int size = 0;
+
+        Series(int capacity) {
+            timestamps = new long[capacity];
+            values = new float[capacity];
+        }
+
+        int physical(int logical) {
+            int i = start + logical;
+            return i >= timestamps.length ? i - timestamps.length : i;
+        }
+
+        void add(long timestampMillis, float value) {
+            int i;
+            if (size < timestamps.length) {
+                i = physical(size++);
+            } else {
+                i = start;
+                start = physical(1);
+            }
+            timestamps[i] = timestampMillis;
+            values[i] = value;
+        }
+
+        /**
+         * @return the logical index of the first sample at or after the given time
+         */
+        int lowerBound(long timeMillis) {
+            int lo = 0;
+            int hi = size;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (timestamps[physical(mid)] < timeMillis)
+                    lo = mid + 1;
+                else
+                    hi = mid;
+            }
+            return lo;
+        }
+
+        /**
+         * @return the logical index after the last sample at or before the given time
+         */
+        int upperBound(long timeMillis) {
+            return timeMillis == Long.MAX_VALUE ? size : lowerBound(timeMillis + 1);
+        }
+    }
+
+    private final int[] pids;
+    private final Series[] series;
+    private final int[] seriesIndex = new int[256];
+
+    /**
+     * @param pids the mode 01 PIDs to store; for use as a SampleSink, in the order of the cycle's values
+     * @param capacity the number of samples kept per PID (ie an hour at 10 Hz is 36000)
+     */
+    public TimeSeriesStore(int[] pids, int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("Capacity must be positive");
+        this.pids = pids.clone();
+        this.series = new Series[pids.length];
+        Arrays.fill(seriesIndex, -1);
+        for (int i = 0; i < pids.length; i++) {
+            series[i] = new Series(capacity);
+            seriesIndex[pids[i] & 0xFF] = i;
+        }
+    }
+
+    private Series get(int pid) {
+        int i = pid < 0 || pid > 0xFF ? -1 : seriesIndex[pid];
+        if (i < 0)
+            throw new IllegalArgumentException("PID " + ObdPid.toHex(pid) + " isn't stored");
+        return series[i];
+    }
+
+    /**
+     * Add one sample
+     * @param pid the mode 01 PID
+     * @param timestampMillis the time the sample was taken; must not be before the PID's previous sample
+     * @param value the value
+     */
+    public void add(int pid, long timestampMillis, float value) {
+        Series s = get(pid);
+        synchronized (s) {
+            s.add(timestampMillis, value);
+        }
+    }
+
+    /**
+     * Add one poll cycle's values (ie as filled in by JavaObdReader.runCommandsReturnValues); NaN
+     * values (commands that didn't get a response) are skipped
+     * @param timestampMillis the time the values were read
+     * @param values one value per PID, in the order the PIDs were given to the constructor
+     */
+    @Override
+    public void addSamples(long timestampMillis, double[] values) {
+        for (int i = 0; i < series.length; i++) {
+            if (Double.isNaN(values[i]))
+                continue;
+            synchronized (series[i]) {
+                series[i].add(timestampMillis, (float) values[i]);
+            }
+        }
+    }
+
+    /**
+     * Nothing is persisted, so there is nothing to flush
+     */
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    /**
+     * @return the number of samples stored for the PID
+     */
+    public int size(int pid) {
+        Series s = get(pid);
+        synchronized (s) {
+            return s.size;
+        }
+    }
+
+    /**
+     * @return the PID's most recent value, or NaN if it has no samples
+     */
+    public float latest(int pid) {
+        Series s = get(pid);
+        synchronized (s) {
+            return s.size == 0 ? Float.NaN : s.values[s.physical(s.size - 1)];
+        }
+    }
+
+    /**
+     * @return the time of the PID's most recent sample, or Long.MIN_VALUE if it has no samples
+     */
+    public long latestTimestamp(int pid) {
+        Series s = get(pid);
+        synchronized (s) {
+            return s.size == 0 ? Long.MIN_VALUE : s.timestamps[s.physical(s.size - 1)];
+        }
+    }
+
+    /**
+     * @return the number of the PID's samples taken in [fromMillis, toMillis]
+     */
+    public int count(int pid, long fromMillis, long toMillis) {
+        Series s = get(pid);
+        synchronized (s) {
+            return Math.max(0, s.upperBound(toMillis) - s.lowerBound(fromMillis));
+        }
+    }
+
+    /**
+     * @return the smallest of the PID's values in [fromMillis, toMillis], or NaN if there are none
+     */
+    public float min(int pid, long fromMillis, long toMillis) {
+        Series s = get(pid);
+        synchronized (s) {
+            float min = Float.NaN;
+            for (int i = s.lowerBound(fromMillis), end = s.upperBound(toMillis); i < end; i++) {
+                float v = s.values[s.physical(i)];
+                if (!(v >= min))
+                    min = v;
+            }
+            return min;
+        }
+    }
+
+    /**
+     * @return the largest of the PID's values in [fromMillis, toMillis], or NaN if there are none
+     */
+    public float max(int pid, long fromMillis, long toMillis) {
+        Series s = get(pid);
+        synchronized (s) {
+            float max = Float.NaN;
+            for (int i = s.lowerBound(fromMillis), end = s.upperBound(toMillis); i < end; i++) {
+                float v = s.values[s.physical(i)];
+                if (!(v <= max))
+                    max = v;
+            }
+            return max;
+        }
+    }
+
+    /**
+     * @return the average of the PID's values in [fromMillis, toMillis], or NaN if there are none
+     */
+    public double average(int pid, long fromMillis, long toMillis) {
+        Series s = get(pid);
+        synchronized (s) {
+            double sum = 0;
+            int from = s.lowerBound(fromMillis);
+            int end = s.upperBound(toMillis);
+            for (int i = from; i < end; i++)
+                sum += s.values[s.physical(i)];
+            return end > from ? sum / (end - from) : Double.NaN;
+        }
+    }
+
+    /**
+     * Get the PID's rate of change over [fromMillis, toMillis], as the difference between the first and
+     * last value in the window divided by the time between them
+     * @return the change per second, or NaN if the window holds fewer than two samples taken at
+     * different times
+     */
+    public double rateOfChange(int pid, long fromMillis, long toMillis) {
+        Series s = get(pid);
+        synchronized (s) {
+            int from = s.lowerBound(fromMillis);
+            int last = s.upperBound(toMillis) - 1;
+            if (last <= from)
+                return Double.NaN;
+            long elapsed = s.timestamps[s.physical(last)] - s.timestamps[s.physical(from)];
+            if (elapsed <= 0)
+                return Double.NaN;
+            return (s.values[s.physical(last)] - s.values[s.physical(from)]) * 1000.0 / elapsed;
+        }
+    }
+
+    /**
+     * Copy the PID's samples in [fromMillis, toMillis] into the given arrays, oldest first
+     * @return the number of samples copied, at most the length of the arrays (the newest are kept)
+     */
+    public int copy(int pid, long fromMillis, long toMillis, long[] timestamps, float[] values) {
+        Series s = get(pid);
+        synchronized (s) {
+            int end = s.upperBound(toMillis);
+            int from = Math.max(s.lowerBound(fromMillis), end - Math.min(timestamps.length, values.length));
+            for (int i = from; i < end; i++) {
+                timestamps[i - from] = s.timestamps[s.physical(i)];
+                values[i - from] = s.values[s.physical(i)];
+            }
+            return Math.max(0, end - from);
+        }
+    }
+
+    /**
+     * @return the stored PIDs
+     */
+    public int[] getPids() {
+        return pids.clone();
+    }
+
+    /**
+     * @return the bytes taken by the sample arrays (8 byte timestamp and 4 byte value per sample slot)
+     */
+    public long getFootprintBytes() {
+        long bytes = 0;
+        for (Series s : series)
+            bytes += 8L * s.timestamps.length + 4L * s.values.length;
+        return bytes;
+    }
+}
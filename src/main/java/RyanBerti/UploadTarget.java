@@ -0,0 +1,45 @@
+package RyanBerti;
+
+import java.io.IOException;
+
+/**
+ * Destination of uploaded log segments, modeled on S3 multipart uploads: an upload is started for a
+ * key, its parts are uploaded (in any order, concurrently, and re-uploading a part replaces it) and
+ * the upload is completed once every part is there, at which point the object appears whole
+ */
+public interface UploadTarget {
+
+    /**
+     * Start a multipart upload
+     * @param key the object's key (ie "1FTFW1EF1EKF01234/obd-1458300000000.obdlog")
+     * @return the upload id, which stays valid across restarts until the upload is completed
+     * @throws IOException
+     */
+    String startUpload(String key) throws IOException;
+
+    /**
+     * Upload one part; may be called concurrently for different parts of an upload
+     * @param key the object's key
+     * @param uploadId the id returned by startUpload
+     * @param partNumber the part's number, starting at 1
+     * @param data the part's bytes
+     * @param length the number of bytes of data to upload
+     * @throws NoSuchUploadException if the upload is unknown
+     * @throws IOException
+     */
+    void uploadPart(String key, String uploadId, int partNumber, byte[] data, int length) throws IOException;
+
+    /**
+     * Complete the upload, assembling parts 1 to partCount into the object
+     * @throws NoSuchUploadException if the upload is unknown, ie because it was completed already
+     * @throws IOException if a part is missing
+     */
+    void completeUpload(String key, String uploadId, int partCount) throws IOException;
+
+    /**
+     * @param key the object's key
+     * @return the length of the object a completed upload stored under the key, or -1 if there's none
+     * @throws IOException
+     */
+    long getObjectLength(String key) throws IOException;
+}
@@ -0,0 +1,63 @@
+package RyanBerti;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Everything a JavaObdReader learns about a vehicle/adapter pair while initializing: the vehicle's VIN,
+ * the adapter it was reached through, the negotiated protocol, the adapter settings and the supported
+ * commands. Profiles are persisted by CapabilityCache so later connections can skip discovery
+ */
+public class VehicleProfile {
+
+    private final String vin;
+    private final String adapterId;
+    private final char protocol;
+    private final int adapterTimeout;
+    private final String supportedPidMask;
+    private final List<Integer> commandKeys;
+
+    /**
+     * @param vin the vehicle identification number
+     * @param adapterId the adapter's identification string (the response to AT I, ie "ELM327 v1.5")
+     * @param protocol the ELM327 protocol number the vehicle was reached with (as used by AT SP)
+     * @param adapterTimeout the AT ST timeout value the adapter was configured with
+     * @param supportedPidMask the first "PIDs supported" mask (response to 01 00) as 8 hex digits,
+     *                         or an empty string if the vehicle didn't answer it
+     * @param commandKeys the ObdCommandRegistry keys of the supported commands, in polling order
+     */
+    public VehicleProfile(String vin, String adapterId, char protocol, int adapterTimeout,
+                          String supportedPidMask, List<Integer> commandKeys) {
+        this.vin = vin;
+        this.adapterId = adapterId;
+        this.protocol = protocol;
+        this.adapterTimeout = adapterTimeout;
+        this.supportedPidMask = supportedPidMask;
+        this.commandKeys = Collections.unmodifiableList(new ArrayList<>(commandKeys));
+    }
+
+    public String getVin() {
+        return vin;
+    }
+
+    public String getAdapterId() {
+        return adapterId;
+    }
+
+    public char getProtocol() {
+        return protocol;
+    }
+
+    public int getAdapterTimeout() {
+        return adapterTimeout;
+    }
+
+    public String getSupportedPidMask() {
+        return supportedPidMask;
+    }
+
+    public List<Integer> getCommandKeys() {
+        return commandKeys;
+    }
+}
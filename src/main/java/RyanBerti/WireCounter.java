@@ -0,0 +1,67 @@
+package RyanBerti;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Counts the bytes going through an adapter's streams, for the metrics of requests made through the
+ * obd-java-api command classes (whose reads and writes can't be counted otherwise), and notes when the
+ * first byte of the answer to the last request arrived. The counts are plain fields, only meant to be
+ * used from the polling thread
+ */
+final class WireCounter {
+
+    long sent = 0;
+    long received = 0;
+    long firstByteNanos = 0;
+    private boolean awaitingResponse = false;
+
+    private void receivedBytes(int n) {
+        received += n;
+        if (awaitingResponse) {
+            firstByteNanos = System.nanoTime();
+            awaitingResponse = false;
+        }
+    }
+
+    InputStream wrap(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0)
+                    receivedBytes(1);
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = super.read(b, off, len);
+                if (n > 0)
+                    receivedBytes(n);
+                return n;
+            }
+        };
+    }
+
+    OutputStream wrap(OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                sent++;
+                awaitingResponse = true;
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                sent += len;
+                awaitingResponse = true;
+            }
+        };
+    }
+}
@@ -0,0 +1,185 @@
+package RyanBerti;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.io.StringReader;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@Category(RyanBerti.UnitTests.class)
+public class AdaptiveTimeoutTest {
+
+    private static final long MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final ElmSimulator simulator = new ElmSimulator(5);
+
+    @After
+    public void closeSimulator() {
+        simulator.close();
+    }
+
+    private static void record(AdaptiveTimeout timeout, int count, int pid, long nanos, ObdMetrics.Outcome outcome) {
+        for (int i = 0; i < count; i++)
+            timeout.record(pid, nanos, outcome);
+    }
+
+    @Test
+    public void tunesToTheSlowestPid() {
+        AdaptiveTimeout timeout = new AdaptiveTimeout(0xFF);
+        record(timeout, 7, 0x0C, 2 * MILLI, ObdMetrics.Outcome.ANSWERED);
+        // never answered PIDs are unsupported, not failing
+        record(timeout, 20, 0x5C, 0, ObdMetrics.Outcome.NO_DATA);
+        assertEquals(-1, timeout.takeChange());
+
+        timeout.record(0x05, 40 * MILLI, ObdMetrics.Outcome.ANSWERED);
+        assertEquals(15, timeout.takeChange());
+        assertEquals(-1, timeout.takeChange());
+        assertEquals(60, timeout.getAdapterTimeoutMillis());
+        assertEquals(140, timeout.getStreamTimeoutMillis());
+
+        AdaptiveTimeout fast = new AdaptiveTimeout(0xFF);
+        record(fast, AdaptiveTimeout.MIN_SAMPLES, 0x0C, MILLI, ObdMetrics.Outcome.ANSWERED);
+        assertEquals(4, fast.getAdapterTimeout());
+    }
+
+    @Test
+    public void backsOffWhenAnswersGoMissing() {
+        AdaptiveTimeout timeout = new AdaptiveTimeout(0xFF, 4, 0x40);
+        record(timeout, AdaptiveTimeout.MIN_SAMPLES, 0x0C, 10 * MILLI, ObdMetrics.Outcome.ANSWERED);
+        assertEquals(4, timeout.getAdapterTimeout());
+
+        record(timeout, AdaptiveTimeout.WINDOW - 3, 0x0C, 10 * MILLI, ObdMetrics.Outcome.ANSWERED);
+        record(timeout, 3, 0x0C, 0, ObdMetrics.Outcome.NO_DATA);
+        assertEquals(8, timeout.getAdapterTimeout());
+        assertEquals(1, timeout.getBackoffCount());
+
+        // the backed off timeout holds for BACKOFF_WINDOWS clean windows, then it's tuned down again
+        record(timeout, AdaptiveTimeout.BACKOFF_WINDOWS * AdaptiveTimeout.WINDOW, 0x0C, 10 * MILLI,
+                ObdMetrics.Outcome.ANSWERED);
+        assertEquals(8, timeout.getAdapterTimeout());
+        record(timeout, AdaptiveTimeout.WINDOW, 0x0C, 10 * MILLI, ObdMetrics.Outcome.ANSWERED);
+        assertEquals(4, timeout.getAdapterTimeout());
+
+        timeout.record(0x0C, 0, ObdMetrics.Outcome.TIMEOUT);
+        assertEquals(8, timeout.getAdapterTimeout());
+        for (int i = 0; i < 5; i++)
+            timeout.record(0x0C, 0, ObdMetrics.Outcome.TIMEOUT);
+        assertEquals(0x40, timeout.getAdapterTimeout());
+    }
+
+    @Test
+    public void shortensPollCyclesSpentWaitingForFurtherAnswers() throws Exception {
+        simulator.setSupportedPids(0x04, 0x05, 0x0C, 0x0F);
+        simulator.setLatency(2000, 0);
+        simulator.setResponseWait(40000);
+        JavaObdReader reader = JavaObdReader.getJavaObdReaderForSimulator(simulator);
+        reader.initOBDControlCommands();
+        reader.initSupportedOdbCommands();
+        reader.setAdaptiveTimeout(true);
+
+        double[] values = new double[reader.getCommandCount()];
+        long start = System.nanoTime();
+        assertEquals(4, reader.runCommandsReturnValues(values));
+        long untuned = System.nanoTime() - start;
+        // still the AT ST FF initOBDControlCommands sent
+        assertEquals(4 * 0xFF, simulator.getAdapterTimeoutMillis());
+        assertEquals(4, reader.runCommandsReturnValues(values));
+        assertEquals(4, reader.runCommandsReturnValues(values));
+
+        // AT ST 04 cuts the 40 ms the adapter keeps listening after each answer down to 16 ms
+        assertEquals(16, reader.getAdaptiveTimeout().getAdapterTimeoutMillis());
+        assertEquals(16, simulator.getAdapterTimeoutMillis());
+        assertTrue(untuned >= 4 * 42 * MILLI);
+    }
+
+    @Test
+    public void backsOffWhenAPidSlowsDown() throws Exception {
+        simulator.setSupportedPids(0x04, 0x05, 0x0C, 0x0F);
+        simulator.setLatency(1000, 0);
+        JavaObdReader reader = JavaObdReader.getJavaObdReaderForSimulator(simulator);
+        reader.initOBDControlCommands();
+        reader.initSupportedOdbCommands();
+        reader.setAdaptiveTimeout(true);
+        reader.setBatchedPolling(false);
+
+        double[] values = new double[reader.getCommandCount()];
+        for (int i = 0; i < 3; i++)
+            reader.runCommandsReturnValues(values);
+        assertEquals(4, reader.getAdaptiveTimeout().getAdapterTimeout());
+
+        // 0C now answers after the adapter stopped listening, so it comes back as NO DATA
+        simulator.setLatency("010C", 24000, 0);
+        assertEquals(3, reader.runCommandsReturnValues(values));
+        for (int i = 0; i < 8; i++)
+            reader.runCommandsReturnValues(values);
+        assertTrue(reader.getAdaptiveTimeout().getBackoffCount() >= 1);
+        assertEquals(8, reader.getAdaptiveTimeout().getAdapterTimeout());
+        assertEquals(4, reader.runCommandsReturnValues(values));
+        assertFalse(Double.isNaN(values[0]));
+    }
+
+    @Test
+    public void droppedResponsesCostTheStreamTimeout() throws Exception {
+        simulator.setSupportedPids(0x05, 0x0C);
+        JavaObdReader reader = JavaObdReader.getJavaObdReaderForSimulator(simulator);
+        reader.initOBDControlCommands();
+        reader.initSupportedOdbCommands();
+        reader.setAdaptiveTimeout(true);
+
+        double[] values = new double[reader.getCommandCount()];
+        for (int i = 0; i < 5; i++)
+            reader.runCommandsReturnValues(values);
+        assertEquals(52, reader.getAdaptiveTimeout().getStreamTimeoutMillis());
+        assertEquals(52, simulator.getSerialLink().getReadTimeout());
+
+        simulator.injectFault(ElmSimulator.Fault.TIMEOUT);
+        long start = System.nanoTime();
+        try {
+            reader.runCommandsReturnValues(values);
+            fail("expected a read timeout");
+        } catch (SocketTimeoutException e) {
+            // expected
+        }
+        long elapsed = System.nanoTime() - start;
+        assertTrue(elapsed >= 52 * MILLI);
+        assertEquals(8, reader.getAdaptiveTimeout().getAdapterTimeout());
+        reader.runCommandsReturnValues(values);
+        assertEquals(32, simulator.getAdapterTimeoutMillis());
+    }
+
+    @Test
+    public void shortensUnsupportedCommandProbes() throws Exception {
+        long plain = probeTime(false);
+        long adaptive = probeTime(true);
+        // 23 probes at 40 ms untuned; tuned, the 12 unsupported probes after the 11th cost 16 ms each
+        assertTrue(plain >= 23 * 40 * MILLI);
+        assertTrue(adaptive < plain - 12 * 15 * MILLI);
+    }
+
+    private long probeTime(boolean adaptive) throws Exception {
+        ElmSimulator sim = new ElmSimulator();
+        try {
+            sim.setSupportedPids(0x04, 0x0C, 0x10, 0x11, 0x1F, 0x06, 0x07, 0x08, 0x09);
+            sim.setResponseWait(40000);
+            sim.loadTrace(new StringReader(">01 00\rNO DATA\r"));
+            JavaObdReader reader = JavaObdReader.getJavaObdReaderForSimulator(sim);
+            reader.initOBDControlCommands();
+            reader.setAdaptiveTimeout(adaptive);
+            reader.initSupportedOdbCommands();
+            assertEquals(9, reader.getCommandCount());
+
+            DiscoveryReport.Step probe = reader.getDiscoveryReport().getSteps().get(1);
+            assertEquals("probe commands", probe.getName());
+            return probe.getNanos();
+        } finally {
+            sim.close();
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package RyanBerti;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@Category(RyanBerti.UnitTests.class)
+public class AsyncSampleWriterTest {
+
+    /**
+     * Records what it is given, optionally stalling every write like a slow disk
+     */
+    private static class RecordingSink implements SampleSink {
+
+        final List<Long> timestamps = new ArrayList<>();
+        final long stallMillis;
+        volatile int flushes = 0;
+        volatile boolean closed = false;
+        volatile boolean failing = false;
+
+        RecordingSink(long stallMillis) {
+            this.stallMillis = stallMillis;
+        }
+
+        @Override
+        public synchronized void addSamples(long timestampMillis, double[] values) throws IOException {
+            if (failing)
+                throw new IOException("disk full");
+            if (values[0] != timestampMillis * 2)
+                throw new IOException("values don't match their timestamp");
+            timestamps.add(timestampMillis);
+            if (stallMillis > 0) {
+                try {
+                    Thread.sleep(stallMillis);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+        }
+
+        @Override
+        public void flush() {
+            flushes++;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+
+    @Test
+    public void writesEveryCycleInOrder() throws Exception {
+        RecordingSink sink = new RecordingSink(0);
+        AsyncSampleWriter writer = new AsyncSampleWriter(sink, 2, 8, AsyncSampleWriter.OverflowPolicy.BLOCK, 1000);
+        double[] values = new double[2];
+        for (long i = 0; i < 1000; i++) {
+            values[0] = i * 2;
+            writer.addSamples(i, values);
+        }
+        writer.flush();
+        assertEquals(1000, writer.getWrittenCount());
+        assertEquals(0, writer.getDroppedCount());
+        assertTrue(writer.getMaxQueueDepth() <= 8);
+        assertTrue(sink.flushes >= 1);
+        assertTrue(writer.getMaxLatencyNanos() >= writer.getAverageLatencyNanos());
+        writer.close();
+
+        assertTrue(sink.closed);
+        for (int i = 0; i < 1000; i++)
+            assertEquals(i, (long) sink.timestamps.get(i));
+    }
+
+    @Test
+    public void dropsCyclesWhenSinkStalls() throws Exception {
+        RecordingSink sink = new RecordingSink(20);
+        AsyncSampleWriter writer = new AsyncSampleWriter(sink, 1, 4, AsyncSampleWriter.OverflowPolicy.DROP, 5);
+        double[] values = new double[1];
+        long start = System.nanoTime();
+        for (long i = 0; i < 50; i++) {
+            values[0] = i * 2;
+            writer.addSamples(i, values);
+        }
+        // a stalled sink must not slow down the producer
+        assertTrue(System.nanoTime() - start < 200000000L);
+        writer.close();
+
+        assertTrue(writer.getDroppedCount() > 0);
+        assertEquals(50, writer.getDroppedCount() + sink.timestamps.size());
+    }
+
+    @Test
+    public void blocksWhenSinkStalls() throws Exception {
+        RecordingSink sink = new RecordingSink(2);
+        AsyncSampleWriter writer = new AsyncSampleWriter(sink, 1, 4, AsyncSampleWriter.OverflowPolicy.BLOCK, 5);
+        double[] values = new double[1];
+        for (long i = 0; i < 50; i++) {
+            values[0] = i * 2;
+            writer.addSamples(i, values);
+        }
+        writer.close();
+
+        assertTrue(writer.getBackpressureEvents() > 0);
+        assertEquals(0, writer.getDroppedCount());
+        assertEquals(50, sink.timestamps.size());
+    }
+
+    @Test
+    public void sinkFailureIsReportedToProducer() throws Exception {
+        RecordingSink sink = new RecordingSink(0);
+        sink.failing = true;
+        AsyncSampleWriter writer = new AsyncSampleWriter(sink, 1, 4, AsyncSampleWriter.OverflowPolicy.BLOCK, 5);
+        writer.addSamples(0, new double[1]);
+        try {
+            writer.flush();
+            fail("flush should report the sink's failure");
+        } catch (IOException e) {
+            assertEquals("disk full", e.getCause().getMessage());
+        }
+        try {
+            writer.close();
+            fail("close should report the sink's failure");
+        } catch (IOException e) {
+            assertTrue(sink.closed);
+        }
+    }
+}
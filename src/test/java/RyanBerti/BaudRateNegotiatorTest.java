@@ -0,0 +1,121 @@
+package RyanBerti;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@Category(RyanBerti.UnitTests.class)
+public class BaudRateNegotiatorTest {
+
+    private final ElmSimulator simulator = new ElmSimulator(11);
+
+    @After
+    public void closeSimulator() {
+        simulator.close();
+    }
+
+    private JavaObdReader connect(int baudRate) throws Exception {
+        simulator.setBaudRate(baudRate);
+        JavaObdReader reader = JavaObdReader.getJavaObdReaderForSimulator(simulator);
+        reader.initOBDControlCommands();
+        return reader;
+    }
+
+    private static void assertPolls(JavaObdReader reader) throws Exception {
+        reader.initSupportedOdbCommands();
+        double[] values = new double[reader.getCommandCount()];
+        assertEquals(reader.getCommandCount(), reader.runCommandsReturnValues(values));
+        for (double value : values)
+            assertFalse(Double.isNaN(value));
+    }
+
+    @Test
+    public void detectsTheAdapterRate() throws Exception {
+        simulator.setBaudRate(38400);
+        SerialLink link = simulator.getSerialLink();
+
+        assertEquals(38400, BaudRateNegotiator.detect(link, simulator.getInputStream(), simulator.getOutputStream(),
+                new int[] {9600, 115200, 38400}));
+        assertEquals(38400, link.getBaudRate());
+        assertEquals(0, link.getReadTimeout());
+
+        assertEquals(-1, BaudRateNegotiator.detect(link, simulator.getInputStream(), simulator.getOutputStream(),
+                new int[] {9600, 57600}));
+
+        // the garbage sent at the wrong rates doesn't upset the adapter once the rate is right again
+        assertEquals(38400, BaudRateNegotiator.detect(link, simulator.getInputStream(), simulator.getOutputStream(),
+                new int[] {38400}));
+        JavaObdReader reader = JavaObdReader.getJavaObdReaderForSimulator(simulator);
+        reader.initOBDControlCommands();
+        assertPolls(reader);
+    }
+
+    @Test
+    public void switchesToAFasterRate() throws Exception {
+        JavaObdReader reader = connect(38400);
+
+        assertEquals(500000, reader.setSerialBaudRate(500000));
+        assertEquals(500000, simulator.getBaudRate());
+        assertEquals(500000, reader.getSerialBaudRate());
+        assertPolls(reader);
+
+        // AT BRD only approximates: 4 MHz / 35
+        assertEquals(114285, reader.setSerialBaudRate(115200));
+        assertPolls(reader);
+    }
+
+    @Test
+    public void fallsBackWhenTheHandshakeFails() throws Exception {
+        simulator.setMaxReliableBaudRate(115200);
+        JavaObdReader reader = connect(38400);
+
+        long start = System.nanoTime();
+        assertEquals(38400, reader.setSerialBaudRate(500000));
+        long elapsedMillis = (System.nanoTime() - start) / 1000000;
+        assertEquals(38400, simulator.getBaudRate());
+        assertEquals(38400, reader.getSerialBaudRate());
+        assertTrue(elapsedMillis < 2 * BaudRateNegotiator.SWITCH_TIMEOUT_MILLIS);
+        assertPolls(reader);
+    }
+
+    @Test
+    public void staysWithAdaptersThatDontKnowBrd() throws Exception {
+        simulator.setMaxBaudRate(0);
+        JavaObdReader reader = connect(38400);
+
+        assertEquals(38400, reader.setSerialBaudRate(500000));
+        assertPolls(reader);
+
+        try {
+            reader.setSerialBaudRate(1000000);
+            fail("expected an IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void fasterRatesPollFaster() throws Exception {
+        JavaObdReader reader = connect(9600);
+        reader.initSupportedOdbCommands();
+        double[] values = new double[reader.getCommandCount()];
+
+        long start = System.nanoTime();
+        reader.runCommandsReturnValues(values);
+        long slow = System.nanoTime() - start;
+
+        assertEquals(500000, reader.setSerialBaudRate(500000));
+        start = System.nanoTime();
+        reader.runCommandsReturnValues(values);
+        long fast = System.nanoTime() - start;
+
+        // at 9600 baud each byte of the cycle takes over a millisecond, at 500000 baud 20 us
+        assertTrue(slow > 100 * 1000000L);
+        assertTrue(fast * 10 < slow);
+    }
+}
@@ -0,0 +1,35 @@
+package RyanBerti;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs every JMH benchmark of the project (discovery, polling, response parsing and output) and
+ * writes the results as JSON, so they can be compared between builds; used by the benchmark profile
+ * (mvn -Pbenchmark verify). Arguments, both optional: the result file (default jmh-result.json) and
+ * a benchmark name regex (default: all). The simulated adapter latencies, in microseconds as a comma
+ * separated list, come from the benchmark.latency.micros system property (default: each benchmark's own)
+ */
+public class Benchmarks {
+
+    public static void main(String[] args) throws RunnerException {
+
+        String result = args.length > 0 ? args[0] : "jmh-result.json";
+        String include = args.length > 1 ? args[1] : "RyanBerti\\.(DiscoveryBenchmark|PollingBenchmark|" +
+                "ResponseParserBenchmark|OutputBenchmark)";
+        String latencies = System.getProperty("benchmark.latency.micros", "");
+
+        ChainedOptionsBuilder options = new OptionsBuilder()
+                .include(include)
+                .resultFormat(ResultFormatType.JSON)
+                .result(result);
+        if (!latencies.isEmpty())
+            options.param("latencyMicros", latencies.split(","));
+
+        new Runner(options.build()).run();
+        System.out.println("Benchmark results written to " + result);
+    }
+}
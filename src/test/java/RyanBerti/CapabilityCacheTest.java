@@ -0,0 +1,97 @@
+package RyanBerti;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@Category(RyanBerti.UnitTests.class)
+public class CapabilityCacheTest {
+
+    private static final String VIN = "1FTFW1EF1EKF01234";
+    private static final String VIN_RESPONSE = "014\r0: 49 02 01 31 46 54\r1: 46 57 31 45 46 31 45\r2: 4B 46 30 31 32 33 34\r\r>";
+
+    private File directory;
+
+    @Before
+    public void createDirectory() throws Exception {
+        directory = Files.createTempDirectory("capabilitycache").toFile();
+    }
+
+    @After
+    public void deleteDirectory() {
+        File[] files = directory.listFiles();
+        if (files != null)
+            for (File f : files)
+                f.delete();
+        directory.delete();
+    }
+
+    @Test
+    public void saveAndLoadProfile() throws Exception {
+        CapabilityCache cache = new CapabilityCache(directory);
+        cache.save(new VehicleProfile(VIN, "ELM327 v1.5", '6', 100, "BE1FA813", Arrays.asList(0x010C, 0x0105)));
+
+        VehicleProfile profile = cache.load(VIN);
+        assertEquals("ELM327 v1.5", profile.getAdapterId());
+        assertEquals('6', profile.getProtocol());
+        assertEquals(100, profile.getAdapterTimeout());
+        assertEquals("BE1FA813", profile.getSupportedPidMask());
+        assertEquals(Arrays.asList(0x010C, 0x0105), profile.getCommandKeys());
+
+        assertEquals(VIN, cache.loadLastForAdapter("ELM327 v1.5").getVin());
+        assertNull(cache.loadLastForAdapter("ELM327 v2.1"));
+        assertNull(cache.load("2FTFW1EF1EKF01234"));
+    }
+
+    @Test
+    public void parseVinFormats() {
+        assertEquals(VIN, ElmIO.parseVin(VIN_RESPONSE));
+        assertEquals(VIN, ElmIO.parseVin("49 02 01 00 00 00 31\r49 02 02 46 54 46 57\r49 02 03 31 45 46 31\r" +
+                                         "49 02 04 45 4B 46 30\r49 02 05 31 32 33 34\r\r"));
+        assertNull(ElmIO.parseVin("NO DATA\r\r"));
+    }
+
+    @Test
+    public void initFromCacheRestoresCommands() throws Exception {
+        CapabilityCache cache = new CapabilityCache(directory);
+        cache.save(new VehicleProfile(VIN, "ELM327 v1.5", '6', 255, "BE1FA813", Arrays.asList(0x010C, 0x0105)));
+
+        String responses = "OK\r\r>OK\r\r>OK\r\r>OK\r\r>" + // control commands
+                           "ELM327 v1.5\r\r>" +           // AT I
+                           "OK\r\r>" +                    // AT SP 6
+                           VIN_RESPONSE +
+                           "41 00 BE 1F A8 13\r\r>";
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        JavaObdReader reader = JavaObdReader.getJavaObdReaderForStreams(new ByteArrayInputStream(responses.getBytes()), os);
+
+        assertTrue(reader.initFromCache(cache));
+        assertEquals(2, reader.getCommandCount());
+        assertTrue(reader.getCommandListAsString().contains("RPMCommand"));
+        assertTrue(os.toString().endsWith("AT SP 6\r09 02\r01 00\r"));
+    }
+
+    @Test
+    public void initFromCacheRejectsChangedVehicle() throws Exception {
+        CapabilityCache cache = new CapabilityCache(directory);
+        cache.save(new VehicleProfile(VIN, "ELM327 v1.5", '6', 255, "BE1FA813", Arrays.asList(0x010C, 0x0105)));
+
+        String responses = "OK\r\r>OK\r\r>OK\r\r>OK\r\r>ELM327 v1.5\r\r>OK\r\r>" + VIN_RESPONSE +
+                           "41 00 80 00 00 01\r\r>";
+        JavaObdReader reader = JavaObdReader.getJavaObdReaderForStreams(new ByteArrayInputStream(responses.getBytes()),
+                new ByteArrayOutputStream());
+
+        assertFalse(reader.initFromCache(cache));
+    }
+}
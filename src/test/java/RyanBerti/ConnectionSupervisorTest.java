@@ -0,0 +1,160 @@
+package RyanBerti;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@Category(RyanBerti.UnitTests.class)
+public class ConnectionSupervisorTest {
+
+    private final ElmSimulator simulator = new ElmSimulator(5);
+    private final List<String> events = new ArrayList<>();
+
+    private final ConnectionListener listener = new ConnectionListener() {
+        @Override
+        public void connectionLost(IOException cause) {
+            events.add("lost");
+        }
+
+        @Override
+        public void connectionRestored(long outageMillis, long samplesLost) {
+            events.add("restored");
+        }
+    };
+
+    @After
+    public void closeSimulator() {
+        simulator.close();
+    }
+
+    private ConnectionSupervisor connect() throws Exception {
+        JavaObdReader reader = JavaObdReader.getJavaObdReaderForSimulator(simulator);
+        reader.initOBDControlCommands();
+        reader.initSupportedOdbCommands();
+        ConnectionSupervisor supervisor = new ConnectionSupervisor(reader, listener);
+        supervisor.setStallTimeout(150);
+        supervisor.setBackoff(20, 80);
+        return supervisor;
+    }
+
+    private static void assertAllValues(ConnectionSupervisor supervisor, double[] values) throws Exception {
+        assertEquals(supervisor.getReader().getCommandCount(), supervisor.runCommandsReturnValues(values));
+        for (double value : values)
+            assertFalse(Double.isNaN(value));
+    }
+
+    @Test
+    public void recoversFromADroppedConnection() throws Exception {
+        simulator.setLatency(2000, 0);
+        simulator.setSearchLatency(300000);
+        ConnectionSupervisor supervisor = connect();
+        double[] values = new double[supervisor.getReader().getCommandCount()];
+        for (int i = 0; i < 10; i++)
+            assertAllValues(supervisor, values);
+
+        simulator.dropConnection(200);
+        long requests = simulator.getRequestCount();
+        assertAllValues(supervisor, values);
+
+        // the setup is replayed with the protocol found before, so neither discovery nor the
+        // protocol search is repeated
+        assertTrue(simulator.getRequestCount() - requests <= 4 + supervisor.getReader().getCommandCount());
+        assertEquals(1, supervisor.getOutageCount());
+        assertTrue(supervisor.getLastOutageMillis() >= 200);
+        assertTrue(supervisor.getReconnectAttempts() > 2);
+        assertTrue(supervisor.getSamplesLost() > 0);
+        assertTrue(supervisor.isConnected());
+        assertEquals(2, events.size());
+        assertEquals("restored", events.get(1));
+    }
+
+    @Test
+    public void detectsAStalledAdapter() throws Exception {
+        ConnectionSupervisor supervisor = connect();
+        double[] values = new double[supervisor.getReader().getCommandCount()];
+        assertAllValues(supervisor, values);
+
+        simulator.stallConnection(0);
+        long start = System.nanoTime();
+        assertAllValues(supervisor, values);
+        long elapsedMillis = (System.nanoTime() - start) / 1000000;
+
+        assertEquals(1, supervisor.getOutageCount());
+        assertTrue(elapsedMillis >= 150);
+        assertEquals(1, supervisor.getReconnectAttempts());
+    }
+
+    @Test
+    public void switchesASerialAdapterBackToItsRate() throws Exception {
+        simulator.setBaudRate(38400);
+        ConnectionSupervisor supervisor = connect();
+        assertEquals(500000, supervisor.getReader().setSerialBaudRate(500000));
+        double[] values = new double[supervisor.getReader().getCommandCount()];
+        assertAllValues(supervisor, values);
+
+        // the restarted adapter is back at 38400 baud
+        simulator.dropConnection(0);
+        assertAllValues(supervisor, values);
+        assertEquals(500000, simulator.getBaudRate());
+        assertEquals(500000, supervisor.getReader().getSerialBaudRate());
+        assertEquals(1, supervisor.getOutageCount());
+    }
+
+    @Test
+    public void stallGuardFailsEndedAndStalledStreams() throws Exception {
+        StallGuard guard = new StallGuard(50);
+        InputStream in = guard.wrap(new ByteArrayInputStream("41 0C 1A F8\r\r>".getBytes()));
+        guard.wrap(ElmIO.NULL_OUTPUT).write("01 0C\r".getBytes());
+        assertEquals("41 0C 1A F8\r\r", ElmIO.readUntilPrompt(in));
+        try {
+            in.read();
+            fail("expected an EOFException");
+        } catch (EOFException e) {
+            // expected
+        }
+
+        // an adapter sending without ever finishing its answer
+        InputStream trickle = guard.wrap(new InputStream() {
+            @Override
+            public int read() {
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return '.';
+            }
+        });
+        guard.wrap(ElmIO.NULL_OUTPUT).write("01 0C\r".getBytes());
+        try {
+            ElmIO.readUntilPrompt(trickle);
+            fail("expected a SocketTimeoutException");
+        } catch (SocketTimeoutException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void readersOnPlainStreamsCantReconnect() throws Exception {
+        JavaObdReader reader = JavaObdReader.getJavaObdReaderForStreams(simulator.getInputStream(), simulator.getOutputStream());
+        try {
+            reader.reconnect();
+            fail("expected an IllegalStateException");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+}
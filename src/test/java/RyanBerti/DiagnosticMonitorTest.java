@@ -0,0 +1,159 @@
+package RyanBerti;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@Category(RyanBerti.UnitTests.class)
+public class DiagnosticMonitorTest {
+
+    private final ElmSimulator simulator = new ElmSimulator(3);
+    private final List<DiagnosticEvent> events = new ArrayList<>();
+
+    @After
+    public void closeSimulator() {
+        simulator.close();
+    }
+
+    private JavaObdReader connect(DiagnosticMonitor monitor) throws Exception {
+        JavaObdReader reader = JavaObdReader.getJavaObdReaderForSimulator(simulator);
+        reader.initOBDControlCommands();
+        reader.initSupportedOdbCommands();
+        reader.setDiagnosticMonitor(monitor);
+        return reader;
+    }
+
+    /**
+     * Poll until the monitor completed the given number of rounds
+     */
+    private static void pollRounds(JavaObdReader reader, DiagnosticMonitor monitor, long rounds) throws Exception {
+        double[] values = new double[reader.getCommandCount()];
+        for (int i = 0; i < 1000 && monitor.getRoundCount() < rounds; i++)
+            reader.runCommandsReturnValues(values);
+        assertTrue(monitor.getRoundCount() >= rounds);
+    }
+
+    private List<String> eventsAsStrings() {
+        List<String> strings = new ArrayList<>();
+        for (DiagnosticEvent event : events)
+            strings.add(event.getType() + (event.getCode() == null ? "" : " " + event.getCode()) + (event.isPending() ? " pending" : ""));
+        events.clear();
+        return strings;
+    }
+
+    @Test
+    public void encodesAndDecodesTroubleCodes() {
+        for (String code : new String[] {"P0301", "C1234", "B2ABC", "U3FFF", "P0000"}) {
+            int encoded = DiagnosticMonitor.encodeCode(code);
+            assertEquals(code, DiagnosticMonitor.decodeCode(encoded >> 8, encoded & 0xFF));
+        }
+        assertEquals("P0420", DiagnosticMonitor.decodeCode(0x04, 0x20));
+        try {
+            DiagnosticMonitor.encodeCode("X0301");
+            fail("expected an IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void reportsCodesOnlyWhenTheyChange() throws Exception {
+        DiagnosticMonitor monitor = new DiagnosticMonitor(events::add);
+        monitor.setBudget(1);
+        monitor.setInterval(0);
+        JavaObdReader reader = connect(monitor);
+
+        pollRounds(reader, monitor, 1);
+        assertEquals(0, events.size());
+        assertFalse(monitor.isMilOn());
+
+        simulator.setTroubleCodes("P0420", "P0301");
+        simulator.setPendingCodes("P0171");
+        pollRounds(reader, monitor, monitor.getRoundCount() + 2);
+        assertEquals(Arrays.asList("MIL_ON", "CODE_SET P0301", "CODE_SET P0420", "CODE_SET P0171 pending",
+                "FREEZE_FRAME P0420"), eventsAsStrings());
+        assertTrue(monitor.isMilOn());
+        assertEquals(Arrays.asList("P0301", "P0420"), monitor.getStoredCodes());
+        assertEquals(Arrays.asList("P0171"), monitor.getPendingCodes());
+        assertEquals(4, monitor.getFreezeFrame().size());
+        assertTrue(monitor.getFreezeFrame().get(0x0C) > 0);
+
+        // a further round finds the same state, so nothing is reported
+        pollRounds(reader, monitor, monitor.getRoundCount() + 1);
+        assertEquals(0, events.size());
+
+        simulator.setTroubleCodes("P0420");
+        simulator.setPendingCodes();
+        pollRounds(reader, monitor, monitor.getRoundCount() + 2);
+        assertEquals(Arrays.asList("CODE_CLEARED P0301", "CODE_CLEARED P0171 pending"), eventsAsStrings());
+
+        simulator.setTroubleCodes();
+        pollRounds(reader, monitor, monitor.getRoundCount() + 2);
+        assertEquals(Arrays.asList("MIL_OFF", "CODE_CLEARED P0420"), eventsAsStrings());
+        assertEquals(0, monitor.getFreezeFrame().size());
+    }
+
+    @Test
+    public void staysWithinItsBudget() throws Exception {
+        simulator.setLatency(2000, 0);
+        for (String prefix : new String[] {"01 01", "02", "03", "07"})
+            simulator.setLatency(prefix, 20000, 0);
+        DiagnosticMonitor monitor = new DiagnosticMonitor(null);
+        monitor.setBudget(0.1);
+        monitor.setInterval(0);
+        JavaObdReader reader = connect(monitor);
+
+        double[] values = new double[reader.getCommandCount()];
+        long start = System.nanoTime();
+        while (System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(400))
+            reader.runCommandsReturnValues(values);
+        long elapsed = System.nanoTime() - start;
+
+        double share = (double) monitor.getSpentNanos() / elapsed;
+        System.out.println(String.format("%d diagnostic requests took %.1f%% of the adapter's time, %d deferred",
+                monitor.getRequestCount(), share * 100, monitor.getDeferredCount()));
+        assertTrue(monitor.getRequestCount() >= 2);
+        assertTrue(monitor.getDeferredCount() > 0);
+        assertTrue(share < 0.15);
+    }
+
+    @Test
+    public void scheduledPollingKeepsItsRate() throws Exception {
+        simulator.setSupportedPids(0x05, 0x0C);
+        simulator.setLatency(2000, 0);
+        for (String prefix : new String[] {"01 01", "02", "03", "07"})
+            simulator.setLatency(prefix, 25000, 0);
+        DiagnosticMonitor monitor = new DiagnosticMonitor(null);
+        monitor.setBudget(0.9);
+        monitor.setInterval(0);
+        JavaObdReader reader = connect(monitor);
+
+        assertEquals(2, reader.getCommandCount());
+        PollScheduler scheduler = reader.createPollScheduler(20.0);
+        double[] values = new double[reader.getCommandCount()];
+        long start = System.nanoTime();
+        long now = start;
+        while (now - start < TimeUnit.MILLISECONDS.toNanos(600)) {
+            reader.runScheduledCommandsReturnValues(scheduler, values);
+            now = System.nanoTime();
+        }
+
+        // the 25 ms diagnostic requests only go out in the 50 ms gaps between samples
+        System.out.println(String.format("%d diagnostic requests, %d deferred, %.1f Hz", monitor.getRequestCount(),
+                monitor.getDeferredCount(), scheduler.getAchievedRate(0, now)));
+        assertTrue(monitor.getRequestCount() >= 5);
+        assertTrue(scheduler.getAchievedRate(0, now) > 18);
+        assertTrue(scheduler.getAchievedRate(1, now) > 18);
+        assertEquals(0, scheduler.getMissCount(0));
+    }
+}
@@ -0,0 +1,66 @@
+package RyanBerti;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times connection startup against a simulated adapter: the control commands, and supported command
+ * discovery through the "PIDs supported" masks. Every invocation gets a fresh adapter and reader, so
+ * each one measures a cold start of the adapter protocol (not of the JVM)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DiscoveryBenchmark {
+
+    /**
+     * Simulated adapter response time
+     */
+    @Param({"0", "100"})
+    public long latencyMicros;
+
+    private ElmSimulator simulator;
+    private JavaObdReader reader;
+
+    @Setup(Level.Invocation)
+    public void connect() throws IOException, InterruptedException {
+        simulator = new ElmSimulator(1);
+        simulator.setLatency(latencyMicros, latencyMicros / 2);
+        reader = JavaObdReader.getJavaObdReaderForSimulator(simulator);
+    }
+
+    @TearDown(Level.Invocation)
+    public void disconnect() throws IOException {
+        reader.closeOBDConnection();
+    }
+
+    @Benchmark
+    public JavaObdReader controlCommands() throws IOException, InterruptedException {
+        reader.initOBDControlCommands();
+        return reader;
+    }
+
+    @Benchmark
+    public int controlAndSupportedCommands() throws IOException, InterruptedException {
+        reader.initOBDControlCommands();
+        reader.initSupportedOdbCommands();
+        return reader.getCommandCount();
+    }
+}
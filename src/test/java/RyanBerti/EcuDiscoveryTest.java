@@ -0,0 +1,181 @@
+package RyanBerti;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@Category(RyanBerti.UnitTests.class)
+public class EcuDiscoveryTest {
+
+    private final List<ElmSimulator> simulators = new ArrayList<>();
+
+    @After
+    public void closeSimulators() {
+        for (ElmSimulator simulator : simulators)
+            simulator.close();
+    }
+
+    /**
+     * A vehicle with an engine ECU supporting DEFAULT_PIDS and a transmission ECU supporting three PIDs,
+     * whose adapter listens 30 ms for further answers unless the expected response count is reached
+     */
+    private JavaObdReader connect(boolean ecuDiscovery) throws Exception {
+        JavaObdReader reader = JavaObdReader.getJavaObdReaderForSimulator(simulate());
+        reader.initOBDControlCommands();
+        reader.setEcuDiscovery(ecuDiscovery);
+        return reader;
+    }
+
+    private ElmSimulator simulate() {
+        ElmSimulator simulator = new ElmSimulator(simulators.size());
+        simulators.add(simulator);
+        simulator.addEcu(0x7E9, 0x05, 0x0C, 0x1C);
+        simulator.setResponseWait(30000);
+        return simulator;
+    }
+
+    /**
+     * A stream whose first read once a gate is set waits at that barrier, so a reader only gets its
+     * answer once every other reader is waiting for one too
+     */
+    private static class GatedInputStream extends FilterInputStream {
+
+        private volatile CyclicBarrier gate;
+
+        GatedInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            pass();
+            return super.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            pass();
+            return super.read(b, off, len);
+        }
+
+        private void pass() throws IOException {
+            CyclicBarrier barrier = gate;
+            if (barrier == null)
+                return;
+            gate = null;
+            try {
+                barrier.await(5, TimeUnit.SECONDS);
+            } catch (Exception e) {
+                throw new IOException("The readers didn't discover concurrently", e);
+            }
+        }
+    }
+
+    @Test
+    public void discoversSupportedPidsPerEcu() throws Exception {
+        JavaObdReader reader = connect(true);
+        reader.initSupportedOdbCommands();
+
+        DiscoveryReport report = reader.getDiscoveryReport();
+        assertArrayEquals(new int[] {0x7E8, 0x7E9}, report.getEcus());
+        assertArrayEquals(new int[] {0x04, 0x05, 0x0B, 0x0C, 0x0D, 0x0F, 0x10, 0x11, 0x1F, 0x20, 0x2F, 0x33, 0x40, 0x46},
+                report.getSupportedPids(0x7E8));
+        assertArrayEquals(new int[] {0x05, 0x0C, 0x1C}, report.getSupportedPids(0x7E9));
+        assertArrayEquals(new int[] {0x7E8, 0x7E9}, report.getEcusSupporting(0x0C));
+        assertArrayEquals(new int[] {0x7E8}, report.getEcusSupporting(0x46));
+        assertEquals(0, report.getSupportedPids(0x7EA).length);
+        assertEquals(11, reader.getCommandCount());
+
+        List<String> steps = new ArrayList<>();
+        for (DiscoveryReport.Step step : report.getSteps())
+            steps.add(step.getName());
+        assertEquals(Arrays.asList("AT H1", "01 00", "01 20 1", "01 40 1", "AT H0", "select commands"), steps);
+
+        // polling still sees plain responses, the engine's answer first
+        double[] values = new double[reader.getCommandCount()];
+        assertEquals(11, reader.runCommandsReturnValues(values));
+    }
+
+    @Test
+    public void expectedResponseCountsSkipTheResponseWait() throws Exception {
+        JavaObdReader plain = connect(false);
+        plain.initSupportedOdbCommands();
+        JavaObdReader perEcu = connect(true);
+        perEcu.initSupportedOdbCommands();
+
+        DiscoveryReport plainReport = plain.getDiscoveryReport();
+        DiscoveryReport perEcuReport = perEcu.getDiscoveryReport();
+        assertEquals(0, plainReport.getEcus().length);
+        assertEquals(4, plainReport.getSteps().size());
+        assertEquals(plain.getCommandListAsString(), perEcu.getCommandListAsString());
+
+        // the plain query waits after each of its 3 masks, the per ECU one after 01 00 only
+        assertEquals(3, simulators.get(0).getResponseWaitCount());
+        assertEquals(1, simulators.get(1).getResponseWaitCount());
+        assertTrue(plainReport.getTotalMillis() >= 90);
+        assertTrue(perEcuReport.getTotalMillis() >= 30);
+    }
+
+    @Test
+    public void fallsBackWithoutHeaders() throws Exception {
+        String responses = "?\r\r>" +
+                           "41 00 10 18 00 00\r\r>";
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        JavaObdReader reader = JavaObdReader.getJavaObdReaderForStreams(new ByteArrayInputStream(responses.getBytes()), os);
+        reader.setEcuDiscovery(true);
+        reader.initSupportedOdbCommands();
+
+        assertEquals("AT H1\r01 00\r", os.toString());
+        assertEquals(2, reader.getCommandCount());
+        assertEquals(0, reader.getDiscoveryReport().getEcus().length);
+        assertEquals(3, reader.getDiscoveryReport().getSteps().size());
+    }
+
+    @Test
+    public void discoversReadersConcurrently() throws Exception {
+        // each reader's first discovery answer is held back until all four readers wait for one, which
+        // they can't if the discoveries run one after the other
+        CyclicBarrier gate = new CyclicBarrier(4);
+        List<JavaObdReader> readers = new ArrayList<>();
+        List<GatedInputStream> streams = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            ElmSimulator simulator = simulate();
+            GatedInputStream is = new GatedInputStream(simulator.getInputStream());
+            JavaObdReader reader = JavaObdReader.getJavaObdReaderForStreams(is, simulator.getOutputStream());
+            reader.initOBDControlCommands();
+            reader.setEcuDiscovery(true);
+            readers.add(reader);
+            streams.add(is);
+        }
+        for (GatedInputStream is : streams)
+            is.gate = gate;
+
+        long start = System.nanoTime();
+        List<DiscoveryReport> reports = JavaObdReader.initSupportedOdbCommands(readers);
+        double elapsedMillis = (System.nanoTime() - start) / 1e6;
+
+        assertEquals(4, reports.size());
+        double slowest = 0;
+        for (int i = 0; i < reports.size(); i++) {
+            assertEquals(2, reports.get(i).getEcus().length);
+            assertEquals(11, readers.get(i).getCommandCount());
+            slowest = Math.max(slowest, reports.get(i).getTotalMillis());
+        }
+        assertTrue(elapsedMillis >= slowest);
+    }
+}
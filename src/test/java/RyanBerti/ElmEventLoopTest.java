@@ -0,0 +1,128 @@
+package RyanBerti;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.net.SocketTimeoutException;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@Category(RyanBerti.UnitTests.class)
+public class ElmEventLoopTest {
+
+    private ElmEventLoop loop;
+    private LoopbackElm327 adapter;
+
+    @Before
+    public void start() throws Exception {
+        loop = new ElmEventLoop();
+        adapter = new LoopbackElm327();
+    }
+
+    @After
+    public void stop() throws Exception {
+        loop.close();
+        adapter.close();
+    }
+
+    @Test
+    public void queuedRequestsAreAnsweredInOrder() throws Exception {
+        ElmChannel channel = loop.open(adapter.getAddress(), 1000, 1000);
+
+        CompletableFuture<String> rpm = channel.send("01 0C");
+        CompletableFuture<String> speed = channel.send("01 0D");
+        CompletableFuture<String> missing = channel.send("01 5C");
+
+        assertEquals("41 0C 1A F8\r\r", rpm.get(5, TimeUnit.SECONDS));
+        assertEquals("41 0D 32\r\r", speed.get(5, TimeUnit.SECONDS));
+        assertEquals("NO DATA\r\r", missing.get(5, TimeUnit.SECONDS));
+        assertEquals(1, channel.getConnectCount());
+    }
+
+    @Test
+    public void oneLoopDrivesManyChannels() throws Exception {
+        adapter.setDelayMillis(50);
+        List<CompletableFuture<String>> responses = new ArrayList<>();
+        for (int i = 0; i < 20; i++)
+            responses.add(loop.open(adapter.getAddress(), 1000, 1000).send("01 0C"));
+
+        long start = System.nanoTime();
+        for (CompletableFuture<String> response : responses)
+            assertEquals("41 0C 1A F8\r\r", response.get(5, TimeUnit.SECONDS));
+
+        // 20 requests with 50 ms turnaround each run concurrently rather than back to back
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 20 * 50);
+    }
+
+    @Test
+    public void reconnectsAfterConnectionDrop() throws Exception {
+        ElmChannel channel = loop.open(adapter.getAddress(), 1000, 1000);
+        channel.setReconnectBackoff(10, 100);
+        channel.setInitRequests(Arrays.asList("AT E0", "AT L0"));
+        assertEquals("41 0C 1A F8\r\r", channel.send("01 0C").get(5, TimeUnit.SECONDS));
+
+        adapter.dropConnections();
+        Thread.sleep(100);
+
+        assertEquals("41 0C 1A F8\r\r", channel.send("01 0C").get(5, TimeUnit.SECONDS));
+        assertEquals(2, channel.getConnectCount());
+        assertTrue(channel.getFailureCount() >= 1);
+    }
+
+    @Test
+    public void missingPromptTimesOut() throws Exception {
+        ElmChannel channel = loop.open(adapter.getAddress(), 1000, 100);
+        adapter.setSilent(true);
+
+        try {
+            channel.send("01 0C").get(5, TimeUnit.SECONDS);
+            fail("request should have timed out");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof SocketTimeoutException);
+        }
+
+        adapter.setSilent(false);
+        assertEquals("41 0D 32\r\r", channel.send("01 0D").get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void closingTheLoopFailsPendingRequests() throws Exception {
+        ElmChannel channel = loop.open(adapter.getAddress(), 1000, 5000);
+        adapter.setSilent(true);
+
+        // requests are sent before, while and after the loop closes
+        List<CompletableFuture<String>> responses = Collections.synchronizedList(new ArrayList<>());
+        responses.add(channel.send("01 0C"));
+        Thread sender = new Thread(() -> {
+            for (int i = 0; i < 10000; i++)
+                responses.add(channel.send("01 0D"));
+        });
+        sender.start();
+        loop.close();
+        sender.join();
+        responses.add(channel.send("01 0C"));
+
+        synchronized (responses) {
+            for (CompletableFuture<String> response : responses) {
+                try {
+                    response.get(5, TimeUnit.SECONDS);
+                    fail("request should have failed");
+                } catch (ExecutionException e) {
+                    assertTrue(e.getCause() instanceof ClosedChannelException);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package RyanBerti;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@Category(RyanBerti.UnitTests.class)
+public class ElmResponseReaderTest {
+
+    @Test
+    public void readsConsecutiveResponses() throws Exception {
+        ElmResponseReader reader = new ElmResponseReader();
+        ByteArrayInputStream is = new ByteArrayInputStream("SEARCHING...\r41 0C 1A F8\r\r>NO DATA\r\r>".getBytes());
+
+        reader.readResponse(is);
+        assertFalse(reader.isError());
+        assertEquals(1, reader.getMessageCount());
+        assertEquals(4, reader.getMessageLength(0));
+        assertEquals(0xF8, reader.getPayload()[3]);
+
+        reader.readResponse(is);
+        assertTrue(reader.isError());
+
+        assertEquals(-1, reader.readResponse(is));
+    }
+
+    @Test
+    public void readsMultiFrameAndMultiEcuResponses() throws Exception {
+        ElmResponseReader reader = new ElmResponseReader();
+        String response = "00A\r0: 41 0C 1A F8 0D 00\r1: 05 7B 11 33 00 00 00\r41 0D 00\r\r>";
+        reader.readResponse(new ByteArrayInputStream(response.getBytes()));
+
+        assertEquals(2, reader.getMessageCount());
+        assertEquals(10, reader.getMessageLength(0));
+        assertEquals(3, reader.getMessageLength(1));
+        assertEquals(0x33, reader.getPayload()[reader.getMessageOffset(0) + 9]);
+        assertEquals(0x41, reader.getPayload()[reader.getMessageOffset(1)]);
+    }
+
+    @Test
+    public void decodesScaledValues() {
+        assertEquals(1726.0, ObdPid.decode(0x0C, new int[]{0x1A, 0xF8}, 0), 0.001);
+        assertEquals(83.0, ObdPid.decode(0x05, new int[]{0x7B}, 0), 0.001);
+        assertEquals(20.0, ObdPid.decode(0x11, new int[]{0x33}, 0), 0.001);
+        assertEquals(5.0, ObdPid.decode(0x10, new int[]{0x01, 0xF4}, 0), 0.001);
+    }
+
+    @Test
+    public void runCommandsReturnValuesDecodesBatchedResponse() throws Exception {
+        String responses = "41 00 18 00 00 00\r\r>" +   // 01 00: PIDs 04 and 05 supported
+                           "41 04 80 05 7B\r\r>" +       // 01 04 05
+                           "41 04 FF\r\r>41 05 28\r\r>"; // 01 04, 01 05
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        JavaObdReader reader = JavaObdReader.getJavaObdReaderForStreams(new ByteArrayInputStream(responses.getBytes()), os);
+        reader.initSupportedOdbCommands();
+
+        double[] values = new double[reader.getCommandCount()];
+        reader.setBatchedPolling(true);
+        assertEquals(2, reader.runCommandsReturnValues(values));
+        assertEquals(50.196, values[0], 0.001);
+        assertEquals(83.0, values[1], 0.001);
+
+        reader.setBatchedPolling(false);
+        assertEquals(2, reader.runCommandsReturnValues(values));
+        assertEquals(100.0, values[0], 0.001);
+        assertEquals(0.0, values[1], 0.001);
+
+        assertEquals("01 00\r01 04 05\r01 04\r01 05\r", os.toString());
+    }
+
+    @Test
+    public void noDataToABatchKeepsBatchedPolling() throws Exception {
+        String responses = "41 00 18 00 00 00\r\r>" + // 01 00: PIDs 04 and 05 supported
+                           "NO DATA\r\r>" +           // 01 04 05 while the ECU wakes up
+                           "41 04 80 05 7B\r\r>" +     // 01 04 05
+                           "?\r\r>" +                 // 01 04 05 rejected
+                           "41 04 FF\r\r>41 05 28\r\r>"; // 01 04, 01 05
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        JavaObdReader reader = JavaObdReader.getJavaObdReaderForStreams(new ByteArrayInputStream(responses.getBytes()), os);
+        reader.initSupportedOdbCommands();
+
+        double[] values = new double[reader.getCommandCount()];
+        reader.setBatchedPolling(true);
+        assertEquals(0, reader.runCommandsReturnValues(values));
+        assertTrue(reader.isBatchedPollingActive());
+        assertEquals(2, reader.runCommandsReturnValues(values));
+        assertTrue(reader.isBatchedPollingActive());
+
+        assertEquals(2, reader.runCommandsReturnValues(values));
+        assertFalse(reader.isBatchedPollingActive());
+        assertEquals("01 00\r01 04 05\r01 04 05\r01 04 05\r01 04\r01 05\r", os.toString());
+    }
+}
@@ -0,0 +1,225 @@
+package RyanBerti;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@Category(RyanBerti.UnitTests.class)
+public class ElmSimulatorTest {
+
+    private final ElmSimulator simulator = new ElmSimulator(42);
+
+    @After
+    public void closeSimulator() {
+        simulator.close();
+    }
+
+    private String send(String request) throws IOException {
+        return ElmIO.send(simulator.getInputStream(), simulator.getOutputStream(), request);
+    }
+
+    @Test
+    public void initializesAndPollsLikeAnAdapter() throws Exception {
+        simulator.setSupportedPids(0x05, 0x0C, 0x2F, 0x46);
+        simulator.setPidData(0x0C, 0x1A, 0xF8);
+        JavaObdReader reader = JavaObdReader.getJavaObdReaderForSimulator(simulator);
+        reader.initOBDControlCommands();
+        reader.initSupportedOdbCommands();
+        assertEquals(4, reader.getCommandCount());
+
+        double[] values = new double[reader.getCommandCount()];
+        assertEquals(4, reader.runCommandsReturnValues(values));
+        assertEquals(1726.0, values[0], 0.001);
+
+        reader.setBatchedPolling(true);
+        assertEquals(4, reader.runCommandsReturnValues(values));
+        assertTrue(reader.isBatchedPollingActive());
+        assertEquals(1726.0, values[0], 0.001);
+
+        assertEquals("1D4GP25R53C599999", reader.readVin());
+        assertEquals(ElmSimulator.DEFAULT_ADAPTER_ID, reader.readAdapterId());
+        reader.closeOBDConnection();
+        try {
+            simulator.getInputStream().read();
+            fail("the reader's connection should be closed");
+        } catch (IOException e) {
+            // expected
+        }
+
+        // only the reader's connection was closed, the simulator answers a new one
+        simulator.reconnect();
+        assertEquals("1D4GP25R53C599999", JavaObdReader.getJavaObdReaderForSimulator(simulator).readVin());
+    }
+
+    @Test
+    public void rejectsMultiPidRequestsWhenConfigured() throws Exception {
+        simulator.setSupportedPids(0x04, 0x05, 0x0F);
+        simulator.setMultiPidSupported(false);
+        JavaObdReader reader = JavaObdReader.getJavaObdReaderForSimulator(simulator);
+        reader.initOBDControlCommands();
+        reader.initSupportedOdbCommands();
+        reader.setBatchedPolling(true);
+
+        double[] values = new double[reader.getCommandCount()];
+        assertEquals(3, reader.runCommandsReturnValues(values));
+        assertFalse(reader.isBatchedPollingActive());
+    }
+
+    @Test
+    public void formatsResponsesLikeAnElm327() throws Exception {
+        simulator.setSupportedPids(0x0C, 0x0D);
+        simulator.setPidData(0x0C, 0x1A, 0xF8);
+        simulator.setPidData(0x0D, 0x32);
+
+        assertEquals("AT E0\rOK\r\r", send("AT E0"));
+        assertEquals("SEARCHING...\r41 0C 1A F8\r\r", send("01 0C"));
+        assertEquals("41 00 00 18 00 00\r\r", send("0100"));
+        assertEquals("NO DATA\r\r", send("01 20"));
+        assertEquals("41 0C 1A F8 0D 32\r\r", send("01 0C 0D 1"));
+        assertEquals("41 0D 32\r\r", send("01 0D 0F"));
+        assertEquals("014\r0: 49 02 01 31 44 34\r1: 47 50 32 35 52 35 33\r2: 43 35 39 39 39 39 39\r\r", send("09 02"));
+
+        send("AT H1");
+        send("AT S0");
+        assertEquals("7E804410C1AF8\r\r", send("010C"));
+        assertEquals("7E81014490201314434\r7E82147503235523533\r7E82243353939393939\r\r", send("0902"));
+
+        send("AT Z");
+        assertEquals("AT I\r" + ElmSimulator.DEFAULT_ADAPTER_ID + "\r\r", send("AT I"));
+        assertEquals("AT DPN\rA6\r\r", send("AT DPN"));
+        assertEquals("AT XYZ\r?\r\r", send("AT XYZ"));
+        assertEquals(15, simulator.getRequestCount());
+    }
+
+    @Test
+    public void answersFromEveryEcuSupportingThePid() throws Exception {
+        simulator.setSupportedPids(0x0C, 0x0D);
+        simulator.addEcu(0x7E9, 0x0D);
+        simulator.setPidData(0x0D, 0x32);
+        simulator.setResponseWait(20000);
+        send("AT E0");
+        send("AT H1");
+
+        long start = System.nanoTime();
+        assertEquals("SEARCHING...\r7E8 03 41 0D 32\r7E9 03 41 0D 32\r\r", send("01 0D 2"));
+        assertEquals("7E8 04 41 0C 1A F8\r\r".length(), send("01 0C 1").length());
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(20));
+
+        assertEquals("7E8 06 41 00 00 18 00 00\r7E9 06 41 00 00 08 00 00\r\r", send("01 00"));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(20));
+        send("AT H0");
+        assertEquals("NO DATA\r\r", send("01 20"));
+    }
+
+    @Test
+    public void appliesLatencyInRequestOrder() throws Exception {
+        simulator.setLatency(20000, 0);
+        simulator.setLatency("AT", 0, 0);
+        send("AT E0");
+
+        long start = System.nanoTime();
+        for (int i = 0; i < 5; i++)
+            ElmIO.write(simulator.getOutputStream(), "01 0C");
+        assertEquals(0, simulator.getInputStream().available());
+        for (int i = 0; i < 5; i++)
+            assertTrue(ElmIO.readUntilPrompt(simulator.getInputStream()).contains("41 0C"));
+        long millis = (System.nanoTime() - start) / 1000000;
+        // queued requests are answered one after the other
+        assertTrue("took " + millis + " ms", millis >= 100);
+
+        send("AT I");
+        assertEquals(0, simulator.getLastLatencyNanos());
+    }
+
+    @Test
+    public void injectsFaults() throws Exception {
+        send("AT E0");
+        simulator.injectFault(ElmSimulator.Fault.NO_DATA);
+        simulator.injectFault(ElmSimulator.Fault.UNKNOWN);
+        simulator.injectFault(ElmSimulator.Fault.TIMEOUT);
+        assertEquals("NO DATA\r\r", send("01 0C"));
+        assertEquals("?\r\r", send("01 0C"));
+
+        simulator.setReadTimeout(50);
+        try {
+            send("01 0C");
+            fail("expected a read timeout");
+        } catch (SocketTimeoutException e) {
+            // expected
+        }
+        assertTrue(send("01 0C").startsWith("SEARCHING...\r41 0C"));
+        assertEquals(3, simulator.getFaultCount());
+    }
+
+    @Test
+    public void randomFaultsAreReproducible() throws Exception {
+        assertEquals(faultPattern(7), faultPattern(7));
+        assertFalse(faultPattern(7).equals(faultPattern(8)));
+    }
+
+    private static String faultPattern(long seed) throws IOException {
+        ElmSimulator sim = new ElmSimulator(seed);
+        sim.setFaultProbability(ElmSimulator.Fault.NO_DATA, 0.3);
+        sim.setLatency(0, 500);
+        StringBuilder pattern = new StringBuilder();
+        for (int i = 0; i < 64; i++)
+            pattern.append(ElmIO.isError(ElmIO.send(sim.getInputStream(), sim.getOutputStream(), "01 0D")) ? 'x' : '.');
+        sim.close();
+        return pattern.toString();
+    }
+
+    @Test
+    public void replaysRecordedTrace() throws Exception {
+        String trace = "# recorded against a 2004 Xterra\n" +
+                       ">AT E0\n" +
+                       "OK\n" +
+                       ">01 0C @3000\n" +
+                       "41 0C 0B B8\n" +
+                       ">01 0C\n" +
+                       "41 0C 0C 80\n" +
+                       ">01 05\n" +
+                       "41 05 5A\n";
+        assertEquals(4, simulator.loadTrace(new StringReader(trace)));
+
+        assertEquals("AT E0\rOK\r\r", send("AT E0"));
+        long start = System.nanoTime();
+        assertEquals("41 0C 0B B8\r\r", send("01 0C 1"));
+        assertTrue(System.nanoTime() - start >= 3000000);
+        assertEquals("41 0C 0C 80\r\r", send("010C"));
+        assertEquals("41 0C 0B B8\r\r", send("01 0C"));
+        // requests missing from the trace are simulated
+        assertEquals("41 00 18 3B 80 03\r\r", send("01 00"));
+
+        try {
+            simulator.loadTrace(new StringReader("41 0C 0B B8\n"));
+            fail("expected a malformed trace");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void servesOverLoopbackSocket() throws Exception {
+        simulator.setPidData(0x0D, 0x32);
+        try (LoopbackElm327 adapter = new LoopbackElm327(simulator)) {
+            JavaObdReader reader = JavaObdReader.getJavaObdReaderForSocket(adapter.getAddress().getHostString(),
+                    adapter.getAddress().getPort());
+            reader.initOBDControlCommands();
+            reader.initSupportedOdbCommands();
+            assertEquals(11, reader.getCommandCount());
+            double[] values = new double[reader.getCommandCount()];
+            assertEquals(11, reader.runCommandsReturnValues(values));
+            reader.closeOBDConnection();
+        }
+    }
+}
@@ -78,4 +78,26 @@ public class JavaObdReaderTest {
             e.printStackTrace();
         }
     }
+
+    @Test
+    @Category(RyanBerti.UnitTests.class)
+    public void runJavaObdReaderSimulatorTest() throws Exception {
+
+        ElmSimulator simulator = new ElmSimulator();
+        simulator.setLatency(100, 50);
+        JavaObdReader jobdinstance = JavaObdReader.getJavaObdReaderForSimulator(simulator);
+
+        jobdinstance.initOBDControlCommands();
+        jobdinstance.initSupportedOdbCommands();
+        System.out.println("Connection initialized successfully");
+
+        long startTime = System.currentTimeMillis();
+        for (int i = 0; i < numCommands; i++)
+            jobdinstance.runCommandsReturnFormattedResult();
+        long endTime = System.currentTimeMillis();
+        System.out.println("Running " + (numCommands * jobdinstance.getCommandCount()) + " simulated commands took " +
+                (endTime - startTime) + " ms");
+
+        jobdinstance.closeOBDConnection();
+    }
 }
@@ -0,0 +1,131 @@
+package RyanBerti;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Function;
+
+/**
+ * Minimal ELM327 stand-in listening on the loopback interface: reads carriage return terminated
+ * requests and answers each with the responder's response followed by the '>' prompt, optionally
+ * after a fixed delay; a null response leaves the request unanswered. An ElmSimulator can be served
+ * as the responder
+ */
+class LoopbackElm327 implements Closeable {
+
+    private final ServerSocket server;
+    private final Function<String, String> responder;
+    private final List<Socket> connections = new CopyOnWriteArrayList<>();
+    private volatile long delayMillis = 0;
+    private volatile boolean silent = false;
+
+    LoopbackElm327() throws IOException {
+        this(LoopbackElm327::defaultResponse);
+    }
+
+    LoopbackElm327(ElmSimulator simulator) throws IOException {
+        this(simulator::respond);
+    }
+
+    LoopbackElm327(Function<String, String> responder) throws IOException {
+        this.responder = responder;
+        this.server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(this::accept, "loopback-elm327");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    static String defaultResponse(String request) {
+        if (request.startsWith("AT"))
+            return "OK";
+        if (request.equals("01 0C"))
+            return "41 0C 1A F8";
+        if (request.equals("01 0D"))
+            return "41 0D 32";
+        return "NO DATA";
+    }
+
+    InetSocketAddress getAddress() {
+        return new InetSocketAddress(server.getInetAddress(), server.getLocalPort());
+    }
+
+    void setDelayMillis(long delayMillis) {
+        this.delayMillis = delayMillis;
+    }
+
+    /**
+     * Stop answering requests (to exercise read timeouts)
+     */
+    void setSilent(boolean silent) {
+        this.silent = silent;
+    }
+
+    /**
+     * Drop every open connection (to exercise reconnects)
+     */
+    void dropConnections() throws IOException {
+        for (Socket s : connections)
+            s.close();
+        connections.clear();
+    }
+
+    int getConnectionCount() {
+        return connections.size();
+    }
+
+    private void accept() {
+        while (!server.isClosed()) {
+            try {
+                Socket s = server.accept();
+                s.setTcpNoDelay(true);
+                connections.add(s);
+                Thread t = new Thread(() -> serve(s), "loopback-elm327-connection");
+                t.setDaemon(true);
+                t.start();
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    private void serve(Socket s) {
+        try (InputStream in = s.getInputStream(); OutputStream out = s.getOutputStream()) {
+            StringBuilder request = new StringBuilder();
+            int b;
+            while ((b = in.read()) > -1) {
+                if (b != '\r') {
+                    request.append((char) b);
+                    continue;
+                }
+                String r = request.toString().trim();
+                request.setLength(0);
+                if (silent)
+                    continue;
+                if (delayMillis > 0)
+                    Thread.sleep(delayMillis);
+                String response = responder.apply(r);
+                if (response == null)
+                    continue;
+                out.write((response + "\r\r>").getBytes());
+                out.flush();
+            }
+        } catch (IOException | InterruptedException e) {
+            // connection dropped
+        } finally {
+            connections.remove(s);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.close();
+        dropConnections();
+    }
+}
@@ -0,0 +1,114 @@
+package RyanBerti;
+
+import com.github.pires.obd.commands.ObdCommand;
+import com.github.pires.obd.commands.engine.RPMCommand;
+import com.github.pires.obd.commands.engine.ThrottlePositionCommand;
+import com.github.pires.obd.commands.temperature.EngineCoolantTemperatureCommand;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@Category(RyanBerti.UnitTests.class)
+public class ObdBatchCommandTest {
+
+    @Test
+    public void demultiplexSingleFrameResponse() {
+        Map<Integer, int[]> responses = ObdBatchCommand.demultiplex("41 0C 1A F8 05 7B 11 33 \r\r");
+        assertEquals(3, responses.size());
+        assertTrue(Arrays.equals(new int[]{0x1A, 0xF8}, responses.get(0x0C)));
+        assertTrue(Arrays.equals(new int[]{0x7B}, responses.get(0x05)));
+        assertTrue(Arrays.equals(new int[]{0x33}, responses.get(0x11)));
+    }
+
+    @Test
+    public void demultiplexMultiFrameResponse() {
+        String response = "00A\r0: 41 0C 1A F8 0D 00\r1: 05 7B 11 33 00 00 00\r\r";
+        Map<Integer, int[]> responses = ObdBatchCommand.demultiplex(response);
+        assertEquals(4, responses.size());
+        assertTrue(Arrays.equals(new int[]{0x00}, responses.get(0x0D)));
+        assertTrue(Arrays.equals(new int[]{0x33}, responses.get(0x11)));
+    }
+
+    @Test
+    public void demultiplexIgnoresTruncatedPid() {
+        Map<Integer, int[]> responses = ObdBatchCommand.demultiplex("41 05 7B 0C 1A\r");
+        assertEquals(1, responses.size());
+        assertNull(responses.get(0x0C));
+    }
+
+    @Test
+    public void runFeedsEachCommand() throws Exception {
+        List<ObdCommand> commands = new ArrayList<>();
+        commands.add(new RPMCommand());
+        commands.add(new EngineCoolantTemperatureCommand());
+        commands.add(new ThrottlePositionCommand());
+
+        ObdBatchCommand batch = new ObdBatchCommand(commands);
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        ByteArrayInputStream is = new ByteArrayInputStream("41 0C 1A F8 05 7B\r\r>".getBytes());
+
+        List<ObdCommand> missing = batch.run(is, os);
+
+        assertArrayEquals("01 0C 05 11\r".getBytes(), os.toByteArray());
+        assertEquals(1, missing.size());
+        assertTrue(missing.get(0) instanceof ThrottlePositionCommand);
+        assertEquals("410C1AF8", commands.get(0).getResult());
+        assertEquals("41057B", commands.get(1).getResult());
+    }
+
+    @Test
+    public void runReturnsAllCommandsWhenRejected() throws Exception {
+        List<ObdCommand> commands = new ArrayList<>();
+        commands.add(new RPMCommand());
+        commands.add(new EngineCoolantTemperatureCommand());
+
+        ObdBatchCommand batch = new ObdBatchCommand(commands);
+        List<ObdCommand> missing = batch.run(new ByteArrayInputStream("?\r\r>".getBytes()),
+                new ByteArrayOutputStream());
+
+        assertEquals(2, missing.size());
+        assertTrue(batch.wasRejected());
+    }
+
+    @Test
+    public void noDataIsNotARejection() throws Exception {
+        List<ObdCommand> commands = new ArrayList<>();
+        commands.add(new RPMCommand());
+        commands.add(new EngineCoolantTemperatureCommand());
+
+        // ie while the ECUs are waking up
+        ObdBatchCommand batch = new ObdBatchCommand(commands);
+        List<ObdCommand> missing = batch.run(new ByteArrayInputStream("NO DATA\r\r>".getBytes()),
+                new ByteArrayOutputStream());
+
+        assertEquals(2, missing.size());
+        assertFalse(batch.wasRejected());
+    }
+
+    @Test
+    public void createBatchesSplitsAtSixPids() {
+        List<ObdCommand> commands = new ArrayList<>();
+        for (int i = 0; i < 8; i++)
+            commands.add(new RPMCommand());
+
+        List<ObdCommand> unbatchable = new ArrayList<>();
+        List<ObdBatchCommand> batches = ObdBatchCommand.createBatches(commands, unbatchable);
+
+        assertEquals(2, batches.size());
+        assertEquals(6, batches.get(0).getCommands().size());
+        assertEquals(2, batches.get(1).getCommands().size());
+        assertEquals(0, unbatchable.size());
+    }
+}
@@ -0,0 +1,37 @@
+package RyanBerti;
+
+import com.github.pires.obd.commands.ObdCommand;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@Category(RyanBerti.UnitTests.class)
+public class ObdCommandRegistryTest {
+
+    @Test
+    public void entriesMatchTheCommandsTheyCreate() {
+        for (ObdCommandRegistry.Entry entry : ObdCommandRegistry.getEntries()) {
+            ObdCommand command = entry.newCommand();
+            assertEquals(entry.toString(), entry.getPid(), ObdPid.pidOf(command));
+            assertTrue(entry + " has an unknown data length", ObdPid.dataLength(entry.getPid()) > 0);
+            assertTrue(entry.toString(), entry == ObdCommandRegistry.get(entry.getMode(), entry.getPid()));
+        }
+    }
+
+    @Test
+    public void entriesAreOrderedByGroup() {
+        ObdCommandRegistry.Group previous = null;
+        Set<ObdCommandRegistry.Group> seen = new HashSet<>();
+        for (ObdCommandRegistry.Entry entry : ObdCommandRegistry.getEntries()) {
+            if (entry.getGroup() != previous)
+                assertTrue(seen.add(entry.getGroup()));
+            previous = entry.getGroup();
+        }
+        assertEquals(ObdCommandRegistry.Group.values().length, seen.size());
+    }
+}
@@ -0,0 +1,209 @@
+package RyanBerti;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@Category(RyanBerti.UnitTests.class)
+public class ObdFleetTest {
+
+    private static final long ADAPTER_DELAY_MILLIS = 20;
+
+    private ElmEventLoop loop;
+    private final List<LoopbackElm327> adapters = new ArrayList<>();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+
+    @Before
+    public void start() throws Exception {
+        loop = new ElmEventLoop();
+    }
+
+    @After
+    public void stop() throws Exception {
+        loop.close();
+        for (LoopbackElm327 adapter : adapters)
+            adapter.close();
+    }
+
+    private ObdFleet createFleet(int numAdapters, int capacity) throws Exception {
+        return createFleet(numAdapters, capacity, null);
+    }
+
+    /**
+     * @param round if not null, the adapters only answer once all of them have a request to answer
+     */
+    private ObdFleet createFleet(int numAdapters, int capacity, CyclicBarrier round) throws Exception {
+        ObdFleet fleet = new ObdFleet(loop, 1, capacity);
+        for (int i = 0; i < numAdapters; i++) {
+            LoopbackElm327 adapter = new LoopbackElm327(request -> respond(request, round));
+            adapters.add(adapter);
+            fleet.addAdapter(adapter.getAddress(), Collections.singletonList("AT E0"), Arrays.asList("01 0C 0D"));
+        }
+        return fleet;
+    }
+
+    /**
+     * Answer a request after the adapter delay, keeping track of the requests being answered at once
+     * across all adapters
+     */
+    private String respond(String request, CyclicBarrier round) {
+        if (round != null) {
+            try {
+                round.await(5, TimeUnit.SECONDS);
+            } catch (Exception e) {
+                return null;
+            }
+        }
+        int current = inFlight.incrementAndGet();
+        maxInFlight.accumulateAndGet(current, Math::max);
+        try {
+            Thread.sleep(ADAPTER_DELAY_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            inFlight.decrementAndGet();
+        }
+        return request.equals("01 0C 0D") ? "41 0C 1A F8 0D 32" : LoopbackElm327.defaultResponse(request);
+    }
+
+    /**
+     * Close the adapters of closed fleets, and wait until they have finished answering
+     */
+    private void awaitIdleAdapters() throws Exception {
+        for (LoopbackElm327 adapter : adapters)
+            adapter.close();
+        adapters.clear();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (inFlight.get() > 0 && System.nanoTime() < deadline)
+            Thread.sleep(5);
+        assertEquals(0, inFlight.get());
+    }
+
+    /**
+     * Poll the fleet until it has received the given number of responses
+     */
+    private static void pollResponses(ObdFleet fleet, int count) throws Exception {
+        for (int i = 0; i < count; i++)
+            assertNotNull(fleet.poll(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void adaptersAreQueriedConcurrently() throws Exception {
+        ObdFleet fleet = createFleet(1, 1024);
+        fleet.start();
+        pollResponses(fleet, 10);
+        fleet.close();
+        // one request in flight per adapter
+        assertEquals(1, maxInFlight.get());
+        awaitIdleAdapters();
+        // two values per response
+        assertTrue(fleet.getSampleCount(0) >= 20);
+        assertEquals(0, fleet.getSampleCount(0) % 2);
+
+        // with each adapter bound by its own turnaround, all 8 end up being answered at once
+        maxInFlight.set(0);
+        fleet = createFleet(8, 1024);
+        fleet.start();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (maxInFlight.get() < 8 && System.nanoTime() < deadline)
+            fleet.poll(10, TimeUnit.MILLISECONDS);
+        fleet.close();
+        assertEquals(8, maxInFlight.get());
+    }
+
+    /**
+     * Poll the given number of responses from a fleet whose adapters only answer in rounds, once every
+     * adapter has a request to answer; a round stands in for one adapter turnaround
+     * @return the samples received per round
+     */
+    private double measureSamplesPerRound(int numAdapters, int responses) throws Exception {
+        AtomicInteger rounds = new AtomicInteger();
+        ObdFleet fleet = createFleet(numAdapters, 1024, new CyclicBarrier(numAdapters, rounds::incrementAndGet));
+        long start = System.nanoTime();
+        fleet.start();
+        pollResponses(fleet, responses);
+        fleet.close();
+        long samples = 0;
+        for (int i = 0; i < numAdapters; i++)
+            samples += fleet.getSampleCount(i);
+        int elapsedRounds = rounds.get();
+        double rate = fleet.getSamplesPerSecond();
+        long elapsed = System.nanoTime() - start;
+
+        // the rate covers at least the samples polled, over at most the time the test took
+        assertTrue(rate >= 2.0 * responses * 1e9 / elapsed);
+        return (double) samples / elapsedRounds;
+    }
+
+    @Test
+    public void throughputScalesWithAdapters() throws Exception {
+        // each round brings 2 samples per adapter, except that the last one may not have been
+        // answered when the fleet closed; the responses polled took at least 10 rounds
+        double one = measureSamplesPerRound(1, 10);
+        double eight = measureSamplesPerRound(8, 80);
+
+        assertTrue(one <= 2.0);
+        assertTrue("8 adapters reached only " + (eight / one) + "x", eight >= 8 * 2.0 * 0.9);
+    }
+
+    @Test
+    public void countsTheValuesAnswered() {
+        assertEquals(2, ObdFleet.countValues("41 0C 1A F8 0D 32\r\r"));
+        // a multi-PID request with a response count, and an ECU leaving out a PID it doesn't support
+        assertEquals(1, ObdFleet.countValues("41 0C 1A F8\r\r"));
+        // two ECUs answering
+        assertEquals(3, ObdFleet.countValues("41 0C 1A F8 0D 32\r41 0D 32\r\r"));
+        assertEquals(0, ObdFleet.countValues("NO DATA\r\r"));
+    }
+
+    @Test
+    public void rejectsInvalidTimeouts() throws Exception {
+        ObdFleet fleet = new ObdFleet(loop, 1, 4);
+        try {
+            fleet.setTimeouts(0, 1000);
+            fail("expected an IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        fleet.setTimeouts(500, 2000);
+        fleet.close();
+    }
+
+    @Test
+    public void fullQueuePausesPolling() throws Exception {
+        ObdFleet fleet = createFleet(2, 4);
+        fleet.start();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while ((fleet.getQueueDepth() < 4 || fleet.getBackpressureEvents() < 2) && System.nanoTime() < deadline)
+            Thread.sleep(5);
+
+        // both adapters hold a response the full queue didn't take, and don't send anything else
+        assertEquals(4, fleet.getQueueDepth());
+        assertEquals(2, fleet.getBackpressureEvents());
+        long paused = fleet.getSampleCount(0) + fleet.getSampleCount(1);
+        assertEquals((4 + 2) * 2, paused);
+
+        for (int i = 0; i < 10; i++) {
+            ObdFleet.FleetResponse response = fleet.poll(1, TimeUnit.SECONDS);
+            assertNotNull(response);
+            assertEquals("41 0C 1A F8 0D 32\r\r", response.getResponse());
+        }
+        assertTrue(fleet.getSampleCount(0) + fleet.getSampleCount(1) > paused);
+        fleet.close();
+    }
+}
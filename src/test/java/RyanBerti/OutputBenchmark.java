@@ -0,0 +1,104 @@
+package RyanBerti;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times writing one poll cycle of eight values through each output format: a formatted text line (as
+ * JavaObdReaderTest writes obddata.txt), the compressed columnar SampleLogWriter, and the
+ * DeltaSampleEncoder upload stream. Text and delta output go to a discarding stream, so only the
+ * serialization is measured; the sample log writes (without syncing) to a temporary file
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OutputBenchmark {
+
+    private static final int[] PIDS = {0x0C, 0x0D, 0x05, 0x0F, 0x11, 0x04, 0x2F, 0x33};
+    private static final String[] NAMES = {"RPMCommand", "SpeedCommand", "EngineCoolantTemperatureCommand",
+            "AirIntakeTemperatureCommand", "ThrottlePositionCommand", "LoadCommand", "FuelLevelCommand",
+            "BarometricPressureCommand"};
+
+    private final double[] values = new double[PIDS.length];
+    private final StringBuilder line = new StringBuilder();
+    private long cycle = 0;
+
+    private OutputStream text;
+    private File logFile;
+    private SampleLogWriter log;
+    private DeltaSampleEncoder delta;
+
+    @Setup
+    public void open() throws IOException {
+        text = new BufferedOutputStream(ElmIO.NULL_OUTPUT);
+        logFile = File.createTempFile("benchmark", ".obdlog");
+        logFile.delete();
+        log = new SampleLogWriter(logFile, null, PIDS, NAMES);
+        delta = new DeltaSampleEncoder(ElmIO.NULL_OUTPUT, PIDS);
+    }
+
+    @TearDown
+    public void close() throws IOException {
+        log.close();
+        delta.close();
+        Files.deleteIfExists(logFile.toPath());
+    }
+
+    /**
+     * Advance the simulated drive by 100 ms
+     */
+    private long nextCycle() {
+        double t = ++cycle / 10.0;
+        values[0] = Math.round((1800 + 900 * Math.sin(t / 20)) * 4) / 4.0;
+        values[1] = Math.round(60 + 40 * Math.sin(t / 60));
+        values[2] = 90;
+        values[3] = 25;
+        values[4] = Math.round((20 + 15 * Math.sin(t / 20)) * 2.55) / 2.55;
+        values[5] = Math.round((35 + 20 * Math.sin(t / 20)) * 2.55) / 2.55;
+        values[6] = 75;
+        values[7] = 101;
+        return 1458300000000L + cycle * 100;
+    }
+
+    @Benchmark
+    public void textLine() throws IOException {
+        nextCycle();
+        line.setLength(0);
+        for (int c = 0; c < values.length; c++) {
+            if (c > 0)
+                line.append(',');
+            line.append(String.format("%.1f", values[c]));
+        }
+        line.append('\n');
+        text.write(line.toString().getBytes());
+    }
+
+    @Benchmark
+    public void sampleLog() throws IOException {
+        log.addSamples(nextCycle(), values);
+    }
+
+    @Benchmark
+    public void deltaEncoder() throws IOException {
+        delta.addSamples(nextCycle(), values);
+    }
+}
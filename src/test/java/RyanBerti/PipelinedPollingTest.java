@@ -0,0 +1,86 @@
+package RyanBerti;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@Category(RyanBerti.UnitTests.class)
+public class PipelinedPollingTest {
+
+    @Test
+    public void appendsResponseCountToSingleFrameRequests() {
+        assertEquals("01 0C 1", JavaObdReader.withResponseCount("01 0C"));
+        assertEquals("01 04 05 0F 1", JavaObdReader.withResponseCount("01 04 05 0F"));
+        // 1 + 3 * 3 data bytes doesn't fit in a single frame
+        assertEquals("01 0C 10 23", JavaObdReader.withResponseCount("01 0C 10 23"));
+        // unknown PID length
+        assertEquals("01 A6", JavaObdReader.withResponseCount("01 A6"));
+    }
+
+    @Test
+    public void pipelinedRequestsCarryResponseCount() throws Exception {
+        String responses = "41 00 18 00 00 00\r\r>" + // 01 00: PIDs 04 and 05 supported
+                           "OK\r\r>" +                // AT AT2
+                           "41 04 FF\r\r>41 05 28\r\r>" +
+                           "41 04 80 05 7B\r\r>";
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        JavaObdReader reader = JavaObdReader.getJavaObdReaderForStreams(new ByteArrayInputStream(responses.getBytes()), os);
+        reader.initSupportedOdbCommands();
+
+        reader.setPipelinedPolling(true);
+        assertTrue(reader.isPipelinedPollingActive());
+
+        double[] values = new double[reader.getCommandCount()];
+        assertEquals(2, reader.runCommandsReturnValues(values));
+        assertEquals(100.0, values[0], 0.001);
+        assertEquals(0.0, values[1], 0.001);
+
+        reader.setBatchedPolling(true);
+        assertEquals(2, reader.runCommandsReturnValues(values));
+        assertEquals(50.196, values[0], 0.001);
+        assertEquals(83.0, values[1], 0.001);
+
+        assertEquals("01 00\rAT AT2\r01 04 1\r01 05 1\r01 04 05 1\r", os.toString());
+    }
+
+    @Test
+    public void pipelinedRejectionFallsBackToSinglePids() throws Exception {
+        String responses = "41 00 18 02 00 00\r\r>" + // PIDs 04, 05 and 0F supported
+                           "?\r\r>" +                 // AT AT2 not supported
+                           "?\r\r>" +                 // 01 04 05 0F rejected
+                           "41 04 FF\r\r>41 05 28\r\r>41 0F 46\r\r>";
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        JavaObdReader reader = JavaObdReader.getJavaObdReaderForStreams(new ByteArrayInputStream(responses.getBytes()), os);
+        reader.initSupportedOdbCommands();
+        reader.setPipelinedPolling(true);
+        reader.setBatchedPolling(true);
+
+        double[] values = new double[reader.getCommandCount()];
+        assertEquals(3, reader.runCommandsReturnValues(values));
+        assertFalse(reader.isBatchedPollingActive());
+        assertEquals(30.0, values[2], 0.001);
+        assertTrue(os.toString().endsWith("01 04 05 0F 1\r01 04 1\r01 05 1\r01 0F 1\r"));
+    }
+
+    @Test
+    public void pipelinedPollingWithoutCommandsSendsNothing() throws Exception {
+        String responses = "NO DATA\r\r>" + // 01 00: the ECU doesn't answer
+                           "OK\r\r>";        // AT AT2
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        JavaObdReader reader = JavaObdReader.getJavaObdReaderForStreams(new ByteArrayInputStream(responses.getBytes()), os);
+        reader.initSupportedOdbCommands(0);
+        assertEquals(0, reader.getCommandCount());
+
+        reader.setPipelinedPolling(true);
+        assertEquals(0, reader.runCommandsReturnValues(new double[0]));
+        reader.setBatchedPolling(true);
+        assertEquals(0, reader.runCommandsReturnValues(new double[0]));
+        assertTrue(os.toString().endsWith("AT AT2\r"));
+    }
+}
@@ -0,0 +1,171 @@
+package RyanBerti;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import java.lang.management.ManagementFactory;
+import java.net.SocketTimeoutException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@Category(RyanBerti.UnitTests.class)
+public class PollMetricsTest {
+
+    private final ElmSimulator simulator = new ElmSimulator(3);
+
+    @After
+    public void closeSimulator() {
+        simulator.close();
+    }
+
+    private JavaObdReader connect(PollMetrics metrics) throws Exception {
+        simulator.setSupportedPids(0x05, 0x0C, 0x0D, 0x0F);
+        JavaObdReader reader = JavaObdReader.getJavaObdReaderForSimulator(simulator);
+        reader.initOBDControlCommands();
+        reader.initSupportedOdbCommands();
+        reader.setMetrics(metrics);
+        return reader;
+    }
+
+    @Test
+    public void histogramKeepsValuesWithinItsPrecision() {
+        Random random = new Random(1);
+        for (int i = 0; i < 100000; i++) {
+            long v = (long) Math.pow(2, random.nextDouble() * 36) - 1;
+            long high = LatencyHistogram.highestValue(LatencyHistogram.index(v));
+            assertTrue(v + " -> " + high, high >= v && high <= v + v / LatencyHistogram.HALF_SUB_BUCKETS + 1);
+        }
+
+        LatencyHistogram h = new LatencyHistogram();
+        for (int i = 1; i <= 100000; i++)
+            h.record(i * 1000L);
+        assertEquals(100000, h.getCount());
+        assertEquals(1000, h.getMin());
+        assertEquals(100000000, h.getMax());
+        assertEquals(50000500.0, h.getMean(), 1);
+        assertEquals(50000000, h.getValueAtPercentile(50), 50000000 / LatencyHistogram.HALF_SUB_BUCKETS);
+        assertEquals(99000000, h.getValueAtPercentile(99), 99000000 / LatencyHistogram.HALF_SUB_BUCKETS);
+        assertEquals(100000000, h.getValueAtPercentile(100));
+
+        h.record(TimeUnit.HOURS.toNanos(1));
+        assertEquals(LatencyHistogram.MAX_VALUE, h.getMax());
+        h.reset();
+        assertEquals(0, h.getCount());
+        assertEquals(0, h.getValueAtPercentile(99));
+    }
+
+    @Test
+    public void findsTheSlowPid() throws Exception {
+        simulator.setLatency(200, 100);
+        simulator.setLatency("010C", 5000, 0);
+        PollMetrics metrics = new PollMetrics();
+        JavaObdReader reader = connect(metrics);
+
+        double[] values = new double[reader.getCommandCount()];
+        for (int i = 0; i < 20; i++)
+            assertEquals(3, reader.runCommandsReturnValues(values));
+
+        assertEquals(20, metrics.getCycleCount());
+        assertEquals(60, metrics.getRequestCount());
+        // "01 05\r" and friends out, "41 05 xx\r\r>" and friends back
+        assertEquals(60 * 6, metrics.getBytesSent());
+        assertEquals(20 * (11 + 14 + 11), metrics.getBytesReceived());
+        assertTrue(metrics.getCycleTimeMeanMillis() >= 5);
+        assertTrue(metrics.getLinkUtilization() > 0);
+
+        PidLatency[] latencies = metrics.getPidLatencies();
+        assertEquals(3, latencies.length);
+        assertEquals("0C", latencies[0].getPid());
+        assertEquals(20, latencies[0].getCount());
+        assertTrue(latencies[0].getP50Millis() >= 5);
+        assertTrue(latencies[1].getP99Millis() < 5);
+        assertEquals(0.0, latencies[0].getNoDataRate(), 0);
+    }
+
+    @Test
+    public void countsNoDataAndTimeouts() throws Exception {
+        PollMetrics metrics = new PollMetrics();
+        JavaObdReader reader = connect(metrics);
+        double[] values = new double[reader.getCommandCount()];
+
+        simulator.injectFault(ElmSimulator.Fault.NO_DATA);
+        assertEquals(2, reader.runCommandsReturnValues(values));
+        assertEquals(1, metrics.getNoDataCount());
+
+        reader.setBatchedPolling(true);
+        assertEquals(3, reader.runCommandsReturnValues(values));
+
+        simulator.setReadTimeout(50);
+        simulator.injectFault(ElmSimulator.Fault.TIMEOUT);
+        try {
+            reader.runCommandsReturnValues(values);
+            fail("expected a read timeout");
+        } catch (SocketTimeoutException e) {
+            // expected
+        }
+        assertEquals(1, metrics.getTimeoutCount());
+        assertEquals(0, metrics.getErrorCount());
+
+        for (PidLatency latency : metrics.getPidLatencies()) {
+            assertEquals(3, latency.getCount());
+            assertEquals(1 / 3.0, latency.getTimeoutRate(), 0.001);
+        }
+        double noData = 0;
+        for (PidLatency latency : metrics.getPidLatencies())
+            noData += latency.getNoDataRate();
+        assertEquals(1 / 3.0, noData, 0.001);
+    }
+
+    @Test
+    public void measuresObdCommandPolling() throws Exception {
+        PollMetrics metrics = new PollMetrics();
+        JavaObdReader reader = connect(metrics);
+
+        reader.runCommandsReturnRawData();
+        assertEquals(3, metrics.getRequestCount());
+        assertEquals(3 * 6, metrics.getBytesSent());
+        assertEquals(11 + 14 + 11, metrics.getBytesReceived());
+
+        reader.setBatchedPolling(true);
+        reader.runCommandsReturnRawData();
+        assertEquals(4, metrics.getRequestCount());
+        assertEquals(2, metrics.getCycleCount());
+        assertEquals(2, metrics.getPidHistogram(0x0C).getCount());
+
+        metrics.reset();
+        assertEquals(0, metrics.getRequestCount());
+        assertEquals(0, metrics.getBytesSent());
+    }
+
+    @Test
+    public void exposesMetricsOverJmx() throws Exception {
+        PollMetrics metrics = new PollMetrics();
+        JavaObdReader reader = connect(metrics);
+        reader.runCommandsReturnValues(new double[reader.getCommandCount()]);
+
+        ObjectName name = metrics.register("simulator");
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            assertEquals(1L, server.getAttribute(name, "CycleCount"));
+            assertEquals(3L, server.getAttribute(name, "RequestCount"));
+            CompositeData[] pids = (CompositeData[]) server.getAttribute(name, "PidLatencies");
+            assertEquals(3, pids.length);
+            assertEquals(1L, pids[0].get("count"));
+
+            server.invoke(name, "reset", null, null);
+            assertEquals(0L, server.getAttribute(name, "CycleCount"));
+        } finally {
+            metrics.unregister();
+        }
+        assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+    }
+}
@@ -0,0 +1,117 @@
+package RyanBerti;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@Category(RyanBerti.UnitTests.class)
+public class PollSchedulerTest {
+
+    private static final long CYCLE_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    /**
+     * Simulate 60 seconds of 50 ms poll cycles, sampling every selected command
+     */
+    private static long simulate(PollScheduler scheduler) {
+        int[] selected = new int[scheduler.getMaxPidsPerCycle()];
+        long now = 0;
+        for (int cycle = 0; cycle < 1200; cycle++) {
+            int n = scheduler.selectDue(now, selected);
+            for (int i = 0; i < n; i++)
+                scheduler.recordSample(selected[i], now);
+            now += CYCLE_NANOS;
+        }
+        return now;
+    }
+
+    @Test
+    public void achievesRequestedRatesWithinBudget() {
+        PollScheduler scheduler = new PollScheduler(new int[]{0x0C, 0x0D, 0x05, 0x33}, 1.0);
+        scheduler.setTargetRate(0x0C, 10.0);
+        scheduler.setTargetRate(0x0D, 5.0);
+        scheduler.setTargetRate(0x33, 0.2);
+        scheduler.setMaxPidsPerCycle(1);
+
+        long now = simulate(scheduler);
+
+        assertEquals(10.0, scheduler.getAchievedRate(0, now), 0.5);
+        assertEquals(5.0, scheduler.getAchievedRate(1, now), 0.5);
+        assertEquals(1.0, scheduler.getAchievedRate(2, now), 0.1);
+        assertEquals(0.2, scheduler.getAchievedRate(3, now), 0.05);
+    }
+
+    @Test
+    public void sharesAnOversubscribedLinkByRate() {
+        // 20 cycles/sec with one PID each can't serve 10 + 10 + 10 + 1 Hz
+        PollScheduler scheduler = new PollScheduler(new int[]{0x0C, 0x0D, 0x11, 0x05}, 10.0);
+        scheduler.setTargetRate(0x05, 1.0);
+        scheduler.setMaxPidsPerCycle(1);
+
+        long now = simulate(scheduler);
+
+        double fast = scheduler.getAchievedRate(0, now);
+        double slow = scheduler.getAchievedRate(3, now);
+        assertTrue(fast > 5.5 && slow > 0.5);
+        assertTrue("fast " + fast + " slow " + slow, fast / slow > 5);
+        assertEquals(scheduler.getAchievedRate(0, now), scheduler.getAchievedRate(1, now), 0.2);
+    }
+
+    @Test
+    public void priorityWinsContendedSlots() {
+        PollScheduler scheduler = new PollScheduler(new int[]{0x0C, 0x0D}, 20.0);
+        scheduler.setPriority(0x0D, 5);
+        scheduler.setMaxPidsPerCycle(1);
+
+        long now = simulate(scheduler);
+
+        assertTrue(scheduler.getAchievedRate(1, now) > scheduler.getAchievedRate(0, now) * 3);
+    }
+
+    @Test
+    public void readerRequestsOnlySelectedPids() throws Exception {
+        String responses = "41 00 18 02 00 00\r\r>" + // PIDs 04, 05 and 0F supported
+                           "41 04 80 05 7B 0F 45\r\r>" +
+                           "41 0F 46\r\r>";
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        JavaObdReader reader = JavaObdReader.getJavaObdReaderForStreams(new ByteArrayInputStream(responses.getBytes()), os);
+        reader.initSupportedOdbCommands();
+        reader.setBatchedPolling(true);
+
+        PollScheduler scheduler = reader.createPollScheduler(0.001);
+        scheduler.setTargetRate(0x0F, 1000.0);
+        double[] values = new double[reader.getCommandCount()];
+
+        assertEquals(3, reader.runScheduledCommandsReturnValues(scheduler, values));
+        Thread.sleep(5);
+        assertEquals(1, reader.runScheduledCommandsReturnValues(scheduler, values));
+        assertEquals(30.0, values[2], 0.001);
+        assertEquals(83.0, values[1], 0.001);
+        assertTrue(os.toString().endsWith("01 04 05 0F\r01 0F\r"));
+    }
+
+    @Test
+    public void rejectedBatchIsSentAgainAsSinglePids() throws Exception {
+        String responses = "41 00 18 02 00 00\r\r>" + // PIDs 04, 05 and 0F supported
+                           "?\r\r>" +                 // 01 04 05 0F rejected
+                           "41 04 80\r\r>41 05 7B\r\r>41 0F 45\r\r>";
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        JavaObdReader reader = JavaObdReader.getJavaObdReaderForStreams(new ByteArrayInputStream(responses.getBytes()), os);
+        reader.initSupportedOdbCommands();
+        reader.setBatchedPolling(true);
+
+        PollScheduler scheduler = reader.createPollScheduler(0.001);
+        double[] values = new double[reader.getCommandCount()];
+
+        assertEquals(3, reader.runScheduledCommandsReturnValues(scheduler, values));
+        assertEquals(83.0, values[1], 0.001);
+        for (int i = 0; i < values.length; i++)
+            assertEquals(0, scheduler.getMissCount(i));
+        assertTrue(os.toString().endsWith("01 04 05 0F\r01 04\r01 05\r01 0F\r"));
+    }
+}
@@ -0,0 +1,76 @@
+package RyanBerti;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times one poll cycle over the simulated adapter's default PIDs through each of the reader's
+ * polling paths: raw response Strings, formatted results, and values decoded straight into an array,
+ * with single PID or batched multi-PID requests. With a latency of 0 the numbers are the reader's own
+ * overhead per cycle
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PollingBenchmark {
+
+    /**
+     * Simulated adapter response time
+     */
+    @Param({"0", "100"})
+    public long latencyMicros;
+
+    @Param({"false", "true"})
+    public boolean batched;
+
+    private JavaObdReader reader;
+    private double[] values;
+
+    @Setup
+    public void connect() throws IOException, InterruptedException {
+        ElmSimulator simulator = new ElmSimulator(1);
+        simulator.setLatency(latencyMicros, latencyMicros / 2);
+        reader = JavaObdReader.getJavaObdReaderForSimulator(simulator);
+        reader.initOBDControlCommands();
+        reader.initSupportedOdbCommands();
+        reader.setBatchedPolling(batched);
+        values = new double[reader.getCommandCount()];
+    }
+
+    @TearDown
+    public void disconnect() throws IOException {
+        reader.closeOBDConnection();
+    }
+
+    @Benchmark
+    public String rawData() throws IOException, InterruptedException {
+        return reader.runCommandsReturnRawData();
+    }
+
+    @Benchmark
+    public String formattedResult() throws IOException, InterruptedException {
+        return reader.runCommandsReturnFormattedResult();
+    }
+
+    @Benchmark
+    public double[] values() throws IOException {
+        reader.runCommandsReturnValues(values);
+        return values;
+    }
+}
@@ -0,0 +1,89 @@
+package RyanBerti;
+
+import com.github.pires.obd.commands.engine.RPMCommand;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the String based response handling (obd-java-api ObdCommand.run and the multi-PID String
+ * demultiplexer) against ElmResponseReader's reusable byte buffer, for a single PID and a six PID
+ * response. Run main (or JMH with -prof gc) to get ns/op alongside the allocation rate per op
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResponseParserBenchmark {
+
+    private final ByteArrayInputStream singleResponse =
+            new ByteArrayInputStream("41 0C 1A F8 \r\r>".getBytes());
+    private final ByteArrayInputStream multiResponse =
+            new ByteArrayInputStream("00F\r0: 41 0C 1A F8 0D 32\r1: 05 7B 0F 45 11 33 10\r2: 01 F4 00 00 00 00 00\r\r>".getBytes());
+
+    private final RPMCommand rpm = new RPMCommand();
+    private final ElmResponseReader reader = new ElmResponseReader();
+
+    @Benchmark
+    public void singlePidObdCommand(Blackhole bh) throws IOException, InterruptedException {
+        singleResponse.reset();
+        rpm.run(singleResponse, ElmIO.NULL_OUTPUT);
+        bh.consume(rpm.getCalculatedResult());
+    }
+
+    @Benchmark
+    public double singlePidResponseReader() throws IOException {
+        singleResponse.reset();
+        reader.readResponse(singleResponse);
+        return ObdPid.decode(0x0C, reader.getPayload(), reader.getMessageOffset(0) + 2);
+    }
+
+    @Benchmark
+    public void multiPidString(Blackhole bh) throws IOException {
+        multiResponse.reset();
+        bh.consume(ObdBatchCommand.demultiplex(ElmIO.readUntilPrompt(multiResponse)));
+    }
+
+    @Benchmark
+    public double multiPidResponseReader() throws IOException {
+        multiResponse.reset();
+        reader.readResponse(multiResponse);
+
+        int[] payload = reader.getPayload();
+        int pos = reader.getMessageOffset(0) + 1;
+        int end = reader.getMessageOffset(0) + reader.getMessageLength(0);
+        double sum = 0;
+        while (pos < end) {
+            int length = ObdPid.dataLength(payload[pos]);
+            if (length == 0 || pos + 1 + length > end)
+                break;
+            sum += ObdPid.decode(payload[pos], payload, pos + 1);
+            pos += 1 + length;
+        }
+        return sum;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(ResponseParserBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
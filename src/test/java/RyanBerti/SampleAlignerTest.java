@@ -0,0 +1,183 @@
+package RyanBerti;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@Category(RyanBerti.UnitTests.class)
+public class SampleAlignerTest {
+
+    private static final long MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final ElmSimulator simulator = new ElmSimulator(7);
+
+    @After
+    public void closeSimulator() {
+        simulator.close();
+    }
+
+    private static final class RowRecorder implements SampleSink {
+
+        final List<Long> timestamps = new ArrayList<>();
+        final List<double[]> rows = new ArrayList<>();
+
+        @Override
+        public void addSamples(long timestampMillis, double[] values) {
+            timestamps.add(timestampMillis);
+            rows.add(values.clone());
+        }
+
+        @Override
+        public void flush() {}
+
+        @Override
+        public void close() {}
+    }
+
+    /**
+     * Feed the aligner cycles of 30 ms in which column i is read 10 ms after column i - 1, each value
+     * being the time it was read at (in ms since base)
+     */
+    private static void feed(SampleAligner aligner, long base, int cycles, double[] values, long[] requests,
+                             long[] responses) throws Exception {
+        for (int c = 0; c < cycles; c++) {
+            for (int i = 0; i < values.length; i++) {
+                requests[i] = base + (c * 30 + i * 10) * MILLI;
+                responses[i] = requests[i] + 4 * MILLI;
+                values[i] = (requests[i] + 2 * MILLI - base) / (double) MILLI;
+            }
+            aligner.add(values, requests, responses);
+        }
+    }
+
+    @Test
+    public void interpolatesSkewedColumnsOntoTheGrid() throws Exception {
+        RowRecorder recorder = new RowRecorder();
+        SampleAligner aligner = new SampleAligner(3, 10 * MILLI, recorder);
+        long base = System.nanoTime();
+        feed(aligner, base, 10, new double[3], new long[3], new long[3]);
+
+        // the grid runs from the third column's first sample (22 ms) to the first column's last (272 ms)
+        assertTrue(recorder.rows.size() >= 24 && recorder.rows.size() <= 26);
+        assertEquals(recorder.rows.size(), aligner.getRowCount());
+        for (int r = 0; r < recorder.rows.size(); r++) {
+            double[] row = recorder.rows.get(r);
+            // every column is linear in time, so interpolated at the same time they all agree
+            assertEquals(row[0], row[1], 1e-6);
+            assertEquals(row[0], row[2], 1e-6);
+            assertTrue(row[0] >= 22 && row[0] <= 272);
+            if (r > 0) {
+                assertEquals(10, recorder.timestamps.get(r) - recorder.timestamps.get(r - 1));
+                assertEquals(10, row[0] - recorder.rows.get(r - 1)[0], 1e-6);
+            }
+        }
+    }
+
+    @Test
+    public void staleColumnsDontHoldRowsBack() throws Exception {
+        RowRecorder recorder = new RowRecorder();
+        SampleAligner aligner = new SampleAligner(2, 10 * MILLI, recorder);
+        double[] values = new double[2];
+        long[] requests = new long[2];
+        long[] responses = new long[2];
+        long base = System.nanoTime();
+        feed(aligner, base, 3, values, requests, responses);
+        int rows = recorder.rows.size();
+
+        // the second column stops answering, its timestamps left as they were
+        for (int c = 3; c < 10; c++) {
+            requests[0] = base + c * 30 * MILLI;
+            responses[0] = requests[0] + 4 * MILLI;
+            values[0] = c * 30 + 2;
+            values[1] = Double.NaN;
+            aligner.add(values, requests, responses);
+        }
+        assertTrue(recorder.rows.size() > rows + 15);
+        double[] last = recorder.rows.get(recorder.rows.size() - 1);
+        assertFalse(Double.isNaN(last[0]));
+        assertTrue(Double.isNaN(last[1]));
+    }
+
+    @Test
+    public void addingCyclesDoesntAllocate() throws Exception {
+        int columns = 40;
+        TimeSeriesStore store = new TimeSeriesStore(new int[columns], 1024);
+        SampleAligner aligner = new SampleAligner(columns, 5 * MILLI, store);
+        double[] values = new double[columns];
+        long[] requests = new long[columns];
+        long[] responses = new long[columns];
+        long base = System.nanoTime();
+        feed(aligner, base, 100, values, requests, responses);
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+        feed(aligner, base + 100 * 30 * MILLI, 10000, values, requests, responses);
+        long allocated = threads.getThreadAllocatedBytes(threadId) - allocatedBefore;
+
+        System.out.println(String.format("%d rows of %d columns aligned, %d bytes allocated by 10000 cycles",
+                aligner.getRowCount(), columns, allocated));
+        assertTrue(aligner.getRowCount() > 10000 * 30 / 5 - 100);
+        assertTrue(allocated < 64 * 1024);
+    }
+
+    @Test
+    public void rejectsSubMillisecondGrids() {
+        try {
+            new SampleAligner(1, MILLI / 2, new RowRecorder());
+            fail("expected an IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void readerStampsEveryCommand() throws Exception {
+        simulator.setSupportedPids(0x04, 0x05, 0x0C, 0x0F);
+        simulator.setLatency(3000, 0);
+        JavaObdReader reader = JavaObdReader.getJavaObdReaderForSimulator(simulator);
+        reader.initOBDControlCommands();
+        reader.initSupportedOdbCommands();
+
+        int count = reader.getCommandCount();
+        double[] values = new double[count];
+        long[] requests = new long[count];
+        long[] responses = new long[count];
+        long start = System.nanoTime();
+        assertEquals(4, reader.runCommandsReturnValues(values, requests, responses));
+        for (int i = 0; i < count; i++) {
+            assertTrue(requests[i] - start >= 0);
+            assertTrue(responses[i] - requests[i] >= 3 * MILLI);
+            if (i > 0)
+                assertTrue(requests[i] - responses[i - 1] >= 0);
+        }
+
+        // commands of one multi-PID request share its timestamps
+        reader.setBatchedPolling(true);
+        assertEquals(4, reader.runCommandsReturnValues(values, requests, responses));
+        for (int i = 1; i < count; i++) {
+            assertEquals(requests[0], requests[i]);
+            assertEquals(responses[0], responses[i]);
+        }
+
+        RowRecorder recorder = new RowRecorder();
+        SampleAligner aligner = reader.createSampleAligner(5, recorder);
+        for (int i = 0; i < 5; i++)
+            reader.runCommandsToAligner(aligner);
+        assertTrue(recorder.rows.size() >= 2);
+        for (double[] row : recorder.rows) {
+            for (double value : row)
+                assertFalse(Double.isNaN(value));
+        }
+    }
+}
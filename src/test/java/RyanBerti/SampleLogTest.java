@@ -0,0 +1,199 @@
+package RyanBerti;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@Category(RyanBerti.UnitTests.class)
+public class SampleLogTest {
+
+    private static final int[] PIDS = {0x0C, 0x0D, 0x05};
+    private static final String[] NAMES = {"RPMCommand", "SpeedCommand", "EngineCoolantTemperatureCommand"};
+
+    private File file;
+
+    @Before
+    public void createFile() throws Exception {
+        file = Files.createTempFile("samplelog", ".obdlog").toFile();
+        file.delete();
+    }
+
+    @After
+    public void deleteFile() {
+        file.delete();
+    }
+
+    private static double[] cycle(int i) {
+        return new double[] {800 + (i % 50) * 4.25, 50 + i / 20, 90};
+    }
+
+    @Test
+    public void roundTripsSamples() throws Exception {
+        try (SampleLogWriter writer = new SampleLogWriter(file, "1FTFW1EF1EKF01234", PIDS, NAMES, 16)) {
+            for (int i = 0; i < 100; i++)
+                writer.addSamples(1000000L + i * 100, cycle(i));
+            writer.addSamples(1010000L, new double[] {Double.NaN, 1, 2});
+        }
+
+        try (SampleLogReader reader = new SampleLogReader(file)) {
+            assertEquals("1FTFW1EF1EKF01234", reader.getVin());
+            assertArrayEquals(PIDS, reader.getPids());
+            assertEquals("SpeedCommand", reader.getName(1));
+            assertEquals("rpm", reader.getUnit(0));
+
+            int[] read = new int[PIDS.length];
+            while (reader.nextBlock()) {
+                for (int c = 0; c < PIDS.length; c++) {
+                    for (int i = 0; i < reader.getSampleCount(c); i++, read[c]++) {
+                        if (read[c] < 100) {
+                            assertEquals(1000000L + read[c] * 100, reader.getTimestamp(c, i));
+                            assertEquals(cycle(read[c])[c], reader.getValue(c, i), 0.0);
+                        }
+                    }
+                }
+            }
+            assertFalse(reader.isTruncated());
+            assertArrayEquals(new int[] {100, 101, 101}, read);
+        }
+    }
+
+    @Test
+    public void reopeningDropsTornBlockAndAppends() throws Exception {
+        try (SampleLogWriter writer = new SampleLogWriter(file, null, PIDS, NAMES, 10)) {
+            for (int i = 0; i < 20; i++)
+                writer.addSamples(i, cycle(i));
+        }
+        long complete = file.length();
+
+        // simulate a crash in the middle of writing a block
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            out.write(new byte[] {0x42, 0x4C, 0x4B, 0x31, 0, 0, 1, 0, 0, 0, 0, 50, 1, 2, 3, 4, 5});
+        }
+        try (SampleLogReader reader = new SampleLogReader(file)) {
+            while (reader.nextBlock())
+                ;
+            assertTrue(reader.isTruncated());
+            assertEquals(complete, reader.getValidLength());
+        }
+
+        try (SampleLogWriter writer = new SampleLogWriter(file, null, PIDS, NAMES, 10)) {
+            assertEquals(60, writer.getSampleCount());
+            writer.addSamples(20, cycle(20));
+        }
+
+        int samples = 0;
+        try (SampleLogReader reader = new SampleLogReader(file)) {
+            while (reader.nextBlock())
+                samples += reader.getBlockSampleCount();
+            assertFalse(reader.isTruncated());
+        }
+        assertEquals(63, samples);
+    }
+
+    @Test
+    public void reopeningChecksTheHeader() throws Exception {
+        try (SampleLogWriter writer = new SampleLogWriter(file, "1FTFW1EF1EKF01234", PIDS, NAMES, 10)) {
+            for (int i = 0; i < 10; i++)
+                writer.addSamples(i, cycle(i));
+        }
+        long length = file.length();
+
+        String[] renamed = NAMES.clone();
+        renamed[2] = "AirIntakeTemperatureCommand";
+        try {
+            new SampleLogWriter(file, "1FTFW1EF1EKF01234", PIDS, renamed, 10).close();
+            fail("reopened with different column names");
+        } catch (IOException e) {
+            // expected
+        }
+        try {
+            new SampleLogWriter(file, "1D4GP25R53C599999", PIDS, NAMES, 10).close();
+            fail("reopened for another vehicle");
+        } catch (IOException e) {
+            // expected
+        }
+        try {
+            new SampleLogWriter(file, null, PIDS, NAMES, 10).close();
+            fail("reopened without the VIN");
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals(length, file.length());
+
+        try (SampleLogWriter writer = new SampleLogWriter(file, "1FTFW1EF1EKF01234", PIDS, NAMES, 10)) {
+            assertEquals(30, writer.getSampleCount());
+        }
+    }
+
+    @Test
+    public void corruptBlockFailsChecksum() throws Exception {
+        try (SampleLogWriter writer = new SampleLogWriter(file, null, PIDS, NAMES, 10)) {
+            for (int i = 0; i < 20; i++)
+                writer.addSamples(i, cycle(i));
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(raf.length() - 3);
+            int b = raf.read();
+            raf.seek(raf.length() - 3);
+            raf.write(b ^ 0xFF);
+        }
+        try (SampleLogReader reader = new SampleLogReader(file)) {
+            // the last of the three blocks holds the samples flushed by close
+            int blocks = 0;
+            while (reader.nextBlock())
+                blocks++;
+            assertEquals(2, blocks);
+            assertTrue(reader.isTruncated());
+        }
+    }
+
+    /**
+     * Compare bytes/sample and write time of the binary log against the comma separated text lines
+     * that runCommandsReturnFormattedResult output is logged as
+     */
+    @Test
+    public void binaryLogIsSmallerThanText() throws Exception {
+        int cycles = 20000;
+        File text = Files.createTempFile("samplelog", ".txt").toFile();
+        try {
+            long start = System.nanoTime();
+            try (FileOutputStream out = new FileOutputStream(text)) {
+                for (int i = 0; i < cycles; i++) {
+                    double[] v = cycle(i);
+                    out.write(String.format("%.0fRPM,%.0fkm/h,%.1fC", v[0], v[1], v[2]).getBytes());
+                    out.write('\n');
+                }
+            }
+            long textNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            try (SampleLogWriter writer = new SampleLogWriter(file, null, PIDS, NAMES)) {
+                for (int i = 0; i < cycles; i++)
+                    writer.addSamples(1000000L + i * 100, cycle(i));
+            }
+            long binaryNanos = System.nanoTime() - start;
+
+            long samples = (long) cycles * PIDS.length;
+            double textBytes = (double) text.length() / samples;
+            double binaryBytes = (double) file.length() / samples;
+            System.out.println(String.format("Text: %.2f bytes/sample, %d ns/sample; binary: %.2f bytes/sample, %d ns/sample",
+                    textBytes, textNanos / samples, binaryBytes, binaryNanos / samples));
+            assertTrue(binaryBytes * 4 < textBytes);
+        } finally {
+            text.delete();
+        }
+    }
+}
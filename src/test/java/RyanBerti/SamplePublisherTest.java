@@ -0,0 +1,187 @@
+package RyanBerti;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@Category(RyanBerti.UnitTests.class)
+public class SamplePublisherTest {
+
+    private static class CollectingSubscriber implements SampleSubscriber {
+
+        final List<Sample> samples = new ArrayList<>();
+        final long requestPerSample;
+        SampleSubscription subscription;
+        boolean completed = false;
+        Throwable error;
+
+        CollectingSubscriber(long requestPerSample) {
+            this.requestPerSample = requestPerSample;
+        }
+
+        @Override
+        public void onSubscribe(SampleSubscription subscription) {
+            this.subscription = subscription;
+        }
+
+        @Override
+        public void onSample(Sample sample) {
+            samples.add(sample);
+            if (requestPerSample > 0)
+                subscription.request(requestPerSample);
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            this.error = error;
+        }
+
+        @Override
+        public void onComplete() {
+            completed = true;
+        }
+    }
+
+    @Test
+    public void deliversOnlyRequestedSamples() {
+        SamplePublisher publisher = new SamplePublisher(new int[] {0x0C, 0x05}, 16);
+        CollectingSubscriber subscriber = new CollectingSubscriber(0);
+        publisher.subscribe(subscriber);
+
+        publisher.addSamples(1000, new double[] {1726.0, 83.0});
+        publisher.addSamples(1100, new double[] {1730.5, Double.NaN});
+        assertEquals(0, subscriber.samples.size());
+
+        subscriber.subscription.request(2);
+        assertEquals(2, subscriber.samples.size());
+        assertEquals(0x0C, subscriber.samples.get(0).getPid());
+        assertEquals("rpm", subscriber.samples.get(0).getUnit());
+        assertEquals(83.0, subscriber.samples.get(1).getValue(), 0.0);
+        assertEquals("C", subscriber.samples.get(1).getUnit());
+
+        subscriber.subscription.request(10);
+        assertEquals(3, subscriber.samples.size());
+        assertEquals(1100, subscriber.samples.get(2).getTimestampMillis());
+
+        publisher.close();
+        assertTrue(subscriber.completed);
+        assertEquals(0, publisher.getSubscriberCount());
+    }
+
+    @Test
+    public void requestFromOnSampleKeepsSamplesFlowing() {
+        SamplePublisher publisher = new SamplePublisher(new int[] {0x0C}, 4);
+        CollectingSubscriber subscriber = new CollectingSubscriber(1);
+        publisher.subscribe(subscriber);
+        subscriber.subscription.request(1);
+
+        for (int i = 0; i < 100; i++)
+            publisher.addSamples(i, new double[] {i});
+        assertEquals(100, subscriber.samples.size());
+        assertEquals(0, publisher.getDroppedCount());
+    }
+
+    @Test
+    public void slowSubscriberDropsOldestSamples() {
+        SamplePublisher publisher = new SamplePublisher(new int[] {0x0C}, 4);
+        CollectingSubscriber slow = new CollectingSubscriber(0);
+        CollectingSubscriber fast = new CollectingSubscriber(0);
+        publisher.subscribe(slow);
+        publisher.subscribe(fast);
+        fast.subscription.request(Long.MAX_VALUE);
+
+        for (int i = 0; i < 10; i++)
+            publisher.addSamples(i, new double[] {i});
+        assertEquals(10, fast.samples.size());
+        assertEquals(6, slow.subscription.getDroppedCount());
+
+        slow.subscription.request(Long.MAX_VALUE);
+        assertEquals(4, slow.samples.size());
+        assertEquals(6.0, slow.samples.get(0).getValue(), 0.0);
+    }
+
+    @Test
+    public void cancelAndInvalidRequestEndSubscription() {
+        SamplePublisher publisher = new SamplePublisher(new int[] {0x0C}, 4);
+        CollectingSubscriber cancelled = new CollectingSubscriber(0);
+        CollectingSubscriber invalid = new CollectingSubscriber(0);
+        publisher.subscribe(cancelled);
+        publisher.subscribe(invalid);
+
+        cancelled.subscription.cancel();
+        invalid.subscription.request(0);
+        assertTrue(invalid.error instanceof IllegalArgumentException);
+        assertEquals(0, publisher.getSubscriberCount());
+
+        publisher.addSamples(0, new double[] {1});
+        cancelled.subscription.request(1);
+        assertEquals(0, cancelled.samples.size());
+        assertNull(cancelled.error);
+    }
+
+    @Test
+    public void invalidRequestIsSignalledAfterOnSampleReturns() {
+        SamplePublisher publisher = new SamplePublisher(new int[] {0x0C}, 4);
+        List<String> signals = new ArrayList<>();
+        publisher.subscribe(new SampleSubscriber() {
+            SampleSubscription subscription;
+
+            @Override
+            public void onSubscribe(SampleSubscription subscription) {
+                this.subscription = subscription;
+                subscription.request(1);
+            }
+
+            @Override
+            public void onSample(Sample sample) {
+                signals.add("sample");
+                subscription.request(-1);
+                signals.add("sample returns");
+            }
+
+            @Override
+            public void onError(Throwable error) {
+                signals.add("error");
+            }
+
+            @Override
+            public void onComplete() {
+                signals.add("complete");
+            }
+        });
+
+        publisher.addSamples(0, new double[] {1});
+        publisher.addSamples(1, new double[] {2});
+        assertEquals(3, signals.size());
+        assertEquals("error", signals.get(2));
+        assertEquals(0, publisher.getSubscriberCount());
+    }
+
+    @Test
+    public void readerPublishesDecodedValues() throws Exception {
+        String responses = "41 00 18 00 00 00\r\r>" + // 01 00: PIDs 04 and 05 supported
+                           "41 04 FF\r\r>41 05 28\r\r>";
+        JavaObdReader reader = JavaObdReader.getJavaObdReaderForStreams(new ByteArrayInputStream(responses.getBytes()),
+                new ByteArrayOutputStream());
+        reader.initSupportedOdbCommands();
+
+        SamplePublisher publisher = reader.createSamplePublisher(16);
+        CollectingSubscriber subscriber = new CollectingSubscriber(0);
+        publisher.subscribe(subscriber);
+        subscriber.subscription.request(Long.MAX_VALUE);
+
+        assertEquals(2, reader.runCommandsToSink(publisher));
+        assertEquals(2, subscriber.samples.size());
+        assertEquals(0x04, subscriber.samples.get(0).getPid());
+        assertEquals(100.0, subscriber.samples.get(0).getValue(), 0.001);
+        assertEquals(0.0, subscriber.samples.get(1).getValue(), 0.001);
+    }
+}
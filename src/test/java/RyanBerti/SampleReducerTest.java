@@ -0,0 +1,148 @@
+package RyanBerti;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@Category(RyanBerti.UnitTests.class)
+public class SampleReducerTest {
+
+    private static class CollectingSink implements SampleSink {
+
+        final List<Long> timestamps = new ArrayList<>();
+        final List<double[]> cycles = new ArrayList<>();
+
+        @Override
+        public void addSamples(long timestampMillis, double[] values) {
+            timestamps.add(timestampMillis);
+            cycles.add(values.clone());
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @Test
+    public void deadbandAndIntervals() throws IOException {
+        CollectingSink sink = new CollectingSink();
+        SampleReducer reducer = new SampleReducer(sink, new int[] {0x0C, 0x05});
+        reducer.setDeadband(0x0C, 50);
+        reducer.setMaxInterval(0x05, 1000);
+        reducer.setMinInterval(0x0C, 200);
+
+        reducer.addSamples(0, new double[] {800, 90});     // first values always pass
+        reducer.addSamples(100, new double[] {1000, 90});  // rpm too soon, coolant unchanged
+        reducer.addSamples(300, new double[] {840, 90});   // rpm within deadband
+        reducer.addSamples(400, new double[] {900, 91});
+        reducer.addSamples(1500, new double[] {900, 91});  // coolant heartbeat
+
+        assertEquals(3, sink.cycles.size());
+        assertArrayEquals(new double[] {800, 90}, sink.cycles.get(0), 0.0);
+        assertEquals(400, (long) sink.timestamps.get(1));
+        assertArrayEquals(new double[] {900, 91}, sink.cycles.get(1), 0.0);
+        assertTrue(Double.isNaN(sink.cycles.get(2)[0]));
+        assertEquals(91.0, sink.cycles.get(2)[1], 0.0);
+
+        assertEquals(10, reducer.getSamplesIn());
+        assertEquals(5, reducer.getSamplesOut());
+        assertEquals(2.0, reducer.getReductionRatio(), 0.0);
+    }
+
+    @Test
+    public void deltaEncodingRoundTrips() throws IOException {
+        int[] pids = {0x0C, 0x04, 0x05, 0x10, 0x0E};
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DeltaSampleEncoder encoder = new DeltaSampleEncoder(bytes, pids);
+        double[][] cycles = {
+                {1726.25, 100.0 * 128 / 255, 83, 5.05, -3.5},
+                {1730.5, Double.NaN, 83, 4.99, 12},
+                {Double.NaN, Double.NaN, Double.NaN, Double.NaN, Double.NaN},
+                {800, 0, -40, 0, -64}};
+        for (int i = 0; i < cycles.length; i++)
+            encoder.addSamples(1458300000000L + i * 97, cycles[i]);
+        encoder.close();
+
+        DeltaSampleDecoder decoder = new DeltaSampleDecoder(new ByteArrayInputStream(bytes.toByteArray()));
+        assertArrayEquals(pids, decoder.getPids());
+        double[] values = new double[pids.length];
+        for (int i = 0; i < cycles.length; i++) {
+            assertTrue(decoder.next(values));
+            assertEquals(1458300000000L + i * 97, decoder.getTimestampMillis());
+            for (int c = 0; c < pids.length; c++) {
+                if (Double.isNaN(cycles[i][c]))
+                    assertTrue(Double.isNaN(values[c]));
+                else
+                    assertEquals(cycles[i][c], values[c], 1e-9);
+            }
+        }
+        assertFalse(decoder.next(values));
+    }
+
+    /**
+     * Ten minutes of a 10 Hz, eight PID drive: compare the formatted text lines against the reduced
+     * and delta encoded stream
+     */
+    @Test
+    public void reducesSimulatedDriveByAnOrderOfMagnitude() throws IOException {
+        int[] pids = {0x0C, 0x0D, 0x05, 0x0F, 0x11, 0x04, 0x2F, 0x33};
+        String[] units = {"RPM", "km/h", "C", "C", "%", "%", "%", "kPa"};
+        int cycles = 6000;
+
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        DeltaSampleEncoder encoder = new DeltaSampleEncoder(encoded, pids);
+        SampleReducer reducer = new SampleReducer(encoder, pids);
+        reducer.setDeadband(0x0C, 25);
+        reducer.setDeadband(0x11, 1);
+        reducer.setDeadband(0x04, 1);
+        reducer.setMinInterval(0x2F, 10000);
+        reducer.setMaxInterval(0x05, 5000);
+
+        long textBytes = 0;
+        double[] values = new double[pids.length];
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < cycles; i++) {
+            double t = i / 10.0;
+            values[0] = Math.round((1800 + 900 * Math.sin(t / 20)) * 4) / 4.0;
+            values[1] = Math.round(60 + 40 * Math.sin(t / 60));
+            values[2] = Math.min(90, 20 + i / 20);
+            values[3] = 25 + (i / 3000);
+            values[4] = Math.round((20 + 15 * Math.sin(t / 20)) * 2.55) / 2.55;
+            values[5] = Math.round((35 + 20 * Math.sin(t / 20)) * 2.55) / 2.55;
+            values[6] = Math.round((75 - t / 100) * 2.55) / 2.55;
+            values[7] = 101;
+
+            line.setLength(0);
+            for (int c = 0; c < pids.length; c++) {
+                if (c > 0)
+                    line.append(',');
+                line.append(String.format("%.1f", values[c])).append(units[c]);
+            }
+            textBytes += line.length() + 1;
+
+            reducer.addSamples(1458300000000L + i * 100, values);
+        }
+        reducer.close();
+
+        double ratio = (double) textBytes / encoder.getBytesWritten();
+        System.out.println(String.format("Text %d bytes, reduced and delta encoded %d bytes (%.1fx); reducer %.2fx " +
+                "samples at %.0f ns/sample, encoder %.0f ns/sample",
+                textBytes, encoder.getBytesWritten(), ratio, reducer.getReductionRatio(),
+                reducer.getNanosPerSample(), encoder.getNanosPerSample()));
+        assertTrue(ratio >= 10);
+    }
+}
@@ -0,0 +1,234 @@
+package RyanBerti;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@Category(RyanBerti.UnitTests.class)
+public class SegmentUploaderTest {
+
+    private static final int[] PIDS = {0x0C, 0x0D};
+    private static final String[] NAMES = {"RPMCommand", "SpeedCommand"};
+
+    /**
+     * Passes calls to a FileSystemUploadTarget, failing parts while the connection is "down", and
+     * optionally losing the answer to a completed upload or dropping an upload before completing it
+     */
+    private static class FlakyTarget implements UploadTarget {
+
+        final FileSystemUploadTarget delegate;
+        final AtomicInteger partUploads = new AtomicInteger();
+        volatile int failPartsAfter = Integer.MAX_VALUE;
+        volatile boolean loseCompletion = false;
+        volatile boolean dropUpload = false;
+
+        FlakyTarget(File root) {
+            delegate = new FileSystemUploadTarget(root);
+        }
+
+        @Override
+        public String startUpload(String key) throws IOException {
+            return delegate.startUpload(key);
+        }
+
+        @Override
+        public void uploadPart(String key, String uploadId, int partNumber, byte[] data, int length) throws IOException {
+            if (partUploads.get() >= failPartsAfter)
+                throw new IOException("connection lost");
+            partUploads.incrementAndGet();
+            delegate.uploadPart(key, uploadId, partNumber, data, length);
+        }
+
+        @Override
+        public void completeUpload(String key, String uploadId, int partCount) throws IOException {
+            if (dropUpload) {
+                dropUpload = false;
+                delete(new File(delegate.getObjectFile(key).getParentFile(), ".uploads/" + uploadId));
+            }
+            delegate.completeUpload(key, uploadId, partCount);
+            if (loseCompletion) {
+                loseCompletion = false;
+                throw new IOException("connection lost");
+            }
+        }
+
+        @Override
+        public long getObjectLength(String key) {
+            return delegate.getObjectLength(key);
+        }
+    }
+
+    private File segments;
+    private File bucket;
+
+    @Before
+    public void createDirectories() throws Exception {
+        segments = Files.createTempDirectory("segments").toFile();
+        bucket = Files.createTempDirectory("bucket").toFile();
+    }
+
+    @After
+    public void deleteDirectories() {
+        delete(segments);
+        delete(bucket);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null)
+            for (File child : children)
+                delete(child);
+        file.delete();
+    }
+
+    private static void writeSamples(RollingSampleLog log, int cycles) throws IOException {
+        for (int i = 0; i < cycles; i++)
+            log.addSamples(1458300000000L + i * 100, new double[] {800 + (i * 37) % 3000, i % 120});
+    }
+
+    @Test
+    public void rollsSegmentsBySizeAndTime() throws Exception {
+        RollingSampleLog log = new RollingSampleLog(segments, null, PIDS, NAMES, 2048, 60000, null);
+        log.setBlockSize(64);
+        writeSamples(log, 3000);
+        log.close();
+
+        File[] closed = segments.listFiles((dir, name) -> name.endsWith(SegmentUploader.SEGMENT_SUFFIX));
+        assertTrue(closed.length > 1);
+        assertEquals(closed.length, log.getSegmentCount());
+
+        // time based rolling: 5 minutes of samples in one minute segments
+        delete(segments);
+        log = new RollingSampleLog(segments, null, PIDS, NAMES, Long.MAX_VALUE, 60000, null);
+        writeSamples(log, 3000);
+        log.close();
+        assertEquals(5, log.getSegmentCount());
+    }
+
+    @Test
+    public void uploadsSegmentsInParallelParts() throws Exception {
+        FlakyTarget target = new FlakyTarget(bucket);
+        SegmentUploader uploader = new SegmentUploader(segments, target, "vin/", 256, 4, 0);
+        RollingSampleLog log = new RollingSampleLog(segments, null, PIDS, NAMES, 4096, Long.MAX_VALUE, uploader);
+        log.setBlockSize(64);
+        writeSamples(log, 5000);
+        log.close();
+
+        assertTrue(uploader.awaitIdle(10, TimeUnit.SECONDS));
+        assertEquals(log.getSegmentCount(), uploader.getUploadedSegments());
+        for (File segment : segments.listFiles((dir, name) -> name.endsWith(SegmentUploader.SEGMENT_SUFFIX)))
+            assertArrayEquals(Files.readAllBytes(segment.toPath()),
+                    Files.readAllBytes(target.delegate.getObjectFile("vin/" + segment.getName()).toPath()));
+        uploader.close();
+    }
+
+    @Test
+    public void resumesFromManifestAfterConnectionLossAndRestart() throws Exception {
+        RollingSampleLog log = new RollingSampleLog(segments, null, PIDS, NAMES, Long.MAX_VALUE, Long.MAX_VALUE, null);
+        log.setBlockSize(64);
+        writeSamples(log, 5000);
+        log.close();
+        File segment = segments.listFiles((dir, name) -> name.endsWith(SegmentUploader.SEGMENT_SUFFIX))[0];
+        int parts = (int) ((segment.length() + 511) / 512);
+        assertTrue(parts > 4);
+
+        // the connection drops after 3 parts, and the process "crashes" while it's down
+        FlakyTarget target = new FlakyTarget(bucket);
+        target.failPartsAfter = 3;
+        SegmentUploader uploader = new SegmentUploader(segments, target, "", 512, 1, 0);
+        uploader.setRetryBackoff(10, 20);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (uploader.getFailures() == 0 && System.nanoTime() < deadline)
+            Thread.sleep(10);
+        assertTrue(uploader.getFailures() > 0);
+        assertFalse(target.delegate.getObjectFile(segment.getName()).exists());
+        uploader.close();
+
+        // a new uploader only uploads the remaining parts
+        target.failPartsAfter = Integer.MAX_VALUE;
+        uploader = new SegmentUploader(segments, target, "", 512, 2, 0);
+        assertTrue(uploader.awaitIdle(10, TimeUnit.SECONDS));
+        assertEquals(parts - 3, uploader.getUploadedParts());
+        assertEquals(parts, target.partUploads.get());
+        assertArrayEquals(Files.readAllBytes(segment.toPath()),
+                Files.readAllBytes(target.delegate.getObjectFile(segment.getName()).toPath()));
+        uploader.close();
+
+        // and finished segments aren't uploaded again
+        uploader = new SegmentUploader(segments, target, "", 512, 2, 0);
+        assertEquals(0, uploader.getPendingSegments());
+        uploader.close();
+    }
+
+    @Test
+    public void throttlesUploadBandwidth() throws Exception {
+        File segment = new File(segments, "obd-0000000000001" + SegmentUploader.SEGMENT_SUFFIX);
+        Files.write(segment.toPath(), new byte[4000]);
+
+        long start = System.nanoTime();
+        SegmentUploader uploader = new SegmentUploader(segments, new FileSystemUploadTarget(bucket), "", 1000, 4, 20000);
+        assertTrue(uploader.awaitIdle(10, TimeUnit.SECONDS));
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        uploader.close();
+
+        // 4000 bytes at 20000 bytes/sec: the first part goes right away, the last after 150 ms
+        assertTrue("took " + millis + " ms", millis >= 140);
+    }
+
+    @Test
+    public void segmentLeftOpenByCrashIsClosed() throws Exception {
+        RollingSampleLog log = new RollingSampleLog(segments, null, PIDS, NAMES, Long.MAX_VALUE, Long.MAX_VALUE, null);
+        log.setBlockSize(16);
+        writeSamples(log, 100);
+        // no close: the segment stays open
+
+        SegmentUploader uploader = new SegmentUploader(segments, new FileSystemUploadTarget(bucket), "", 1024, 1, 0);
+        new RollingSampleLog(segments, null, PIDS, NAMES, Long.MAX_VALUE, Long.MAX_VALUE, uploader);
+        assertTrue(uploader.awaitIdle(10, TimeUnit.SECONDS));
+        assertEquals(1, uploader.getUploadedSegments());
+        uploader.close();
+    }
+
+    @Test
+    public void finishesUploadsCompletedOrDroppedBehindItsBack() throws Exception {
+        File segment = new File(segments, "obd-0000000000001" + SegmentUploader.SEGMENT_SUFFIX);
+        Files.write(segment.toPath(), new byte[3000]);
+
+        // the upload is completed, but the uploader doesn't hear about it
+        FlakyTarget target = new FlakyTarget(bucket);
+        target.loseCompletion = true;
+        SegmentUploader uploader = new SegmentUploader(segments, target, "", 1000, 2, 0);
+        uploader.setRetryBackoff(10, 20);
+        assertTrue(uploader.awaitIdle(10, TimeUnit.SECONDS));
+        assertEquals(1, uploader.getFailures());
+        assertEquals(1, uploader.getUploadedSegments());
+        assertEquals(3, target.partUploads.get());
+        assertEquals(3000, target.getObjectLength(segment.getName()));
+        uploader.close();
+
+        // the target drops the upload, so it's started over
+        File second = new File(segments, "obd-0000000000002" + SegmentUploader.SEGMENT_SUFFIX);
+        Files.write(second.toPath(), new byte[3000]);
+        target.dropUpload = true;
+        uploader = new SegmentUploader(segments, target, "", 1000, 2, 0);
+        uploader.setRetryBackoff(10, 20);
+        assertTrue(uploader.awaitIdle(10, TimeUnit.SECONDS));
+        assertEquals(1, uploader.getFailures());
+        assertEquals(1, uploader.getUploadedSegments());
+        assertEquals(3 + 6, target.partUploads.get());
+        assertEquals(3000, target.getObjectLength(second.getName()));
+        uploader.close();
+    }
+}
@@ -12,6 +12,7 @@ import java.io.IOException;
 public class SimpleBenchmarkTest {
 
     private static int numCommands = 5000;
+    private static int numCycles = 100;
 
     @Test
     @Category(RyanBerti.SerialTests.class)
@@ -75,4 +76,262 @@ public class SimpleBenchmarkTest {
         }
 
     }
+
+    @Test
+    @Category(RyanBerti.UnitTests.class)
+    public void runSimpleSimulatorCommandsTest() throws IOException {
+
+        JavaObdReader reader = JavaObdReader.getJavaObdReaderForSimulator(newSimulator());
+
+        long startTime = System.currentTimeMillis();
+        for (int i = 0; i < numCommands; i++) {
+            reader.os.write("01 0C\r".getBytes());
+            reader.os.flush();
+            while (reader.is.read() != '>')
+                ;
+        }
+        long endTime = System.currentTimeMillis();
+        System.out.println("Running " + numCommands + " simulated commands took " + (endTime - startTime) + " ms");
+        reader.closeOBDConnection();
+    }
+
+    /**
+     * Simulated adapter answering within 50 - 150 us, with a fixed seed so runs are comparable
+     */
+    private static ElmSimulator newSimulator() {
+        ElmSimulator simulator = new ElmSimulator(1);
+        simulator.setLatency(100, 50);
+        return simulator;
+    }
+
+    @Test
+    @Category(RyanBerti.SerialTests.class)
+    public void runBatchedSerialPollingTest() {
+        try {
+
+            JavaObdReader reader = JavaObdReader.getJavaObdReaderForSerialPort(System.getProperty("test.serial.port"));
+            runBatchedPollingBenchmark(reader);
+            reader.closeOBDConnection();
+
+        } catch (IOException | InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Test
+    @Category(RyanBerti.SocketTests.class)
+    public void runBatchedSocketPollingTest() {
+        try {
+
+            JavaObdReader reader = JavaObdReader.getJavaObdReaderForSocket(System.getProperty("test.socket.host"),
+                    Integer.valueOf(System.getProperty("test.socket.port")));
+            runBatchedPollingBenchmark(reader);
+            reader.closeOBDConnection();
+
+        } catch (IOException | InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Test
+    @Category(RyanBerti.UnitTests.class)
+    public void runBatchedSimulatorPollingTest() throws IOException, InterruptedException {
+        JavaObdReader reader = JavaObdReader.getJavaObdReaderForSimulator(newSimulator());
+        runBatchedPollingBenchmark(reader);
+        reader.closeOBDConnection();
+    }
+
+    /**
+     * Compare the poll cycle rate of one request per command against multi-PID batched requests
+     */
+    private void runBatchedPollingBenchmark(JavaObdReader reader) throws IOException, InterruptedException {
+
+        reader.initOBDControlCommands();
+        reader.initSupportedOdbCommands();
+
+        reader.setBatchedPolling(false);
+        long startTime = System.currentTimeMillis();
+        for (int i = 0; i < numCycles; i++)
+            reader.runCommandsReturnRawData();
+        long singleMillis = System.currentTimeMillis() - startTime;
+
+        reader.setBatchedPolling(true);
+        startTime = System.currentTimeMillis();
+        for (int i = 0; i < numCycles; i++)
+            reader.runCommandsReturnRawData();
+        long batchedMillis = System.currentTimeMillis() - startTime;
+
+        System.out.println("Polling " + reader.getCommandCount() + " commands " + numCycles + " times: single PID " +
+                (numCycles * 1000.0 / singleMillis) + " cycles/sec, batched " +
+                (numCycles * 1000.0 / batchedMillis) + " cycles/sec" +
+                (reader.isBatchedPollingActive() ? "" : " (multi-PID rejected, fell back to single PID)"));
+    }
+
+    @Test
+    @Category(RyanBerti.SerialTests.class)
+    public void runPipelinedSerialPollingTest() {
+        try {
+
+            JavaObdReader reader = JavaObdReader.getJavaObdReaderForSerialPort(System.getProperty("test.serial.port"));
+            runPipelinedPollingBenchmark(reader);
+            reader.closeOBDConnection();
+
+        } catch (IOException | InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Test
+    @Category(RyanBerti.SocketTests.class)
+    public void runPipelinedSocketPollingTest() {
+        try {
+
+            JavaObdReader reader = JavaObdReader.getJavaObdReaderForSocket(System.getProperty("test.socket.host"),
+                    Integer.valueOf(System.getProperty("test.socket.port")));
+            runPipelinedPollingBenchmark(reader);
+            reader.closeOBDConnection();
+
+        } catch (IOException | InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Test
+    @Category(RyanBerti.UnitTests.class)
+    public void runPipelinedSimulatorPollingTest() throws IOException, InterruptedException {
+        JavaObdReader reader = JavaObdReader.getJavaObdReaderForSimulator(newSimulator());
+        runPipelinedPollingBenchmark(reader);
+        reader.closeOBDConnection();
+    }
+
+    /**
+     * Compare the commands/sec of sequential requests against pipelined requests
+     */
+    private void runPipelinedPollingBenchmark(JavaObdReader reader) throws IOException, InterruptedException {
+
+        reader.initOBDControlCommands();
+        reader.initSupportedOdbCommands();
+        double[] values = new double[reader.getCommandCount()];
+
+        long startTime = System.currentTimeMillis();
+        for (int i = 0; i < numCycles; i++)
+            reader.runCommandsReturnValues(values);
+        long sequentialMillis = System.currentTimeMillis() - startTime;
+
+        reader.setPipelinedPolling(true);
+        startTime = System.currentTimeMillis();
+        for (int i = 0; i < numCycles; i++)
+            reader.runCommandsReturnValues(values);
+        long pipelinedMillis = System.currentTimeMillis() - startTime;
+        reader.setPipelinedPolling(false);
+
+        long total = (long) numCycles * reader.getCommandCount();
+        System.out.println("Running " + total + " commands: sequential " + (total * 1000.0 / sequentialMillis) +
+                " commands/sec, pipelined " + (total * 1000.0 / pipelinedMillis) + " commands/sec");
+    }
+
+    @Test
+    @Category(RyanBerti.SerialTests.class)
+    public void runSerialStartupTest() {
+        try {
+
+            JavaObdReader reader = JavaObdReader.getJavaObdReaderForSerialPort(System.getProperty("test.serial.port"));
+            runStartupBenchmark(reader);
+            reader.closeOBDConnection();
+
+        } catch (IOException | InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Test
+    @Category(RyanBerti.SocketTests.class)
+    public void runSocketStartupTest() {
+        try {
+
+            JavaObdReader reader = JavaObdReader.getJavaObdReaderForSocket(System.getProperty("test.socket.host"),
+                    Integer.valueOf(System.getProperty("test.socket.port")));
+            runStartupBenchmark(reader);
+            reader.closeOBDConnection();
+
+        } catch (IOException | InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Test
+    @Category(RyanBerti.UnitTests.class)
+    public void runSimulatorStartupTest() throws IOException, InterruptedException {
+        ElmSimulator simulator = newSimulator();
+        simulator.setSearchLatency(200000);
+        JavaObdReader reader = JavaObdReader.getJavaObdReaderForSimulator(simulator);
+        runStartupBenchmark(reader);
+        reader.closeOBDConnection();
+    }
+
+    /**
+     * Time the connection setup and supported command discovery
+     */
+    private void runStartupBenchmark(JavaObdReader reader) throws IOException, InterruptedException {
+
+        long startTime = System.currentTimeMillis();
+        reader.initOBDControlCommands();
+        long controlTime = System.currentTimeMillis();
+        reader.initSupportedOdbCommands();
+        long endTime = System.currentTimeMillis();
+
+        System.out.println("Control commands took " + (controlTime - startTime) + " ms, discovering " +
+                reader.getCommandCount() + " supported commands took " + (endTime - controlTime) + " ms");
+    }
+
+    @Test
+    @Category(RyanBerti.SerialTests.class)
+    public void runSerialBaudRateTest() {
+        try {
+
+            JavaObdReader reader = JavaObdReader.getJavaObdReaderForSerialPort(System.getProperty("test.serial.port"));
+            runBaudRateBenchmark(reader, Integer.getInteger("test.serial.baud", 115200));
+            reader.closeOBDConnection();
+
+        } catch (IOException | InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Test
+    @Category(RyanBerti.UnitTests.class)
+    public void runSimulatorBaudRateTest() throws IOException, InterruptedException {
+        ElmSimulator simulator = newSimulator();
+        simulator.setBaudRate(38400);
+        JavaObdReader reader = JavaObdReader.getJavaObdReaderForSimulator(simulator);
+        runBaudRateBenchmark(reader, 500000);
+        reader.closeOBDConnection();
+    }
+
+    /**
+     * Compare the command rate at the adapter's default baud rate against the rate AT BRD switched to
+     */
+    private void runBaudRateBenchmark(JavaObdReader reader, int baudRate) throws IOException, InterruptedException {
+
+        reader.initOBDControlCommands();
+        reader.initSupportedOdbCommands();
+        long total = (long) numCycles * reader.getCommandCount();
+
+        int defaultRate = reader.getSerialBaudRate();
+        long startTime = System.currentTimeMillis();
+        for (int i = 0; i < numCycles; i++)
+            reader.runCommandsReturnRawData();
+        long defaultMillis = System.currentTimeMillis() - startTime;
+
+        int switchedRate = reader.setSerialBaudRate(baudRate);
+        startTime = System.currentTimeMillis();
+        for (int i = 0; i < numCycles; i++)
+            reader.runCommandsReturnRawData();
+        long switchedMillis = System.currentTimeMillis() - startTime;
+
+        System.out.println("Polling " + total + " commands: " + defaultRate + " baud " +
+                (total * 1000.0 / defaultMillis) + " commands/sec, " + switchedRate + " baud " +
+                (total * 1000.0 / switchedMillis) + " commands/sec" +
+                (switchedRate == defaultRate ? " (switch failed, stayed at the default rate)" : ""));
+    }
 }
@@ -0,0 +1,110 @@
+package RyanBerti;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@Category(RyanBerti.UnitTests.class)
+public class SupportedPidsTest {
+
+    @Test
+    public void queryFollowsMaskChain() throws Exception {
+        String responses = "SEARCHING...\r41 00 BE 1F A8 13\r\r>" +
+                           "41 20 80 01 80 01\r\r>" +
+                           "41 40 40 00 00 00\r\r>";
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+
+        SupportedPids pids = SupportedPids.query(new ByteArrayInputStream(responses.getBytes()), os);
+
+        assertEquals("01 00\r01 20\r01 40\r", os.toString());
+        assertEquals(3, pids.getRequestCount());
+        assertTrue(pids.isSupported(0x01));
+        assertFalse(pids.isSupported(0x02));
+        assertTrue(pids.isSupported(0x0C));
+        assertTrue(pids.isSupported(0x0D));
+        assertTrue(pids.isSupported(0x20));
+        assertTrue(pids.isSupported(0x21));
+        assertTrue(pids.isSupported(0x40));
+        assertTrue(pids.isSupported(0x42));
+        assertFalse(pids.isSupported(0x43));
+    }
+
+    @Test
+    public void queryCombinesEcuMasks() throws Exception {
+        String responses = "41 00 80 00 00 00\r41 00 00 08 00 00\r\r>";
+
+        SupportedPids pids = SupportedPids.query(new ByteArrayInputStream(responses.getBytes()),
+                new ByteArrayOutputStream());
+
+        assertEquals(2, pids.size());
+        assertTrue(pids.isSupported(0x01));
+        assertTrue(pids.isSupported(0x0D));
+    }
+
+    @Test
+    public void queryReturnsNullWithoutMask() throws Exception {
+        assertNull(SupportedPids.query(new ByteArrayInputStream("NO DATA\r\r>".getBytes()),
+                new ByteArrayOutputStream()));
+    }
+
+    @Test
+    public void parsesInterleavedEcuFrames() {
+        String response = "7E8 10 14 49 02 01 31 44 34\r" +
+                          "7E9 03 41 0D 32\r" +
+                          "7E8 21 47 50 32 35 52 35 33\r" +
+                          "18DAF11004410C1AF8\r" +
+                          "7E8 22 43 35 39 39 39 39 39\r";
+
+        Map<Integer, List<int[]>> messages = ElmIO.parseEcuMessages(response);
+
+        assertEquals(3, messages.size());
+        assertArrayEquals(new int[] {0x41, 0x0D, 0x32}, messages.get(0x7E9).get(0));
+        assertArrayEquals(new int[] {0x41, 0x0C, 0x1A, 0xF8}, messages.get(0x18DAF110).get(0));
+        int[] vin = messages.get(0x7E8).get(0);
+        assertEquals(0x14, vin.length);
+        assertEquals(0x49, vin[0]);
+        assertEquals('9', vin[vin.length - 1]);
+        assertTrue(ElmIO.parseEcuMessages("41 00 BE 1F A8 13\r").isEmpty());
+    }
+
+    @Test
+    public void queryEcusKeepsEcusApart() throws Exception {
+        String responses = "OK\r\r>" +
+                           "7E8 06 41 00 BE 1F A8 13\r7E9 06 41 00 80 08 00 00\r\r>" +
+                           "7E8 06 41 20 80 00 00 00\r\r>" +
+                           "OK\r\r>";
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+
+        Map<Integer, SupportedPids> ecus = SupportedPids.queryEcus(new ByteArrayInputStream(responses.getBytes()), os, null);
+
+        assertEquals("AT H1\r01 00\r01 20 1\rAT H0\r", os.toString());
+        assertEquals(2, ecus.size());
+        assertTrue(ecus.get(0x7E8).isSupported(0x21));
+        assertTrue(ecus.get(0x7E8).isSupported(0x0C));
+        assertArrayEquals(new int[] {0x01, 0x0D}, ecus.get(0x7E9).toArray());
+        SupportedPids union = SupportedPids.union(ecus.values());
+        assertEquals(2, union.getRequestCount());
+        assertTrue(union.isSupported(0x21));
+        assertTrue(union.isSupported(0x0D));
+    }
+
+    @Test
+    public void queryEcusReturnsNullWithoutHeaders() throws Exception {
+        String responses = "OK\r\r>41 00 BE 1F A8 13\r\r>OK\r\r>";
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+
+        assertNull(SupportedPids.queryEcus(new ByteArrayInputStream(responses.getBytes()), os, null));
+        assertEquals("AT H1\r01 00\rAT H0\r", os.toString());
+        assertNull(SupportedPids.queryEcus(new ByteArrayInputStream("?\r\r>".getBytes()), new ByteArrayOutputStream(), null));
+    }
+}
@@ -0,0 +1,108 @@
+package RyanBerti;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@Category(RyanBerti.UnitTests.class)
+public class TimeSeriesStoreTest {
+
+    @Test
+    public void windowedQueries() {
+        TimeSeriesStore store = new TimeSeriesStore(new int[] {0x0C, 0x05}, 100);
+        for (int i = 0; i < 10; i++)
+            store.addSamples(1000 + i * 100, new double[] {800 + i * 10, i == 5 ? Double.NaN : 90});
+
+        assertEquals(10, store.size(0x0C));
+        assertEquals(9, store.size(0x05));
+        assertEquals(890f, store.latest(0x0C), 0f);
+        assertEquals(1900, store.latestTimestamp(0x0C));
+
+        assertEquals(5, store.count(0x0C, 1500, 1900));
+        assertEquals(850f, store.min(0x0C, 1500, 1900), 0f);
+        assertEquals(890f, store.max(0x0C, 1500, Long.MAX_VALUE), 0f);
+        assertEquals(870.0, store.average(0x0C, 1500, 1900), 0.001);
+        assertEquals(100.0, store.rateOfChange(0x0C, 1000, 1900), 0.001);
+        assertEquals(0.0, store.rateOfChange(0x05, 1000, 1900), 0.0);
+
+        assertEquals(0, store.count(0x0C, 2000, 3000));
+        assertTrue(Float.isNaN(store.min(0x0C, 2000, 3000)));
+        assertTrue(Double.isNaN(store.average(0x0C, 2000, 3000)));
+        assertTrue(Double.isNaN(store.rateOfChange(0x0C, 1900, 3000)));
+    }
+
+    @Test
+    public void oldestSamplesAreOverwritten() {
+        TimeSeriesStore store = new TimeSeriesStore(new int[] {0x0C}, 4);
+        for (int i = 0; i < 10; i++)
+            store.add(0x0C, i, i);
+
+        assertEquals(4, store.size(0x0C));
+        assertEquals(0, store.count(0x0C, 0, 5));
+        assertEquals(6f, store.min(0x0C, 0, 100), 0f);
+
+        long[] timestamps = new long[3];
+        float[] values = new float[3];
+        assertEquals(3, store.copy(0x0C, 0, 100, timestamps, values));
+        assertEquals(7, timestamps[0]);
+        assertEquals(9f, values[2], 0f);
+    }
+
+    @Test
+    public void unknownPidIsRejected() {
+        try {
+            new TimeSeriesStore(new int[] {0x0C}, 4).latest(0x0D);
+            fail("PID 0D isn't stored");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /**
+     * An hour of 40 PIDs at 10 Hz: check the footprint, and that adding and querying at the poll rate
+     * doesn't allocate (where the JVM can count a thread's allocations)
+     */
+    @Test
+    public void hourOfFortyPidsFootprint() {
+        int pidCount = 40;
+        int rateHz = 10;
+        int capacity = 3600 * rateHz;
+        int[] pids = new int[pidCount];
+        for (int i = 0; i < pidCount; i++)
+            pids[i] = 0x04 + i;
+
+        TimeSeriesStore store = new TimeSeriesStore(pids, capacity);
+        double[] values = new double[pidCount];
+        for (int i = 0; i < capacity; i++) {
+            for (int p = 0; p < pidCount; p++)
+                values[p] = p + (i % 100);
+            store.addSamples(i * 100L, values);
+        }
+        assertEquals(12L * pidCount * capacity, store.getFootprintBytes());
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean))
+            return;
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+        if (!allocations.isThreadAllocatedMemorySupported() || !allocations.isThreadAllocatedMemoryEnabled())
+            return;
+        long threadId = Thread.currentThread().getId();
+        long allocatedBefore = allocations.getThreadAllocatedBytes(threadId);
+        double sink = 0;
+        for (int i = 0; i < 10000; i++) {
+            long now = (capacity + i) * 100L;
+            store.addSamples(now, values);
+            sink += store.average(0x0C, now - 10000, now) + store.max(0x0C, now - 10000, now);
+        }
+        long allocated = allocations.getThreadAllocatedBytes(threadId) - allocatedBefore;
+
+        assertTrue(sink > 0);
+        assertTrue("allocated " + allocated + " bytes", allocated < 64 * 1024);
+    }
+}
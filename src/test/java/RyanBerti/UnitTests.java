@@ -0,0 +1,8 @@
+package RyanBerti;
+
+/**
+ * Category marker for tests that don't need an OBD2 device and run in every profile
+ */
+public interface UnitTests {
+    /* category marker */
+}